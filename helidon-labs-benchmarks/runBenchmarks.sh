@@ -0,0 +1,17 @@
+#!/bin/bash
+# Runs the JMH benchmarks once for each thread count, the results for each run
+# are written as JSON to the results directory so they can be compared between
+# versions (e.g. with https://jmh.morethan.io or jq)
+# Usage runBenchmarks.sh [results dir] [thread counts] [extra JMH options]
+# e.g. runBenchmarks.sh results/v1 "1 8" -p departmentSize=1000 StockResourceBenchmark
+RESULTS_DIR=${1:-results}
+THREAD_COUNTS=${2:-"1 4 16"}
+# only shift what was given, shift 2 with one argument shifts nothing
+[ $# -gt 0 ] && shift
+[ $# -gt 0 ] && shift
+mkdir -p $RESULTS_DIR
+for THREADS in $THREAD_COUNTS
+do
+  echo Running benchmarks with $THREADS threads
+  java -jar target/benchmarks.jar -t $THREADS -rf json -rff $RESULTS_DIR/benchmarks-t$THREADS.json "$@"
+done
@@ -0,0 +1,7 @@
+#!/bin/bash
+# Starts the stockmanager (on an in memory H2 database) and the storefront, seeds
+# the items and drives load against the storefront. Options are of the form
+# --name=value, e.g.
+# runLoadTest.sh --rate=500 --mix=stocklevel=50,reserveStock=50 --items=1000 --duration=120
+# build the stockmanager and storefront with mvn package -Djib.skip first
+java -cp target/benchmarks.jar com.oracle.labs.helidon.benchmarks.loadtest.LoadTest "$@"
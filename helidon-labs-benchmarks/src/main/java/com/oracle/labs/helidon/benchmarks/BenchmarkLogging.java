@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The code being measured logs on every request, left alone that output would
+ * swamp the JMH output and the console would become the bottleneck. By default
+ * we turn the application logging down to warnings, run with
+ * -Dbenchmark.logging=true to include the cost of the logging in the results
+ */
+public class BenchmarkLogging {
+	// hang on to the loggers, JUL only holds weak references to them so the level
+	// settings could otherwise be lost
+	private final static Logger APPLICATION_LOGGER = Logger.getLogger("com.oracle.labs.helidon");
+	private final static Logger HIBERNATE_LOGGER = Logger.getLogger("org.hibernate");
+
+	private BenchmarkLogging() {
+	}
+
+	public static void configure() {
+		HIBERNATE_LOGGER.setLevel(Level.WARNING);
+		if (!Boolean.getBoolean("benchmark.logging")) {
+			APPLICATION_LOGGER.setLevel(Level.WARNING);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import io.helidon.metrics.RegistryFactory;
+
+/**
+ * The resources record their latencies into the application metrics registry,
+ * outside of Helidon there's no CDI to hand them a LatencyRecorder so we create
+ * them here. There must only be one of each per JVM as the gauges can only be
+ * registered once, and it's included so the benchmarks pay the same recording
+ * cost as the running services
+ */
+public class BenchmarkMetrics {
+	private final static int INTERVAL_SECONDS = 10;
+	private final static int WINDOW_INTERVALS = 6;
+
+	private static com.oracle.labs.helidon.stockmanager.metrics.LatencyRecorder stockmanagerRecorder;
+	private static com.oracle.labs.helidon.storefront.metrics.LatencyRecorder storefrontRecorder;
+
+	private BenchmarkMetrics() {
+	}
+
+	public static synchronized com.oracle.labs.helidon.stockmanager.metrics.LatencyRecorder stockmanagerLatencyRecorder() {
+		if (stockmanagerRecorder == null) {
+			stockmanagerRecorder = new com.oracle.labs.helidon.stockmanager.metrics.LatencyRecorder(
+					applicationRegistry(), INTERVAL_SECONDS, WINDOW_INTERVALS);
+		}
+		return stockmanagerRecorder;
+	}
+
+	public static synchronized com.oracle.labs.helidon.storefront.metrics.LatencyRecorder storefrontLatencyRecorder() {
+		if (storefrontRecorder == null) {
+			storefrontRecorder = new com.oracle.labs.helidon.storefront.metrics.LatencyRecorder(applicationRegistry(),
+					INTERVAL_SECONDS, WINDOW_INTERVALS);
+		}
+		return storefrontRecorder;
+	}
+
+	private static MetricRegistry applicationRegistry() {
+		return RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.eclipse.microprofile.faulttolerance.ExecutionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.labs.helidon.common.exceptions.stockmanagerapi.NotEnoughStockException;
+import com.oracle.labs.helidon.stockmanager.resources.StockResource;
+import com.oracle.labs.helidon.stockmanager.resources.fallback.StockManagerItemDetailsFallbackHandler;
+import com.oracle.labs.helidon.storefront.data.ItemRequest;
+import com.oracle.labs.helidon.storefront.exceptions.NotEnoughItemsException;
+import com.oracle.labs.helidon.storefront.resources.StorefrontResource;
+import com.oracle.labs.helidon.storefront.resources.fallback.StorefrontFallbackHandler;
+
+/**
+ * The failure path when an item has sold out, the not enough stock (or items)
+ * exception being created, then turned into the 409 response by the fallback
+ * handler, for the stockmanager and the storefront. The withStackTrace versions
+ * create the exceptions with their stack traces filled in (as they used to be)
+ * so the two can be compared
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FailurePathBenchmark {
+	private StockManagerItemDetailsFallbackHandler stockManagerFallbackHandler;
+	private StorefrontFallbackHandler storefrontFallbackHandler;
+	private Method reserveStockLevel;
+	private Method reserveStockItem;
+	private Object[] reserveStockLevelParameters;
+	private Object[] reserveStockItemParameters;
+
+	@Setup
+	public void setup() throws NoSuchMethodException {
+		BenchmarkLogging.configure();
+		stockManagerFallbackHandler = new StockManagerItemDetailsFallbackHandler();
+		storefrontFallbackHandler = new StorefrontFallbackHandler();
+		reserveStockLevel = StockResource.class.getMethod("reserveStockLevel", String.class, Integer.class);
+		reserveStockItem = StorefrontResource.class.getMethod("reserveStockItem", ItemRequest.class);
+		reserveStockLevelParameters = new Object[] { "Pencil", 5 };
+		reserveStockItemParameters = new Object[] { new ItemRequest("Pencil", 5) };
+	}
+
+	@Benchmark
+	public int stockManagerNotEnoughStock() {
+		return stockManagerFallback(new NotEnoughStockException("Can't reserve 5 of Pencil as there are only 0"));
+	}
+
+	@Benchmark
+	public int stockManagerNotEnoughStockWithStackTrace() {
+		return stockManagerFallback(
+				new NotEnoughStockException("Can't reserve 5 of Pencil as there are only 0", null, true, true));
+	}
+
+	@Benchmark
+	public int storefrontNotEnoughItems() {
+		return storefrontFallback(new NotEnoughItemsException(
+				"The reservation of 5 items of Pencil fails because there are not enough items available"));
+	}
+
+	@Benchmark
+	public int storefrontNotEnoughItemsWithStackTrace() {
+		return storefrontFallback(new NotEnoughItemsException(
+				"The reservation of 5 items of Pencil fails because there are not enough items available", null, true,
+				true));
+	}
+
+	private int stockManagerFallback(Exception failure) {
+		try {
+			stockManagerFallbackHandler.handle(context(reserveStockLevel, reserveStockLevelParameters, failure));
+		} catch (WebApplicationException e) {
+			return e.getResponse().getStatus();
+		}
+		throw new IllegalStateException("The fallback handler didn't throw");
+	}
+
+	private int storefrontFallback(Exception failure) {
+		try {
+			storefrontFallbackHandler.handle(context(reserveStockItem, reserveStockItemParameters, failure));
+		} catch (WebApplicationException e) {
+			return e.getResponse().getStatus();
+		}
+		throw new IllegalStateException("The fallback handler didn't throw");
+	}
+
+	private static ExecutionContext context(Method method, Object[] parameters, Throwable failure) {
+		return new ExecutionContext() {
+			@Override
+			public Method getMethod() {
+				return method;
+			}
+
+			@Override
+			public Object[] getParameters() {
+				return parameters;
+			}
+
+			@Override
+			public Throwable getFailure() {
+				return failure;
+			}
+		};
+	}
+}
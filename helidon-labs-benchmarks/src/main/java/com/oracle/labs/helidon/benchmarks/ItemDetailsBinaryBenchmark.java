@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.labs.helidon.stockmanager.providers.ItemDetailsBinary;
+
+/**
+ * The same as ItemDetailsJsonBenchmark but with the binary form
+ * (application/x-stocklevel) the storefront asks the stockmanager for, so the
+ * two can be compared
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ItemDetailsBinaryBenchmark {
+	@Param({ "10", "1000", "10000" })
+	public int departmentSize;
+
+	private com.oracle.labs.helidon.common.data.ItemDetails item;
+	private List<com.oracle.labs.helidon.common.data.ItemDetails> department;
+	private byte[] itemBytes;
+	private byte[] departmentBytes;
+
+	@Setup
+	public void setup() {
+		item = new com.oracle.labs.helidon.common.data.ItemDetails("Pencil", 12);
+		department = new ArrayList<>(departmentSize);
+		for (int i = 0; i < departmentSize; i++) {
+			department.add(new com.oracle.labs.helidon.common.data.ItemDetails("item-" + i, i));
+		}
+		itemBytes = ItemDetailsBinary.write(item);
+		departmentBytes = ItemDetailsBinary.write(department);
+	}
+
+	@Benchmark
+	public byte[] serializeItem() {
+		return ItemDetailsBinary.write(item);
+	}
+
+	@Benchmark
+	public com.oracle.labs.helidon.storefront.data.ItemDetails parseItem() throws IOException {
+		return com.oracle.labs.helidon.storefront.restclients.ItemDetailsBinary.readItem(itemBytes);
+	}
+
+	@Benchmark
+	public byte[] serializeDepartment() {
+		return ItemDetailsBinary.write(department);
+	}
+
+	@Benchmark
+	public List<com.oracle.labs.helidon.storefront.data.ItemDetails> parseDepartment() throws IOException {
+		return com.oracle.labs.helidon.storefront.restclients.ItemDetailsBinary.readItems(departmentBytes);
+	}
+}
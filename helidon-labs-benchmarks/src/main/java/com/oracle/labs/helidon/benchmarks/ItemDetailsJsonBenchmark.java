@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JSON-B work done on ItemDetails, the stockmanager serializes
+ * it's version of ItemDetails and the storefront parses that into it's own
+ * version, this is the same processing that's done when the storefront calls
+ * the stockmanager
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ItemDetailsJsonBenchmark {
+	private final static Type STOREFRONT_ITEM_LIST = new ArrayList<com.oracle.labs.helidon.storefront.data.ItemDetails>() {
+		private static final long serialVersionUID = 1L;
+	}.getClass().getGenericSuperclass();
+
+	@Param({ "10", "1000", "10000" })
+	public int departmentSize;
+
+	private Jsonb jsonb;
+	private com.oracle.labs.helidon.common.data.ItemDetails item;
+	private List<com.oracle.labs.helidon.common.data.ItemDetails> department;
+	private String itemJson;
+	private String departmentJson;
+
+	@Setup
+	public void setup() {
+		jsonb = JsonbBuilder.create();
+		item = new com.oracle.labs.helidon.common.data.ItemDetails("Pencil", 12);
+		department = new ArrayList<>(departmentSize);
+		for (int i = 0; i < departmentSize; i++) {
+			department.add(new com.oracle.labs.helidon.common.data.ItemDetails("item-" + i, i));
+		}
+		itemJson = jsonb.toJson(item);
+		departmentJson = jsonb.toJson(department);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		jsonb.close();
+	}
+
+	@Benchmark
+	public String serializeItem() {
+		return jsonb.toJson(item);
+	}
+
+	@Benchmark
+	public com.oracle.labs.helidon.storefront.data.ItemDetails parseItem() {
+		return jsonb.fromJson(itemJson, com.oracle.labs.helidon.storefront.data.ItemDetails.class);
+	}
+
+	@Benchmark
+	public String serializeDepartment() {
+		return jsonb.toJson(department);
+	}
+
+	@Benchmark
+	public List<com.oracle.labs.helidon.storefront.data.ItemDetails> parseDepartment() {
+		return jsonb.fromJson(departmentJson, STOREFRONT_ITEM_LIST);
+	}
+}
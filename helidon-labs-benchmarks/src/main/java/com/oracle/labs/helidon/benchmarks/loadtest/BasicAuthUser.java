@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.loadtest;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import io.helidon.config.Config;
+import io.helidon.config.ConfigSources;
+import lombok.Data;
+
+/**
+ * A user from the http-basic-auth provider in one of the services security
+ * config files, the load test spreads it's requests over all of these
+ */
+@Data
+public class BasicAuthUser {
+	private final String login;
+	private final String password;
+	private final List<String> roles;
+	private final String authorizationHeader;
+
+	public BasicAuthUser(String login, String password, List<String> roles) {
+		this.login = login;
+		this.password = password;
+		this.roles = roles;
+		this.authorizationHeader = "Basic "
+				+ Base64.getEncoder().encodeToString((login + ":" + password).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Read the users using the same Helidon config processing as the services
+	 *
+	 * @param securityFile
+	 * @return
+	 */
+	public static List<BasicAuthUser> load(Path securityFile) {
+		Config config = Config.builder().disableEnvironmentVariablesSource().disableSystemPropertiesSource()
+				.sources(ConfigSources.file(securityFile.toString())).build();
+		List<BasicAuthUser> users = new ArrayList<>();
+		for (Config provider : config.get("security.providers").asNodeList().orElse(List.of())) {
+			for (Config user : provider.get("http-basic-auth.users").asNodeList().orElse(List.of())) {
+				users.add(new BasicAuthUser(user.get("login").asString().get(), user.get("password").asString().get(),
+						user.get("roles").asList(String.class).orElse(List.of())));
+			}
+		}
+		if (users.isEmpty()) {
+			throw new IllegalArgumentException("No http-basic-auth users found in " + securityFile);
+		}
+		return users;
+	}
+}
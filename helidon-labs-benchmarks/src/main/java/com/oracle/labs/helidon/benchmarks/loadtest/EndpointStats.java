@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.loadtest;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import lombok.Getter;
+
+/**
+ * The results for one of the endpoints being driven. Two latencies are recorded
+ * for each request, the response time is measured from when the request should
+ * have been sent according to the arrival schedule, so it includes any time
+ * spent waiting behind slow requests (this is the coordinated omission
+ * correction), the service time is measured from when it was actually sent.
+ * Requests that weren't sent because too many were outstanding still count in
+ * the response times, as if they had timed out, otherwise the overload would
+ * hide itself. All times are in microseconds
+ */
+public class EndpointStats {
+	// track up to 5 minutes with 3 significant digits
+	private final static long HIGHEST_TRACKABLE = TimeUnit.MINUTES.toMicros(5);
+
+	@Getter
+	private final String name;
+	private final Recorder responseTimes = new Recorder(HIGHEST_TRACKABLE, 3);
+	private final Recorder serviceTimes = new Recorder(HIGHEST_TRACKABLE, 3);
+	private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private Histogram responseHistogram;
+	private Histogram serviceHistogram;
+
+	public EndpointStats(String name) {
+		this.name = name;
+	}
+
+	public void recordResponse(int status, long intendedStartNanos, long actualStartNanos, long endNanos) {
+		statusCounts.computeIfAbsent(status, code -> new LongAdder()).increment();
+		record(intendedStartNanos, actualStartNanos, endNanos);
+	}
+
+	public void recordFailure(long intendedStartNanos, long actualStartNanos, long endNanos) {
+		failures.increment();
+		record(intendedStartNanos, actualStartNanos, endNanos);
+	}
+
+	/**
+	 * The request wasn't sent as there were too many outstanding, it's recorded
+	 * as a response taking timeoutNanos from when it should have been sent
+	 */
+	public void recordDropped(long timeoutNanos) {
+		dropped.increment();
+		responseTimes.recordValue(Math.min(HIGHEST_TRACKABLE, TimeUnit.NANOSECONDS.toMicros(timeoutNanos)));
+	}
+
+	private void record(long intendedStartNanos, long actualStartNanos, long endNanos) {
+		responseTimes.recordValue(Math.min(HIGHEST_TRACKABLE, TimeUnit.NANOSECONDS.toMicros(endNanos - intendedStartNanos)));
+		serviceTimes.recordValue(Math.min(HIGHEST_TRACKABLE, TimeUnit.NANOSECONDS.toMicros(endNanos - actualStartNanos)));
+	}
+
+	/**
+	 * Throw away anything recorded so far (e.g. during the warmup)
+	 */
+	public void reset() {
+		responseTimes.reset();
+		serviceTimes.reset();
+		statusCounts.clear();
+		failures.reset();
+		dropped.reset();
+	}
+
+	/**
+	 * Take the histograms for everything recorded since the last reset
+	 */
+	public void finish() {
+		responseHistogram = responseTimes.getIntervalHistogram();
+		serviceHistogram = serviceTimes.getIntervalHistogram();
+	}
+
+	// the dropped requests are only in the response times
+	public long getCompleted() {
+		return serviceHistogram.getTotalCount();
+	}
+
+	public Map<Integer, Long> getStatusCounts() {
+		Map<Integer, Long> counts = new TreeMap<>();
+		statusCounts.forEach((status, count) -> counts.put(status, count.sum()));
+		return counts;
+	}
+
+	public String summary(double durationSeconds) {
+		String droppedWarning = dropped.sum() == 0 ? ""
+				: String.format("%n%14s WARNING %d requests were dropped (too many outstanding), they are counted as "
+						+ "timeouts in the response times", "", dropped.sum());
+		return String.format(
+				"%-14s completed %8d (%9.1f/s) failures %6d dropped %6d statuses %s%n"
+						+ "%14s response time ms p50 %8.2f p90 %8.2f p99 %8.2f p99.9 %8.2f max %8.2f%n"
+						+ "%14s service time  ms p50 %8.2f p90 %8.2f p99 %8.2f p99.9 %8.2f max %8.2f",
+				name, getCompleted(), getCompleted() / durationSeconds, failures.sum(), dropped.sum(),
+				getStatusCounts(), "", millis(responseHistogram, 50), millis(responseHistogram, 90),
+				millis(responseHistogram, 99), millis(responseHistogram, 99.9), responseHistogram.getMaxValue() / 1000.0,
+				"", millis(serviceHistogram, 50), millis(serviceHistogram, 90), millis(serviceHistogram, 99),
+				millis(serviceHistogram, 99.9), serviceHistogram.getMaxValue() / 1000.0) + droppedWarning;
+	}
+
+	public String csvHeader() {
+		return "endpoint,completed,throughput,failures,dropped,p50ms,p90ms,p99ms,p999ms,maxms,serviceP50ms,serviceP99ms";
+	}
+
+	public String csv(double durationSeconds) {
+		return String.format("%s,%d,%.1f,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", name, getCompleted(),
+				getCompleted() / durationSeconds, failures.sum(), dropped.sum(), millis(responseHistogram, 50),
+				millis(responseHistogram, 90), millis(responseHistogram, 99), millis(responseHistogram, 99.9),
+				responseHistogram.getMaxValue() / 1000.0, millis(serviceHistogram, 50), millis(serviceHistogram, 99));
+	}
+
+	/**
+	 * Write the full percentile distributions in the standard HdrHistogram .hgrm
+	 * format (in ms), these can be plotted with the HdrHistogram plotter
+	 */
+	public void writeDistributions(Path resultsDir) throws IOException {
+		try (PrintStream out = new PrintStream(new FileOutputStream(resultsDir.resolve(name + "-response.hgrm").toFile()))) {
+			responseHistogram.outputPercentileDistribution(out, 1000.0);
+		}
+		try (PrintStream out = new PrintStream(new FileOutputStream(resultsDir.resolve(name + "-service.hgrm").toFile()))) {
+			serviceHistogram.outputPercentileDistribution(out, 1000.0);
+		}
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000.0;
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * End to end load generator for the storefront and stockmanager.
+ *
+ * Starts the stockmanager (on an in memory H2 database) and the storefront as
+ * separate processes, seeds the stockmanager with items, then drives a mix of
+ * /store/stocklevel and /store/reserveStock requests at a fixed open loop
+ * arrival rate using the users from storefront-security.yaml. Requests are sent
+ * on their schedule regardless of how many are still outstanding, so a slow
+ * service builds up a queue rather than slowing the load down, and latencies
+ * are measured from the scheduled time.
+ *
+ * The results are HDR histograms and throughput for each endpoint, written to
+ * the results directory (summary.csv and .hgrm percentile distributions)
+ *
+ * java -cp target/benchmarks.jar
+ * com.oracle.labs.helidon.benchmarks.loadtest.LoadTest --rate=500
+ * --duration=120
+ */
+@Slf4j
+public class LoadTest {
+	public final static String STOCKLEVEL = "stocklevel";
+	public final static String RESERVE_STOCK = "reserveStock";
+	// requests dropped because too many are outstanding count as taking this long
+	private final static Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+	private final LoadTestOptions options;
+	private final HttpClient client;
+	private final List<BasicAuthUser> users;
+	private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private final List<ServiceProcess> services = new ArrayList<>();
+	// the endpoint names, one entry per unit of weight in the mix
+	private final String weightedEndpoints[];
+
+	public LoadTest(LoadTestOptions options) {
+		this.options = options;
+		this.client = HttpClient.newBuilder().executor(Executors.newFixedThreadPool(8))
+				.connectTimeout(Duration.ofSeconds(10)).build();
+		this.users = BasicAuthUser.load(options.getStorefrontSecurityFile());
+		List<String> weighted = new ArrayList<>();
+		options.getMix().forEach((endpoint, weight) -> {
+			if (!endpoint.equals(STOCKLEVEL) && !endpoint.equals(RESERVE_STOCK)) {
+				throw new IllegalArgumentException(
+						"Unknown endpoint " + endpoint + " in mix, must be " + STOCKLEVEL + " or " + RESERVE_STOCK);
+			}
+			stats.put(endpoint, new EndpointStats(endpoint));
+			for (int i = 0; i < weight; i++) {
+				weighted.add(endpoint);
+			}
+		});
+		weightedEndpoints = weighted.toArray(new String[0]);
+	}
+
+	public static void main(String args[]) throws Exception {
+		LoadTest loadTest = new LoadTest(new LoadTestOptions(args));
+		try {
+			loadTest.startServices();
+			loadTest.seed();
+			loadTest.run();
+			loadTest.report();
+		} finally {
+			loadTest.stopServices();
+		}
+		System.exit(0);
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	private void startServices() throws IOException, InterruptedException, URISyntaxException {
+		Files.createDirectories(options.getResultsDir());
+		if (!options.isStartServices()) {
+			log.info("Using already running services at " + options.getStockmanagerUrl() + " and "
+					+ options.getStorefrontUrl());
+			return;
+		}
+		URI stockmanagerUrl = new URI(options.getStockmanagerUrl());
+		URI storefrontUrl = new URI(options.getStorefrontUrl());
+		// the stockmanager uses an in memory H2 database, so supply the driver and
+		// override the datasource settings
+		Path h2Jar = Path.of(org.h2.Driver.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		Map<String, String> stockmanagerProperties = new LinkedHashMap<>();
+		stockmanagerProperties.put("server.port", "" + stockmanagerUrl.getPort());
+		stockmanagerProperties.put("app.department", options.getDepartment());
+		stockmanagerProperties.put("javax.sql.DataSource.stockmanagerDataSource.dataSourceClassName",
+				"org.h2.jdbcx.JdbcDataSource");
+		stockmanagerProperties.put("javax.sql.DataSource.stockmanagerDataSource.dataSource.url",
+				"jdbc:h2:mem:stockmanager;DB_CLOSE_DELAY=-1");
+		stockmanagerProperties.put("javax.sql.DataSource.stockmanagerDataSource.dataSource.user", "sa");
+		stockmanagerProperties.put("javax.sql.DataSource.stockmanagerDataSource.dataSource.password", "");
+		stockmanagerProperties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		if (options.getStorage().equals("wal")) {
+			// start with an empty log each time, otherwise the items already exist
+			Path walDirectory = options.getResultsDir().resolve("stockmanager-wal").toAbsolutePath();
+			deleteDirectory(walDirectory);
+			stockmanagerProperties.put("app.storage", "wal");
+			stockmanagerProperties.put("app.storage.wal.directory", walDirectory.toString());
+		}
+		if (options.getStorefrontBinding().equals("http2")) {
+			// HTTP/2 is experimental in the stockmanager so it's only on when it's used
+			stockmanagerProperties.put("server.experimental.http2.enable", "true");
+		}
+		ServiceProcess stockmanager = ServiceProcess.start("stockmanager", options.getStockmanagerDir(),
+				"com.oracle.labs.helidon.stockmanager.Main", List.of(h2Jar), stockmanagerProperties,
+				options.getResultsDir().resolve("stockmanager.log"));
+		services.add(stockmanager);
+		stockmanager.waitUntilReady(client, stockmanagerUrl.resolve("/status"), options.getStartupTimeout());
+		// point the storefront at the stockmanager we just started
+		Map<String, String> storefrontProperties = new LinkedHashMap<>();
+		storefrontProperties.put("server.port", "" + storefrontUrl.getPort());
+		storefrontProperties.put("StockManager/mp-rest/url", stockmanagerUrl.resolve("/stocklevel").toString());
+		storefrontProperties.put("app.stockmanager.binding", options.getStorefrontBinding());
+		storefrontProperties.put("com.oracle.labs.helidon.storefront.restclients.StockManagerStatus/mp-rest/url",
+				stockmanagerUrl.resolve("/status").toString());
+		ServiceProcess storefront = ServiceProcess.start("storefront", options.getStorefrontDir(),
+				"com.oracle.labs.helidon.storefront.Main", List.of(), storefrontProperties,
+				options.getResultsDir().resolve("storefront.log"));
+		services.add(storefront);
+		storefront.waitUntilReady(client, storefrontUrl.resolve("/status"), options.getStartupTimeout());
+	}
+
+	private void stopServices() throws InterruptedException {
+		for (ServiceProcess service : services) {
+			service.stop();
+		}
+	}
+
+	/**
+	 * Create the items in the stockmanager, if they already exist just reset their
+	 * level
+	 */
+	private void seed() throws InterruptedException {
+		BasicAuthUser admin = BasicAuthUser.load(options.getStockmanagerSecurityFile()).stream()
+				.filter(user -> user.getRoles().contains("admin")).findFirst()
+				.orElseThrow(() -> new IllegalArgumentException(
+						"No admin user in " + options.getStockmanagerSecurityFile() + " to create the items with"));
+		log.info("Seeding " + options.getItems() + " items as " + admin.getLogin());
+		Semaphore inFlight = new Semaphore(32);
+		List<CompletableFuture<HttpResponse<Void>>> seeding = new ArrayList<>();
+		for (int i = 0; i < options.getItems(); i++) {
+			URI itemUrl = URI.create(options.getStockmanagerUrl() + "/stocklevel/" + itemName(i) + "/"
+					+ options.getInitialCount());
+			HttpRequest create = HttpRequest.newBuilder(itemUrl).header("Authorization", admin.getAuthorizationHeader())
+					.PUT(HttpRequest.BodyPublishers.noBody()).build();
+			HttpRequest reset = HttpRequest.newBuilder(itemUrl).header("Authorization", admin.getAuthorizationHeader())
+					.POST(HttpRequest.BodyPublishers.noBody()).build();
+			inFlight.acquire();
+			seeding.add(client.sendAsync(create, HttpResponse.BodyHandlers.discarding()).thenCompose(response -> {
+				// 409 means it's already there
+				return response.statusCode() == 409 ? client.sendAsync(reset, HttpResponse.BodyHandlers.discarding())
+						: CompletableFuture.completedFuture(response);
+			}).whenComplete((response, error) -> inFlight.release()));
+		}
+		CompletableFuture.allOf(seeding.toArray(new CompletableFuture[0])).join();
+		long failed = seeding.stream().filter(response -> response.join().statusCode() != 200).count();
+		if (failed > 0) {
+			log.warn(failed + " items could not be seeded");
+		}
+	}
+
+	private void run() throws InterruptedException {
+		log.info("Running " + options);
+		double meanIntervalNanos = TimeUnit.SECONDS.toNanos(1) / options.getRate();
+		long startNanos = System.nanoTime();
+		long measureFromNanos = startNanos + options.getWarmup().toNanos();
+		long endNanos = measureFromNanos + options.getDuration().toNanos();
+		boolean measuring = false;
+		long intendedNanos = startNanos;
+		while (intendedNanos < endNanos) {
+			if (!measuring && (intendedNanos >= measureFromNanos)) {
+				// discard the warmup
+				stats.values().forEach(EndpointStats::reset);
+				measuring = true;
+				log.info("Warmup complete, measuring");
+			}
+			// wait until this request is due, if we're behind send it straight away
+			long waitNanos = intendedNanos - System.nanoTime();
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(waitNanos);
+			}
+			send(weightedEndpoints[ThreadLocalRandom.current().nextInt(weightedEndpoints.length)], intendedNanos);
+			intendedNanos += options.isPoissonArrivals()
+					? (long) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * meanIntervalNanos)
+					: (long) meanIntervalNanos;
+		}
+		// let the outstanding requests finish
+		long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while ((outstanding.get() > 0) && (System.nanoTime() < drainUntil)) {
+			Thread.sleep(100);
+		}
+		if (outstanding.get() > 0) {
+			log.warn(outstanding.get() + " requests were still outstanding at the end of the run");
+		}
+		stats.values().forEach(EndpointStats::finish);
+	}
+
+	private void send(String endpoint, long intendedNanos) {
+		EndpointStats endpointStats = stats.get(endpoint);
+		if (outstanding.get() >= options.getMaxOutstanding()) {
+			endpointStats.recordDropped(REQUEST_TIMEOUT.toNanos());
+			return;
+		}
+		BasicAuthUser user = users.get(ThreadLocalRandom.current().nextInt(users.size()));
+		HttpRequest.Builder request;
+		if (endpoint.equals(STOCKLEVEL)) {
+			request = HttpRequest.newBuilder(URI.create(options.getStorefrontUrl() + "/store/stocklevel")).GET();
+		} else {
+			String itemRequest = "{\"requestedItem\":\"" + itemName(ThreadLocalRandom.current().nextInt(options.getItems()))
+					+ "\",\"requestedCount\":" + options.getReserveCount() + "}";
+			request = HttpRequest.newBuilder(URI.create(options.getStorefrontUrl() + "/store/reserveStock"))
+					.header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofString(itemRequest));
+		}
+		request.header("Authorization", user.getAuthorizationHeader()).timeout(REQUEST_TIMEOUT);
+		outstanding.incrementAndGet();
+		long actualNanos = System.nanoTime();
+		client.sendAsync(request.build(), HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+			long completedNanos = System.nanoTime();
+			if (error == null) {
+				endpointStats.recordResponse(response.statusCode(), intendedNanos, actualNanos, completedNanos);
+			} else {
+				endpointStats.recordFailure(intendedNanos, actualNanos, completedNanos);
+			}
+			outstanding.decrementAndGet();
+		});
+	}
+
+	private void report() throws IOException {
+		double durationSeconds = options.getDuration().toMillis() / 1000.0;
+		System.out.println("Load test results for " + options);
+		try (PrintStream csv = new PrintStream(options.getResultsDir().resolve("summary.csv").toFile())) {
+			boolean first = true;
+			for (EndpointStats endpointStats : stats.values()) {
+				System.out.println(endpointStats.summary(durationSeconds));
+				if (first) {
+					csv.println(endpointStats.csvHeader());
+					first = false;
+				}
+				csv.println(endpointStats.csv(durationSeconds));
+				endpointStats.writeDistributions(options.getResultsDir());
+			}
+		}
+		System.out.println("Results written to " + options.getResultsDir().toAbsolutePath());
+	}
+
+	private static String itemName(int i) {
+		return "item-" + i;
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.loadtest;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * The load test settings, each can be overridden on the command line using
+ * --name=value, for example --rate=500 --mix=stocklevel=50,reserveStock=50
+ */
+@Getter
+public class LoadTestOptions {
+	private final static Map<String, String> DEFAULTS = new LinkedHashMap<>();
+	static {
+		DEFAULTS.put("startServices", "true");
+		DEFAULTS.put("stockmanagerDir", "../helidon-labs-stockmanager");
+		DEFAULTS.put("storefrontDir", "../helidon-labs-storefront");
+		DEFAULTS.put("stockmanagerUrl", "http://localhost:8081");
+		DEFAULTS.put("storefrontUrl", "http://localhost:8080");
+		DEFAULTS.put("storefrontBinding", "restclient");
+		DEFAULTS.put("storage", "jpa");
+		DEFAULTS.put("department", "loadtest");
+		DEFAULTS.put("items", "100");
+		DEFAULTS.put("initialCount", "1000000");
+		DEFAULTS.put("reserveCount", "5");
+		DEFAULTS.put("rate", "100");
+		DEFAULTS.put("arrivals", "poisson");
+		DEFAULTS.put("mix", "stocklevel=80,reserveStock=20");
+		DEFAULTS.put("warmup", "10");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("maxOutstanding", "10000");
+		DEFAULTS.put("startupTimeout", "120");
+		DEFAULTS.put("resultsDir", "loadtest-results");
+	}
+
+	private final boolean startServices;
+	private final Path stockmanagerDir;
+	private final Path storefrontDir;
+	private final String stockmanagerUrl;
+	private final String storefrontUrl;
+	private final String storefrontBinding;
+	private final String storage;
+	private final String department;
+	private final int items;
+	private final int initialCount;
+	private final int reserveCount;
+	private final double rate;
+	private final boolean poissonArrivals;
+	private final Map<String, Integer> mix = new LinkedHashMap<>();
+	private final Duration warmup;
+	private final Duration duration;
+	private final int maxOutstanding;
+	private final Duration startupTimeout;
+	private final Path resultsDir;
+
+	public LoadTestOptions(String args[]) {
+		Map<String, String> settings = new LinkedHashMap<>(DEFAULTS);
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (!arg.startsWith("--") || (split < 0)) {
+				throw new IllegalArgumentException("Arguments must be of the form --name=value, got " + arg);
+			}
+			String name = arg.substring(2, split);
+			if (!DEFAULTS.containsKey(name)) {
+				throw new IllegalArgumentException("Unknown option " + name + ", known options are " + DEFAULTS.keySet());
+			}
+			settings.put(name, arg.substring(split + 1));
+		}
+		startServices = Boolean.parseBoolean(settings.get("startServices"));
+		stockmanagerDir = Path.of(settings.get("stockmanagerDir"));
+		storefrontDir = Path.of(settings.get("storefrontDir"));
+		stockmanagerUrl = settings.get("stockmanagerUrl");
+		storefrontUrl = settings.get("storefrontUrl");
+		storefrontBinding = settings.get("storefrontBinding");
+		storage = settings.get("storage");
+		department = settings.get("department");
+		items = Integer.parseInt(settings.get("items"));
+		initialCount = Integer.parseInt(settings.get("initialCount"));
+		reserveCount = Integer.parseInt(settings.get("reserveCount"));
+		rate = Double.parseDouble(settings.get("rate"));
+		poissonArrivals = settings.get("arrivals").equalsIgnoreCase("poisson");
+		for (String entry : settings.get("mix").split(",")) {
+			String parts[] = entry.split("=");
+			mix.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+		}
+		warmup = Duration.ofSeconds(Long.parseLong(settings.get("warmup")));
+		duration = Duration.ofSeconds(Long.parseLong(settings.get("duration")));
+		maxOutstanding = Integer.parseInt(settings.get("maxOutstanding"));
+		startupTimeout = Duration.ofSeconds(Long.parseLong(settings.get("startupTimeout")));
+		resultsDir = Path.of(settings.get("resultsDir"));
+	}
+
+	public Path getStorefrontSecurityFile() {
+		return storefrontDir.resolve("confsecure/storefront-security.yaml");
+	}
+
+	public Path getStockmanagerSecurityFile() {
+		return stockmanagerDir.resolve("confsecure/stockmanager-security.yaml");
+	}
+
+	@Override
+	public String toString() {
+		return "binding=" + storefrontBinding + ", storage=" + storage + ", rate=" + rate + "/s (" + (poissonArrivals ? "poisson" : "constant") + " arrivals), mix=" + mix
+				+ ", items=" + items + ", warmup=" + warmup.getSeconds() + "s, duration=" + duration.getSeconds() + "s";
+	}
+}
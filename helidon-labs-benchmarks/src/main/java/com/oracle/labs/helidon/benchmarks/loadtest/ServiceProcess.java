@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * One of the services running as a separate JVM, each service needs it's own
+ * process as they both use CDI and would otherwise find each others beans. The
+ * service is run from it's project directory so it picks up it's conf and
+ * confsecure directories, the jar file is the one built by mvn package
+ */
+@Slf4j
+public class ServiceProcess {
+	private final String name;
+	private final Process process;
+
+	private ServiceProcess(String name, Process process) {
+		this.name = name;
+		this.process = process;
+	}
+
+	public static ServiceProcess start(String name, Path projectDir, String mainClass, List<Path> extraClasspath,
+			Map<String, String> properties, Path logFile) throws IOException {
+		Path jar = projectDir.resolve("target/" + name + ".jar");
+		if (!Files.exists(jar)) {
+			throw new IOException("Can't locate " + jar + ", build it using mvn package -Djib.skip in " + projectDir);
+		}
+		List<String> classpath = new ArrayList<>();
+		classpath.add(jar.toAbsolutePath().toString());
+		extraClasspath.forEach(path -> classpath.add(path.toAbsolutePath().toString()));
+		List<String> command = new ArrayList<>();
+		command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+		properties.forEach((key, value) -> command.add("-D" + key + "=" + value));
+		command.add("-cp");
+		command.add(String.join(File.pathSeparator, classpath));
+		command.add(mainClass);
+		log.info("Starting " + name + ", output is in " + logFile);
+		Process process = new ProcessBuilder(command).directory(projectDir.toFile()).redirectErrorStream(true)
+				.redirectOutput(logFile.toFile()).start();
+		return new ServiceProcess(name, process);
+	}
+
+	/**
+	 * Wait until the status URL responds with a 200
+	 */
+	public void waitUntilReady(HttpClient client, URI statusUrl, Duration timeout)
+			throws IOException, InterruptedException {
+		long giveUpAt = System.nanoTime() + timeout.toNanos();
+		HttpRequest request = HttpRequest.newBuilder(statusUrl).timeout(Duration.ofSeconds(5)).GET().build();
+		while (System.nanoTime() < giveUpAt) {
+			if (!process.isAlive()) {
+				throw new IOException(name + " exited with status " + process.exitValue() + " while starting");
+			}
+			try {
+				if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+					log.info(name + " is ready");
+					return;
+				}
+			} catch (IOException e) {
+				// not listening yet
+			}
+			Thread.sleep(500);
+		}
+		throw new IOException(name + " was not ready after " + timeout.getSeconds() + " seconds");
+	}
+
+	public void stop() throws InterruptedException {
+		log.info("Stopping " + name);
+		process.destroy();
+		if (!process.waitFor(10, TimeUnit.SECONDS)) {
+			process.destroyForcibly();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.stockmanager;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.oracle.labs.helidon.benchmarks.BenchmarkLogging;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+
+/**
+ * Shared state for the stock manager benchmarks, this seeds the in memory H2
+ * database with a department holding departmentSize items. Each department size
+ * gets it's own department name so the data from different runs can't get mixed
+ * up
+ */
+@State(Scope.Benchmark)
+public class StockDatabase {
+	public final static String PERSISTENCE_UNIT = "stockmanagerBenchmark";
+	public final static int INITIAL_ITEM_COUNT = 1000000;
+
+	@Param({ "10", "1000", "10000" })
+	public int departmentSize;
+
+	private EntityManagerFactory emfactory;
+	private String department;
+	private String itemNames[];
+
+	@Setup
+	public void seed() {
+		BenchmarkLogging.configure();
+		department = "benchmark-" + departmentSize;
+		itemNames = new String[departmentSize];
+		emfactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT);
+		EntityManager entityManager = emfactory.createEntityManager();
+		entityManager.getTransaction().begin();
+		entityManager.createQuery("DELETE FROM StockLevel s WHERE s.stockId.departmentName = :department")
+				.setParameter("department", department).executeUpdate();
+		for (int i = 0; i < departmentSize; i++) {
+			itemNames[i] = "item-" + i;
+			entityManager.persist(new StockLevel(new StockId(department, itemNames[i]), INITIAL_ITEM_COUNT));
+			// don't let the persistence context grow with the department size
+			if ((i % 500) == 0) {
+				entityManager.flush();
+				entityManager.clear();
+			}
+		}
+		entityManager.getTransaction().commit();
+		entityManager.close();
+	}
+
+	@TearDown
+	public void close() {
+		emfactory.close();
+	}
+
+	public String getDepartment() {
+		return department;
+	}
+
+	public String randomItemName() {
+		return itemNames[ThreadLocalRandom.current().nextInt(itemNames.length)];
+	}
+
+	public String[] getItemNames() {
+		return itemNames;
+	}
+}
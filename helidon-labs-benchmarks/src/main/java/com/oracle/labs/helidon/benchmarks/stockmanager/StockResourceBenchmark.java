@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.stockmanager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.helidon.metrics.RegistryFactory;
+
+import com.oracle.labs.helidon.benchmarks.BenchmarkMetrics;
+import com.oracle.labs.helidon.common.data.ItemDetails;
+import com.oracle.labs.helidon.stockmanager.analytics.AuditAnalytics;
+import com.oracle.labs.helidon.stockmanager.database.EntityManagerFactories;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.lowstock.LowStockWatcher;
+import com.oracle.labs.helidon.stockmanager.metrics.SlowQueryLog;
+import com.oracle.labs.helidon.stockmanager.metrics.TimedEntityManager;
+import com.oracle.labs.helidon.stockmanager.providers.DepartmentProvider;
+import com.oracle.labs.helidon.stockmanager.resources.StockResource;
+import com.oracle.labs.helidon.stockmanager.rollup.StockLevelRollups;
+import com.oracle.labs.helidon.stockmanager.search.ItemSearchIndex;
+import com.oracle.labs.helidon.stockmanager.storage.AfterCommit;
+import com.oracle.labs.helidon.stockmanager.storage.JpaStockStore;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
+import com.oracle.labs.helidon.stockmanager.storage.WalStockStore;
+
+/**
+ * Runs the StockResource methods directly (no HTTP, security or CDI) against
+ * the in memory H2 database (storage jpa) or a WalStockStore logging to a
+ * temporary directory (storage wal). The thread count is set using the JMH -t
+ * option, the department sizes using -p departmentSize=... and the storage
+ * using -p storage=...
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StockResourceBenchmark {
+	// the service defaults for the slow query log, search index, low stock,
+	// rollups and analytics
+	private final static long SLOW_QUERY_MILLIS = 250;
+	private final static int SLOW_QUERY_ENTRIES = 100;
+	private final static int SEARCH_MAX_AGE_SECONDS = 60;
+	private final static int SEARCH_MAX_RESULTS = 100;
+	private final static int LOW_STOCK_DEFAULT_THRESHOLD = 0;
+	private final static int LOW_STOCK_MAX_AGE_SECONDS = 300;
+	private final static int ROLLUP_HOURLY_RETENTION_DAYS = 7;
+	private final static int ROLLUP_DAILY_RETENTION_DAYS = 400;
+	private final static int ANALYTICS_WINDOW_HOURS = 48;
+	private final static int ANALYTICS_CHECKPOINT_SECONDS = 60;
+	private final static int ANALYTICS_MAX_NAMES_PER_HOUR = 10000;
+
+	/**
+	 * For the wal storage there's one store shared by all the threads, as there is
+	 * in the service, holding the same items as the database. The search index,
+	 * low stock watcher, stock level rollups and audit analytics are shared as
+	 * well. Nothing writes the rollups or analytics out here (that's started by
+	 * CDI), the benchmarks only see the cost of adding to them
+	 */
+	@State(Scope.Benchmark)
+	public static class Storage {
+		@Param({ JpaStockStore.STORAGE, WalStockStore.STORAGE })
+		public String storage;
+
+		Path walDirectory;
+		WalStockStore walStockStore;
+		ItemSearchIndex searchIndex;
+		LowStockWatcher lowStockWatcher;
+		StockLevelRollups stockLevelRollups;
+		AuditAnalytics auditAnalytics;
+
+		@Setup
+		public void setup(StockDatabase database) throws IOException {
+			searchIndex = new ItemSearchIndex(SEARCH_MAX_AGE_SECONDS, SEARCH_MAX_RESULTS);
+			lowStockWatcher = new LowStockWatcher(new DepartmentProvider(database.getDepartment()),
+					this::withStockStore, RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION),
+					LOW_STOCK_DEFAULT_THRESHOLD, LOW_STOCK_MAX_AGE_SECONDS);
+			stockLevelRollups = new StockLevelRollups(ROLLUP_HOURLY_RETENTION_DAYS, ROLLUP_DAILY_RETENTION_DAYS);
+			auditAnalytics = new AuditAnalytics(ANALYTICS_WINDOW_HOURS, ANALYTICS_CHECKPOINT_SECONDS, Optional.empty(),
+					ANALYTICS_MAX_NAMES_PER_HOUR);
+			if (!storage.equals(WalStockStore.STORAGE)) {
+				return;
+			}
+			walDirectory = Files.createTempDirectory("stockmanager-wal");
+			walStockStore = new WalStockStore(walDirectory, 300, 64L * 1024 * 1024, 10000);
+			for (String itemName : database.getItemNames()) {
+				walStockStore.create(new StockLevel(new StockId(database.getDepartment(), itemName),
+						StockDatabase.INITIAL_ITEM_COUNT));
+			}
+		}
+
+		// what the low stock watcher loads from in the background, as in the service
+		// jpa gets it's own entity manager
+		void withStockStore(Consumer<StockStore> work) {
+			if (walStockStore != null) {
+				work.accept(walStockStore);
+				return;
+			}
+			EntityManager entityManager = EntityManagerFactories.get(StockDatabase.PERSISTENCE_UNIT)
+					.createEntityManager();
+			try {
+				work.accept(new JpaStockStore(entityManager));
+			} finally {
+				entityManager.close();
+			}
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			if (walStockStore == null) {
+				return;
+			}
+			walStockStore.close();
+			try (Stream<Path> files = Files.walk(walDirectory)) {
+				for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A JpaStockStore holds an EntityManager, and they are not thread safe, so
+	 * each benchmark thread gets it's own store and resource, just like each
+	 * request gets it's own when running in Helidon
+	 */
+	@State(Scope.Thread)
+	public static class ResourceState {
+		StockResource stockResource;
+		// null for the wal storage
+		EntityManager entityManager;
+
+		@Setup
+		public void setup(StockDatabase database, Storage storage) {
+			DepartmentProvider departmentProvider = new DepartmentProvider(database.getDepartment());
+			StockStore stockStore = storage.walStockStore;
+			if (stockStore == null) {
+				// this is the timing wrapper, but transactions go straight through it
+				entityManager = TimedEntityManager.wrap(
+						EntityManagerFactories.get(StockDatabase.PERSISTENCE_UNIT).createEntityManager(),
+						BenchmarkMetrics.stockmanagerLatencyRecorder(),
+						new SlowQueryLog(departmentProvider, SLOW_QUERY_MILLIS, SLOW_QUERY_ENTRIES));
+				stockStore = new JpaStockStore(entityManager);
+			}
+			stockResource = new StockResource(stockStore, departmentProvider, storage.searchIndex,
+					storage.lowStockWatcher, storage.stockLevelRollups, storage.auditAnalytics,
+					AfterCommit.immediate());
+		}
+
+		@TearDown
+		public void tearDown() {
+			if (entityManager != null) {
+				entityManager.close();
+			}
+		}
+
+		// In Helidon JTA wraps the updates in a transaction, here we have to do that
+		// ourselves
+		void begin() {
+			if (entityManager != null) {
+				entityManager.getTransaction().begin();
+			}
+		}
+
+		void commit() {
+			if (entityManager != null) {
+				entityManager.getTransaction().commit();
+			}
+		}
+
+		// the resource is request scoped in Helidon, so nothing is held on to between
+		// requests, don't let the persistence context fill up here either
+		void clear() {
+			if (entityManager != null) {
+				entityManager.clear();
+			}
+		}
+	}
+
+	@Benchmark
+	public ItemDetails getStockItem(StockDatabase database, ResourceState state) throws Exception {
+		ItemDetails item = state.stockResource.getStockItem(database.randomItemName());
+		state.clear();
+		return item;
+	}
+
+	@Benchmark
+	public ItemDetails adjustStockLevel(StockDatabase database, ResourceState state) throws Exception {
+		state.begin();
+		ItemDetails item = state.stockResource.adjustStockLevel(database.randomItemName(),
+				ThreadLocalRandom.current().nextInt(StockDatabase.INITIAL_ITEM_COUNT));
+		state.commit();
+		state.clear();
+		return item;
+	}
+
+	/**
+	 * The item names are item-0, item-1 and so on, so this is a search for names
+	 * containing something like "m-42", which matches item-42 and item-420 to
+	 * item-429 etc.
+	 */
+	@Benchmark
+	public Collection<ItemDetails> searchStock(StockDatabase database, ResourceState state) {
+		String itemName = database.randomItemName();
+		Collection<ItemDetails> items = state.stockResource.searchStock(itemName.substring(3), 10);
+		state.clear();
+		return items;
+	}
+
+	@Benchmark
+	public Collection<ItemDetails> listAllStock(ResourceState state) {
+		Collection<ItemDetails> items = state.stockResource.listAllStock();
+		state.clear();
+		return items;
+	}
+}
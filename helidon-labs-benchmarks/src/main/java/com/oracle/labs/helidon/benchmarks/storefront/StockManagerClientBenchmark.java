@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.storefront;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.labs.helidon.benchmarks.BenchmarkLogging;
+import com.oracle.labs.helidon.stockmanager.providers.ItemDetailsBinary;
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.restclients.Http2StockManagerClient;
+import com.oracle.labs.helidon.storefront.restclients.PooledStockManagerClient;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import io.helidon.common.http.Http;
+import io.helidon.common.http.MediaType;
+import io.helidon.metrics.RegistryFactory;
+import io.helidon.webserver.ExperimentalConfiguration;
+import io.helidon.webserver.Http2Configuration;
+import io.helidon.webserver.Routing;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import io.helidon.webserver.WebServer;
+
+/**
+ * Compares the storefront's two network bindings to the stock manager, the rest
+ * client (HTTP/1.1 over a pool of connections) and the http2 client (every call
+ * multiplexed over one connection), each with JSON and with the binary stock
+ * levels. The stock manager is stood in for by a Helidon web server in this JVM
+ * that answers from a canned department (encoding it on every call as the
+ * stockmanager would), so this measures the calls and their encoding, not the
+ * database. Several threads call at once so the pool and the multiplexing both
+ * get exercised
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class StockManagerClientBenchmark {
+	private final static MediaType STOCK_LEVEL = MediaType.parse(ItemDetailsBinary.MEDIA_TYPE);
+	private final static int TIMEOUT_MILLIS = 5000;
+	private final static int MAX_PER_HOST = 64;
+
+	@Param({ PooledStockManagerClient.BINDING, Http2StockManagerClient.BINDING })
+	public String binding;
+
+	// json makes the server ignore the storefront asking for the binary form
+	@Param({ "json", "binary" })
+	public String format;
+
+	@Param({ "10", "1000" })
+	public int departmentSize;
+
+	private final Jsonb jsonb = JsonbBuilder.create();
+	private List<com.oracle.labs.helidon.common.data.ItemDetails> department;
+	private Map<String, com.oracle.labs.helidon.common.data.ItemDetails> items;
+	private WebServer server;
+	private StockManager stockManager;
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkLogging.configure();
+		department = new ArrayList<>(departmentSize);
+		for (int i = 0; i < departmentSize; i++) {
+			department.add(new com.oracle.labs.helidon.common.data.ItemDetails("item-" + i, i));
+		}
+		items = department.stream().collect(
+				Collectors.toMap(com.oracle.labs.helidon.common.data.ItemDetails::getItemName, Function.identity()));
+		// http2 is only switched on so the http2 binding can use it, the rest client
+		// sticks to HTTP/1.1
+		server = WebServer.builder()
+				.routing(Routing.builder().get("/stocklevel", this::getAllStockLevels)
+						.get("/stocklevel/{itemName}", this::getStockItem).build())
+				.port(0)
+				.experimental(ExperimentalConfiguration.builder()
+						.http2(Http2Configuration.builder().enable(true).maxContentLength(65536).build()).build())
+				.build();
+		server.start().await(10, TimeUnit.SECONDS);
+		URL baseUrl = new URL("http://localhost:" + server.port() + "/stocklevel");
+		MetricRegistry metricRegistry = RegistryFactory.getInstance().getRegistry(MetricRegistry.Type.APPLICATION);
+		if (binding.equals(Http2StockManagerClient.BINDING)) {
+			stockManager = new Http2StockManagerClient(baseUrl, TIMEOUT_MILLIS, TIMEOUT_MILLIS, MAX_PER_HOST,
+					metricRegistry);
+		} else {
+			stockManager = PooledStockManagerClient.build(baseUrl, TIMEOUT_MILLIS, TIMEOUT_MILLIS, MAX_PER_HOST,
+					MAX_PER_HOST, 30, metricRegistry);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		if (stockManager instanceof AutoCloseable) {
+			((AutoCloseable) stockManager).close();
+		}
+		server.shutdown().await(10, TimeUnit.SECONDS);
+	}
+
+	@Benchmark
+	public ItemDetails getStockItem() {
+		return stockManager.getStockItem("item-" + ThreadLocalRandom.current().nextInt(departmentSize));
+	}
+
+	@Benchmark
+	public Collection<ItemDetails> getAllStockLevels() {
+		return stockManager.getAllStockLevels();
+	}
+
+	private void getAllStockLevels(ServerRequest request, ServerResponse response) {
+		send(request, response, department, () -> ItemDetailsBinary.write(department));
+	}
+
+	private void getStockItem(ServerRequest request, ServerResponse response) {
+		com.oracle.labs.helidon.common.data.ItemDetails item = items.get(request.path().param("itemName"));
+		if (item == null) {
+			response.status(Http.Status.NOT_FOUND_404).send();
+		} else {
+			send(request, response, item, () -> ItemDetailsBinary.write(item));
+		}
+	}
+
+	private void send(ServerRequest request, ServerResponse response, Object entity,
+			Supplier<byte[]> binary) {
+		if (format.equals("binary") && request.headers().isAccepted(STOCK_LEVEL)) {
+			response.headers().contentType(STOCK_LEVEL);
+			response.send(binary.get());
+		} else {
+			response.headers().contentType(MediaType.APPLICATION_JSON);
+			response.send(jsonb.toJson(entity).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.benchmarks.storefront;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.oracle.labs.helidon.benchmarks.BenchmarkLogging;
+import com.oracle.labs.helidon.benchmarks.BenchmarkMetrics;
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.ItemRequest;
+import com.oracle.labs.helidon.storefront.dummy.StockManagerDummy;
+import com.oracle.labs.helidon.storefront.health.StockManagerHealthTracker;
+import com.oracle.labs.helidon.storefront.metrics.TimedStockManager;
+import com.oracle.labs.helidon.storefront.resources.StorefrontResource;
+
+/**
+ * Runs StorefrontResource.reserveStockItem directly against the
+ * StockManagerDummy, so this measures the storefront's own processing with no
+ * network calls
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorefrontResourceBenchmark {
+	// lots of stock, every reservation takes some of it away
+	private final static int RESTOCK_LEVEL = 1000000000;
+	// the resource reports every call to the health tracker, it's not started so
+	// there's no background assessment (or pings to the status endpoint)
+	private final static StockManagerHealthTracker HEALTH_TRACKER = new StockManagerHealthTracker(() -> null, 5, 6,
+			5, 0.5, 2000);
+
+	@State(Scope.Benchmark)
+	public static class StockState {
+		@Setup(Level.Iteration)
+		public void restock() {
+			BenchmarkLogging.configure();
+			StockManagerDummy.getStockManager().setStockItemLevel("Pencil", RESTOCK_LEVEL);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ResourceState {
+		StorefrontResource storefrontResource;
+		ItemRequest itemRequest;
+
+		@Setup
+		public void setup() {
+			// timed the same way as the one StockManagerProducer provides, but uncached
+			// as every call is a reservation
+			storefrontResource = new StorefrontResource(new TimedStockManager(StockManagerDummy.getStockManager(),
+					BenchmarkMetrics.storefrontLatencyRecorder(), HEALTH_TRACKER), 4);
+			itemRequest = new ItemRequest("Pencil", 5);
+		}
+	}
+
+	@Benchmark
+	public ItemDetails reserveStockItem(StockState stock, ResourceState state) throws Exception {
+		// the dummy has already completed the stage, so this doesn't wait
+		return state.storefrontResource.reserveStockItem(state.itemRequest).toCompletableFuture().join();
+	}
+}
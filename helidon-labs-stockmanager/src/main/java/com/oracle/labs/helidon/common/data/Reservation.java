@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.common.data;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import io.helidon.common.Reflected;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Reflected
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(name = "Reservation", description = "A request to reserve some of a stock item", example = "{\"itemCount\": 5, \"itemName\": \"Pencil\"}")
+public class Reservation {
+	@Schema(required = true, description = "The name of the item", example = "Pencil")
+	private String itemName;
+	@Schema(required = true, description = "The number of items to reserve", example = "5")
+	private int itemCount;
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.common.data;
+
+import org.eclipse.microprofile.openapi.annotations.media.Schema;
+
+import io.helidon.common.Reflected;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The outcome of one reservation in a batch, the status is the HTTP status the
+ * reservation would have got on it's own
+ */
+@Reflected
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Schema(name = "ReservationResult", description = "The outcome of a reservation", example = "{\"itemCount\": 10, \"itemName\": \"Pencil\", \"status\": 200}")
+public class ReservationResult {
+	@Schema(required = true, description = "The name of the item", example = "Pencil")
+	private String itemName;
+	@Schema(required = true, description = "The number of items remaining (0 if the item is unknown)", example = "10")
+	private int itemCount;
+	@Schema(required = true, description = "200 if the items were reserved, 404 if the item is unknown and 409 if there are not enough of it", example = "200")
+	private int status;
+}
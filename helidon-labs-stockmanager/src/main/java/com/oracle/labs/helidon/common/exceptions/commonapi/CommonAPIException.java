@@ -15,27 +15,33 @@
  */
 package com.oracle.labs.helidon.common.exceptions.commonapi;
 
+/**
+ * Expected outcomes shared by the services (an item that isn't known), like
+ * StockManagerAPIException these skip the stack trace unless
+ * -Dapp.exceptions.stackTraces=true is set
+ */
 public class CommonAPIException extends Exception {
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -3780886506308197600L;
+	private static final boolean WRITABLE_STACK_TRACE = Boolean.getBoolean("app.exceptions.stackTraces");
 
 	public CommonAPIException() {
-		super();
+		super(null, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public CommonAPIException(String message) {
-		super(message);
+		super(message, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public CommonAPIException(Throwable cause) {
-		super(cause);
+		super(cause == null ? null : cause.toString(), cause, true, WRITABLE_STACK_TRACE);
 	}
 
 	public CommonAPIException(String message, Throwable cause) {
-		super(message, cause);
+		super(message, cause, true, WRITABLE_STACK_TRACE);
 	}
 
 	public CommonAPIException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
@@ -15,27 +15,34 @@
  */
 package com.oracle.labs.helidon.common.exceptions.stockmanagerapi;
 
+/**
+ * Expected stock manager outcomes (the item already exists, there isn't enough
+ * stock). These are reported to the caller as a status code, the stack trace
+ * is never looked at, so unless -Dapp.exceptions.stackTraces=true is set they
+ * don't capture one
+ */
 public class StockManagerAPIException extends Exception {
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -3780886506308197600L;
+	private static final boolean WRITABLE_STACK_TRACE = Boolean.getBoolean("app.exceptions.stackTraces");
 
 	public StockManagerAPIException() {
-		super();
+		super(null, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StockManagerAPIException(String message) {
-		super(message);
+		super(message, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StockManagerAPIException(Throwable cause) {
-		super(cause);
+		super(cause == null ? null : cause.toString(), cause, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StockManagerAPIException(String message, Throwable cause) {
-		super(message, cause);
+		super(message, cause, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StockManagerAPIException(String message, Throwable cause, boolean enableSuppression,
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.analytics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditType;
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Counts the audited operations as they happen, by hour, department, operation
+ * type and whether they succeeded, in total and for each user and each item.
+ * The counts come from here rather than a GROUP BY over the
+ * OperationAuditRecord table, so the database isn't touched and the time taken
+ * depends on the number of hours asked for, not the number of audit records.
+ * 
+ * Only the last app.analytics.windowHours hours are kept. Every
+ * app.analytics.checkpointSeconds the older hours are dropped and (if
+ * app.analytics.checkpointFile is set) the counts are written to the checkpoint
+ * file, which is loaded on startup. The counts since the last checkpoint are
+ * lost if the process dies, on shutdown they are written.
+ * 
+ * There's a limit of app.analytics.maxNamesPerHour users (and the same number
+ * of items) counted separately in each hour, after that the operations by any
+ * other users (or on other items) are counted together under the name OTHER,
+ * so a lot of different names can't use up all the memory. The totals include
+ * everything.
+ * 
+ * These are the operations this stock manager has seen, other stock managers
+ * sharing the database have their own
+ */
+@ApplicationScoped
+@Slf4j
+public class AuditAnalytics {
+	private final static int CHECKPOINT_MAGIC = 0x534d4131;
+	private final static String CHECKPOINT_TEMP_SUFFIX = ".tmp";
+	/**
+	 * The name the users and items past the app.analytics.maxNamesPerHour in an
+	 * hour are counted under, a real user or item can't have an empty name
+	 */
+	public final static String OTHER = "";
+
+	private final int windowHours;
+	private final int checkpointSeconds;
+	private final Optional<Path> checkpointFile;
+	private final int maxNamesPerHour;
+	// hour start -> counts
+	private final ConcurrentMap<Long, HourCounts> hours = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "analytics-checkpoint");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	@Inject
+	public AuditAnalytics(@ConfigProperty(name = "app.analytics.windowHours", defaultValue = "48") int windowHours,
+			@ConfigProperty(name = "app.analytics.checkpointSeconds", defaultValue = "60") int checkpointSeconds,
+			@ConfigProperty(name = "app.analytics.checkpointFile") Optional<String> checkpointFile,
+			@ConfigProperty(name = "app.analytics.maxNamesPerHour", defaultValue = "10000") int maxNamesPerHour) {
+		this.windowHours = windowHours;
+		this.checkpointSeconds = checkpointSeconds;
+		this.checkpointFile = checkpointFile.filter(file -> !file.isBlank()).map(Path::of);
+		this.maxNamesPerHour = maxNamesPerHour;
+	}
+
+	/**
+	 * Load the last checkpoint and start checkpointing when the application starts
+	 */
+	public void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		if (checkpointFile.isPresent() && Files.exists(checkpointFile.get())) {
+			try {
+				load(checkpointFile.get());
+			} catch (IOException e) {
+				log.warn("Can't load the audit analytics checkpoint " + checkpointFile.get() + ", starting from zero",
+						e);
+			}
+		}
+		checkpointer.scheduleWithFixedDelay(this::checkpoint, checkpointSeconds, checkpointSeconds,
+				TimeUnit.SECONDS);
+		log.info("Keeping " + windowHours + " hours of audit analytics for up to " + maxNamesPerHour
+				+ " users and items an hour, "
+				+ checkpointFile.map(file -> "checkpointing to " + file).orElse("not checkpointed"));
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		checkpointer.shutdown();
+		try {
+			checkpointer.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		checkpoint();
+	}
+
+	/**
+	 * Counts an audit record
+	 */
+	public void record(OperationAuditRecord record) {
+		HourCounts hour = hours.computeIfAbsent(hourStart(record.getOperationTs().getTime()),
+				hourStart -> new HourCounts());
+		String departmentName = record.getDepartmentName();
+		boolean succeded = Boolean.TRUE.equals(record.getSucceded());
+		increment(hour.counts,
+				new CounterKey(Dimension.TOTAL, departmentName, record.getOperationType(), succeded, ""));
+		increment(hour.counts, new CounterKey(Dimension.USER, departmentName, record.getOperationType(), succeded,
+				countedAs(hour, Dimension.USER, departmentName, record.getOperationUser())));
+		increment(hour.counts, new CounterKey(Dimension.ITEM, departmentName, record.getOperationType(), succeded,
+				countedAs(hour, Dimension.ITEM, departmentName, record.getItemName())));
+	}
+
+	/**
+	 * @return the counts for the department over the last hoursBack hours (no more
+	 *         than app.analytics.windowHours), newest first. For forUser and
+	 *         forItem an hour where the name was counted as OTHER is left out
+	 */
+	public List<AuditCounts> totals(String departmentName, int hoursBack) {
+		return counts(Dimension.TOTAL, departmentName, "", hoursBack);
+	}
+
+	/**
+	 * As totals, for the operations by a user
+	 */
+	public List<AuditCounts> forUser(String departmentName, String operationUser, int hoursBack) {
+		return counts(Dimension.USER, departmentName, operationUser, hoursBack);
+	}
+
+	/**
+	 * As totals, for the operations on an item
+	 */
+	public List<AuditCounts> forItem(String departmentName, String itemName, int hoursBack) {
+		return counts(Dimension.ITEM, departmentName, itemName, hoursBack);
+	}
+
+	// a fixed number of lookups for each hour, hours and types without any
+	// operations are left out
+	private List<AuditCounts> counts(Dimension dimension, String departmentName, String name, int hoursBack) {
+		List<AuditCounts> result = new ArrayList<>();
+		long newest = hourStart(System.currentTimeMillis());
+		long hourMillis = RollupResolution.HOUR.getMillis();
+		for (int hour = 0; hour < Math.min(hoursBack, windowHours); hour++) {
+			long hourStart = newest - hour * hourMillis;
+			HourCounts hourCounts = hours.get(hourStart);
+			if (hourCounts == null) {
+				continue;
+			}
+			ConcurrentMap<CounterKey, LongAdder> counts = hourCounts.counts;
+			for (OperationAuditType operationType : OperationAuditType.values()) {
+				long succeeded = count(counts,
+						new CounterKey(dimension, departmentName, operationType, true, name));
+				long failed = count(counts, new CounterKey(dimension, departmentName, operationType, false, name));
+				if (succeeded + failed > 0) {
+					result.add(new AuditCounts(new Timestamp(hourStart), operationType, succeeded, failed));
+				}
+			}
+		}
+		return result;
+	}
+
+	private void checkpoint() {
+		// don't let anything kill the checkpoint thread
+		try {
+			long oldest = hourStart(System.currentTimeMillis()) - (windowHours - 1) * RollupResolution.HOUR.getMillis();
+			hours.keySet().removeIf(hourStart -> hourStart < oldest);
+			if (checkpointFile.isPresent()) {
+				write(checkpointFile.get());
+			}
+		} catch (IOException | RuntimeException e) {
+			log.warn("Problem checkpointing the audit analytics, will try again next time", e);
+		}
+	}
+
+	// written to a temporary file then renamed, so there's always a whole
+	// checkpoint
+	private void write(Path file) throws IOException {
+		Path tempFile = file.resolveSibling(file.getFileName() + CHECKPOINT_TEMP_SUFFIX);
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+			DataOutputStream data = new DataOutputStream(checked);
+			data.writeInt(CHECKPOINT_MAGIC);
+			// the counts can carry on changing while this is written, the sizes are worked
+			// out first so they match what's written
+			List<Map.Entry<Long, List<Map.Entry<CounterKey, Long>>>> snapshot = new ArrayList<>();
+			for (Map.Entry<Long, HourCounts> hour : hours.entrySet()) {
+				List<Map.Entry<CounterKey, Long>> counts = new ArrayList<>();
+				hour.getValue().counts.forEach((key, count) -> counts.add(Map.entry(key, count.sum())));
+				snapshot.add(Map.entry(hour.getKey(), counts));
+			}
+			data.writeInt(snapshot.size());
+			for (Map.Entry<Long, List<Map.Entry<CounterKey, Long>>> hour : snapshot) {
+				data.writeLong(hour.getKey());
+				data.writeInt(hour.getValue().size());
+				for (Map.Entry<CounterKey, Long> count : hour.getValue()) {
+					CounterKey key = count.getKey();
+					data.writeByte(key.dimension.ordinal());
+					data.writeUTF(key.departmentName);
+					data.writeByte(key.operationType.ordinal());
+					data.writeBoolean(key.succeded);
+					data.writeUTF(key.name);
+					data.writeLong(count.getValue());
+				}
+			}
+			data.flush();
+			data.writeLong(checked.getChecksum().getValue());
+			data.flush();
+			channel.force(true);
+		}
+		Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void load(Path file) throws IOException {
+		long oldest = hourStart(System.currentTimeMillis()) - (windowHours - 1) * RollupResolution.HOUR.getMillis();
+		int loaded = 0;
+		try (InputStream input = Files.newInputStream(file)) {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(input, 64 * 1024),
+					new CRC32());
+			DataInputStream data = new DataInputStream(checked);
+			if (data.readInt() != CHECKPOINT_MAGIC) {
+				throw new IOException(file + " isn't an audit analytics checkpoint");
+			}
+			// read it all before using any of it, in case it's damaged
+			Map<Long, Map<CounterKey, Long>> checkpoint = new HashMap<>();
+			int hourCount = data.readInt();
+			for (int i = 0; i < hourCount; i++) {
+				long hourStart = data.readLong();
+				int countCount = data.readInt();
+				Map<CounterKey, Long> counts = new HashMap<>();
+				for (int j = 0; j < countCount; j++) {
+					CounterKey key = new CounterKey(Dimension.values()[data.readByte()], data.readUTF(),
+							OperationAuditType.values()[data.readByte()], data.readBoolean(), data.readUTF());
+					counts.put(key, data.readLong());
+				}
+				checkpoint.put(hourStart, counts);
+			}
+			long expectedCrc = checked.getChecksum().getValue();
+			if (data.readLong() != expectedCrc) {
+				throw new IOException("Audit analytics checkpoint " + file + " is damaged (it fails it's CRC)");
+			}
+			for (Map.Entry<Long, Map<CounterKey, Long>> hour : checkpoint.entrySet()) {
+				if (hour.getKey() < oldest) {
+					continue;
+				}
+				HourCounts counts = hours.computeIfAbsent(hour.getKey(), hourStart -> new HourCounts());
+				// the limit may have been lowered since the checkpoint was written
+				hour.getValue().forEach((key, count) -> {
+					CounterKey counted = key.dimension == Dimension.TOTAL ? key
+							: new CounterKey(key.dimension, key.departmentName, key.operationType, key.succeded,
+									countedAs(counts, key.dimension, key.departmentName, key.name));
+					counts.counts.computeIfAbsent(counted, k -> new LongAdder()).add(count);
+				});
+				loaded++;
+			}
+		}
+		log.info("Loaded " + loaded + " hours of audit analytics from " + file);
+	}
+
+	/**
+	 * @return the name to count the operation under in the hour, name if it's
+	 *         already being counted or there's still room for it, otherwise OTHER
+	 */
+	private String countedAs(HourCounts hour, Dimension dimension, String departmentName, String name) {
+		NameKey key = new NameKey(dimension, departmentName, name);
+		if (name.equals(OTHER) || hour.names.containsKey(key)) {
+			return name;
+		}
+		// the room is taken before the name is added, so racing names can't take the
+		// count past the limit
+		AtomicInteger named = hour.named.get(dimension);
+		if (named.incrementAndGet() > maxNamesPerHour) {
+			named.decrementAndGet();
+			return OTHER;
+		}
+		if (hour.names.putIfAbsent(key, Boolean.TRUE) != null) {
+			// someone else got there first
+			named.decrementAndGet();
+		}
+		return name;
+	}
+
+	private static void increment(ConcurrentMap<CounterKey, LongAdder> counts, CounterKey key) {
+		counts.computeIfAbsent(key, k -> new LongAdder()).increment();
+	}
+
+	private static long count(ConcurrentMap<CounterKey, LongAdder> counts, CounterKey key) {
+		LongAdder count = counts.get(key);
+		return count == null ? 0 : count.sum();
+	}
+
+	private static long hourStart(long time) {
+		return RollupResolution.HOUR.bucketStart(time).getTime();
+	}
+
+	// stored by their position, only add new ones at the end
+	private enum Dimension {
+		TOTAL, USER, ITEM
+	}
+
+	/**
+	 * The counts for an hour, and the users and items being counted separately in
+	 * it
+	 */
+	private static class HourCounts {
+		private final ConcurrentMap<CounterKey, LongAdder> counts = new ConcurrentHashMap<>();
+		private final ConcurrentMap<NameKey, Boolean> names = new ConcurrentHashMap<>();
+		private final Map<Dimension, AtomicInteger> named = new EnumMap<>(Dimension.class);
+
+		private HourCounts() {
+			named.put(Dimension.USER, new AtomicInteger());
+			named.put(Dimension.ITEM, new AtomicInteger());
+		}
+	}
+
+	@Data
+	private static class NameKey {
+		private final Dimension dimension;
+		private final String departmentName;
+		private final String name;
+	}
+
+	/**
+	 * The name is the user for USER, the item for ITEM and empty for TOTAL
+	 */
+	@Data
+	private static class CounterKey {
+		private final Dimension dimension;
+		private final String departmentName;
+		private final OperationAuditType operationType;
+		private final boolean succeded;
+		private final String name;
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.analytics;
+
+import java.sql.Timestamp;
+
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditType;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The number of operations of a type that succeeded and failed in an hour, as
+ * returned by /stocklevel/analytics
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AuditCounts {
+	private Timestamp hourStart;
+	private OperationAuditType operationType;
+	private long succeeded;
+	private long failed;
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.database;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+/**
+ * Creating an EntityManagerFactory is expensive (it parses the mappings and
+ * sets up the connection handling) and the factory is thread safe, so there is
+ * one per persistence unit that's shared by all of the requests. It also means
+ * the Hibernate statistics cover the life of the service rather than a single
+ * request
+ */
+public class EntityManagerFactories {
+	private final static Map<String, EntityManagerFactory> FACTORIES = new ConcurrentHashMap<>();
+
+	private EntityManagerFactories() {
+	}
+
+	public static EntityManagerFactory get(String persistenceUnit) {
+		EntityManagerFactory emfactory = FACTORIES.get(persistenceUnit);
+		if (emfactory == null) {
+			emfactory = FACTORIES.computeIfAbsent(persistenceUnit, Persistence::createEntityManagerFactory);
+		}
+		return emfactory;
+	}
+
+	/**
+	 * The factory if one's been created, the metrics use this so they don't
+	 * trigger the creation themselves
+	 */
+	public static EntityManagerFactory getIfCreated(String persistenceUnit) {
+		return FACTORIES.get(persistenceUnit);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.database;
+
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The size of the time buckets the stock levels are rolled up into. Buckets
+ * start on the hour / at midnight UTC. These are stored by their position, so
+ * only add new ones at the end
+ */
+public enum RollupResolution {
+	HOUR(TimeUnit.HOURS.toMillis(1)), DAY(TimeUnit.DAYS.toMillis(1));
+
+	private final long millis;
+
+	private RollupResolution(long millis) {
+		this.millis = millis;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	/**
+	 * @return the start of the bucket the time is in
+	 */
+	public Timestamp bucketStart(long time) {
+		return new Timestamp(time - Math.floorMod(time, millis));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.database;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The lowest, highest and last stock level of an item during an hour or a day,
+ * built up from the successful audit records so reporting doesn't have to go
+ * through them. One row per item per bucket, so a month of history is a few
+ * hundred rows however busy the item is.
+ * 
+ * Two rollups of the same bucket can be merged, and the result is the same
+ * whatever order they are merged in, or if the same one is merged more than
+ * once. That means a stock manager can retry writing them, and several stock
+ * managers can add to the same rows
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(name = "StockLevelRollup", indexes = { @Index(columnList = "departmentName, itemName, resolution, bucketStart"),
+		@Index(columnList = "resolution, bucketStart") })
+public class StockLevelRollup {
+	@EmbeddedId
+	private StockLevelRollupId rollupId;
+	@Column(name = "minCount")
+	private int minCount;
+	@Column(name = "maxCount")
+	private int maxCount;
+	@Column(name = "lastCount")
+	private int lastCount;
+	// when the last count was seen, so merging can tell which is the latest
+	@Column(name = "lastTs", nullable = false)
+	private Timestamp lastTs;
+
+	public StockLevelRollup(StockLevelRollupId rollupId, int itemCount, Timestamp seenAt) {
+		this(rollupId, itemCount, itemCount, itemCount, seenAt);
+	}
+
+	/**
+	 * Adds a level seen at a time in this bucket
+	 */
+	public void add(int itemCount, Timestamp seenAt) {
+		minCount = Math.min(minCount, itemCount);
+		maxCount = Math.max(maxCount, itemCount);
+		last(itemCount, seenAt);
+	}
+
+	/**
+	 * Adds another rollup of the same bucket to this one
+	 */
+	public void merge(StockLevelRollup other) {
+		minCount = Math.min(minCount, other.minCount);
+		maxCount = Math.max(maxCount, other.maxCount);
+		last(other.lastCount, other.lastTs);
+	}
+
+	public StockLevelRollup copy() {
+		return new StockLevelRollup(rollupId, minCount, maxCount, lastCount, lastTs);
+	}
+
+	private void last(int itemCount, Timestamp seenAt) {
+		// if they were seen at the same time keep the lower, so it doesn't matter
+		// which order they're added in
+		if (seenAt.after(lastTs) || (seenAt.equals(lastTs) && itemCount < lastCount)) {
+			lastCount = itemCount;
+			lastTs = seenAt;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.health;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Reads the connection pool state from the Hikari MBeans, this needs
+ * registerMbeans to be set in the datasource configuration (it is in
+ * microprofile-config.properties). We use JMX rather than the Hikari classes so
+ * there is no compile time dependency on the pool implementation, if the MBeans
+ * aren't there then we just don't have any pool information
+ */
+public class HikariPoolMonitor {
+	private final static String POOL_QUERY = "com.zaxxer.hikari:type=Pool (*";
+	private final static String POOL_CONFIG_PREFIX = "com.zaxxer.hikari:type=PoolConfig (";
+
+	private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+	/**
+	 * The state of the first (normally only) pool, or null if there isn't one
+	 */
+	public PoolState getPoolState() {
+		try {
+			Set<ObjectName> pools = mbeanServer.queryNames(new ObjectName(POOL_QUERY), null);
+			if (pools.isEmpty()) {
+				return null;
+			}
+			ObjectName pool = pools.iterator().next();
+			// the pool name is in brackets in the MBean name
+			String name = pool.getKeyProperty("type");
+			String poolName = name.substring(name.indexOf('(') + 1, name.lastIndexOf(')'));
+			ObjectName poolConfig = new ObjectName(POOL_CONFIG_PREFIX + poolName + ")");
+			return new PoolState(poolName, (Integer) mbeanServer.getAttribute(pool, "ActiveConnections"),
+					(Integer) mbeanServer.getAttribute(pool, "IdleConnections"),
+					(Integer) mbeanServer.getAttribute(pool, "ThreadsAwaitingConnection"),
+					(Integer) mbeanServer.getAttribute(poolConfig, "MaximumPoolSize"));
+		} catch (JMException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	@Data
+	@AllArgsConstructor
+	public static class PoolState {
+		private String poolName;
+		private int activeConnections;
+		private int idleConnections;
+		private int threadsAwaitingConnection;
+		private int maximumPoolSize;
+
+		/**
+		 * The proportion of the pool in use, 1.0 means every connection is busy
+		 */
+		public double getSaturation() {
+			return maximumPoolSize <= 0 ? 0.0 : ((double) activeConnections) / maximumPoolSize;
+		}
+	}
+}
@@ -15,59 +15,218 @@
  */
 package com.oracle.labs.helidon.stockmanager.health;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
-import javax.persistence.PersistenceContext;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
 import org.eclipse.microprofile.health.Readiness;
 
+import com.oracle.labs.helidon.stockmanager.database.EntityManagerFactories;
 import com.oracle.labs.helidon.stockmanager.database.StockId;
 import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.health.HikariPoolMonitor.PoolState;
 import com.oracle.labs.helidon.stockmanager.providers.DepartmentProvider;
+import com.oracle.labs.helidon.stockmanager.storage.StockStoreProducer;
+
+import lombok.extern.slf4j.Slf4j;
 
 /**
  * Readiness is different form Liveness. Readiness ensures that we actually are
  * actually ready to process transactions and are fully configured, liveliness
  * is more of a Hello World situation
  * 
+ * Checking the database on every probe means a lot of database traffic when
+ * there are many pods being probed, and a single slow database call makes the
+ * probe time out, so the database is checked by a background thread every
+ * app.readiness.intervalSeconds and the probe just returns the last result.
+ * 
+ * As well as the database being reachable the check looks at the round trip
+ * time and (if the Hikari MBeans are available) how saturated the connection
+ * pool is. If either is over it's limit for app.readiness.degradedChecks checks
+ * in a row we report not ready so we get taken out of the load balancer, a
+ * single slow check doesn't change anything. A failed database call is not
+ * ready immediately, as is a result that's too old (the checking thread is
+ * stuck)
+ * 
+ * With app.storage=wal there's no database, ready just means the write ahead
+ * log can still be written to
+ * 
  * @author tg13456
  *
  */
 @ApplicationScoped
 @Readiness
+@Slf4j
 public class ReadinessChecker implements HealthCheck {
-	@PersistenceContext(unitName = "stockmanagerJTA")
-	private EntityManager entityManager;
-	private DepartmentProvider departmentProvider;
-	private String persistenceUnit;
+	private final static String NAME = "stockmanager-ready";
+
+	private final DepartmentProvider departmentProvider;
+	private final StockStoreProducer stockStoreProducer;
+	private final String persistenceUnit;
+	private final int intervalSeconds;
+	private final long maxLatencyMillis;
+	private final double maxPoolSaturation;
+	private final int degradedChecks;
+	private final HikariPoolMonitor poolMonitor = new HikariPoolMonitor();
+	private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "readiness-refresher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// only updated by the refresher thread
+	private int consecutiveDegraded = 0;
+	private volatile CheckResult lastResult = null;
 
 	@Inject
 	public ReadinessChecker(@ConfigProperty(name = "app.persistenceUnit") String persistenceUnitProvided,
-			DepartmentProvider departmentProviderProvided) {
+			DepartmentProvider departmentProviderProvided, StockStoreProducer stockStoreProducer,
+			@ConfigProperty(name = "app.readiness.intervalSeconds", defaultValue = "5") int intervalSeconds,
+			@ConfigProperty(name = "app.readiness.maxLatencyMillis", defaultValue = "500") long maxLatencyMillis,
+			@ConfigProperty(name = "app.readiness.maxPoolSaturation", defaultValue = "0.9") double maxPoolSaturation,
+			@ConfigProperty(name = "app.readiness.degradedChecks", defaultValue = "3") int degradedChecks) {
 		this.persistenceUnit = persistenceUnitProvided;
 		this.departmentProvider = departmentProviderProvided;
+		this.stockStoreProducer = stockStoreProducer;
+		this.intervalSeconds = intervalSeconds;
+		this.maxLatencyMillis = maxLatencyMillis;
+		this.maxPoolSaturation = maxPoolSaturation;
+		this.degradedChecks = degradedChecks;
+	}
+
+	/**
+	 * Start checking when the application starts rather than on the first probe
+	 */
+	public void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		refresher.scheduleWithFixedDelay(this::refresh, 0, intervalSeconds, TimeUnit.SECONDS);
+		log.info("Checking " + stockStoreProducer.getStorage() + " storage readiness every " + intervalSeconds
+				+ " seconds");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		refresher.shutdownNow();
 	}
 
 	@Override
 	public HealthCheckResponse call() {
+		CheckResult result = lastResult;
+		HealthCheckResponseBuilder response = HealthCheckResponse.named(NAME)
+				.withData("department", String.valueOf(departmentProvider.getDepartment()))
+				.withData("persistanceUnit", persistenceUnit).withData("storage", stockStoreProducer.getStorage());
+		if (result == null) {
+			return response.state(false).withData("reason", "Database not checked yet").build();
+		}
+		long age = System.currentTimeMillis() - result.checkedAt;
+		// if the checks have stopped happening (the database call is hanging) then the
+		// last result can't be trusted
+		boolean stale = age > TimeUnit.SECONDS.toMillis(intervalSeconds * 3L) + maxLatencyMillis;
+		response.state(result.ready && !stale).withData("lastCheckAgeMillis", age)
+				.withData("dbRoundTripMillis", result.latencyMillis)
+				.withData("consecutiveDegradedChecks", result.consecutiveDegraded);
+		if (result.pool != null) {
+			response.withData("poolActiveConnections", result.pool.getActiveConnections())
+					.withData("poolIdleConnections", result.pool.getIdleConnections())
+					.withData("poolMaximumSize", result.pool.getMaximumPoolSize())
+					.withData("poolThreadsAwaiting", result.pool.getThreadsAwaitingConnection())
+					.withData("poolSaturation", String.format("%.2f", result.pool.getSaturation()));
+		}
+		if (stale) {
+			response.withData("reason", "No database check has completed recently");
+		} else if (result.reason != null) {
+			response.withData("reason", result.reason);
+		}
+		return response.build();
+	}
+
+	private void refresh() {
+		try {
+			lastResult = check();
+		} catch (RuntimeException e) {
+			// don't let anything kill the refresher thread
+			log.warn("Problem checking database readiness", e);
+		}
+	}
+
+	private CheckResult check() {
+		if (stockStoreProducer.isWal()) {
+			return checkWal();
+		}
+		PoolState pool = poolMonitor.getPoolState();
+		long start = System.nanoTime();
 		// there is no easy way for the entityManager to tell us if there is actually a
 		// DB connection apart from trying to do something
+		EntityManager entityManager = null;
 		try {
+			entityManager = EntityManagerFactories.get(persistenceUnit).createEntityManager();
 			// if it returns without an exception it mean's we're good
 			entityManager.find(StockLevel.class, new StockId("Bad Department", "Bad Item"));
 		} catch (Exception e) {
-			return HealthCheckResponse.named("stockmanager-ready").state(false)
-					.withData("department", departmentProvider.getDepartment())
-					.withData("persistanceUnit", persistenceUnit).withData("Exception", e.getClass().getName())
-					.withData("Exception message", e.getMessage()).build();
+			consecutiveDegraded++;
+			return new CheckResult(false, "Database call failed, " + e.getClass().getName() + " : " + e.getMessage(),
+					elapsedMillis(start), pool, consecutiveDegraded);
+		} finally {
+			if (entityManager != null) {
+				entityManager.close();
+			}
 		}
-		return HealthCheckResponse.named("stockmanager-ready").state(true)
-				.withData("department", departmentProvider.getDepartment()).withData("persistanceUnit", persistenceUnit)
-				.build();
+		long latency = elapsedMillis(start);
+		String degradedReason = null;
+		if (latency > maxLatencyMillis) {
+			degradedReason = "Database round trip of " + latency + "ms is over " + maxLatencyMillis + "ms";
+		} else if ((pool != null) && (pool.getSaturation() >= maxPoolSaturation)
+				&& (pool.getThreadsAwaitingConnection() > 0)) {
+			degradedReason = "Connection pool is saturated with " + pool.getThreadsAwaitingConnection()
+					+ " threads waiting";
+		}
+		if (degradedReason == null) {
+			consecutiveDegraded = 0;
+			return new CheckResult(true, null, latency, pool, 0);
+		}
+		consecutiveDegraded++;
+		boolean sustained = consecutiveDegraded >= degradedChecks;
+		if (consecutiveDegraded == degradedChecks) {
+			log.warn("Reporting not ready, " + degradedReason + " for " + consecutiveDegraded + " checks");
+		}
+		return new CheckResult(!sustained, degradedReason, latency, pool, consecutiveDegraded);
 	}
 
+	private CheckResult checkWal() {
+		if (stockStoreProducer.walStockStore().isHealthy()) {
+			return new CheckResult(true, null, 0, null, 0);
+		}
+		return new CheckResult(false, "The write ahead log has failed, no changes can be made", 0, null, 0);
+	}
+
+	private static long elapsedMillis(long startNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+	}
+
+	private static class CheckResult {
+		private final long checkedAt = System.currentTimeMillis();
+		private final boolean ready;
+		private final String reason;
+		private final long latencyMillis;
+		private final PoolState pool;
+		private final int consecutiveDegraded;
+
+		private CheckResult(boolean ready, String reason, long latencyMillis, PoolState pool,
+				int consecutiveDegraded) {
+			this.ready = ready;
+			this.reason = reason;
+			this.latencyMillis = latencyMillis;
+			this.pool = pool;
+			this.consecutiveDegraded = consecutiveDegraded;
+		}
+	}
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.logging;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A java.util.logging handler that hands the records to a background thread
+ * which passes them on to the real handler (by default a ConsoleHandler), so
+ * the request threads don't wait for the formatting and the console I/O.
+ * 
+ * The records are held in a bounded queue, if that fills up (the console can't
+ * keep up) then records below the blockingLevel are dropped rather than making
+ * the request wait, records at or above it wait for a short time for space.
+ * Dropped records are counted and reported as a warning once there's space
+ * again (at most every 5 seconds so the reports don't add to the problem).
+ * 
+ * High rate loggers can also be sampled, for those only one in every N records
+ * at INFO or below is kept, warnings and errors are always kept.
+ * 
+ * Configured in logging.properties using the class name as a prefix, e.g.
+ * 
+ * <pre>
+ * com.oracle.labs.helidon.stockmanager.logging.AsyncHandler.target=java.util.logging.ConsoleHandler
+ * com.oracle.labs.helidon.stockmanager.logging.AsyncHandler.queueSize=8192
+ * com.oracle.labs.helidon.stockmanager.logging.AsyncHandler.blockingLevel=WARNING
+ * com.oracle.labs.helidon.stockmanager.logging.AsyncHandler.sample=com.oracle.labs.helidon.stockmanager.resources:10
+ * </pre>
+ * 
+ * The sample setting is a comma separated list of logger name (or parent
+ * logger name) and rate pairs
+ */
+public class AsyncHandler extends Handler {
+	private final static String PREFIX = AsyncHandler.class.getName();
+	private final static long BLOCKING_WAIT_MILLIS = 100;
+	private final static long DROPPED_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	// the name of the thread that created the record that's being written
+	private final static ThreadLocal<String> PUBLISHING_THREAD = new ThreadLocal<>();
+	// queued by close to tell the writer there's nothing more coming
+	private final static QueuedRecord SHUTDOWN = new QueuedRecord(null, null);
+	private final static long SHUTDOWN_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	private final Handler target;
+	private final BlockingQueue<QueuedRecord> queue;
+	private final int blockingLevel;
+	private final Map<String, Sampler> samplers = new ConcurrentHashMap<>();
+	private final Map<String, Long> sampleRates;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long lastDroppedReport = System.nanoTime();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	public AsyncHandler() {
+		LogManager manager = LogManager.getLogManager();
+		target = createTarget(manager.getProperty(PREFIX + ".target"));
+		queue = new ArrayBlockingQueue<>(intProperty(manager, ".queueSize", 8192));
+		blockingLevel = levelProperty(manager, ".blockingLevel", Level.WARNING).intValue();
+		sampleRates = parseSampleRates(manager.getProperty(PREFIX + ".sample"));
+		setLevel(levelProperty(manager, ".level", Level.ALL));
+		writer = new Thread(this::write, "async-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * The name of the thread that logged the record currently being written, the
+	 * formatter uses this as the writer thread isn't the one that did the work
+	 */
+	public static String publishingThreadName() {
+		String name = PUBLISHING_THREAD.get();
+		return name == null ? Thread.currentThread().getName() : name;
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (!running || !isLoggable(record)) {
+			return;
+		}
+		int level = record.getLevel().intValue();
+		if ((level <= Level.INFO.intValue()) && !sampler(record.getLoggerName()).keep()) {
+			return;
+		}
+		QueuedRecord queued = new QueuedRecord(record, Thread.currentThread().getName());
+		if (queue.offer(queued)) {
+			return;
+		}
+		if (level >= blockingLevel) {
+			try {
+				if (queue.offer(queued, BLOCKING_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		dropped.incrementAndGet();
+	}
+
+	@Override
+	public void flush() {
+		target.flush();
+	}
+
+	/**
+	 * Stop taking new records, write out what's already queued and close the
+	 * target handler. The LogManager calls this on shutdown.
+	 * 
+	 * The writer is told to stop by queueing a shutdown marker behind whatever
+	 * is already there, and anything left is only written here once the writer
+	 * has finished, so the two threads never publish to the target at the same
+	 * time
+	 */
+	@Override
+	public void close() {
+		running = false;
+		try {
+			// if the queue is full the writer is still emptying it so this will get in
+			// unless the target has stopped altogether
+			if (queue.offer(SHUTDOWN, SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				writer.join(SHUTDOWN_WAIT_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (writer.isAlive()) {
+			// the target is stuck, writing to it from here as well won't help
+			reportError("The log writer didn't finish, " + queue.size() + " queued records have not been written",
+					null, ErrorManager.CLOSE_FAILURE);
+		} else {
+			// picks up anything that was published while close was being called
+			drain();
+		}
+		target.close();
+	}
+
+	private void write() {
+		while (true) {
+			try {
+				QueuedRecord queued = queue.take();
+				if (queued == SHUTDOWN) {
+					return;
+				}
+				writeRecord(queued);
+				if (queue.isEmpty()) {
+					if ((System.nanoTime() - lastDroppedReport) > DROPPED_REPORT_INTERVAL_NANOS) {
+						reportDropped();
+					}
+					target.flush();
+				}
+			} catch (InterruptedException e) {
+				// nothing in here interrupts the writer, but if something else does stop
+				return;
+			} catch (RuntimeException e) {
+				reportError("Problem writing a log record", e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+	private void drain() {
+		QueuedRecord queued;
+		while ((queued = queue.poll()) != null) {
+			if (queued != SHUTDOWN) {
+				writeRecord(queued);
+			}
+		}
+		reportDropped();
+		target.flush();
+	}
+
+	private void writeRecord(QueuedRecord queued) {
+		PUBLISHING_THREAD.set(queued.threadName);
+		try {
+			target.publish(queued.record);
+		} finally {
+			PUBLISHING_THREAD.remove();
+		}
+	}
+
+	private void reportDropped() {
+		lastDroppedReport = System.nanoTime();
+		long count = dropped.getAndSet(0);
+		if (count > 0) {
+			LogRecord record = new LogRecord(Level.WARNING,
+					"Dropped " + count + " log records because the log output couldn't keep up");
+			record.setLoggerName(PREFIX);
+			target.publish(record);
+		}
+	}
+
+	private Sampler sampler(String loggerName) {
+		String name = loggerName == null ? "" : loggerName;
+		Sampler sampler = samplers.get(name);
+		if (sampler == null) {
+			sampler = samplers.computeIfAbsent(name, n -> new Sampler(sampleRate(n)));
+		}
+		return sampler;
+	}
+
+	/**
+	 * The rate for the logger, or the nearest parent logger that has one
+	 */
+	private long sampleRate(String loggerName) {
+		String name = loggerName;
+		while (true) {
+			Long rate = sampleRates.get(name);
+			if (rate != null) {
+				return rate;
+			}
+			int lastDot = name.lastIndexOf('.');
+			if (lastDot < 0) {
+				return 1;
+			}
+			name = name.substring(0, lastDot);
+		}
+	}
+
+	private Handler createTarget(String className) {
+		if (className == null) {
+			return new ConsoleHandler();
+		}
+		try {
+			return (Handler) ClassLoader.getSystemClassLoader().loadClass(className.trim()).getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			reportError("Can't create log handler " + className + ", using the console", e,
+					ErrorManager.OPEN_FAILURE);
+			return new ConsoleHandler();
+		}
+	}
+
+	private static Map<String, Long> parseSampleRates(String property) {
+		Map<String, Long> rates = new ConcurrentHashMap<>();
+		if (property == null) {
+			return rates;
+		}
+		for (String entry : property.split(",")) {
+			int colon = entry.lastIndexOf(':');
+			if (colon > 0) {
+				try {
+					rates.put(entry.substring(0, colon).trim(),
+							Math.max(1, Long.parseLong(entry.substring(colon + 1).trim())));
+				} catch (NumberFormatException e) {
+					// ignore it, the logger just won't be sampled
+				}
+			}
+		}
+		return rates;
+	}
+
+	private static int intProperty(LogManager manager, String name, int defaultValue) {
+		String value = manager.getProperty(PREFIX + name);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	private static Level levelProperty(LogManager manager, String name, Level defaultValue) {
+		String value = manager.getProperty(PREFIX + name);
+		try {
+			return value == null ? defaultValue : Level.parse(value.trim());
+		} catch (IllegalArgumentException e) {
+			return defaultValue;
+		}
+	}
+
+	private static class QueuedRecord {
+		private final LogRecord record;
+		private final String threadName;
+
+		private QueuedRecord(LogRecord record, String threadName) {
+			this.record = record;
+			this.threadName = threadName;
+		}
+	}
+
+	private static class Sampler {
+		private final long rate;
+		private final AtomicLong count = new AtomicLong();
+
+		private Sampler(long rate) {
+			this.rate = rate;
+		}
+
+		private boolean keep() {
+			return (rate == 1) || ((count.getAndIncrement() % rate) == 0);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.logging;
+
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * Does the same as the Helidon WebServerLogFormatter (replaces !thread! in the
+ * SimpleFormatter output with the thread name), but when used behind the
+ * AsyncHandler it's the name of the thread that logged the message, not the
+ * thread that's writing it out
+ */
+public class AsyncLogFormatter extends SimpleFormatter {
+	private final static String THREAD_TOKEN = "!thread!";
+
+	@Override
+	public String format(LogRecord record) {
+		String message = super.format(record);
+		return message.contains(THREAD_TOKEN) ? message.replace(THREAD_TOKEN, AsyncHandler.publishingThreadName())
+				: message;
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.lowstock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.providers.DepartmentProvider;
+import com.oracle.labs.helidon.stockmanager.storage.DepartmentViews;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
+import com.oracle.labs.helidon.stockmanager.storage.StockStoreSource;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps track of the items in each department that are below their low stock
+ * threshold (their own if one's been set, otherwise
+ * app.lowstock.defaultThreshold, 0 means items without their own are never
+ * low). StockResource passes on each change it makes, and only the changed
+ * item is looked at, so there's no need to go through all the items to find
+ * the low ones. The low items are kept in order, the lowest (compared to it's
+ * threshold) first.
+ * 
+ * When an item goes below it's threshold it's logged as a warning and counted
+ * in lowstock.alerts, lowstock.items is the number of items below their
+ * threshold in this stock manager's department.
+ * 
+ * A department is loaded from the StockStore (all the items and thresholds)
+ * the first time it's used, and again if it's more than
+ * app.lowstock.maxAgeSeconds old when it's used, to pick up changes by any
+ * other stock managers sharing the database (see DepartmentViews). For changes
+ * that's done in the background, with a store from the StockStoreSource
+ */
+@ApplicationScoped
+@Slf4j
+public class LowStockWatcher {
+	private final int defaultThreshold;
+	private final DepartmentViews<DepartmentWatch> watches;
+	private final StockStoreSource stockStoreSource;
+	private final Counter alerts;
+
+	@Inject
+	public LowStockWatcher(DepartmentProvider departmentProvider, StockStoreSource stockStoreSource,
+			@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			@ConfigProperty(name = "app.lowstock.defaultThreshold", defaultValue = "0") int defaultThreshold,
+			@ConfigProperty(name = "app.lowstock.maxAgeSeconds", defaultValue = "300") int maxAgeSeconds) {
+		this.defaultThreshold = defaultThreshold;
+		this.stockStoreSource = stockStoreSource;
+		this.watches = new DepartmentViews<>("low stock items", TimeUnit.SECONDS.toMillis(maxAgeSeconds),
+				(stockStore, departmentName) -> new DepartmentWatch(departmentName,
+						stockStore.findAll(departmentName), stockStore.findThresholds(departmentName)));
+		alerts = metricRegistry.counter(Metadata.builder().withName("lowstock.alerts")
+				.withDescription("Times an item has gone below it's low stock threshold")
+				.withType(MetricType.COUNTER).withUnit(MetricUnits.NONE).build());
+		metricRegistry.register(Metadata.builder().withName("lowstock.items")
+				.withDescription("Number of items in the department below their low stock threshold")
+				.withType(MetricType.GAUGE).withUnit(MetricUnits.NONE).build(), (Gauge<Integer>) () -> {
+					DepartmentWatch watch = watches.getIfLoaded(departmentProvider.getDepartment());
+					return watch == null ? 0 : watch.low.size();
+				});
+	}
+
+	/**
+	 * @return the items in the department below their threshold, lowest first
+	 */
+	public List<LowStockItem> lowStock(StockStore stockStore, String departmentName) {
+		return new ArrayList<>(watches.get(stockStore, departmentName).ordered);
+	}
+
+	/**
+	 * Call before making a change, if the department needs loading (so an item
+	 * going below it's threshold is noticed even if no one has asked for the low
+	 * stock items yet) this starts it in the background rather than holding up the
+	 * change. Until it's loaded the change is just picked up by the load
+	 */
+	public void load(String departmentName) {
+		watches.loadInBackground(stockStoreSource, departmentName);
+	}
+
+	/**
+	 * An item has been created or it's count has changed
+	 */
+	public void levelChanged(String departmentName, String itemName, int itemCount) {
+		watches.change(departmentName, watch -> watch.levelChanged(itemName, itemCount));
+	}
+
+	/**
+	 * An item's threshold has been set, or with a null threshold removed
+	 */
+	public void thresholdChanged(String departmentName, String itemName, Integer threshold, int itemCount) {
+		watches.change(departmentName, watch -> watch.thresholdChanged(itemName, threshold, itemCount));
+	}
+
+	/**
+	 * An item has been deleted
+	 */
+	public void removed(String departmentName, String itemName) {
+		watches.change(departmentName, watch -> watch.removed(itemName));
+	}
+
+	/**
+	 * @return the threshold the item's count is compared to
+	 */
+	public int threshold(Integer ownThreshold) {
+		return ownThreshold == null ? defaultThreshold : ownThreshold;
+	}
+
+	/**
+	 * One department, changes are made holding the department's lock (see
+	 * DepartmentViews), the maps are concurrent so lowStock doesn't need it
+	 */
+	private class DepartmentWatch {
+		private final String departmentName;
+		private final Map<String, Integer> thresholds = new ConcurrentHashMap<>();
+		private final Map<String, LowStockItem> low = new ConcurrentHashMap<>();
+		private final NavigableSet<LowStockItem> ordered = new ConcurrentSkipListSet<>(Comparator
+				.comparingDouble((LowStockItem item) -> ((double) item.getItemCount()) / item.getThreshold())
+				.thenComparing(LowStockItem::getItemName));
+
+		private DepartmentWatch(String departmentName, Collection<StockLevel> stockLevels,
+				Map<String, Integer> itemThresholds) {
+			this.departmentName = departmentName;
+			thresholds.putAll(itemThresholds);
+			for (StockLevel stockLevel : stockLevels) {
+				String itemName = stockLevel.getStockId().getItemName();
+				int threshold = threshold(thresholds.get(itemName));
+				if (stockLevel.getItemCount() < threshold) {
+					setLow(new LowStockItem(itemName, stockLevel.getItemCount(), threshold));
+				}
+			}
+		}
+
+		private void levelChanged(String itemName, int itemCount) {
+			int threshold = threshold(thresholds.get(itemName));
+			if (itemCount >= threshold) {
+				clearLow(itemName);
+				return;
+			}
+			if (setLow(new LowStockItem(itemName, itemCount, threshold)) == null) {
+				alerts.inc();
+				log.warn("Item {} in {} is low on stock, {} left which is below the threshold of {}", itemName,
+						departmentName, itemCount, threshold);
+			}
+		}
+
+		private void thresholdChanged(String itemName, Integer threshold, int itemCount) {
+			if (threshold == null) {
+				thresholds.remove(itemName);
+			} else {
+				thresholds.put(itemName, threshold);
+			}
+			levelChanged(itemName, itemCount);
+		}
+
+		private void removed(String itemName) {
+			thresholds.remove(itemName);
+			clearLow(itemName);
+		}
+
+		// the item it replaced, null if it wasn't low before
+		private LowStockItem setLow(LowStockItem item) {
+			LowStockItem previous = low.put(item.getItemName(), item);
+			if (previous != null) {
+				ordered.remove(previous);
+			}
+			ordered.add(item);
+			return previous;
+		}
+
+		private void clearLow(String itemName) {
+			LowStockItem previous = low.remove(itemName);
+			if (previous != null) {
+				ordered.remove(previous);
+			}
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.function.ToLongFunction;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.QueryStatistics;
+import org.hibernate.stat.Statistics;
+
+import com.oracle.labs.helidon.stockmanager.database.EntityManagerFactories;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Publishes the Hibernate statistics for the stock manager persistence unit as
+ * application metrics (so they are on the admin socket with the other
+ * metrics), for example application_hibernate_query_executions. The statistics
+ * are only collected if hibernate.generate_statistics is set in
+ * persistence.xml, otherwise these will all be zero.
+ * 
+ * The values are totals since the service started, so look at the rate of
+ * change to see what's going on now
+ */
+@ApplicationScoped
+@Slf4j
+public class HibernateStatisticsMetrics {
+	private final MetricRegistry metricRegistry;
+	private final String persistenceUnit;
+
+	@Inject
+	public HibernateStatisticsMetrics(@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			@ConfigProperty(name = "app.persistenceUnit") String persistenceUnit) {
+		this.metricRegistry = metricRegistry;
+		this.persistenceUnit = persistenceUnit;
+	}
+
+	/**
+	 * Register the gauges when the application starts, they read the statistics
+	 * from the entity manager factory once it's been created
+	 */
+	public void register(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		// sessions and transactions
+		count("hibernate.sessions.opened", "Sessions opened", Statistics::getSessionOpenCount);
+		count("hibernate.sessions.closed", "Sessions closed", Statistics::getSessionCloseCount);
+		count("hibernate.transactions", "Transactions completed", Statistics::getTransactionCount);
+		count("hibernate.transactions.successful", "Transactions that completed successfully",
+				Statistics::getSuccessfulTransactionCount);
+		count("hibernate.flushes", "Session flushes", Statistics::getFlushCount);
+		count("hibernate.connections", "JDBC connections obtained", Statistics::getConnectCount);
+		count("hibernate.statements.prepared", "JDBC statements prepared", Statistics::getPrepareStatementCount);
+		count("hibernate.optimisticFailures", "Optimistic locking failures",
+				Statistics::getOptimisticFailureCount);
+		// entities
+		count("hibernate.entities.loaded", "Entities loaded", Statistics::getEntityLoadCount);
+		count("hibernate.entities.fetched", "Entities fetched", Statistics::getEntityFetchCount);
+		count("hibernate.entities.inserted", "Entities inserted", Statistics::getEntityInsertCount);
+		count("hibernate.entities.updated", "Entities updated", Statistics::getEntityUpdateCount);
+		count("hibernate.entities.deleted", "Entities deleted", Statistics::getEntityDeleteCount);
+		// queries
+		count("hibernate.query.executions", "Queries executed", Statistics::getQueryExecutionCount);
+		time("hibernate.query.executionTime.max", "Longest query execution time",
+				Statistics::getQueryExecutionMaxTime);
+		time("hibernate.query.executionTime.total", "Total query execution time",
+				HibernateStatisticsMetrics::totalQueryExecutionTime);
+		// caches
+		count("hibernate.cache.secondLevel.hits", "Second level cache hits", Statistics::getSecondLevelCacheHitCount);
+		count("hibernate.cache.secondLevel.misses", "Second level cache misses",
+				Statistics::getSecondLevelCacheMissCount);
+		ratio("hibernate.cache.secondLevel.hitRatio", "Second level cache hit ratio",
+				Statistics::getSecondLevelCacheHitCount, Statistics::getSecondLevelCacheMissCount);
+		count("hibernate.cache.query.hits", "Query cache hits", Statistics::getQueryCacheHitCount);
+		count("hibernate.cache.query.misses", "Query cache misses", Statistics::getQueryCacheMissCount);
+		ratio("hibernate.cache.query.hitRatio", "Query cache hit ratio", Statistics::getQueryCacheHitCount,
+				Statistics::getQueryCacheMissCount);
+		log.info("Registered Hibernate statistics metrics for persistence unit " + persistenceUnit);
+	}
+
+	private void count(String name, String description, ToLongFunction<Statistics> value) {
+		register(name, description, MetricUnits.NONE, value);
+	}
+
+	private void time(String name, String description, ToLongFunction<Statistics> value) {
+		register(name, description, MetricUnits.MILLISECONDS, value);
+	}
+
+	private void register(String name, String description, String unit, ToLongFunction<Statistics> value) {
+		Metadata metadata = Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(unit).build();
+		metricRegistry.register(metadata, (Gauge<Long>) () -> {
+			Statistics statistics = statistics();
+			return statistics == null ? 0L : value.applyAsLong(statistics);
+		});
+	}
+
+	private void ratio(String name, String description, ToLongFunction<Statistics> hits,
+			ToLongFunction<Statistics> misses) {
+		Metadata metadata = Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.NONE).build();
+		metricRegistry.register(metadata, (Gauge<Double>) () -> {
+			Statistics statistics = statistics();
+			if (statistics == null) {
+				return 0.0;
+			}
+			long hitCount = hits.applyAsLong(statistics);
+			long total = hitCount + misses.applyAsLong(statistics);
+			return total == 0 ? 0.0 : ((double) hitCount) / total;
+		});
+	}
+
+	private Statistics statistics() {
+		EntityManagerFactory emfactory = EntityManagerFactories.getIfCreated(persistenceUnit);
+		if ((emfactory == null) || !emfactory.isOpen()) {
+			return null;
+		}
+		return emfactory.unwrap(SessionFactory.class).getStatistics();
+	}
+
+	/**
+	 * Hibernate only keeps the execution time per query, so add them up
+	 */
+	private static long totalQueryExecutionTime(Statistics statistics) {
+		long total = 0;
+		for (String query : statistics.getQueries()) {
+			QueryStatistics queryStatistics = statistics.getQueryStatistics(query);
+			total += queryStatistics.getExecutionTotalTime();
+		}
+		return total;
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records latencies into rolling HDR histograms and publishes their percentiles
+ * as gauges in the application metrics registry (so they appear on the admin
+ * socket with the other metrics), e.g.
+ * application_latency_p99_seconds{type="endpoint",name="StockResource.getStockItem"}
+ *
+ * The type is one of endpoint (a JAX-RS resource method) or jpa (an entity
+ * manager operation or query), the name is the specific method or operation
+ */
+@ApplicationScoped
+@Slf4j
+public class LatencyRecorder {
+	public final static String TYPE_ENDPOINT = "endpoint";
+	public final static String TYPE_JPA = "jpa";
+
+	private final static Metadata P50 = gaugeMetadata("latency.p50", "50th percentile latency");
+	private final static Metadata P90 = gaugeMetadata("latency.p90", "90th percentile latency");
+	private final static Metadata P99 = gaugeMetadata("latency.p99", "99th percentile latency");
+	private final static Metadata P999 = gaugeMetadata("latency.p999", "99.9th percentile latency");
+	private final static Metadata MAX = gaugeMetadata("latency.max", "Maximum latency");
+	private final static Metadata COUNT = Metadata.builder().withName("latency.count")
+			.withDescription("Number of calls in the latency window").withType(MetricType.GAUGE)
+			.withUnit(MetricUnits.NONE).build();
+
+	private final MetricRegistry metricRegistry;
+	private final int windowIntervals;
+	private final Map<String, RollingLatencyHistogram> histograms = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService roller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "latency-window-roller");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The percentiles are over a window of windowIntervals * intervalSeconds, by
+	 * default the last minute in 10 second steps
+	 */
+	@Inject
+	public LatencyRecorder(@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			@ConfigProperty(name = "app.latency.intervalSeconds", defaultValue = "10") int intervalSeconds,
+			@ConfigProperty(name = "app.latency.windowIntervals", defaultValue = "6") int windowIntervals) {
+		this.metricRegistry = metricRegistry;
+		this.windowIntervals = windowIntervals;
+		roller.scheduleAtFixedRate(() -> histograms.values().forEach(RollingLatencyHistogram::roll), intervalSeconds,
+				intervalSeconds, TimeUnit.SECONDS);
+		log.info("Latency percentiles are over the last " + (intervalSeconds * windowIntervals) + " seconds");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		roller.shutdownNow();
+	}
+
+	public void record(String type, String name, long nanos) {
+		histogram(type, name).recordNanos(nanos);
+	}
+
+	private RollingLatencyHistogram histogram(String type, String name) {
+		String key = type + ":" + name;
+		RollingLatencyHistogram histogram = histograms.get(key);
+		if (histogram == null) {
+			histogram = histograms.computeIfAbsent(key, k -> register(type, name));
+		}
+		return histogram;
+	}
+
+	private RollingLatencyHistogram register(String type, String name) {
+		RollingLatencyHistogram histogram = new RollingLatencyHistogram(windowIntervals);
+		Tag tags[] = { new Tag("type", type), new Tag("name", name) };
+		registerGauge(P50, histogram, h -> h.getPercentileMillis(50), tags);
+		registerGauge(P90, histogram, h -> h.getPercentileMillis(90), tags);
+		registerGauge(P99, histogram, h -> h.getPercentileMillis(99), tags);
+		registerGauge(P999, histogram, h -> h.getPercentileMillis(99.9), tags);
+		registerGauge(MAX, histogram, RollingLatencyHistogram::getMaxMillis, tags);
+		metricRegistry.register(COUNT, (Gauge<Long>) histogram::getCount, tags);
+		return histogram;
+	}
+
+	private void registerGauge(Metadata metadata, RollingLatencyHistogram histogram,
+			ToDoubleFunction<RollingLatencyHistogram> value, Tag tags[]) {
+		metricRegistry.register(metadata, (Gauge<Double>) () -> value.applyAsDouble(histogram), tags);
+	}
+
+	private static Metadata gaugeMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.MILLISECONDS).build();
+	}
+}
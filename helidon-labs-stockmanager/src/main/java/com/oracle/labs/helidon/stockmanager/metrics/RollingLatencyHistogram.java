@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies (in microseconds) over a rolling window made up of a number of
+ * intervals. Recording goes into an HdrHistogram Recorder which is wait free,
+ * so it's cheap on the request threads, every interval the recorded values are
+ * moved into the window and the oldest interval drops out. The percentiles are
+ * read from the last completed window, so reading them doesn't interfere with
+ * the recording
+ */
+public class RollingLatencyHistogram {
+	// track up to 10 minutes with 3 significant digits
+	public final static long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+	private final static int SIGNIFICANT_DIGITS = 3;
+
+	private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+	private final Histogram intervals[];
+	private int currentInterval = 0;
+	private Histogram recycle;
+	private volatile Histogram window = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+
+	public RollingLatencyHistogram(int intervalCount) {
+		this.intervals = new Histogram[intervalCount];
+	}
+
+	public void recordMicros(long micros) {
+		recorder.recordValue(Math.max(0, Math.min(micros, HIGHEST_TRACKABLE_MICROS)));
+	}
+
+	public void recordNanos(long nanos) {
+		recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	/**
+	 * Move what's been recorded since the last roll into the window, dropping the
+	 * oldest interval
+	 */
+	public synchronized void roll() {
+		Histogram interval = recorder.getIntervalHistogram(recycle);
+		recycle = intervals[currentInterval];
+		intervals[currentInterval] = interval;
+		currentInterval = (currentInterval + 1) % intervals.length;
+		Histogram newWindow = new Histogram(HIGHEST_TRACKABLE_MICROS, SIGNIFICANT_DIGITS);
+		for (Histogram histogram : intervals) {
+			if (histogram != null) {
+				newWindow.add(histogram);
+			}
+		}
+		window = newWindow;
+	}
+
+	public double getPercentileMillis(double percentile) {
+		return window.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	public double getMaxMillis() {
+		return window.getMaxValue() / 1000.0;
+	}
+
+	public long getCount() {
+		return window.getTotalCount();
+	}
+}
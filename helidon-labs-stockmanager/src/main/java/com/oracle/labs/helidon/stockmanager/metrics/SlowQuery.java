@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A database operation that took longer than the slow query threshold
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class SlowQuery {
+	// when it completed, in milliseconds since the epoch
+	private long timestamp;
+	private double durationMillis;
+	// the SQL (or JPQL) for queries, for entity operations this is the operation
+	// and entity, e.g. find StockLevel
+	private String statement;
+	private List<String> parameters;
+	private String department;
+	// the resource method that made the call, e.g. StockResource.getStockItem
+	private String resourceMethod;
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.oracle.labs.helidon.stockmanager.providers.DepartmentProvider;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the most recent database operations that took longer than
+ * app.slowQueries.thresholdMillis, up to app.slowQueries.maxEntries of them.
+ * Operations that are under the threshold just cost a comparison, the details
+ * (parameters and the calling resource method) are only worked out for the slow
+ * ones
+ */
+@ApplicationScoped
+@Slf4j
+public class SlowQueryLog {
+	private final static String RESOURCES_PACKAGE = "com.oracle.labs.helidon.stockmanager.resources";
+	private final static StackWalker STACK_WALKER = StackWalker.getInstance();
+
+	private final DepartmentProvider departmentProvider;
+	private final long thresholdNanos;
+	private final int maxEntries;
+	private final Deque<SlowQuery> entries = new ArrayDeque<>();
+	private final AtomicLong totalSlowQueries = new AtomicLong();
+
+	@Inject
+	public SlowQueryLog(DepartmentProvider departmentProvider,
+			@ConfigProperty(name = "app.slowQueries.thresholdMillis", defaultValue = "250") long thresholdMillis,
+			@ConfigProperty(name = "app.slowQueries.maxEntries", defaultValue = "100") int maxEntries) {
+		this.departmentProvider = departmentProvider;
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.maxEntries = maxEntries;
+		log.info("Recording database operations taking over " + thresholdMillis + "ms, keeping the last " + maxEntries);
+	}
+
+	public boolean isSlow(long nanos) {
+		return nanos >= thresholdNanos;
+	}
+
+	/**
+	 * Record an operation if it was slow, parameters is only called if it was
+	 */
+	public void record(long nanos, String statement, Supplier<List<String>> parameters) {
+		if (!isSlow(nanos)) {
+			return;
+		}
+		SlowQuery slowQuery = new SlowQuery(System.currentTimeMillis(), nanos / 1000000.0, statement,
+				parameters.get(), departmentProvider.getDepartment(), callingResourceMethod());
+		log.warn("Slow database operation {}", slowQuery);
+		totalSlowQueries.incrementAndGet();
+		synchronized (entries) {
+			if (entries.size() >= maxEntries) {
+				entries.removeFirst();
+			}
+			entries.addLast(slowQuery);
+		}
+	}
+
+	/**
+	 * The recorded slow operations, most recent first
+	 */
+	public List<SlowQuery> getSlowQueries() {
+		List<SlowQuery> result;
+		synchronized (entries) {
+			result = new ArrayList<>(entries);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+
+	public long getTotalSlowQueries() {
+		return totalSlowQueries.get();
+	}
+
+	public long getThresholdMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * The outermost call in the resources package is the JAX-RS method that's
+	 * handling the request (internal helpers like writeAuditRecord are further in),
+	 * the CDI proxy class has the same method names so just strip the proxy part
+	 * of the class name
+	 */
+	private static String callingResourceMethod() {
+		Optional<StackWalker.StackFrame> frame = STACK_WALKER
+				.walk(frames -> frames.filter(f -> f.getClassName().startsWith(RESOURCES_PACKAGE))
+						.reduce((inner, outer) -> outer));
+		return frame.map(f -> {
+			String className = f.getClassName().substring(RESOURCES_PACKAGE.length() + 1);
+			int proxySeparator = className.indexOf('$');
+			return (proxySeparator < 0 ? className : className.substring(0, proxySeparator)) + "."
+					+ f.getMethodName();
+		}).orElse("unknown");
+	}
+}
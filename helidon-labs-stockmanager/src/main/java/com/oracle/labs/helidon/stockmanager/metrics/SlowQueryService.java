@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.util.Collections;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObjectBuilder;
+
+import io.helidon.common.http.MediaType;
+import io.helidon.microprofile.server.RoutingName;
+import io.helidon.microprofile.server.RoutingPath;
+import io.helidon.webserver.Routing.Rules;
+import io.helidon.webserver.ServerRequest;
+import io.helidon.webserver.ServerResponse;
+import io.helidon.webserver.Service;
+
+/**
+ * Makes the slow query log available on the admin socket (like the metrics and
+ * health info) so it's not visible to the normal users of the service, e.g.
+ * 
+ * curl http://localhost:9081/slowqueries
+ * 
+ * returns the threshold, the total number of slow operations seen and the most
+ * recent of them (most recent first), curl -X DELETE clears the recorded ones.
+ * If there is no admin socket configured then it's on the main port
+ */
+@ApplicationScoped
+@RoutingPath("/slowqueries")
+@RoutingName(value = "admin", required = false)
+public class SlowQueryService implements Service {
+	private static final JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
+
+	private final SlowQueryLog slowQueryLog;
+
+	@Inject
+	public SlowQueryService(SlowQueryLog slowQueryLog) {
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	@Override
+	public void update(Rules rules) {
+		rules.get("/", this::listSlowQueries).delete("/", this::clearSlowQueries);
+	}
+
+	private void listSlowQueries(ServerRequest request, ServerResponse response) {
+		JsonArrayBuilder queries = JSON.createArrayBuilder();
+		for (SlowQuery slowQuery : slowQueryLog.getSlowQueries()) {
+			JsonArrayBuilder parameters = JSON.createArrayBuilder();
+			slowQuery.getParameters().forEach(parameters::add);
+			queries.add(JSON.createObjectBuilder().add("timestamp", slowQuery.getTimestamp())
+					.add("durationMillis", slowQuery.getDurationMillis()).add("statement", slowQuery.getStatement())
+					.add("parameters", parameters).add("department", String.valueOf(slowQuery.getDepartment()))
+					.add("resourceMethod", slowQuery.getResourceMethod()));
+		}
+		JsonObjectBuilder result = JSON.createObjectBuilder().add("thresholdMillis", slowQueryLog.getThresholdMillis())
+				.add("totalSlowQueries", slowQueryLog.getTotalSlowQueries()).add("slowQueries", queries);
+		response.headers().contentType(MediaType.APPLICATION_JSON);
+		response.send(result.build().toString());
+	}
+
+	private void clearSlowQueries(ServerRequest request, ServerResponse response) {
+		slowQueryLog.clear();
+		response.send();
+	}
+}
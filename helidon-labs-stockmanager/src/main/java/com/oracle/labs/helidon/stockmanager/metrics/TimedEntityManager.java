@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+
+/**
+ * Wraps an EntityManager so the operations that go to the database (find,
+ * persist, merge, remove, flush and running queries) are timed and recorded in
+ * the LatencyRecorder. The names are the operation and the entity or query
+ * result class, e.g. find.StockLevel or query.OperationAuditRecord, so there
+ * are a small fixed number of them regardless of the data
+ * 
+ * Operations that take longer than the slow query threshold are also recorded
+ * in the SlowQueryLog along with the statement and it's parameters
+ */
+public class TimedEntityManager implements InvocationHandler {
+	private final static Set<String> TIMED_OPERATIONS = Set.of("find", "persist", "merge", "remove", "refresh",
+			"flush", "getReference");
+	private final static Set<String> QUERY_CREATORS = Set.of("createQuery", "createNativeQuery", "createNamedQuery");
+	private final static Set<String> QUERY_EXECUTORS = Set.of("getResultList", "getSingleResult", "executeUpdate",
+			"getResultStream");
+
+	private final EntityManager entityManager;
+	private final LatencyRecorder latencyRecorder;
+	private final SlowQueryLog slowQueryLog;
+
+	private TimedEntityManager(EntityManager entityManager, LatencyRecorder latencyRecorder,
+			SlowQueryLog slowQueryLog) {
+		this.entityManager = entityManager;
+		this.latencyRecorder = latencyRecorder;
+		this.slowQueryLog = slowQueryLog;
+	}
+
+	public static EntityManager wrap(EntityManager entityManager, LatencyRecorder latencyRecorder,
+			SlowQueryLog slowQueryLog) {
+		return (EntityManager) Proxy.newProxyInstance(TimedEntityManager.class.getClassLoader(),
+				new Class<?>[] { EntityManager.class },
+				new TimedEntityManager(entityManager, latencyRecorder, slowQueryLog));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String operation = method.getName();
+		if (TIMED_OPERATIONS.contains(operation)) {
+			String target = operationTarget(args);
+			long start = System.nanoTime();
+			try {
+				return invokeDelegate(entityManager, method, args);
+			} finally {
+				long nanos = System.nanoTime() - start;
+				if (record(operation + "." + target, nanos)) {
+					slowQueryLog.record(nanos, operation + " " + target, () -> operationParameters(args));
+				}
+			}
+		}
+		Object result = invokeDelegate(entityManager, method, args);
+		if (QUERY_CREATORS.contains(operation) && (result instanceof Query)) {
+			return wrapQuery((Query) result, "query." + queryTarget(operation, args), queryStatement(operation, args));
+		}
+		return result;
+	}
+
+	/**
+	 * Records the latency, returns true if it was slow enough to go in the slow
+	 * query log
+	 */
+	private boolean record(String name, long nanos) {
+		latencyRecorder.record(LatencyRecorder.TYPE_JPA, name, nanos);
+		return slowQueryLog.isSlow(nanos);
+	}
+
+	/**
+	 * Queries are mostly setup using chained calls (setParameter, setMaxResults and
+	 * so on) that return the query, so make sure those return the wrapper
+	 */
+	private Query wrapQuery(Query query, String name, String statement) {
+		Class<?> queryInterface = (query instanceof TypedQuery) ? TypedQuery.class : Query.class;
+		return (Query) Proxy.newProxyInstance(TimedEntityManager.class.getClassLoader(),
+				new Class<?>[] { queryInterface }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (!QUERY_EXECUTORS.contains(method.getName())) {
+							Object result = invokeDelegate(query, method, args);
+							return result == query ? proxy : result;
+						}
+						long start = System.nanoTime();
+						try {
+							return invokeDelegate(query, method, args);
+						} finally {
+							long nanos = System.nanoTime() - start;
+							if (record(name, nanos)) {
+								slowQueryLog.record(nanos, statement, () -> queryParameters(query));
+							}
+						}
+					}
+				});
+	}
+
+	private static Object invokeDelegate(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static String operationTarget(Object[] args) {
+		if ((args == null) || (args.length == 0)) {
+			return "all";
+		}
+		return (args[0] instanceof Class) ? ((Class<?>) args[0]).getSimpleName() : args[0].getClass().getSimpleName();
+	}
+
+	/**
+	 * For find and getReference this is the primary key, otherwise it's the entity
+	 */
+	private static List<String> operationParameters(Object[] args) {
+		if ((args == null) || (args.length == 0)) {
+			return Collections.emptyList();
+		}
+		Object parameter = ((args[0] instanceof Class) && (args.length > 1)) ? args[1] : args[0];
+		return Collections.singletonList(String.valueOf(parameter));
+	}
+
+	/**
+	 * The values bound to the query, only used for slow queries so it's not an
+	 * issue that this takes a bit of work
+	 */
+	private static List<String> queryParameters(Query query) {
+		List<String> parameters = new ArrayList<>();
+		try {
+			for (Parameter<?> parameter : query.getParameters()) {
+				String name = parameter.getName() == null ? "?" + parameter.getPosition() : ":" + parameter.getName();
+				Object value = query.isBound(parameter) ? query.getParameterValue(parameter) : "(unbound)";
+				parameters.add(name + "=" + value);
+			}
+		} catch (RuntimeException e) {
+			// some providers don't support this for native queries
+			parameters.add("(unavailable: " + e.getMessage() + ")");
+		}
+		return parameters;
+	}
+
+	private static String queryStatement(String operation, Object[] args) {
+		if (operation.equals("createNamedQuery")) {
+			return "named query " + args[0];
+		}
+		return (args[0] instanceof String) ? (String) args[0] : "criteria query " + queryTarget(operation, args);
+	}
+
+	/**
+	 * Name the query after it's result class if there is one, named queries and
+	 * result set mappings are bounded as well, but the query text can contain the
+	 * data values so isn't used
+	 */
+	private static String queryTarget(String operation, Object[] args) {
+		if (operation.equals("createNamedQuery")) {
+			return (String) args[0];
+		}
+		if ((args.length > 1) && (args[1] instanceof Class)) {
+			return ((Class<?>) args[1]).getSimpleName();
+		}
+		if ((args.length > 1) && (args[1] instanceof String)) {
+			return (String) args[1];
+		}
+		return operation.equals("createNativeQuery") ? "native" : "jpql";
+	}
+}
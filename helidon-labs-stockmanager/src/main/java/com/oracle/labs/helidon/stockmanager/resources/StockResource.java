@@ -18,6 +18,7 @@ package com.oracle.labs.helidon.stockmanager.resources;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import javax.annotation.security.RolesAllowed;
@@ -26,12 +27,9 @@ import javax.inject.Inject;
 import javax.json.Json;
 import javax.json.JsonBuilderFactory;
 import javax.json.JsonObject;
-import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
-import javax.persistence.PersistenceContext;
-import javax.persistence.Query;
 import javax.transaction.Transactional;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -41,22 +39,37 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.SecurityContext;
 
 
-import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.metrics.annotation.ConcurrentGauge;
 import org.eclipse.microprofile.metrics.annotation.Counted;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 
 import com.oracle.labs.helidon.common.data.ItemDetails;
+import com.oracle.labs.helidon.common.data.Reservation;
+import com.oracle.labs.helidon.common.data.ReservationResult;
 import com.oracle.labs.helidon.common.exceptions.commonapi.UnknownItemException;
 import com.oracle.labs.helidon.common.exceptions.stockmanagerapi.ItemAlreadyExistsException;
+import com.oracle.labs.helidon.common.exceptions.stockmanagerapi.NotEnoughStockException;
+import com.oracle.labs.helidon.stockmanager.analytics.AuditAnalytics;
+import com.oracle.labs.helidon.stockmanager.analytics.AuditCounts;
 import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
 import com.oracle.labs.helidon.stockmanager.database.StockId;
 import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.lowstock.LowStockItem;
+import com.oracle.labs.helidon.stockmanager.lowstock.LowStockWatcher;
 import com.oracle.labs.helidon.stockmanager.providers.DepartmentProvider;
+import com.oracle.labs.helidon.stockmanager.providers.ItemDetailsBinary;
+import com.oracle.labs.helidon.stockmanager.rollup.HistoryBucket;
+import com.oracle.labs.helidon.stockmanager.rollup.StockLevelRollups;
+import com.oracle.labs.helidon.stockmanager.resources.fallback.StockManagerItemDetailsFallbackHandler;
+import com.oracle.labs.helidon.stockmanager.search.ItemSearchIndex;
+import com.oracle.labs.helidon.stockmanager.storage.AfterCommit;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
 
 import io.helidon.security.annotations.Authenticated;
 import lombok.extern.slf4j.Slf4j;
@@ -92,41 +105,98 @@ import lombok.extern.slf4j.Slf4j;
  * but no role required curl -X POST --user username:password
  * http://localhost:8080/stocklevel/spanner/20
  * 
+ * Reserve some of a stock item (the new level is returned, or 409 if there
+ * aren't enough) must be authenticated, but no role required curl -X POST
+ * --user username:password http://localhost:8080/stocklevel/spanner/reserve/5
+ * 
+ * Reservations can also be batched, by POSTing a JSON array of {"itemName" :
+ * "spanner", "itemCount" : 5} objects to http://localhost:8080/stocklevel/reserve
+ * 
+ * Release (give back) some of a stock item that was reserved (the new level is
+ * returned) must be authenticated, but no role required curl -X POST --user
+ * username:password http://localhost:8080/stocklevel/spanner/release/5
+ * 
+ * Search for items with names containing some text (ignoring case), the best
+ * 10 matches are returned (or up to the number given) must be authenticated,
+ * but no role required curl -X GET --user username:password
+ * http://localhost:8080/stocklevel/search/span/20
+ * 
+ * Get the items that are below their low stock threshold, lowest first must be
+ * authenticated, but no role required curl -X GET --user username:password
+ * http://localhost:8080/stocklevel/lowstock
+ * 
+ * Set (PUT) or remove (DELETE) the low stock threshold of an item, must be
+ * authenticated as an admin user curl -X PUT --user username:password
+ * http://localhost:8080/stocklevel/spanner/threshold/5
+ * 
+ * Get the history of a stock item's level (the lowest, highest and last count
+ * each hour for the last app.rollups.hourlyRetentionDays days, each day before
+ * that) for the last 30 days (or the number of days given) must be
+ * authenticated, but no role required curl -X GET --user username:password
+ * http://localhost:8080/stocklevel/history/spanner/30
+ * 
+ * Get the number of create, update and delete operations that succeeded and
+ * failed each hour for the last 24 hours (or the number of hours given), in
+ * total or for a user or an item, must be authenticated as an admin user curl
+ * -X GET --user username:password
+ * http://localhost:8080/stocklevel/analytics/user/jack/12
+ * 
  * Remove a stock item, must be authenticated as an admin user curl -X DELETE
  * --user username:password http://localhost:8080/stocklevel/spanner
  * 
  * Returns a JSON object representing the removed itam of the form {"itemName" :
  * "stock item name", "itemCount" : 23}
  *
- * The message is returned as a JSON object.
+ * The message is returned as a JSON object. The stock levels can also be
+ * returned in the compact binary form the storefront uses (see
+ * ItemDetailsBinary) if that's asked for in preference to JSON
+ * 
+ * The stock levels and audit records are kept in a StockStore, the database or
+ * (app.storage=wal) in memory backed by a log on the local disk
  */
 @Path("/stocklevel")
 @RequestScoped
 @Slf4j
 public class StockResource {
-	private EntityManager entityManager;
+	private final static int DEFAULT_SEARCH_RESULTS = 10;
+	private final static int DEFAULT_HISTORY_DAYS = 30;
+	private final static int DEFAULT_ANALYTICS_HOURS = 24;
+	// the most reservations in one batch, the storefront sends at most 50 at once
+	private final static int MAX_BATCH_RESERVATIONS = 1000;
+	private StockStore stockStore;
+	private ItemSearchIndex searchIndex;
+	private LowStockWatcher lowStockWatcher;
+	private StockLevelRollups stockLevelRollups;
+	private AuditAnalytics auditAnalytics;
+	private AfterCommit afterCommit;
 
 	private static final JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
-	private static String persistenceUnit;
 	private static DepartmentProvider departmentProvider;
 
 	/**
-	 * Using constructor injection to get a configuration property. By default this
-	 * gets the value from META-INF/microprofile-config
-	 *
+	 * Using constructor injection to get the store (see StockStoreProducer, which
+	 * picks it based on app.storage) and the department. The search index, low
+	 * stock watcher, stock level rollups and audit analytics are shared by all
+	 * the requests, the changes made here are passed on to them once they have
+	 * been committed (see AfterCommit)
 	 */
 	@Inject
-	public StockResource(@ConfigProperty(name = "app.persistenceUnit") String persistenceUnitProvided,
-			DepartmentProvider departmentProviderProvided) {
-		persistenceUnit = persistenceUnitProvided;
-		EntityManagerFactory emfactory = Persistence.createEntityManagerFactory(persistenceUnit);
-		this.entityManager = emfactory.createEntityManager();
+	public StockResource(StockStore stockStoreProvided, DepartmentProvider departmentProviderProvided,
+			ItemSearchIndex searchIndexProvided, LowStockWatcher lowStockWatcherProvided,
+			StockLevelRollups stockLevelRollupsProvided, AuditAnalytics auditAnalyticsProvided,
+			AfterCommit afterCommitProvided) {
+		this.stockStore = stockStoreProvided;
 		departmentProvider = departmentProviderProvided;
+		this.searchIndex = searchIndexProvided;
+		this.lowStockWatcher = lowStockWatcherProvided;
+		this.stockLevelRollups = stockLevelRollupsProvided;
+		this.auditAnalytics = auditAnalyticsProvided;
+		this.afterCommit = afterCommitProvided;
 	}
 
 	@Path("/{itemName}/{itemCount}")
 	@PUT
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
 	// create a counter for this method
 	// specify a name, otherwise it will default to the method name
 	// The ConcurrentGage is different form the @Counter and means that this will
@@ -160,30 +230,32 @@ public class StockResource {
 		// have JTA manage that for us
 		// Create the primary key
 		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
-		log.info("Creating " + stockId + ", with count " + itemCount);
-		StockLevel oldItem = entityManager.find(StockLevel.class, stockId);
-		if (oldItem != null) {
-			String errorMessage = "Item " + stockId + " already exists, can't create it again";
-			log.error(errorMessage);
-			// audit it
-			writeCreateRecord(false, errorMessage, user, itemName, itemCount);
-			// Report that there is a conflict and it exists
-			throw new ItemAlreadyExistsException(errorMessage);
-		}
+		log.info("Creating {}, with count {}", stockId, itemCount);
+		beforeChange(stockId);
 		// Create a new item using the PK
 		StockLevel item = new StockLevel(stockId, itemCount);
-		// upload the new item into the database
-		log.info("Creating " + item);
+		// upload the new item into the store, this won't replace an existing one
+		log.debug("Persisting {}", item);
+		boolean created;
 		try {
-			entityManager.persist(item);
+			created = stockStore.create(item);
 		} catch (Exception e) {
 			String errorMessage = "Problem writing " + item + " due to " + e.getMessage();
 			log.error(errorMessage);
 			writeCreateRecord(false, errorMessage, user, itemName, itemCount);
 			throw (e);
 		}
+		if (!created) {
+			String errorMessage = "Item " + stockId + " already exists, can't create it again";
+			log.error(errorMessage);
+			// audit it
+			writeCreateRecord(false, errorMessage, user, itemName, itemCount);
+			// Report that there is a conflict and it exists
+			throw new ItemAlreadyExistsException(errorMessage);
+		}
 		writeCreateRecord(true, null, user, itemName, itemCount);
-		log.info("Created item " + item);
+		itemChanged(stockId, itemCount);
+		log.info("Created item {}", stockId);
 		return createItemDetails(item);
 	}
 
@@ -193,26 +265,104 @@ public class StockResource {
 	 * @return {@link JsonObject}
 	 */
 	@GET
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
 	// Only allow access to authenticated users
 	@Authenticated
 	public Collection<ItemDetails> listAllStock() {
 		log.info("Getting all stock items");
-		// get the data from the database
-		// build the query
-		Query findAllQuery = entityManager
-				.createNativeQuery("SELECT departmentName, itemName, itemCount FROM StockLevel WHERE departmentName='"
-						+ departmentProvider.getDepartment() + "'", StockLevel.class);
-		Collection<StockLevel> allStock = findAllQuery.getResultList();
+		// get the data from the store
+		Collection<StockLevel> allStock = stockStore.findAll(departmentProvider.getDepartment());
 		// the result is of type StockLevel (allowing us to transparently separate on
 		// the departmentId, convert it to Items and return them
-		log.info("Returning " + allStock.size() + " stock items");
+		log.info("Returning {} stock items", allStock.size());
 		return allStock.stream()
 				// .map(stockLevel -> new ItemDetails(stockLevel.getStockId().getItemName(),
 				// stockLevel.getItemCount()))
 				.map(stockLevel -> createItemDetails(stockLevel)).collect(Collectors.toList());
 	}
 
+	/**
+	 * Find the items in the department with names containing text (ignoring
+	 * case), this uses the in memory ItemSearchIndex rather than reading all of
+	 * the items
+	 * 
+	 * @return the best 10 matches with their stock levels, names starting with the
+	 *         text first
+	 */
+	@Path("/search/{text}")
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
+	@Timed(name = "searchStock")
+	// Only allow access to authenticated users
+	@Authenticated
+	public Collection<ItemDetails> searchStock(@PathParam("text") String text) {
+		return search(text, DEFAULT_SEARCH_RESULTS);
+	}
+
+	/**
+	 * As above, but returns up to limit matches (no more than
+	 * app.search.maxResults)
+	 */
+	@Path("/search/{text}/{limit}")
+	@GET
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
+	@Timed(name = "searchStockWithLimit")
+	// Only allow access to authenticated users
+	@Authenticated
+	public Collection<ItemDetails> searchStock(@PathParam("text") String text, @PathParam("limit") int limit) {
+		return search(text, limit);
+	}
+
+	private Collection<ItemDetails> search(String text, int limit) {
+		log.info("Searching for up to {} items containing {}", limit, text);
+		List<ItemDetails> matches = searchIndex.search(stockStore, departmentProvider.getDepartment(), text, limit);
+		log.info("Found {} items containing {}", matches.size(), text);
+		return matches;
+	}
+
+	/**
+	 * The history of an item's level over the last 30 days, from the stock level
+	 * rollups rather than the audit records
+	 * 
+	 * @return the lowest, highest and last count for each hour (or day for the
+	 *         older ones), oldest first, empty if there's been no changes
+	 */
+	@Path("/history/{itemName}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Timed(name = "stockHistory")
+	// Only allow access to authenticated users
+	@Authenticated
+	public Collection<HistoryBucket> getStockHistory(@PathParam("itemName") String itemName) {
+		return history(itemName, DEFAULT_HISTORY_DAYS);
+	}
+
+	/**
+	 * As above, but for the last days days (no more than
+	 * app.rollups.dailyRetentionDays are kept, asking for more just gets those)
+	 */
+	@Path("/history/{itemName}/{days}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Timed(name = "stockHistoryWithDays")
+	// Only allow access to authenticated users
+	@Authenticated
+	public Collection<HistoryBucket> getStockHistory(@PathParam("itemName") String itemName,
+			@PathParam("days") int days) {
+		if (days <= 0) {
+			throw new BadRequestException("The number of days must be positive, got " + days);
+		}
+		return history(itemName, days);
+	}
+
+	private Collection<HistoryBucket> history(String itemName, int days) {
+		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
+		log.info("Getting {} days history of {}", days, stockId);
+		List<HistoryBucket> history = stockLevelRollups.history(stockStore, stockId, days);
+		log.info("Returning {} history buckets for {}", history.size(), stockId);
+		return history;
+	}
+
 	/**
 	 * get the level for a specific stock item in the department
 	 *
@@ -221,30 +371,29 @@ public class StockResource {
 	 */
 	@Path("/{itemName}")
 	@GET
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
 	@Metered(name = "stockLevelCallRates")
 	@Authenticated
 	// @Fallback(StockManagerItemDetailsFallbackHandler.class)
 	public ItemDetails getStockItem(@PathParam("itemName") String itemName) throws UnknownItemException {
 		// Let's see it there is an item there, create the primary key
 		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
-		log.info("Locating stock item " + stockId);
+		log.info("Locating stock item {}", stockId);
 		// search for the PK
-		log.info("Entity manager == null" + (entityManager == null));
-		StockLevel stockLevel = entityManager.find(StockLevel.class, stockId);
+		StockLevel stockLevel = stockStore.find(stockId);
 		if (stockLevel == null) {
 			String errorMessage = "Item " + stockId + " was not found in the database";
 			log.info(errorMessage);
 			throw new UnknownItemException(errorMessage);
 		}
 		// build the JSON for it
-		log.info("Found stock item " + stockLevel);
+		log.info("Found stock item {}", stockId);
 		return createItemDetails(stockLevel);
 	}
 
 	@Path("/{itemName}/{itemCount}")
 	@POST
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
 	// this will get the name of the method and generate timing information across
 	// method calls
 	// this may modify the database, so need to do it in a transaction
@@ -259,30 +408,165 @@ public class StockResource {
 		// will automatically start it for us.
 		// create the primary key, this is embedded
 		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
-		log.info("Adjusting level of " + stockId + " to " + itemCount);
-		// try to find a stock using the PK
-		StockLevel origionalItem = entityManager.find(StockLevel.class, stockId);
-		if (origionalItem == null) {
+		log.info("Adjusting level of {} to {}", stockId, itemCount);
+		beforeChange(stockId);
+		// set the new level of the item with that PK
+		StockLevel updatedItem = stockStore.setItemCount(stockId, itemCount);
+		if (updatedItem == null) {
 			String errorMessage = "Item " + stockId
 					+ " was not found in the database, can't update something that doesn't exist";
 			log.info(errorMessage);
 			writeUpdateRecord(false, errorMessage, user, itemName, itemCount);
 			throw new UnknownItemException(errorMessage);
 		}
-		// update the object with the new stock level
-		origionalItem.setItemCount(itemCount);
-		// merge the updated item into the database.
-		log.info("Updating database with " + origionalItem);
-		StockLevel updatedItem = entityManager.merge(origionalItem);
 		writeUpdateRecord(true, null, user, itemName, itemCount);
-		log.info("Adjusted data is " + updatedItem);
+		itemChanged(stockId, updatedItem.getItemCount());
+		log.info("Adjusted level of {} to {}", stockId, updatedItem.getItemCount());
 		// return the updated item
 		return createItemDetails(updatedItem);
 	}
 
+	/**
+	 * Reserve (take away) itemCount of the item, this only succeeds if there are
+	 * more than itemCount in stock. The check and the change are a single update
+	 * statement so two reservations at the same time can't both take the last
+	 * items, and callers don't need an up to date stock level to reserve
+	 * 
+	 * @return the item with it's new level, HTTP.NOT_FOUND if there is no such item
+	 *         or HTTP.CONFLICT if there aren't enough of it
+	 */
+	@Path("/{itemName}/reserve/{itemCount}")
+	@POST
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
+	@Timed
+	// Only allow access to authenticated users, but no role required
+	@Authenticated
+	@Transactional
+	// turns the unknown item and not enough stock exceptions into 404 and 409
+	@Fallback(StockManagerItemDetailsFallbackHandler.class)
+	public ItemDetails reserveStockLevel(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount) throws UnknownItemException, NotEnoughStockException {
+		checkItemCount(itemCount);
+		ReservationResult result = reserve(itemName, itemCount);
+		if (result.getStatus() == Status.NOT_FOUND.getStatusCode()) {
+			throw new UnknownItemException("Item " + itemName + " was not found in the database, can't reserve it");
+		}
+		if (result.getStatus() == Status.CONFLICT.getStatusCode()) {
+			throw new NotEnoughStockException("Can't reserve " + itemCount + " of " + itemName
+					+ " as there are only " + result.getItemCount());
+		}
+		return new ItemDetails(result.getItemName(), result.getItemCount());
+	}
+
+	/**
+	 * Make a number of reservations in one go, this is the same as calling
+	 * reserveStockLevel for each of them in order, but in a single request and
+	 * transaction. Each reservation succeeds or fails on it's own, the results are
+	 * in the same order as the reservations and have the status the reservation
+	 * would have got if it had been made on it's own
+	 * 
+	 * curl -X POST --user username:password -H "Content-Type: application/json" -d
+	 * '[{"itemName":"spanner","itemCount":5},{"itemName":"pin","itemCount":1}]'
+	 * http://localhost:8080/stocklevel/reserve
+	 * 
+	 * The whole batch is rejected (with HTTP.BAD_REQUEST) before anything is
+	 * reserved if it's missing, has more than MAX_BATCH_RESERVATIONS in it, or any
+	 * of them isn't for a positive number of a named item
+	 */
+	@Path("/reserve")
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	@Timed
+	// Only allow access to authenticated users, but no role required
+	@Authenticated
+	@Transactional
+	public List<ReservationResult> reserveStockLevels(List<Reservation> reservations) {
+		if (reservations == null) {
+			throw new BadRequestException("There's no batch of reservations to make");
+		}
+		if (reservations.size() > MAX_BATCH_RESERVATIONS) {
+			throw new BadRequestException("A batch can have up to " + MAX_BATCH_RESERVATIONS
+					+ " reservations, this one has " + reservations.size());
+		}
+		for (Reservation reservation : reservations) {
+			if ((reservation == null) || (reservation.getItemName() == null)) {
+				throw new BadRequestException("Every reservation in the batch needs an item name");
+			}
+			checkItemCount(reservation.getItemCount());
+		}
+		log.info("Reserving a batch of {} items", reservations.size());
+		return reservations.stream().map(reservation -> reserve(reservation.getItemName(), reservation.getItemCount()))
+				.collect(Collectors.toList());
+	}
+
+	private ReservationResult reserve(String itemName, int itemCount) {
+		String user = "Unknown";
+		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
+		log.info("Reserving {} of {}", itemCount, stockId);
+		beforeChange(stockId);
+		ReservationResult result = stockStore.reserve(stockId, itemCount);
+		if (result.getStatus() == Status.NOT_FOUND.getStatusCode()) {
+			String errorMessage = "Item " + stockId + " was not found in the database, can't reserve it";
+			log.info(errorMessage);
+			writeUpdateRecord(false, errorMessage, user, itemName, itemCount);
+			return result;
+		}
+		int level = result.getItemCount();
+		if (result.getStatus() == Status.CONFLICT.getStatusCode()) {
+			String errorMessage = "Can't reserve " + itemCount + " of " + stockId + " as there are only " + level;
+			log.info(errorMessage);
+			writeUpdateRecord(false, errorMessage, user, itemName, level);
+			return result;
+		}
+		writeUpdateRecord(true, null, user, itemName, level);
+		itemChanged(stockId, level);
+		log.info("Reserved {} of {}, {} remain", itemCount, stockId, level);
+		return result;
+	}
+
+	/**
+	 * Release (give back) itemCount of the item, this is for undoing a reservation
+	 * that's no longer wanted, e.g. when another item in the same order couldn't
+	 * be reserved. Like reserve it's a single update statement so it's safe
+	 * alongside reservations of the same item
+	 * 
+	 * @return the item with it's new level, or HTTP.NOT_FOUND if there is no such
+	 *         item
+	 */
+	@Path("/{itemName}/release/{itemCount}")
+	@POST
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
+	@Timed
+	// Only allow access to authenticated users, but no role required
+	@Authenticated
+	@Transactional
+	// turns the unknown item exception into 404
+	@Fallback(StockManagerItemDetailsFallbackHandler.class)
+	public ItemDetails releaseStockLevel(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount) throws UnknownItemException {
+		checkItemCount(itemCount);
+		String user = "Unknown";
+		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
+		log.info("Releasing {} of {}", itemCount, stockId);
+		beforeChange(stockId);
+		StockLevel released = stockStore.release(stockId, itemCount);
+		if (released == null) {
+			String errorMessage = "Item " + stockId + " was not found in the database, can't release it";
+			log.info(errorMessage);
+			writeUpdateRecord(false, errorMessage, user, itemName, itemCount);
+			throw new UnknownItemException(errorMessage);
+		}
+		int level = released.getItemCount();
+		writeUpdateRecord(true, null, user, itemName, level);
+		itemChanged(stockId, level);
+		log.info("Released {} of {}, {} now available", itemCount, stockId, level);
+		return new ItemDetails(itemName, level);
+	}
+
 	@Path("/{itemName}")
 	@DELETE
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ MediaType.APPLICATION_JSON, ItemDetailsBinary.MEDIA_TYPE })
 	// counter using the default method name as the counter name
 	@Counted
 	// Only allow access to authenticated users
@@ -296,9 +580,18 @@ public class StockResource {
 		// will automatically start it for us.
 		// create the primary key, this is embedded
 		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
-		log.info("Deleting item of " + stockId);
-		// try to find a stock using the PK
-		StockLevel itemToDelete = entityManager.find(StockLevel.class, stockId);
+		log.info("Deleting item of {}", stockId);
+		beforeChange(stockId);
+		// delete it from the store using the PK, and update the audit record.
+		StockLevel itemToDelete;
+		try {
+			itemToDelete = stockStore.delete(stockId);
+		} catch (Exception e) {
+			String errorMessage = "Problem deleting " + stockId + " due to " + e.getMessage();
+			log.error(errorMessage);
+			writeDeleteRecord(false, errorMessage, user, itemName);
+			throw (e);
+		}
 		if (itemToDelete == null) {
 			String errorMessage = "Item " + stockId
 					+ " was not found in the database, can't delete something that doesn't exist";
@@ -306,21 +599,90 @@ public class StockResource {
 			writeDeleteRecord(false, errorMessage, user, itemName);
 			throw new UnknownItemException(errorMessage);
 		}
-		// delete it from the database, and update the audit record.
-		try {
-			entityManager.remove(itemToDelete);
-		} catch (Exception e) {
-			String errorMessage = "Problem deleting " + itemToDelete + " due to " + e.getMessage();
-			log.error(errorMessage);
-			writeDeleteRecord(false, errorMessage, user, itemName);
-			throw (e);
-		}
 		writeDeleteRecord(true, null, user, itemName);
-		log.info("Item " + stockId + " has been removed");
+		itemRemoved(stockId);
+		log.info("Item {} has been removed", stockId);
 		// return the deleted item
 		return createItemDetails(itemToDelete);
 	}
 
+	/**
+	 * The items in the department that are below their low stock threshold (see
+	 * LowStockWatcher), this doesn't need to go through all of the items
+	 * 
+	 * @return the low items, with their counts and thresholds, lowest (compared
+	 *         to it's threshold) first
+	 */
+	@Path("/lowstock")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Timed
+	// Only allow access to authenticated users
+	@Authenticated
+	public Collection<LowStockItem> getLowStock() {
+		log.info("Getting the low stock items");
+		List<LowStockItem> lowStock = lowStockWatcher.lowStock(stockStore, departmentProvider.getDepartment());
+		log.info("Returning {} low stock items", lowStock.size());
+		return lowStock;
+	}
+
+	/**
+	 * Set the low stock threshold for an item, it's low when it's count is below
+	 * this. Items without one use app.lowstock.defaultThreshold
+	 * 
+	 * @return JSON with the item, it's count and threshold and if it's low,
+	 *         HTTP.NOT_FOUND if there is no such item
+	 */
+	@Path("/{itemName}/threshold/{threshold}")
+	@PUT
+	@Produces(MediaType.APPLICATION_JSON)
+	// Only allow access to authenticated users
+	@Authenticated
+	// Only users with the role admin can change thresholds
+	@RolesAllowed({ "admin" })
+	@Transactional
+	public JsonObject setThreshold(@PathParam("itemName") String itemName, @PathParam("threshold") int threshold)
+			throws UnknownItemException {
+		if (threshold < 0) {
+			throw new BadRequestException("The threshold can't be negative, got " + threshold);
+		}
+		return changeThreshold(itemName, threshold);
+	}
+
+	/**
+	 * Remove the low stock threshold for an item, so it uses
+	 * app.lowstock.defaultThreshold
+	 */
+	@Path("/{itemName}/threshold")
+	@DELETE
+	@Produces(MediaType.APPLICATION_JSON)
+	// Only allow access to authenticated users
+	@Authenticated
+	// Only users with the role admin can change thresholds
+	@RolesAllowed({ "admin" })
+	@Transactional
+	public JsonObject removeThreshold(@PathParam("itemName") String itemName) throws UnknownItemException {
+		return changeThreshold(itemName, null);
+	}
+
+	private JsonObject changeThreshold(String itemName, Integer threshold) throws UnknownItemException {
+		StockId stockId = new StockId(departmentProvider.getDepartment(), itemName);
+		log.info("Setting the low stock threshold of {} to {}", stockId, threshold);
+		beforeChange(stockId);
+		StockLevel stockLevel = stockStore.find(stockId);
+		if (stockLevel == null || !stockStore.setThreshold(stockId, threshold)) {
+			String errorMessage = "Item " + stockId + " was not found in the database, can't set it's threshold";
+			log.info(errorMessage);
+			throw new UnknownItemException(errorMessage);
+		}
+		int itemCount = stockLevel.getItemCount();
+		afterCommit.run(
+				() -> lowStockWatcher.thresholdChanged(stockId.getDepartmentName(), itemName, threshold, itemCount));
+		int effectiveThreshold = lowStockWatcher.threshold(threshold);
+		return JSON.createObjectBuilder().add("itemName", itemName).add("itemCount", itemCount)
+				.add("threshold", effectiveThreshold).add("low", itemCount < effectiveThreshold).build();
+	}
+
 	// get the 10 most recent audit records for the department
 	@Path("/audit")
 	@GET
@@ -345,13 +707,91 @@ public class StockResource {
 	// Only users with the role admin can create or delete items
 	@RolesAllowed({ "admin" })
 	public Collection<OperationAuditRecord> getAuditRecords(@PathParam("rowcount") int rowcount) {
-		log.info("Retrieving " + rowcount + " audit rows");
+		log.info("Retrieving {} audit rows", rowcount);
 		// get the most recent rowcount records for the department
-		Query findAuditQuery = entityManager.createNativeQuery(
-				"SELECT * FROM OperationAuditRecord WHERE departmentName='" + departmentProvider.getDepartment()
-						+ "' ORDER BY operationTs DESC",
-				OperationAuditRecord.class).setMaxResults(rowcount);
-		return findAuditQuery.getResultList();
+		return stockStore.recentAuditRecords(departmentProvider.getDepartment(), rowcount);
+	}
+
+	/**
+	 * The number of operations that succeeded and failed each hour for the last
+	 * 24 hours, this comes from the counts kept by AuditAnalytics, not the audit
+	 * records
+	 * 
+	 * @return the counts for each hour and operation type, newest first, hours
+	 *         and types without any operations are left out
+	 */
+	@Path("/analytics")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	// counter using the default method name as the counter name
+	@Counted
+	// Only allow access to authenticated users
+	@Authenticated
+	// Only users with the role admin can see what's been done
+	@RolesAllowed({ "admin" })
+	public Collection<AuditCounts> getAuditAnalytics() {
+		return getAuditAnalytics(DEFAULT_ANALYTICS_HOURS);
+	}
+
+	/**
+	 * As above, for the last hours hours (no more than app.analytics.windowHours
+	 * are kept)
+	 */
+	@Path("/analytics/{hours}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Counted(name = "getAuditAnalyticsWithHours")
+	@Authenticated
+	@RolesAllowed({ "admin" })
+	public Collection<AuditCounts> getAuditAnalytics(@PathParam("hours") int hours) {
+		checkAnalyticsHours(hours);
+		return auditAnalytics.totals(departmentProvider.getDepartment(), hours);
+	}
+
+	/**
+	 * As above, for the operations by a user
+	 */
+	@Path("/analytics/user/{operationUser}/{hours}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Counted
+	@Authenticated
+	@RolesAllowed({ "admin" })
+	public Collection<AuditCounts> getUserAuditAnalytics(@PathParam("operationUser") String operationUser,
+			@PathParam("hours") int hours) {
+		checkAnalyticsHours(hours);
+		return auditAnalytics.forUser(departmentProvider.getDepartment(), operationUser, hours);
+	}
+
+	/**
+	 * As above, for the operations on an item
+	 */
+	@Path("/analytics/item/{itemName}/{hours}")
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	@Counted
+	@Authenticated
+	@RolesAllowed({ "admin" })
+	public Collection<AuditCounts> getItemAuditAnalytics(@PathParam("itemName") String itemName,
+			@PathParam("hours") int hours) {
+		checkAnalyticsHours(hours);
+		return auditAnalytics.forItem(departmentProvider.getDepartment(), itemName, hours);
+	}
+
+	/**
+	 * Reserving or releasing nothing (or a negative number, which would turn one
+	 * into the other) is a mistake by the caller
+	 */
+	private static void checkItemCount(Integer itemCount) {
+		if ((itemCount == null) || (itemCount <= 0)) {
+			throw new BadRequestException("The number of items must be positive, got " + itemCount);
+		}
+	}
+
+	private void checkAnalyticsHours(int hours) {
+		if (hours <= 0) {
+			throw new BadRequestException("The number of hours must be positive, got " + hours);
+		}
 	}
 
 	private void writeCreateRecord(Boolean succeded, String errorMessage, String operationUser, String itemName,
@@ -375,8 +815,33 @@ public class StockResource {
 	}
 
 	private void writeAuditRecord(OperationAuditRecord oar) {
-		log.info("Writing audit record " + oar);
-		entityManager.persist(oar);
+		log.debug("Writing audit record {}", oar);
+		stockStore.audit(oar);
+		afterCommit.run(() -> {
+			stockLevelRollups.record(oar);
+			auditAnalytics.record(oar);
+		});
+	}
+
+	// the in memory views of the department need loading before a change, so they
+	// can tell what it changed, that's done in the background so the change
+	// doesn't wait for it
+	private void beforeChange(StockId stockId) {
+		lowStockWatcher.load(stockId.getDepartmentName());
+	}
+
+	private void itemChanged(StockId stockId, int itemCount) {
+		afterCommit.run(() -> {
+			searchIndex.put(stockId.getDepartmentName(), stockId.getItemName(), itemCount);
+			lowStockWatcher.levelChanged(stockId.getDepartmentName(), stockId.getItemName(), itemCount);
+		});
+	}
+
+	private void itemRemoved(StockId stockId) {
+		afterCommit.run(() -> {
+			searchIndex.remove(stockId.getDepartmentName(), stockId.getItemName());
+			lowStockWatcher.removed(stockId.getDepartmentName(), stockId.getItemName());
+		});
 	}
 
 	private ItemDetails createItemDetails(StockLevel stockLevel) {
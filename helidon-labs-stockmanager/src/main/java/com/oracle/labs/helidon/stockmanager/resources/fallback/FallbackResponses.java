@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.resources.fallback;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import javax.json.Json;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * The parts of the fallback handlers' error responses that are the same every
+ * time. When an item sells out the fallbacks run on most requests, so the JSON
+ * builder factory (finding the JSON provider is the slow part), the method
+ * signatures and the start of the body for each exception are only worked out
+ * once and shared
+ */
+final class FallbackResponses {
+	final static JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
+	private final static Map<Method, String> signatures = new ConcurrentHashMap<>();
+	private final static Map<String, JsonObject> bodyTemplates = new ConcurrentHashMap<>();
+
+	private FallbackResponses() {
+	}
+
+	/**
+	 * The class, method and parameter types of a method, e.g.
+	 * StockResource.getStockItem(java.lang.String)
+	 */
+	static String signature(Method method) {
+		return signatures.computeIfAbsent(method,
+				m -> m.getDeclaringClass().getName() + "." + m.getName() + "(" + Arrays.stream(m.getParameterTypes())
+						.map(type -> type.getName()).collect(Collectors.joining(",")) + ")");
+	}
+
+	/**
+	 * A builder for the body of an error response, already holding the name of
+	 * the exception
+	 */
+	static JsonObjectBuilder exceptionBody(String causeName) {
+		return JSON.createObjectBuilder(bodyTemplates.computeIfAbsent(causeName,
+				name -> JSON.createObjectBuilder().add("Exception", name).build()));
+	}
+
+	/**
+	 * The exception the handlers throw to send their response, the runtime only
+	 * wants the response from it and the interesting stack trace (if there is one)
+	 * is the cause's, so it doesn't capture one of its own
+	 */
+	static WebApplicationException responseException(Throwable cause, Response response) {
+		return new ResponseException(cause, response);
+	}
+
+	private static class ResponseException extends WebApplicationException {
+		private static final long serialVersionUID = 4380312717164356582L;
+
+		private ResponseException(Throwable cause, Response response) {
+			super("Problem processing request", cause, response);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
@@ -19,17 +19,14 @@ import java.net.ConnectException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.Dependent;
-import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonBuilderFactory;
 import javax.json.JsonObjectBuilder;
-import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -72,8 +69,6 @@ public class StockManagerCollectionItemDetailsFallbackHandler implements Fallbac
 	public Collection<ItemDetails> handle(ExecutionContext context) {
 		// for now we just extract the details out, but in reality we'd look at the
 		// exception to see what's happened and do different processing based on that
-		JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
-		JsonObjectBuilder partial = JSON.createObjectBuilder();
 		// the top level cause is probabaly a JAX-RX problem of some kind, it will
 		// contain the embedded cause
 		Throwable cause = context.getFailure();
@@ -89,7 +84,7 @@ public class StockManagerCollectionItemDetailsFallbackHandler implements Fallbac
 			}
 			if (embeddedCause != null) {
 				causeName = embeddedCause.getClass().getName();
-				log.info("Cause name is " + causeName);
+				log.debug("Cause name is " + causeName);
 			}
 		} else {
 			causeName = "NullCause";
@@ -101,15 +96,20 @@ public class StockManagerCollectionItemDetailsFallbackHandler implements Fallbac
 		if (info == null) {
 			info = defaultExceptionMap;
 		}
+		// the body for the exception starts from a template (shared with the other
+		// calls that failed the same way) holding its name
+		JsonObjectBuilder partial;
 		if ((info.getProcessingMode() == handleType.FULL_DETAILS)
 				|| (info.getProcessingMode() == handleType.EXCEPTION_MESSAGE_ONLY)
 				|| (info.getProcessingMode() == handleType.MESSAGE_AND_EXCEPTION_MESSAGE)) {
-			partial.add("Exception", causeName);
-			if (embeddedCause.getMessage() == null) {
+			partial = FallbackResponses.exceptionBody(causeName);
+			if ((embeddedCause == null) || (embeddedCause.getMessage() == null)) {
 				partial.add("Exception", "Message is null");
 			} else {
 				partial.add("Exception message", embeddedCause.getMessage());
 			}
+		} else {
+			partial = FallbackResponses.JSON.createObjectBuilder();
 		}
 		if ((info.getProcessingMode() == handleType.FULL_DETAILS)
 				|| (info.getProcessingMode() == handleType.MESSAGE_ONLY)
@@ -119,24 +119,23 @@ public class StockManagerCollectionItemDetailsFallbackHandler implements Fallbac
 		}
 		if (info.getProcessingMode() == handleType.FULL_DETAILS) {
 			// they want all of the other info
-			// get the expected param types for the method
-			String paramTypes = Arrays.stream(context.getMethod().getParameters())
-					.map(param -> param.getType().getName()).collect(Collectors.joining(","));
 			// build the basic info to let us know what class / method and it's param types
-			// were called
-			partial.add("Problem processing request in ", context.getMethod().getDeclaringClass().getName() + "."
-					+ context.getMethod().getName() + "(" + paramTypes + ")");
+			// were called, that's only worked out once per method
+			partial.add("Problem processing request in ", FallbackResponses.signature(context.getMethod()));
 			// get the args as a array of strings
 			List<String> paramsList = Arrays.stream(context.getParameters()).map(obj -> obj.toString())
 					.collect(Collectors.toList());
-			JsonArray params = JSON.createArrayBuilder(paramsList).build();
+			JsonArray params = FallbackResponses.JSON.createArrayBuilder(paramsList).build();
 			partial.add("param values", params);
 
 		}
-		Response resp = Response.status(info.getStatus()).entity(partial.build()).build();
+		// the details are always JSON, even if the caller asked for the binary stock
+		// levels
+		Response resp = Response.status(info.getStatus()).entity(partial.build()).type(MediaType.APPLICATION_JSON)
+				.build();
 		// package it all up and throw it, the runtime will convert it into the proper
 		// response structure with the redault we provided
-		throw new WebApplicationException("Problem processing request", cause, resp);
+		throw FallbackResponses.responseException(cause, resp);
 
 	}
 
@@ -18,17 +18,15 @@ package com.oracle.labs.helidon.stockmanager.resources.fallback;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.Dependent;
-import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonBuilderFactory;
 import javax.json.JsonObjectBuilder;
-import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
@@ -38,6 +36,7 @@ import org.eclipse.microprofile.faulttolerance.FallbackHandler;
 import com.oracle.labs.helidon.common.data.ItemDetails;
 import com.oracle.labs.helidon.common.exceptions.commonapi.UnknownItemException;
 import com.oracle.labs.helidon.common.exceptions.stockmanagerapi.ItemAlreadyExistsException;
+import com.oracle.labs.helidon.common.exceptions.stockmanagerapi.NotEnoughStockException;
 import com.oracle.labs.helidon.stockmanager.resources.fallback.ExceptionMap.handleType;
 
 import lombok.extern.slf4j.Slf4j;
@@ -56,6 +55,10 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 					ExceptionMap.handleType.EXCEPTION_MESSAGE_ONLY),
 			new ExceptionMap(UnknownItemException.class.getName(), Status.NOT_FOUND.getStatusCode(), "",
 					ExceptionMap.handleType.EXCEPTION_MESSAGE_ONLY),
+			new ExceptionMap(NotEnoughStockException.class.getName(), Status.CONFLICT.getStatusCode(), "",
+					ExceptionMap.handleType.EXCEPTION_MESSAGE_ONLY),
+			new ExceptionMap(BadRequestException.class.getName(), Status.BAD_REQUEST.getStatusCode(), "",
+					ExceptionMap.handleType.EXCEPTION_MESSAGE_ONLY),
 			new ExceptionMap("NullCause", Status.INTERNAL_SERVER_ERROR.getStatusCode(), "Exception info is null",
 					ExceptionMap.handleType.FULL_DETAILS),
 			new ExceptionMap(java.lang.NullPointerException.class.getName(),
@@ -73,8 +76,6 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 	public ItemDetails handle(ExecutionContext context) {
 		// for now we just extract the details out, but in reality we'd look at the
 		// exception to see what's happened and do different processing based on that
-		JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
-		JsonObjectBuilder partial = JSON.createObjectBuilder();
 		// the top level cause is probabaly a JAX-RX problem of some kind, it will
 		// contain the embedded cause
 		Throwable cause = context.getFailure();
@@ -90,7 +91,7 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 			}
 			if (embeddedCause != null) {
 				causeName = embeddedCause.getClass().getName();
-				log.info("Cause name is " + causeName);
+				log.debug("Cause name is " + causeName);
 			}
 		} else {
 			causeName = "NullCause";
@@ -102,15 +103,20 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 		if (info == null) {
 			info = defaultExceptionMap;
 		}
+		// the body for the exception starts from a template (shared with the other
+		// calls that failed the same way) holding its name
+		JsonObjectBuilder partial;
 		if ((info.getProcessingMode() == handleType.FULL_DETAILS)
 				|| (info.getProcessingMode() == handleType.EXCEPTION_MESSAGE_ONLY)
 				|| (info.getProcessingMode() == handleType.MESSAGE_AND_EXCEPTION_MESSAGE)) {
-			partial.add("Exception", causeName);
-			if (embeddedCause.getMessage() == null) {
+			partial = FallbackResponses.exceptionBody(causeName);
+			if ((embeddedCause == null) || (embeddedCause.getMessage() == null)) {
 				partial.add("Exception", "Message is null");
 			} else {
 				partial.add("Exception message", embeddedCause.getMessage());
 			}
+		} else {
+			partial = FallbackResponses.JSON.createObjectBuilder();
 		}
 		if ((info.getProcessingMode() == handleType.FULL_DETAILS)
 				|| (info.getProcessingMode() == handleType.MESSAGE_ONLY)
@@ -120,14 +126,11 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 		}
 		if (info.getProcessingMode() == handleType.FULL_DETAILS) {
 			// they want all of the other info
-			// get the expected param types for the method
-			String paramTypes = Arrays.stream(context.getMethod().getParameters())
-					.map(param -> param.getType().getName()).collect(Collectors.joining(","));
 			// build the basic info to let us know what class / method and it's param types
-			// were called
-			partial.add("Problem processing request in ", context.getMethod().getDeclaringClass().getName() + "."
-					+ context.getMethod().getName() + "(" + paramTypes + ")");
-			if (embeddedCause != null) {
+			// were called, that's only worked out once per method
+			partial.add("Problem processing request in ", FallbackResponses.signature(context.getMethod()));
+			// the expected exceptions don't capture a stack trace
+			if ((embeddedCause != null) && (embeddedCause.getStackTrace().length > 0)) {
 				StackTraceElement stackHeader = embeddedCause.getStackTrace()[0];
 				partial.add("Source class", stackHeader.getClassName());
 				partial.add("Source file", stackHeader.getFileName());
@@ -136,14 +139,17 @@ public class StockManagerItemDetailsFallbackHandler implements FallbackHandler<I
 			// get the args as a array of strings
 			List<String> paramsList = Arrays.stream(context.getParameters()).map(obj -> obj.toString())
 					.collect(Collectors.toList());
-			JsonArray params = JSON.createArrayBuilder(paramsList).build();
+			JsonArray params = FallbackResponses.JSON.createArrayBuilder(paramsList).build();
 			partial.add("param values", params);
 
 		}
-		Response resp = Response.status(info.getStatus()).entity(partial.build()).build();
+		// the details are always JSON, even if the caller asked for the binary stock
+		// levels
+		Response resp = Response.status(info.getStatus()).entity(partial.build()).type(MediaType.APPLICATION_JSON)
+				.build();
 		// package it all up and throw it, the runtime will convert it into the proper
 		// response structure with the redault we provided
-		throw new WebApplicationException("Problem processing request", cause, resp);
+		throw FallbackResponses.responseException(cause, resp);
 
 	}
 
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.rollup;
+
+import java.sql.Timestamp;
+
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The lowest, highest and last count of an item over an hour or a day, as
+ * returned by /stocklevel/history
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HistoryBucket {
+	private RollupResolution resolution;
+	private Timestamp bucketStart;
+	private int minCount;
+	private int maxCount;
+	private int lastCount;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.rollup;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Every app.rollups.flushSeconds writes the rollup buckets that have changed to
+ * the StockStore, and once an hour removes the ones older than they are kept
+ * for. If a write fails the buckets are kept and tried again next time, merging
+ * them is safe to repeat. The buckets that are waiting are lost if the process
+ * dies, on shutdown they are written.
+ * 
+ * rollups.pending is the number of buckets waiting to be written,
+ * rollups.writeFailures the number of writes that have failed
+ */
+@ApplicationScoped
+@Slf4j
+public class RollupFlusher {
+	private final static long PRUNE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final StockLevelRollups rollups;
+	private final RollupWriter writer;
+	private final int flushSeconds;
+	private final Counter writeFailures;
+	private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "rollup-flusher");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// only used by the flusher thread
+	private long lastPruneMillis = 0;
+
+	@Inject
+	public RollupFlusher(StockLevelRollups rollups, RollupWriter writer,
+			@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			@ConfigProperty(name = "app.rollups.flushSeconds", defaultValue = "60") int flushSeconds) {
+		this.rollups = rollups;
+		this.writer = writer;
+		this.flushSeconds = flushSeconds;
+		writeFailures = metricRegistry.counter(Metadata.builder().withName("rollups.writeFailures")
+				.withDescription("Times writing the stock level rollups to the store has failed")
+				.withType(MetricType.COUNTER).withUnit(MetricUnits.NONE).build());
+		metricRegistry.register(Metadata.builder().withName("rollups.pending")
+				.withDescription("Stock level rollup buckets waiting to be written to the store")
+				.withType(MetricType.GAUGE).withUnit(MetricUnits.NONE).build(),
+				(Gauge<Integer>) rollups::getPendingCount);
+	}
+
+	public void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		flusher.scheduleWithFixedDelay(this::flush, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+		log.info("Writing stock level rollups every " + flushSeconds + " seconds");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		write();
+	}
+
+	private void flush() {
+		// don't let anything kill the flusher thread
+		try {
+			write();
+			long now = System.currentTimeMillis();
+			if (now - lastPruneMillis >= PRUNE_INTERVAL_MILLIS) {
+				prune();
+				lastPruneMillis = now;
+			}
+		} catch (RuntimeException e) {
+			log.warn("Problem maintaining the stock level rollups", e);
+		}
+	}
+
+	private void write() {
+		Collection<StockLevelRollup> drained = rollups.drain();
+		if (drained.isEmpty()) {
+			return;
+		}
+		long startTime = System.currentTimeMillis();
+		try {
+			writer.write(drained);
+		} catch (RuntimeException e) {
+			writeFailures.inc();
+			rollups.putBack(drained);
+			log.warn("Couldn't write " + drained.size() + " stock level rollups, will try again", e);
+			return;
+		}
+		log.debug("Wrote {} stock level rollups in {}ms", drained.size(), System.currentTimeMillis() - startTime);
+	}
+
+	private void prune() {
+		for (RollupResolution resolution : RollupResolution.values()) {
+			Timestamp before = rollups.retentionCutoff(resolution);
+			int pruned = writer.prune(resolution, before);
+			if (pruned > 0) {
+				log.info("Removed " + pruned + " " + resolution + " stock level rollups from before " + before);
+			}
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.rollup;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.control.ActivateRequestContext;
+import javax.inject.Inject;
+import javax.transaction.Transactional;
+
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
+
+/**
+ * Writes the rollups to the StockStore from RollupFlusher's thread. The store
+ * is request scoped (for jpa there's an EntityManager per request) so each call
+ * runs in it's own request context, and in a transaction like the changes made
+ * by StockResource. These need to be called through CDI for that to happen
+ */
+@ApplicationScoped
+public class RollupWriter {
+	private final StockStore stockStore;
+
+	@Inject
+	public RollupWriter(StockStore stockStore) {
+		this.stockStore = stockStore;
+	}
+
+	@ActivateRequestContext
+	@Transactional
+	public void write(Collection<StockLevelRollup> rollups) {
+		stockStore.mergeRollups(rollups);
+	}
+
+	@ActivateRequestContext
+	@Transactional
+	public int prune(RollupResolution resolution, Timestamp before) {
+		return stockStore.pruneRollups(resolution, before);
+	}
+}
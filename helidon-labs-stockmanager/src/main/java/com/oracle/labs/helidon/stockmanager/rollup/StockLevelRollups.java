@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.rollup;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollupId;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
+
+/**
+ * Rolls the stock levels up into the lowest, highest and last level of each
+ * item for each hour and each day, so the history of an item doesn't need the
+ * audit records. Each successful audit record with a count (creates and
+ * updates, which carry the level afterwards) is added to the buckets it's in,
+ * these are held here until RollupFlusher merges them into the StockLevelRollup
+ * rows in the StockStore, so the requests don't pay for it.
+ * 
+ * The hourly buckets are kept for app.rollups.hourlyRetentionDays, the daily
+ * ones for app.rollups.dailyRetentionDays. The history uses the hourly buckets
+ * for the days they are kept and the daily ones before that, so with the
+ * defaults a month of history is about 200 rows.
+ * 
+ * Buckets are in UTC
+ */
+@ApplicationScoped
+public class StockLevelRollups {
+	private final int hourlyRetentionDays;
+	private final int dailyRetentionDays;
+	// the buckets that have changed since they were last written, by item so the
+	// history of an item only looks at it's own. An item's buckets are added (and
+	// an empty item removed) inside a compute for the item, so nothing's added to
+	// an item that's being removed
+	private final ConcurrentMap<StockId, ConcurrentMap<StockLevelRollupId, Pending>> pending =
+			new ConcurrentHashMap<>();
+
+	@Inject
+	public StockLevelRollups(
+			@ConfigProperty(name = "app.rollups.hourlyRetentionDays", defaultValue = "7") int hourlyRetentionDays,
+			@ConfigProperty(name = "app.rollups.dailyRetentionDays", defaultValue = "400") int dailyRetentionDays) {
+		this.hourlyRetentionDays = hourlyRetentionDays;
+		this.dailyRetentionDays = dailyRetentionDays;
+	}
+
+	/**
+	 * Adds the level in an audit record to the buckets, failures and deletes (no
+	 * count) are ignored
+	 */
+	public void record(OperationAuditRecord record) {
+		if (!Boolean.TRUE.equals(record.getSucceded()) || record.getItemCount() == null) {
+			return;
+		}
+		StockId stockId = new StockId(record.getDepartmentName(), record.getItemName());
+		pending.compute(stockId, (id, buckets) -> {
+			ConcurrentMap<StockLevelRollupId, Pending> itemBuckets = buckets == null ? new ConcurrentHashMap<>()
+					: buckets;
+			for (RollupResolution resolution : RollupResolution.values()) {
+				StockLevelRollupId rollupId = new StockLevelRollupId(record.getDepartmentName(),
+						record.getItemName(), resolution, resolution.bucketStart(record.getOperationTs().getTime()));
+				while (!itemBuckets.computeIfAbsent(rollupId, Pending::new).add(record.getItemCount(),
+						record.getOperationTs())) {
+					// it was being taken for writing, there'll be a new one next time round
+				}
+			}
+			return itemBuckets;
+		});
+	}
+
+	/**
+	 * The history of an item from the start of the day days ago (UTC), this
+	 * includes the changes that haven't been written to the StockStore yet. Only
+	 * app.rollups.dailyRetentionDays are kept, so days is cut down to that
+	 * 
+	 * @return the daily buckets, then the hourly ones for the days they are kept,
+	 *         oldest first
+	 */
+	public List<HistoryBucket> history(StockStore stockStore, StockId stockId, int days) {
+		long now = System.currentTimeMillis();
+		Timestamp since = RollupResolution.DAY
+				.bucketStart(now - TimeUnit.DAYS.toMillis(Math.min(days, dailyRetentionDays)));
+		Timestamp hourlyFrom = hourlyCutoff(now);
+		// by bucket start, the daily and hourly ones don't overlap
+		Map<Timestamp, StockLevelRollup> buckets = new TreeMap<>();
+		// daily up to the hourly ones, then hourly up to now
+		addHistory(buckets, stockStore, stockId, RollupResolution.DAY, since.getTime(), hourlyFrom.getTime());
+		addHistory(buckets, stockStore, stockId, RollupResolution.HOUR,
+				Math.max(since.getTime(), hourlyFrom.getTime()), now + 1);
+		return buckets.values().stream()
+				.map(rollup -> new HistoryBucket(rollup.getRollupId().getResolution(),
+						rollup.getRollupId().getBucketStart(), rollup.getMinCount(), rollup.getMaxCount(),
+						rollup.getLastCount()))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Takes the buckets that have changed for writing, if the write fails they
+	 * need to be put back
+	 */
+	public Collection<StockLevelRollup> drain() {
+		List<StockLevelRollup> drained = new ArrayList<>();
+		for (Map.Entry<StockId, ConcurrentMap<StockLevelRollupId, Pending>> item : pending.entrySet()) {
+			ConcurrentMap<StockLevelRollupId, Pending> buckets = item.getValue();
+			for (Pending unwritten : buckets.values()) {
+				// once it's removed anyone still adding to it will see it's drained and start a
+				// new one
+				if (buckets.remove(unwritten.rollupId, unwritten)) {
+					StockLevelRollup rollup = unwritten.drain();
+					if (rollup != null) {
+						drained.add(rollup);
+					}
+				}
+			}
+			// don't hang on to the items that haven't changed
+			pending.computeIfPresent(item.getKey(), (id, itemBuckets) -> itemBuckets.isEmpty() ? null : itemBuckets);
+		}
+		return drained;
+	}
+
+	/**
+	 * Puts back buckets that drain returned but couldn't be written, they are
+	 * merged with any changes made since
+	 */
+	public void putBack(Collection<StockLevelRollup> rollups) {
+		for (StockLevelRollup rollup : rollups) {
+			StockLevelRollupId rollupId = rollup.getRollupId();
+			pending.compute(new StockId(rollupId.getDepartmentName(), rollupId.getItemName()), (id, buckets) -> {
+				ConcurrentMap<StockLevelRollupId, Pending> itemBuckets = buckets == null ? new ConcurrentHashMap<>()
+						: buckets;
+				while (!itemBuckets.computeIfAbsent(rollupId, Pending::new).merge(rollup)) {
+					// as in record
+				}
+				return itemBuckets;
+			});
+		}
+	}
+
+	public int getPendingCount() {
+		return pending.values().stream().mapToInt(Map::size).sum();
+	}
+
+	/**
+	 * @return the start of the oldest bucket of the resolution to keep
+	 */
+	public Timestamp retentionCutoff(RollupResolution resolution) {
+		long now = System.currentTimeMillis();
+		if (resolution == RollupResolution.HOUR) {
+			return hourlyCutoff(now);
+		}
+		return RollupResolution.DAY.bucketStart(now - TimeUnit.DAYS.toMillis(dailyRetentionDays));
+	}
+
+	// adds the stored buckets from from up to before, merging in the ones that
+	// haven't been written yet
+	private void addHistory(Map<Timestamp, StockLevelRollup> buckets, StockStore stockStore,
+			StockId stockId, RollupResolution resolution, long from, long before) {
+		if (from >= before) {
+			return;
+		}
+		for (StockLevelRollup rollup : stockStore.findRollups(stockId, resolution, new Timestamp(from),
+				new Timestamp(before))) {
+			buckets.put(rollup.getRollupId().getBucketStart(), rollup.copy());
+		}
+		// only the item's own unwritten buckets, there's a few of them at most
+		Map<StockLevelRollupId, Pending> itemBuckets = pending.get(stockId);
+		if (itemBuckets == null) {
+			return;
+		}
+		for (Pending unwritten : itemBuckets.values()) {
+			StockLevelRollupId rollupId = unwritten.rollupId;
+			long bucketStart = rollupId.getBucketStart().getTime();
+			if (rollupId.getResolution() != resolution || bucketStart < from || bucketStart >= before) {
+				continue;
+			}
+			StockLevelRollup changes = unwritten.copy();
+			if (changes == null) {
+				continue;
+			}
+			StockLevelRollup written = buckets.get(rollupId.getBucketStart());
+			if (written == null) {
+				buckets.put(rollupId.getBucketStart(), changes);
+			} else {
+				written.merge(changes);
+			}
+		}
+	}
+
+	private Timestamp hourlyCutoff(long now) {
+		return RollupResolution.DAY.bucketStart(now - TimeUnit.DAYS.toMillis(hourlyRetentionDays));
+	}
+
+	/**
+	 * The changes to a bucket that haven't been written yet
+	 */
+	private static class Pending {
+		private final StockLevelRollupId rollupId;
+		private StockLevelRollup rollup;
+		private boolean drained;
+
+		private Pending(StockLevelRollupId rollupId) {
+			this.rollupId = rollupId;
+		}
+
+		// false if it's already been drained
+		private synchronized boolean add(int itemCount, Timestamp seenAt) {
+			if (drained) {
+				return false;
+			}
+			if (rollup == null) {
+				rollup = new StockLevelRollup(rollupId, itemCount, seenAt);
+			} else {
+				rollup.add(itemCount, seenAt);
+			}
+			return true;
+		}
+
+		private synchronized boolean merge(StockLevelRollup other) {
+			if (drained) {
+				return false;
+			}
+			if (rollup == null) {
+				rollup = other.copy();
+			} else {
+				rollup.merge(other);
+			}
+			return true;
+		}
+
+		// null if nothing was added before it was drained
+		private synchronized StockLevelRollup drain() {
+			drained = true;
+			return rollup;
+		}
+
+		// null if nothing's been added yet
+		private synchronized StockLevelRollup copy() {
+			return rollup == null ? null : rollup.copy();
+		}
+	}
+}
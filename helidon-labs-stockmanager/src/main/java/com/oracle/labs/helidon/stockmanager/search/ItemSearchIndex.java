@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import com.oracle.labs.helidon.common.data.ItemDetails;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.storage.DepartmentViews;
+import com.oracle.labs.helidon.stockmanager.storage.StockStore;
+
+/**
+ * An in memory index of the item names in each department, so searching for
+ * items with names containing some text (ignoring case) doesn't need to read
+ * all of the items. Each name is indexed under every piece of it up to three
+ * characters long (n-grams), so "Pen" is under p, e, n, pe, en and pen. A
+ * search for up to three characters is a single lookup, longer ones look up
+ * each three character piece of the search text and check the names in the
+ * smallest of those sets. The index holds the item counts as well so the
+ * results don't need the store either.
+ * 
+ * A department is loaded from the StockStore the first time it's searched,
+ * after that StockResource keeps it up to date as it makes changes. It's
+ * loaded again when it's searched if it's more than app.search.maxAgeSeconds
+ * old, to pick up changes by any other stock managers sharing the database
+ * (see DepartmentViews)
+ * 
+ * Results are in order of how well they match, names starting with the text,
+ * then the earlier in the name the text is, then shorter names, then
+ * alphabetically. At most app.search.maxResults are returned
+ */
+@ApplicationScoped
+public class ItemSearchIndex {
+	private final int maxResults;
+	private final DepartmentViews<DepartmentIndex> indexes;
+
+	@Inject
+	public ItemSearchIndex(@ConfigProperty(name = "app.search.maxAgeSeconds", defaultValue = "60") int maxAgeSeconds,
+			@ConfigProperty(name = "app.search.maxResults", defaultValue = "100") int maxResults) {
+		this.maxResults = maxResults;
+		this.indexes = new DepartmentViews<>("search index", TimeUnit.SECONDS.toMillis(maxAgeSeconds),
+				(stockStore, departmentName) -> new DepartmentIndex(stockStore.findAll(departmentName)));
+	}
+
+	/**
+	 * @return up to limit items in the department with names containing text,
+	 *         best matches first
+	 */
+	public List<ItemDetails> search(StockStore stockStore, String departmentName, String text, int limit) {
+		return indexes.get(stockStore, departmentName).search(text.toLowerCase(Locale.ROOT),
+				Math.min(limit, maxResults));
+	}
+
+	/**
+	 * An item has been created or it's count changed
+	 */
+	public void put(String departmentName, String itemName, int itemCount) {
+		indexes.change(departmentName, index -> index.put(itemName, itemCount));
+	}
+
+	/**
+	 * An item has been deleted
+	 */
+	public void remove(String departmentName, String itemName) {
+		indexes.change(departmentName, index -> index.remove(itemName));
+	}
+
+	/**
+	 * The index for one department, changes are made holding the department's
+	 * lock (see DepartmentViews), searches don't take it (the maps are
+	 * concurrent)
+	 */
+	private static class DepartmentIndex {
+		private final static int MAX_GRAM = 3;
+		private final static Comparator<Match> BEST_FIRST = Comparator.comparingInt((Match match) -> match.position)
+				.thenComparingInt(match -> match.entry.itemName.length())
+				.thenComparing(match -> match.entry.itemName);
+
+		private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+		private final Map<String, Set<Entry>> grams = new ConcurrentHashMap<>();
+
+		private DepartmentIndex(Collection<StockLevel> stockLevels) {
+			stockLevels.forEach(stockLevel -> put(stockLevel.getStockId().getItemName(), stockLevel.getItemCount()));
+		}
+
+		private void put(String itemName, int itemCount) {
+			Entry entry = entries.get(itemName);
+			if (entry != null) {
+				entry.itemCount = itemCount;
+				return;
+			}
+			entry = new Entry(itemName, itemCount);
+			for (String gram : grams(entry.lowerCaseName)) {
+				grams.computeIfAbsent(gram, key -> ConcurrentHashMap.newKeySet()).add(entry);
+			}
+			entries.put(itemName, entry);
+		}
+
+		private void remove(String itemName) {
+			Entry entry = entries.remove(itemName);
+			if (entry == null) {
+				return;
+			}
+			for (String gram : grams(entry.lowerCaseName)) {
+				Set<Entry> gramEntries = grams.get(gram);
+				if (gramEntries != null) {
+					gramEntries.remove(entry);
+					if (gramEntries.isEmpty()) {
+						grams.remove(gram);
+					}
+				}
+			}
+		}
+
+		private List<ItemDetails> search(String text, int limit) {
+			if (text.isEmpty() || limit <= 0) {
+				return new ArrayList<>();
+			}
+			Set<Entry> candidates;
+			if (text.length() <= MAX_GRAM) {
+				// everything in here contains the text
+				candidates = grams.get(text);
+			} else {
+				// the names must contain every piece of the text, so only the smallest set
+				// of names for a piece needs checking
+				candidates = null;
+				for (int i = 0; i + MAX_GRAM <= text.length(); i++) {
+					Set<Entry> gramEntries = grams.get(text.substring(i, i + MAX_GRAM));
+					if (gramEntries == null) {
+						return new ArrayList<>();
+					}
+					if (candidates == null || gramEntries.size() < candidates.size()) {
+						candidates = gramEntries;
+					}
+				}
+			}
+			if (candidates == null) {
+				return new ArrayList<>();
+			}
+			// keep the best limit matches, the worst of those at the head so it's the one
+			// pushed out by a better match
+			PriorityQueue<Match> best = new PriorityQueue<>(limit + 1, BEST_FIRST.reversed());
+			for (Entry entry : candidates) {
+				int position = entry.lowerCaseName.indexOf(text);
+				if (position < 0) {
+					continue;
+				}
+				best.add(new Match(entry, position));
+				if (best.size() > limit) {
+					best.poll();
+				}
+			}
+			return best.stream().sorted(BEST_FIRST)
+					.map(match -> new ItemDetails(match.entry.itemName, match.entry.itemCount))
+					.collect(Collectors.toList());
+		}
+
+		private static Set<String> grams(String name) {
+			Set<String> nameGrams = new HashSet<>();
+			for (int length = 1; length <= MAX_GRAM; length++) {
+				for (int i = 0; i + length <= name.length(); i++) {
+					nameGrams.add(name.substring(i, i + length));
+				}
+			}
+			return nameGrams;
+		}
+	}
+
+	private static class Entry {
+		private final String itemName;
+		private final String lowerCaseName;
+		private volatile int itemCount;
+
+		private Entry(String itemName, int itemCount) {
+			this.itemName = itemName;
+			this.lowerCaseName = itemName.toLowerCase(Locale.ROOT);
+			this.itemCount = itemCount;
+		}
+	}
+
+	private static class Match {
+		private final Entry entry;
+		// where in the name the text is, 0 is a prefix
+		private final int position;
+
+		private Match(Entry entry, int position) {
+			this.entry = entry;
+			this.position = position;
+		}
+	}
+}
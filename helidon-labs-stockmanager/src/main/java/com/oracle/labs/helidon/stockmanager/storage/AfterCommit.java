@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs things once the change the current transaction has made to the store
+ * has committed, this keeps the shared in memory views (the search index, low
+ * stock watcher, rollups and analytics) to what's actually in the store. If the
+ * transaction rolls back they never hear about the change.
+ * 
+ * Without a transaction the change is already in the store, so they are run
+ * straight away, as they are when there's no JTA at all (immediate(), for the
+ * benchmarks, which commit themselves)
+ */
+@ApplicationScoped
+@Slf4j
+public class AfterCommit {
+	private final TransactionSynchronizationRegistry transactions;
+
+	@Inject
+	public AfterCommit(TransactionSynchronizationRegistry transactions) {
+		this.transactions = transactions;
+	}
+
+	public static AfterCommit immediate() {
+		return new AfterCommit(null);
+	}
+
+	public void run(Runnable action) {
+		int status = transactions == null ? Status.STATUS_NO_TRANSACTION : transactions.getTransactionStatus();
+		if (status == Status.STATUS_NO_TRANSACTION) {
+			action.run();
+			return;
+		}
+		if (status != Status.STATUS_ACTIVE) {
+			// it's already been marked for rollback, so it won't commit
+			return;
+		}
+		transactions.registerInterposedSynchronization(new Synchronization() {
+			@Override
+			public void beforeCompletion() {
+			}
+
+			@Override
+			public void afterCompletion(int completedStatus) {
+				if (completedStatus != Status.STATUS_COMMITTED) {
+					return;
+				}
+				// the transaction manager would just swallow this
+				try {
+					action.run();
+				} catch (RuntimeException e) {
+					log.error("Problem passing on a committed change", e);
+				}
+			}
+		});
+	}
+}
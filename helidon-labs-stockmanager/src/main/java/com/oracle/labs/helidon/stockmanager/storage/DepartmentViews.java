@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * In memory views (a search index, the low stock items etc.) of each
+ * department, built from the StockStore the first time they are used and then
+ * kept up to date by passing them the changes StockResource makes.
+ * 
+ * If there are several stock managers sharing a database a view won't see the
+ * changes made by the others, so it's loaded again when it's used if it's more
+ * than maxAgeMillis old. Only one thread loads a department at a time, others
+ * carry on using the old view until the new one is ready. Changes made while it
+ * was loading are applied to the new view before it's used.
+ * 
+ * A change shouldn't wait for a load (and all it's reads) inside it's
+ * transaction, so loadInBackground loads a department that needs it on another
+ * thread, and the change carries on with the view that's there (if any).
+ * 
+ * Changes are made holding the department's lock, so views only need to be
+ * safe for reads at the same time as a change
+ */
+@Slf4j
+public class DepartmentViews<V> {
+	private final String name;
+	private final long maxAgeMillis;
+	private final BiFunction<StockStore, String, V> loader;
+	private final Map<String, Department<V>> departments = new ConcurrentHashMap<>();
+	private final ExecutorService backgroundLoads;
+
+	/**
+	 * @param loader builds the view of a department (by name) from the store
+	 */
+	public DepartmentViews(String name, long maxAgeMillis, BiFunction<StockStore, String, V> loader) {
+		this.name = name;
+		this.maxAgeMillis = maxAgeMillis;
+		this.loader = loader;
+		this.backgroundLoads = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, name.replace(' ', '-') + "-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the view of the department, loading it from stockStore if there
+	 *         isn't one yet or it's too old
+	 */
+	public V get(StockStore stockStore, String departmentName) {
+		Department<V> department = departments.computeIfAbsent(departmentName, key -> new Department<>());
+		V view = department.view;
+		if (view != null && !isStale(department)) {
+			return view;
+		}
+		if (view == null) {
+			// nothing to use until it's loaded
+			department.loading.lock();
+		} else if (!department.loading.tryLock()) {
+			// someone else is loading it, use the old one for now
+			return view;
+		}
+		try {
+			view = department.view;
+			if (view != null && !isStale(department)) {
+				// loaded while we were waiting
+				return view;
+			}
+			return load(stockStore, departmentName, department);
+		} finally {
+			department.loading.unlock();
+		}
+	}
+
+	/**
+	 * If there isn't a view of the department yet, or it's too old, it's loaded on
+	 * another thread using a store from stockStoreSource, this doesn't wait for
+	 * it. Changes that commit before the load reads the store are in what it
+	 * reads, later ones are applied to it
+	 */
+	public void loadInBackground(StockStoreSource stockStoreSource, String departmentName) {
+		Department<V> department = departments.computeIfAbsent(departmentName, key -> new Department<>());
+		if (department.view != null && !isStale(department)) {
+			return;
+		}
+		if (!department.loadQueued.compareAndSet(false, true)) {
+			// there's already one on it's way
+			return;
+		}
+		backgroundLoads.execute(() -> {
+			department.loading.lock();
+			try {
+				department.loadQueued.set(false);
+				if (department.view == null || isStale(department)) {
+					stockStoreSource.withStockStore(stockStore -> load(stockStore, departmentName, department));
+				}
+			} catch (RuntimeException e) {
+				// don't let anything kill the loading thread
+				log.warn("Problem loading the " + name + " for " + departmentName + ", will try again next time", e);
+			} finally {
+				department.loading.unlock();
+			}
+		});
+	}
+
+	/**
+	 * @return the view of the department if it's been loaded, otherwise null
+	 */
+	public V getIfLoaded(String departmentName) {
+		Department<V> department = departments.get(departmentName);
+		return department == null ? null : department.view;
+	}
+
+	/**
+	 * Apply a change to the department's view, if it's not been loaded yet there's
+	 * nothing to do, it'll have the change when it is
+	 */
+	public void change(String departmentName, Consumer<V> change) {
+		Department<V> department = departments.get(departmentName);
+		if (department == null) {
+			return;
+		}
+		synchronized (department) {
+			if (department.view != null) {
+				change.accept(department.view);
+			}
+			if (department.changesWhileLoading != null) {
+				department.changesWhileLoading.add(change);
+			}
+		}
+	}
+
+	private V load(StockStore stockStore, String departmentName, Department<V> department) {
+		synchronized (department) {
+			department.changesWhileLoading = new ArrayList<>();
+		}
+		try {
+			long startTime = System.nanoTime();
+			V loaded = loader.apply(stockStore, departmentName);
+			synchronized (department) {
+				department.changesWhileLoading.forEach(change -> change.accept(loaded));
+				department.view = loaded;
+				department.loadedAt = System.currentTimeMillis();
+			}
+			log.debug("Loaded the {} for {} in {}us", name, departmentName,
+					TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime));
+			return loaded;
+		} finally {
+			synchronized (department) {
+				department.changesWhileLoading = null;
+			}
+		}
+	}
+
+	private boolean isStale(Department<V> department) {
+		return System.currentTimeMillis() - department.loadedAt > maxAgeMillis;
+	}
+
+	private static class Department<V> {
+		// only one load at a time
+		private final ReentrantLock loading = new ReentrantLock();
+		// a background load has been asked for and not started yet
+		private final AtomicBoolean loadQueued = new AtomicBoolean();
+		private volatile V view;
+		private volatile long loadedAt;
+		// the changes made while a load is in progress, guarded by the department
+		private List<Consumer<V>> changesWhileLoading;
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.ws.rs.core.Response.Status;
+
+import com.oracle.labs.helidon.common.data.ReservationResult;
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+import com.oracle.labs.helidon.stockmanager.database.StockThreshold;
+
+/**
+ * The StockStore in the database, through JPA. EntityManagers aren't thread
+ * safe so there's one of these per request, any transaction is the caller's
+ * (StockResource uses @Transactional for that)
+ */
+public class JpaStockStore implements StockStore {
+	public final static String STORAGE = "jpa";
+
+	private final EntityManager entityManager;
+
+	public JpaStockStore(EntityManager entityManager) {
+		this.entityManager = entityManager;
+	}
+
+	public EntityManager getEntityManager() {
+		return entityManager;
+	}
+
+	@Override
+	public StockLevel find(StockId stockId) {
+		return entityManager.find(StockLevel.class, stockId);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<StockLevel> findAll(String departmentName) {
+		// build the query
+		Query findAllQuery = entityManager.createNativeQuery(
+				"SELECT departmentName, itemName, itemCount FROM StockLevel WHERE departmentName='" + departmentName
+						+ "'",
+				StockLevel.class);
+		return findAllQuery.getResultList();
+	}
+
+	@Override
+	public boolean create(StockLevel stockLevel) {
+		if (entityManager.find(StockLevel.class, stockLevel.getStockId()) != null) {
+			return false;
+		}
+		entityManager.persist(stockLevel);
+		return true;
+	}
+
+	@Override
+	public StockLevel setItemCount(StockId stockId, int itemCount) {
+		StockLevel origionalItem = entityManager.find(StockLevel.class, stockId);
+		if (origionalItem == null) {
+			return null;
+		}
+		// update the object with the new stock level and merge the updated item into
+		// the database.
+		origionalItem.setItemCount(itemCount);
+		return entityManager.merge(origionalItem);
+	}
+
+	/**
+	 * The check and the change are a single update statement so two reservations
+	 * at the same time can't both take the last items
+	 */
+	@Override
+	public ReservationResult reserve(StockId stockId, int itemCount) {
+		checkItemCount(itemCount);
+		int updated = entityManager.createQuery("UPDATE StockLevel s SET s.itemCount = s.itemCount - :itemCount "
+				+ "WHERE s.stockId.departmentName = :departmentName AND s.stockId.itemName = :itemName "
+				+ "AND s.itemCount > :itemCount").setParameter("itemCount", itemCount)
+				.setParameter("departmentName", stockId.getDepartmentName())
+				.setParameter("itemName", stockId.getItemName()).executeUpdate();
+		// read the level with a query rather than find, find could return an entity
+		// loaded earlier in the transaction that the update has bypassed
+		List<Integer> levels = readLevel(stockId);
+		if (levels.isEmpty()) {
+			return new ReservationResult(stockId.getItemName(), 0, Status.NOT_FOUND.getStatusCode());
+		}
+		return new ReservationResult(stockId.getItemName(), levels.get(0),
+				updated == 0 ? Status.CONFLICT.getStatusCode() : Status.OK.getStatusCode());
+	}
+
+	/**
+	 * Like reserve it's a single update statement so it's safe alongside
+	 * reservations of the same item
+	 */
+	@Override
+	public StockLevel release(StockId stockId, int itemCount) {
+		checkItemCount(itemCount);
+		int updated = entityManager.createQuery("UPDATE StockLevel s SET s.itemCount = s.itemCount + :itemCount "
+				+ "WHERE s.stockId.departmentName = :departmentName AND s.stockId.itemName = :itemName")
+				.setParameter("itemCount", itemCount).setParameter("departmentName", stockId.getDepartmentName())
+				.setParameter("itemName", stockId.getItemName()).executeUpdate();
+		if (updated == 0) {
+			return null;
+		}
+		// as in reserve the level is read with a query so it's the updated one
+		return new StockLevel(stockId, readLevel(stockId).get(0));
+	}
+
+	@Override
+	public StockLevel delete(StockId stockId) {
+		StockLevel itemToDelete = entityManager.find(StockLevel.class, stockId);
+		if (itemToDelete == null) {
+			return null;
+		}
+		entityManager.remove(itemToDelete);
+		StockThreshold threshold = entityManager.find(StockThreshold.class, stockId);
+		if (threshold != null) {
+			entityManager.remove(threshold);
+		}
+		return itemToDelete;
+	}
+
+	@Override
+	public Map<String, Integer> findThresholds(String departmentName) {
+		return entityManager
+				.createQuery("SELECT t FROM StockThreshold t WHERE t.stockId.departmentName = :departmentName",
+						StockThreshold.class)
+				.setParameter("departmentName", departmentName).getResultList().stream().collect(Collectors
+						.toMap(threshold -> threshold.getStockId().getItemName(), StockThreshold::getThreshold));
+	}
+
+	@Override
+	public boolean setThreshold(StockId stockId, Integer threshold) {
+		if (entityManager.find(StockLevel.class, stockId) == null) {
+			return false;
+		}
+		StockThreshold existing = entityManager.find(StockThreshold.class, stockId);
+		if (threshold == null) {
+			if (existing != null) {
+				entityManager.remove(existing);
+			}
+		} else if (existing != null) {
+			existing.setThreshold(threshold);
+		} else {
+			entityManager.persist(new StockThreshold(stockId, threshold));
+		}
+		return true;
+	}
+
+	@Override
+	public void audit(OperationAuditRecord record) {
+		entityManager.persist(record);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<OperationAuditRecord> recentAuditRecords(String departmentName, int count) {
+		Query findAuditQuery = entityManager.createNativeQuery("SELECT * FROM OperationAuditRecord WHERE departmentName='"
+				+ departmentName + "' ORDER BY operationTs DESC", OperationAuditRecord.class).setMaxResults(count);
+		return findAuditQuery.getResultList();
+	}
+
+	private List<Integer> readLevel(StockId stockId) {
+		return entityManager.createQuery("SELECT s.itemCount FROM StockLevel s "
+				+ "WHERE s.stockId.departmentName = :departmentName AND s.stockId.itemName = :itemName",
+				Integer.class).setParameter("departmentName", stockId.getDepartmentName())
+				.setParameter("itemName", stockId.getItemName()).getResultList();
+	}
+
+	@Override
+	public List<StockLevelRollup> findRollups(StockId stockId, RollupResolution resolution, Timestamp from,
+			Timestamp before) {
+		return entityManager.createQuery("SELECT r FROM StockLevelRollup r WHERE r.rollupId.departmentName = "
+				+ ":departmentName AND r.rollupId.itemName = :itemName AND r.rollupId.resolution = :resolution "
+				+ "AND r.rollupId.bucketStart >= :from AND r.rollupId.bucketStart < :before "
+				+ "ORDER BY r.rollupId.bucketStart", StockLevelRollup.class)
+				.setParameter("departmentName", stockId.getDepartmentName())
+				.setParameter("itemName", stockId.getItemName()).setParameter("resolution", resolution)
+				.setParameter("from", from).setParameter("before", before).getResultList();
+	}
+
+	/**
+	 * Another stock manager can add the same new row at the same time, then one
+	 * of the transactions fails on the primary key. Merging is safe to repeat, so
+	 * the caller can just try again
+	 */
+	@Override
+	public void mergeRollups(Collection<StockLevelRollup> rollups) {
+		for (StockLevelRollup rollup : rollups) {
+			StockLevelRollup existing = entityManager.find(StockLevelRollup.class, rollup.getRollupId());
+			if (existing == null) {
+				entityManager.persist(rollup.copy());
+			} else {
+				existing.merge(rollup);
+			}
+		}
+	}
+
+	@Override
+	public int pruneRollups(RollupResolution resolution, Timestamp before) {
+		return entityManager
+				.createQuery("DELETE FROM StockLevelRollup r WHERE r.rollupId.resolution = :resolution "
+						+ "AND r.rollupId.bucketStart < :before")
+				.setParameter("resolution", resolution).setParameter("before", before).executeUpdate();
+	}
+
+	private static void checkItemCount(int itemCount) {
+		if (itemCount <= 0) {
+			throw new IllegalArgumentException("The number of items must be positive, got " + itemCount);
+		}
+	}
+}
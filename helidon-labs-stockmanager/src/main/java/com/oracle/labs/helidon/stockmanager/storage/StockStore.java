@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.oracle.labs.helidon.common.data.ReservationResult;
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+
+/**
+ * Where StockResource keeps the stock levels and audit records, picked at
+ * startup by app.storage (see StockStoreProducer). JpaStockStore is the
+ * database, WalStockStore keeps everything in memory backed by a write ahead
+ * log and snapshots on the local disk, for running without a database.
+ * 
+ * The resource does the logging, auditing and error reporting, the store just
+ * stores. The changes to an item (create, set, reserve, release and delete)
+ * each happen in one go, so two reservations at the same time can't both take
+ * the last of an item. Don't change the StockLevels returned, for JPA they can
+ * be the managed entities
+ */
+public interface StockStore {
+	/**
+	 * @return the item, or null if there isn't one
+	 */
+	public StockLevel find(StockId stockId);
+
+	/**
+	 * @return all of the items in the department
+	 */
+	public Collection<StockLevel> findAll(String departmentName);
+
+	/**
+	 * Adds a new item
+	 * 
+	 * @return true if it was added, false if there's already an item with that id
+	 *         (which is left as it was)
+	 */
+	public boolean create(StockLevel stockLevel);
+
+	/**
+	 * @return the item with it's new level, or null if there isn't one
+	 */
+	public StockLevel setItemCount(StockId stockId, int itemCount);
+
+	/**
+	 * Takes itemCount of the item, but only if there are more than itemCount of
+	 * it. itemCount must be positive, otherwise it's an IllegalArgumentException
+	 * 
+	 * @return the level afterwards with status OK, the unchanged level with
+	 *         status CONFLICT if there aren't enough, or status NOT_FOUND if
+	 *         there's no such item
+	 */
+	public ReservationResult reserve(StockId stockId, int itemCount);
+
+	/**
+	 * Gives back itemCount of the item, itemCount must be positive
+	 * 
+	 * @return the item with it's new level, or null if there isn't one
+	 */
+	public StockLevel release(StockId stockId, int itemCount);
+
+	/**
+	 * @return the item that was removed, or null if there wasn't one
+	 */
+	public StockLevel delete(StockId stockId);
+
+	/**
+	 * @return the low stock thresholds set for items in the department, by item
+	 *         name, items without one aren't included
+	 */
+	public Map<String, Integer> findThresholds(String departmentName);
+
+	/**
+	 * Sets the low stock threshold for an item, or with a null threshold removes
+	 * it. The threshold goes when the item is deleted
+	 * 
+	 * @return false if there's no such item
+	 */
+	public boolean setThreshold(StockId stockId, Integer threshold);
+
+	/**
+	 * Keep a record of an operation (successful or not) on an item
+	 */
+	public void audit(OperationAuditRecord record);
+
+	/**
+	 * @return the most recent count audit records for the department, newest
+	 *         first
+	 */
+	public List<OperationAuditRecord> recentAuditRecords(String departmentName, int count);
+
+	/**
+	 * @return the item's stock level rollups of the resolution with buckets
+	 *         starting from from up to (but not including) before, oldest first
+	 */
+	public List<StockLevelRollup> findRollups(StockId stockId, RollupResolution resolution, Timestamp from,
+			Timestamp before);
+
+	/**
+	 * Merges the rollups into the stored ones for the same buckets (see
+	 * StockLevelRollup.merge), storing any that aren't there yet. The rollups
+	 * passed in aren't changed
+	 */
+	public void mergeRollups(Collection<StockLevelRollup> rollups);
+
+	/**
+	 * Removes the rollups of the resolution with buckets that start before before
+	 * 
+	 * @return how many were removed
+	 */
+	public int pruneRollups(RollupResolution resolution, Timestamp before);
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.context.RequestScoped;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import com.oracle.labs.helidon.stockmanager.database.EntityManagerFactories;
+import com.oracle.labs.helidon.stockmanager.metrics.LatencyRecorder;
+import com.oracle.labs.helidon.stockmanager.metrics.SlowQueryLog;
+import com.oracle.labs.helidon.stockmanager.metrics.TimedEntityManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Provides the StockStore the StockResource uses, picked at startup by
+ * app.storage
+ * 
+ * jpa - the database, there's a JpaStockStore (and entity manager) for each
+ * request. The entity manager is wrapped so the time taken by each of the
+ * database operations is recorded in the latency metrics, and the slow ones in
+ * the slow query log. This is the default
+ * 
+ * wal - a single WalStockStore, everything is in memory and the changes are
+ * logged to app.storage.wal.directory (which must be set), for running without
+ * a database. It's loaded when the application starts, and publishes
+ * storage.wal.* metrics
+ * 
+ * It's also the StockStoreSource the in memory views are loaded from in the
+ * background
+ */
+@ApplicationScoped
+@Slf4j
+public class StockStoreProducer implements StockStoreSource {
+	private final String storage;
+	private final String persistenceUnit;
+	private final Optional<String> walDirectory;
+	private final int walSnapshotIntervalSeconds;
+	private final long walSnapshotAfterBytes;
+	private final int walAuditRecordsKept;
+	private final MetricRegistry metricRegistry;
+	private final LatencyRecorder latencyRecorder;
+	private final SlowQueryLog slowQueryLog;
+	private WalStockStore walStockStore;
+
+	@Inject
+	public StockStoreProducer(@ConfigProperty(name = "app.storage", defaultValue = JpaStockStore.STORAGE) String storage,
+			@ConfigProperty(name = "app.persistenceUnit") String persistenceUnit,
+			@ConfigProperty(name = "app.storage.wal.directory") Optional<String> walDirectory,
+			@ConfigProperty(name = "app.storage.wal.snapshotIntervalSeconds", defaultValue = "300") int walSnapshotIntervalSeconds,
+			@ConfigProperty(name = "app.storage.wal.snapshotAfterBytes", defaultValue = "67108864") long walSnapshotAfterBytes,
+			@ConfigProperty(name = "app.storage.wal.auditRecordsKept", defaultValue = "10000") int walAuditRecordsKept,
+			@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			LatencyRecorder latencyRecorder, SlowQueryLog slowQueryLog) {
+		this.storage = storage;
+		this.persistenceUnit = persistenceUnit;
+		this.walDirectory = walDirectory;
+		this.walSnapshotIntervalSeconds = walSnapshotIntervalSeconds;
+		this.walSnapshotAfterBytes = walSnapshotAfterBytes;
+		this.walAuditRecordsKept = walAuditRecordsKept;
+		this.metricRegistry = metricRegistry;
+		this.latencyRecorder = latencyRecorder;
+		this.slowQueryLog = slowQueryLog;
+		if (!storage.equals(JpaStockStore.STORAGE) && !storage.equals(WalStockStore.STORAGE)) {
+			throw new IllegalArgumentException("Unknown app.storage " + storage + ", must be one of "
+					+ JpaStockStore.STORAGE + " or " + WalStockStore.STORAGE);
+		}
+	}
+
+	/**
+	 * Recover the wal store when the application starts rather than on the first
+	 * request
+	 */
+	public void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		log.info("Using " + storage + " storage");
+		if (isWal()) {
+			walStockStore();
+		}
+	}
+
+	@Produces
+	@RequestScoped
+	public StockStore stockStore() {
+		if (isWal()) {
+			return walStockStore();
+		}
+		return new JpaStockStore(TimedEntityManager.wrap(
+				EntityManagerFactories.get(persistenceUnit).createEntityManager(), latencyRecorder, slowQueryLog));
+	}
+
+	/**
+	 * The entity managers are only for the one request, the wal store is kept
+	 */
+	public void close(@Disposes StockStore stockStore) {
+		if (stockStore instanceof JpaStockStore) {
+			((JpaStockStore) stockStore).getEntityManager().close();
+		}
+	}
+
+	/**
+	 * For jpa this has it's own entity manager, which is closed afterwards
+	 */
+	@Override
+	public void withStockStore(Consumer<StockStore> work) {
+		if (isWal()) {
+			work.accept(walStockStore());
+			return;
+		}
+		EntityManager entityManager = TimedEntityManager.wrap(
+				EntityManagerFactories.get(persistenceUnit).createEntityManager(), latencyRecorder, slowQueryLog);
+		try {
+			work.accept(new JpaStockStore(entityManager));
+		} finally {
+			entityManager.close();
+		}
+	}
+
+	public boolean isWal() {
+		return storage.equals(WalStockStore.STORAGE);
+	}
+
+	public String getStorage() {
+		return storage;
+	}
+
+	/**
+	 * The wal store, this is only for the wal storage
+	 */
+	public synchronized WalStockStore walStockStore() {
+		if (walStockStore != null) {
+			return walStockStore;
+		}
+		if (walDirectory.isEmpty() || walDirectory.get().isBlank()) {
+			throw new IllegalArgumentException(
+					"The " + WalStockStore.STORAGE + " storage needs app.storage.wal.directory");
+		}
+		try {
+			walStockStore = new WalStockStore(Path.of(walDirectory.get()), walSnapshotIntervalSeconds,
+					walSnapshotAfterBytes, walAuditRecordsKept);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't recover the stock levels from " + walDirectory.get(), e);
+		}
+		WriteAheadLog wal = walStockStore.getWriteAheadLog();
+		gauge("storage.wal.appends", "Records appended to the write ahead log", MetricUnits.NONE, wal::getAppends);
+		gauge("storage.wal.syncs", "Write ahead log fsyncs, each covers all the records appended since the last",
+				MetricUnits.NONE, wal::getSyncs);
+		gauge("storage.wal.segmentBytes", "Bytes in the current write ahead log segment", MetricUnits.BYTES,
+				wal::getSegmentBytes);
+		gauge("storage.wal.snapshots", "Snapshots taken", MetricUnits.NONE, walStockStore::getSnapshots);
+		return walStockStore;
+	}
+
+	/**
+	 * Writes out the last of the log (and a snapshot) so the next startup is
+	 * quick
+	 */
+	@PreDestroy
+	public synchronized void shutdown() {
+		if (walStockStore != null) {
+			walStockStore.close();
+		}
+	}
+
+	private void gauge(String name, String description, String unit, Supplier<Long> value) {
+		Metadata metadata = Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(unit).build();
+		metricRegistry.register(metadata, (Gauge<Long>) value::get);
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.util.function.Consumer;
+
+/**
+ * Somewhere to get a StockStore from outside a request (the one StockResource
+ * uses only lasts for the request), for loading the in memory views in the
+ * background
+ */
+@FunctionalInterface
+public interface StockStoreSource {
+	/**
+	 * Passes work a StockStore, which is only usable until work returns. There's
+	 * no transaction, so it's just for reading
+	 */
+	public void withStockStore(Consumer<StockStore> work);
+}
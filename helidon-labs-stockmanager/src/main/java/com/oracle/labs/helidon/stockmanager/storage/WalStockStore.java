@@ -0,0 +1,962 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.ws.rs.core.Response.Status;
+
+import com.oracle.labs.helidon.common.data.ReservationResult;
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditType;
+import com.oracle.labs.helidon.stockmanager.database.RollupResolution;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollup;
+import com.oracle.labs.helidon.stockmanager.database.StockLevelRollupId;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A StockStore that holds everything in memory, so reads never touch the disk.
+ * Every change is appended to a WriteAheadLog and the change doesn't return
+ * until the log is on disk (changes at the same time share the fsync). The log
+ * holds the new level rather than the change (reserve 5 is logged as "the
+ * level is now 20") so replaying a record more than once doesn't matter.
+ * 
+ * Audit records are appended to the log as well, but nothing waits for them to
+ * be on disk, they go with the next fsync. If the process dies the audit
+ * records from the last few milliseconds may be lost, the stock levels won't
+ * be. Only the most recent auditRecordsKept records for each department are
+ * kept, older ones are dropped when a snapshot is taken. Stock level rollups
+ * are logged as their merged values, so like the levels replaying them again is
+ * harmless.
+ * 
+ * Every snapshotIntervalSeconds (or sooner if the current log segment gets to
+ * snapshotAfterBytes) the log is rolled to a new segment and the levels and
+ * audit records written to a snapshot file, after which the older segments
+ * aren't needed. The snapshot is taken while changes carry on, so it may have
+ * some changes that are also in the newer segment, replaying those is harmless.
+ * On startup the latest snapshot is loaded and the segments after it replayed.
+ * 
+ * If the log fails (e.g. the disk is full) no more changes can be made, they
+ * all throw UncheckedIOException and isHealthy is false
+ */
+@Slf4j
+public class WalStockStore implements StockStore, AutoCloseable {
+	public final static String STORAGE = "wal";
+	private final static String SNAPSHOT_PREFIX = "snapshot-";
+	private final static String SNAPSHOT_SUFFIX = ".snap";
+	private final static String SNAPSHOT_TEMP_SUFFIX = ".tmp";
+	private final static Pattern SNAPSHOT_NAME = Pattern
+			.compile(Pattern.quote(SNAPSHOT_PREFIX) + "(\\d+)" + Pattern.quote(SNAPSHOT_SUFFIX));
+	// SMS3, SMS2 (before rollups) and SMS1 (before thresholds) snapshots can still
+	// be read
+	private final static int SNAPSHOT_MAGIC = 0x534d5333;
+	private final static int SNAPSHOT_MAGIC_V2 = 0x534d5332;
+	private final static int SNAPSHOT_MAGIC_V1 = 0x534d5331;
+	// log record types
+	private final static byte LEVEL = 1;
+	private final static byte DELETE = 2;
+	private final static byte AUDIT = 3;
+	private final static byte THRESHOLD = 4;
+	private final static byte ROLLUP = 5;
+	private final static byte PRUNE_ROLLUPS = 6;
+	private final static int NO_THRESHOLD = -1;
+	private final static long SNAPSHOT_CHECK_SECONDS = 1;
+
+	private final Path directory;
+	private final long snapshotIntervalMillis;
+	private final long snapshotAfterBytes;
+	private final int auditRecordsKept;
+	// department name -> item name -> item
+	private final ConcurrentMap<String, ConcurrentMap<String, Item>> departments = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AuditTrail> auditTrails = new ConcurrentHashMap<>();
+	private final ConcurrentMap<StockId, ItemRollups> rollups = new ConcurrentHashMap<>();
+	private final AtomicLong auditIds = new AtomicLong();
+	private final AtomicLong snapshots = new AtomicLong();
+	private final WriteAheadLog wal;
+	private final ScheduledExecutorService snapshotter;
+	// only used by the snapshotter thread (and close once that's stopped)
+	private long lastSnapshotMillis = System.currentTimeMillis();
+
+	public WalStockStore(Path directory, int snapshotIntervalSeconds, long snapshotAfterBytes, int auditRecordsKept)
+			throws IOException {
+		this.directory = directory;
+		this.snapshotIntervalMillis = TimeUnit.SECONDS.toMillis(snapshotIntervalSeconds);
+		this.snapshotAfterBytes = snapshotAfterBytes;
+		this.auditRecordsKept = auditRecordsKept;
+		Files.createDirectories(directory);
+		long nextSegment = recover();
+		wal = new WriteAheadLog(directory, nextSegment);
+		snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "wal-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotter.scheduleWithFixedDelay(this::snapshotIfDue, SNAPSHOT_CHECK_SECONDS, SNAPSHOT_CHECK_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	@Override
+	public StockLevel find(StockId stockId) {
+		Item item = item(stockId);
+		if (item == null || item.removed) {
+			return null;
+		}
+		return item.toStockLevel();
+	}
+
+	@Override
+	public Collection<StockLevel> findAll(String departmentName) {
+		ConcurrentMap<String, Item> items = departments.get(departmentName);
+		if (items == null) {
+			return new ArrayList<>();
+		}
+		return items.values().stream().filter(item -> !item.removed).map(Item::toStockLevel)
+				.collect(Collectors.toList());
+	}
+
+	@Override
+	public boolean create(StockLevel stockLevel) {
+		StockId stockId = stockLevel.getStockId();
+		Item item = new Item(stockId.getDepartmentName(), stockId.getItemName(), stockLevel.getItemCount());
+		ConcurrentMap<String, Item> items = departments.computeIfAbsent(stockId.getDepartmentName(),
+				name -> new ConcurrentHashMap<>());
+		long position;
+		// lock the item before it's visible so no one else can change it until it's
+		// been logged
+		synchronized (item) {
+			if (items.putIfAbsent(item.itemName, item) != null) {
+				return false;
+			}
+			try {
+				position = wal.append(levelRecord(item));
+			} catch (IOException e) {
+				item.removed = true;
+				items.remove(item.itemName, item);
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitSynced(position);
+		return true;
+	}
+
+	@Override
+	public StockLevel setItemCount(StockId stockId, int itemCount) {
+		Item item = item(stockId);
+		if (item == null) {
+			return null;
+		}
+		long position;
+		synchronized (item) {
+			if (item.removed) {
+				return null;
+			}
+			position = changeLevel(item, itemCount);
+		}
+		awaitSynced(position);
+		return new StockLevel(item.stockId(), itemCount);
+	}
+
+	@Override
+	public ReservationResult reserve(StockId stockId, int itemCount) {
+		checkItemCount(itemCount);
+		Item item = item(stockId);
+		if (item == null) {
+			return new ReservationResult(stockId.getItemName(), 0, Status.NOT_FOUND.getStatusCode());
+		}
+		long position;
+		int level;
+		synchronized (item) {
+			if (item.removed) {
+				return new ReservationResult(stockId.getItemName(), 0, Status.NOT_FOUND.getStatusCode());
+			}
+			if (item.itemCount <= itemCount) {
+				return new ReservationResult(stockId.getItemName(), item.itemCount, Status.CONFLICT.getStatusCode());
+			}
+			level = item.itemCount - itemCount;
+			position = changeLevel(item, level);
+		}
+		awaitSynced(position);
+		return new ReservationResult(stockId.getItemName(), level, Status.OK.getStatusCode());
+	}
+
+	@Override
+	public StockLevel release(StockId stockId, int itemCount) {
+		checkItemCount(itemCount);
+		Item item = item(stockId);
+		if (item == null) {
+			return null;
+		}
+		long position;
+		int level;
+		synchronized (item) {
+			if (item.removed) {
+				return null;
+			}
+			level = item.itemCount + itemCount;
+			position = changeLevel(item, level);
+		}
+		awaitSynced(position);
+		return new StockLevel(item.stockId(), level);
+	}
+
+	@Override
+	public StockLevel delete(StockId stockId) {
+		Item item = item(stockId);
+		if (item == null) {
+			return null;
+		}
+		long position;
+		int level;
+		synchronized (item) {
+			if (item.removed) {
+				return null;
+			}
+			// logged before it's removed, if the log fails it's still there
+			try {
+				position = wal.append(deleteRecord(item.departmentName, item.itemName));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			level = item.itemCount;
+			item.removed = true;
+			departments.get(item.departmentName).remove(item.itemName, item);
+		}
+		awaitSynced(position);
+		return new StockLevel(item.stockId(), level);
+	}
+
+	@Override
+	public Map<String, Integer> findThresholds(String departmentName) {
+		ConcurrentMap<String, Item> items = departments.get(departmentName);
+		if (items == null) {
+			return new HashMap<>();
+		}
+		return items.values().stream().filter(item -> !item.removed && item.threshold != NO_THRESHOLD)
+				.collect(Collectors.toMap(item -> item.itemName, item -> item.threshold));
+	}
+
+	@Override
+	public boolean setThreshold(StockId stockId, Integer threshold) {
+		Item item = item(stockId);
+		if (item == null) {
+			return false;
+		}
+		long position;
+		synchronized (item) {
+			if (item.removed) {
+				return false;
+			}
+			int previous = item.threshold;
+			item.threshold = threshold == null ? NO_THRESHOLD : threshold;
+			try {
+				position = wal.append(thresholdRecord(item));
+			} catch (IOException e) {
+				item.threshold = previous;
+				throw new UncheckedIOException(e);
+			}
+		}
+		awaitSynced(position);
+		return true;
+	}
+
+	@Override
+	public void audit(OperationAuditRecord record) {
+		record.setOperationId(auditIds.incrementAndGet());
+		byte[] logRecord = auditRecord(record);
+		AuditTrail trail = auditTrail(record.getDepartmentName());
+		// added to the trail and the log together so they are in the same order in
+		// both
+		synchronized (trail) {
+			try {
+				wal.append(logRecord);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			trail.add(record);
+		}
+	}
+
+	@Override
+	public List<OperationAuditRecord> recentAuditRecords(String departmentName, int count) {
+		AuditTrail trail = auditTrails.get(departmentName);
+		if (trail == null) {
+			return new ArrayList<>();
+		}
+		return trail.newest(count);
+	}
+
+	@Override
+	public List<StockLevelRollup> findRollups(StockId stockId, RollupResolution resolution, Timestamp from,
+			Timestamp before) {
+		ItemRollups itemRollups = rollups.get(stockId);
+		if (itemRollups == null) {
+			return new ArrayList<>();
+		}
+		return itemRollups.between(resolution, from, before);
+	}
+
+	@Override
+	public void mergeRollups(Collection<StockLevelRollup> rollupsToMerge) {
+		long position = -1;
+		for (StockLevelRollup rollup : rollupsToMerge) {
+			ItemRollups itemRollups = itemRollups(rollup.getRollupId());
+			// merged and logged together so the log has them in the same order
+			synchronized (itemRollups) {
+				StockLevelRollup merged = itemRollups.merge(rollup);
+				try {
+					position = wal.append(rollupRecord(merged));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+		if (position >= 0) {
+			awaitSynced(position);
+		}
+	}
+
+	@Override
+	public int pruneRollups(RollupResolution resolution, Timestamp before) {
+		long position;
+		try {
+			position = wal.append(pruneRollupsRecord(resolution, before));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int pruned = prune(resolution, before);
+		awaitSynced(position);
+		return pruned;
+	}
+
+	/**
+	 * @return true if changes can still be made
+	 */
+	public boolean isHealthy() {
+		return wal.isHealthy();
+	}
+
+	public WriteAheadLog getWriteAheadLog() {
+		return wal;
+	}
+
+	/**
+	 * @return the number of snapshots taken since startup
+	 */
+	public long getSnapshots() {
+		return snapshots.get();
+	}
+
+	/**
+	 * Stops the snapshots, takes a final one if there's anything in the log (so
+	 * the next startup doesn't have to replay it) and closes the log
+	 */
+	@Override
+	public void close() {
+		snapshotter.shutdown();
+		try {
+			snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (wal.isHealthy() && wal.getSegmentBytes() > 0) {
+			try {
+				snapshot();
+			} catch (IOException e) {
+				log.warn("Final snapshot failed, the log will be replayed on startup", e);
+			}
+		}
+		wal.close();
+	}
+
+	/**
+	 * Rolls the log and writes a snapshot of everything, then removes the log
+	 * segments and snapshots it replaces
+	 */
+	public void snapshot() throws IOException {
+		long startTime = System.currentTimeMillis();
+		long covered = wal.roll();
+		Path snapshotFile = snapshotPath(covered);
+		Path tempFile = directory.resolve(snapshotFile.getFileName() + SNAPSHOT_TEMP_SUFFIX);
+		int itemCount = 0;
+		int auditCount = 0;
+		int rollupCount = 0;
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+			DataOutputStream data = new DataOutputStream(checked);
+			data.writeInt(SNAPSHOT_MAGIC);
+			data.writeLong(auditIds.get());
+			List<Item> items = departments.values().stream().flatMap(department -> department.values().stream())
+					.filter(item -> !item.removed).collect(Collectors.toList());
+			data.writeInt(items.size());
+			for (Item item : items) {
+				writeString(data, item.departmentName);
+				writeString(data, item.itemName);
+				data.writeInt(item.itemCount);
+				data.writeInt(item.threshold);
+			}
+			itemCount = items.size();
+			List<OperationAuditRecord> records = new ArrayList<>();
+			for (AuditTrail trail : auditTrails.values()) {
+				records.addAll(trail.oldestFirst());
+			}
+			data.writeInt(records.size());
+			for (OperationAuditRecord record : records) {
+				writeAudit(data, record);
+			}
+			auditCount = records.size();
+			List<StockLevelRollup> allRollups = new ArrayList<>();
+			for (ItemRollups itemRollups : rollups.values()) {
+				allRollups.addAll(itemRollups.all());
+			}
+			data.writeInt(allRollups.size());
+			for (StockLevelRollup rollup : allRollups) {
+				writeRollup(data, rollup);
+			}
+			rollupCount = allRollups.size();
+			data.flush();
+			// the crc of everything above goes at the end, not itself part of the crc
+			long crc = checked.getChecksum().getValue();
+			data.writeLong(crc);
+			data.flush();
+			// make sure it's all on disk before the rename makes it the snapshot
+			channel.force(true);
+		}
+		Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE);
+		WriteAheadLog.syncDirectory(directory);
+		// now the older segments and snapshots aren't needed
+		for (long segment : WriteAheadLog.segments(directory)) {
+			if (segment <= covered) {
+				Files.deleteIfExists(WriteAheadLog.segmentPath(directory, segment));
+			}
+		}
+		for (long older : snapshotNumbers()) {
+			if (older < covered) {
+				Files.deleteIfExists(snapshotPath(older));
+			}
+		}
+		snapshots.incrementAndGet();
+		log.info("Snapshot " + snapshotFile.getFileName() + " has " + itemCount + " items, " + auditCount
+				+ " audit records and " + rollupCount + " rollups, took " + (System.currentTimeMillis() - startTime)
+				+ "ms");
+	}
+
+	private void snapshotIfDue() {
+		long now = System.currentTimeMillis();
+		long segmentBytes = wal.getSegmentBytes();
+		if (segmentBytes == 0 || !wal.isHealthy()) {
+			// nothing new
+			return;
+		}
+		if (segmentBytes < snapshotAfterBytes && now - lastSnapshotMillis < snapshotIntervalMillis) {
+			return;
+		}
+		try {
+			snapshot();
+		} catch (IOException e) {
+			log.error("Snapshot failed, will try again next time", e);
+		}
+		lastSnapshotMillis = now;
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the log segments after it
+	 * 
+	 * @return the number for the next log segment
+	 */
+	private long recover() throws IOException {
+		long startTime = System.currentTimeMillis();
+		// left over from a snapshot that didn't finish
+		try (Stream<Path> files = Files.list(directory)) {
+			for (Path file : files.filter(file -> file.getFileName().toString().endsWith(SNAPSHOT_TEMP_SUFFIX))
+					.collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		}
+		List<Long> snapshotNumbers = snapshotNumbers();
+		long covered = -1;
+		Set<Long> snapshotAuditIds = new HashSet<>();
+		if (!snapshotNumbers.isEmpty()) {
+			covered = snapshotNumbers.get(snapshotNumbers.size() - 1);
+			loadSnapshot(snapshotPath(covered), snapshotAuditIds);
+		}
+		List<Long> segments = WriteAheadLog.segments(directory);
+		long lastSegment = segments.isEmpty() ? covered : Math.max(covered, segments.get(segments.size() - 1));
+		int replayed = 0;
+		for (long segment : segments) {
+			if (segment <= covered) {
+				// the snapshot replaced this but it wasn't deleted before we stopped
+				Files.deleteIfExists(WriteAheadLog.segmentPath(directory, segment));
+				continue;
+			}
+			WriteAheadLog.replay(directory, segment, segment == lastSegment,
+					record -> replayRecord(record, snapshotAuditIds));
+			replayed++;
+		}
+		long itemCount = departments.values().stream().mapToLong(Map::size).sum();
+		log.info("Recovered " + itemCount + " items from " + directory + " using "
+				+ (covered < 0 ? "no snapshot" : snapshotPath(covered).getFileName()) + " and " + replayed
+				+ " log segments, took " + (System.currentTimeMillis() - startTime) + "ms");
+		return lastSegment + 1;
+	}
+
+	private void loadSnapshot(Path snapshotFile, Set<Long> snapshotAuditIds) throws IOException {
+		try (InputStream file = Files.newInputStream(snapshotFile)) {
+			CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 64 * 1024),
+					new CRC32());
+			DataInputStream data = new DataInputStream(checked);
+			int magic = data.readInt();
+			if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V2 && magic != SNAPSHOT_MAGIC_V1) {
+				throw new IOException("Snapshot " + snapshotFile + " isn't a stock manager snapshot");
+			}
+			auditIds.set(data.readLong());
+			int items = data.readInt();
+			for (int i = 0; i < items; i++) {
+				String departmentName = readString(data);
+				String itemName = readString(data);
+				Item item = putLevel(departmentName, itemName, data.readInt());
+				if (magic != SNAPSHOT_MAGIC_V1) {
+					item.threshold = data.readInt();
+				}
+			}
+			int records = data.readInt();
+			for (int i = 0; i < records; i++) {
+				OperationAuditRecord record = readAudit(data);
+				snapshotAuditIds.add(record.getOperationId());
+				// records made while the snapshot was being written can be newer than the id
+				// at the start of it
+				if (record.getOperationId() > auditIds.get()) {
+					auditIds.set(record.getOperationId());
+				}
+				auditTrail(record.getDepartmentName()).add(record);
+			}
+			if (magic == SNAPSHOT_MAGIC) {
+				int rollupCount = data.readInt();
+				for (int i = 0; i < rollupCount; i++) {
+					StockLevelRollup rollup = readRollup(data);
+					itemRollups(rollup.getRollupId()).merge(rollup);
+				}
+			}
+			long expectedCrc = checked.getChecksum().getValue();
+			if (data.readLong() != expectedCrc) {
+				throw new IOException("Snapshot " + snapshotFile + " is damaged (it fails it's CRC)");
+			}
+		}
+	}
+
+	private void replayRecord(byte[] record, Set<Long> snapshotAuditIds) {
+		try {
+			DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+			byte type = data.readByte();
+			switch (type) {
+			case LEVEL:
+				putLevel(readString(data), readString(data), data.readInt());
+				break;
+			case DELETE:
+				String departmentName = readString(data);
+				String itemName = readString(data);
+				ConcurrentMap<String, Item> items = departments.get(departmentName);
+				if (items != null) {
+					items.remove(itemName);
+				}
+				break;
+			case THRESHOLD:
+				Item item = item(new StockId(readString(data), readString(data)));
+				int threshold = data.readInt();
+				if (item != null) {
+					item.threshold = threshold;
+				}
+				break;
+			case ROLLUP:
+				StockLevelRollup rollup = readRollup(data);
+				itemRollups(rollup.getRollupId()).merge(rollup);
+				break;
+			case PRUNE_ROLLUPS:
+				prune(RollupResolution.values()[data.readByte()], new Timestamp(data.readLong()));
+				break;
+			case AUDIT:
+				OperationAuditRecord audit = readAudit(data);
+				if (audit.getOperationId() > auditIds.get()) {
+					auditIds.set(audit.getOperationId());
+				}
+				if (!snapshotAuditIds.contains(audit.getOperationId())) {
+					auditTrail(audit.getDepartmentName()).add(audit);
+				}
+				break;
+			default:
+				throw new IOException("Unknown log record type " + type);
+			}
+		} catch (IOException e) {
+			// the record passed it's CRC, so this is a bug rather than damage
+			throw new UncheckedIOException("Can't read write ahead log record", e);
+		}
+	}
+
+	// only used during recovery, so no locking
+	private Item putLevel(String departmentName, String itemName, int itemCount) {
+		Item item = departments.computeIfAbsent(departmentName, name -> new ConcurrentHashMap<>())
+				.computeIfAbsent(itemName, name -> new Item(departmentName, itemName, itemCount));
+		item.itemCount = itemCount;
+		return item;
+	}
+
+	// call holding the item's lock
+	private long changeLevel(Item item, int itemCount) {
+		int previous = item.itemCount;
+		item.itemCount = itemCount;
+		try {
+			return wal.append(levelRecord(item));
+		} catch (IOException e) {
+			item.itemCount = previous;
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void awaitSynced(long position) {
+		try {
+			wal.awaitSynced(position);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private Item item(StockId stockId) {
+		ConcurrentMap<String, Item> items = departments.get(stockId.getDepartmentName());
+		return items == null ? null : items.get(stockId.getItemName());
+	}
+
+	private AuditTrail auditTrail(String departmentName) {
+		return auditTrails.computeIfAbsent(departmentName, name -> new AuditTrail(auditRecordsKept));
+	}
+
+	private ItemRollups itemRollups(StockLevelRollupId rollupId) {
+		return rollups.computeIfAbsent(new StockId(rollupId.getDepartmentName(), rollupId.getItemName()),
+				stockId -> new ItemRollups());
+	}
+
+	// the emptied ones are left, they are skipped by the snapshots so go on the
+	// next restart
+	private int prune(RollupResolution resolution, Timestamp before) {
+		int pruned = 0;
+		for (ItemRollups itemRollups : rollups.values()) {
+			pruned += itemRollups.prune(resolution, before);
+		}
+		return pruned;
+	}
+
+	private Path snapshotPath(long number) {
+		return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX));
+	}
+
+	private List<Long> snapshotNumbers() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.map(file -> SNAPSHOT_NAME.matcher(file.getFileName().toString()))
+					.filter(Matcher::matches).map(matcher -> Long.valueOf(matcher.group(1))).sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private static byte[] levelRecord(Item item) {
+		return record(LEVEL, data -> {
+			writeString(data, item.departmentName);
+			writeString(data, item.itemName);
+			data.writeInt(item.itemCount);
+		});
+	}
+
+	private static byte[] deleteRecord(String departmentName, String itemName) {
+		return record(DELETE, data -> {
+			writeString(data, departmentName);
+			writeString(data, itemName);
+		});
+	}
+
+	private static byte[] thresholdRecord(Item item) {
+		return record(THRESHOLD, data -> {
+			writeString(data, item.departmentName);
+			writeString(data, item.itemName);
+			data.writeInt(item.threshold);
+		});
+	}
+
+	private static byte[] rollupRecord(StockLevelRollup rollup) {
+		return record(ROLLUP, data -> writeRollup(data, rollup));
+	}
+
+	private static byte[] pruneRollupsRecord(RollupResolution resolution, Timestamp before) {
+		return record(PRUNE_ROLLUPS, data -> {
+			data.writeByte(resolution.ordinal());
+			data.writeLong(before.getTime());
+		});
+	}
+
+	private static byte[] auditRecord(OperationAuditRecord record) {
+		return record(AUDIT, data -> writeAudit(data, record));
+	}
+
+	private static byte[] record(byte type, RecordWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream data = new DataOutputStream(bytes);
+		try {
+			data.writeByte(type);
+			writer.write(data);
+			data.flush();
+		} catch (IOException e) {
+			// can't happen writing to a byte array
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeAudit(DataOutput data, OperationAuditRecord record) throws IOException {
+		data.writeLong(record.getOperationId());
+		data.writeLong(record.getOperationTs().getTime());
+		data.writeBoolean(record.getSucceded());
+		writeString(data, record.getErrorMessage());
+		writeString(data, record.getOperationType().name());
+		writeString(data, record.getOperationUser());
+		writeString(data, record.getDepartmentName());
+		writeString(data, record.getItemName());
+		data.writeBoolean(record.getItemCount() != null);
+		if (record.getItemCount() != null) {
+			data.writeInt(record.getItemCount());
+		}
+	}
+
+	private static OperationAuditRecord readAudit(DataInput data) throws IOException {
+		OperationAuditRecord record = new OperationAuditRecord();
+		record.setOperationId(data.readLong());
+		record.setOperationTs(new Timestamp(data.readLong()));
+		record.setSucceded(data.readBoolean());
+		record.setErrorMessage(readString(data));
+		record.setOperationType(OperationAuditType.valueOf(readString(data)));
+		record.setOperationUser(readString(data));
+		record.setDepartmentName(readString(data));
+		record.setItemName(readString(data));
+		if (data.readBoolean()) {
+			record.setItemCount(data.readInt());
+		}
+		return record;
+	}
+
+	private static void writeRollup(DataOutput data, StockLevelRollup rollup) throws IOException {
+		StockLevelRollupId rollupId = rollup.getRollupId();
+		writeString(data, rollupId.getDepartmentName());
+		writeString(data, rollupId.getItemName());
+		data.writeByte(rollupId.getResolution().ordinal());
+		data.writeLong(rollupId.getBucketStart().getTime());
+		data.writeInt(rollup.getMinCount());
+		data.writeInt(rollup.getMaxCount());
+		data.writeInt(rollup.getLastCount());
+		data.writeLong(rollup.getLastTs().getTime());
+	}
+
+	private static StockLevelRollup readRollup(DataInput data) throws IOException {
+		StockLevelRollupId rollupId = new StockLevelRollupId(readString(data), readString(data),
+				RollupResolution.values()[data.readByte()], new Timestamp(data.readLong()));
+		return new StockLevelRollup(rollupId, data.readInt(), data.readInt(), data.readInt(),
+				new Timestamp(data.readLong()));
+	}
+
+	// length (or -1 for null) then the UTF-8, writeUTF can't do more than 64K
+	private static void writeString(DataOutput data, String value) throws IOException {
+		if (value == null) {
+			data.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+
+	private static String readString(DataInput data) throws IOException {
+		int length = data.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private interface RecordWriter {
+		public void write(DataOutput data) throws IOException;
+	}
+
+	private static void checkItemCount(int itemCount) {
+		if (itemCount <= 0) {
+			throw new IllegalArgumentException("The number of items must be positive, got " + itemCount);
+		}
+	}
+
+	/**
+	 * The level is only changed holding the item's lock, but it's volatile so
+	 * reads don't need to take it
+	 */
+	private static class Item {
+		private final String departmentName;
+		private final String itemName;
+		private volatile int itemCount;
+		// NO_THRESHOLD if it's not got one of it's own
+		private volatile int threshold = NO_THRESHOLD;
+		// set (holding the lock) when it's deleted, someone who found it just before
+		// then treats it as not there
+		private volatile boolean removed;
+
+		private Item(String departmentName, String itemName, int itemCount) {
+			this.departmentName = departmentName;
+			this.itemName = itemName;
+			this.itemCount = itemCount;
+		}
+
+		private StockId stockId() {
+			return new StockId(departmentName, itemName);
+		}
+
+		private StockLevel toStockLevel() {
+			return new StockLevel(stockId(), itemCount);
+		}
+	}
+
+	/**
+	 * The most recent audit records for a department, up to a limit
+	 */
+	private static class AuditTrail {
+		private final int limit;
+		private final ArrayDeque<OperationAuditRecord> records = new ArrayDeque<>();
+
+		private AuditTrail(int limit) {
+			this.limit = limit;
+		}
+
+		private synchronized void add(OperationAuditRecord record) {
+			records.addLast(record);
+			while (records.size() > limit) {
+				records.removeFirst();
+			}
+		}
+
+		private synchronized List<OperationAuditRecord> newest(int count) {
+			List<OperationAuditRecord> newest = new ArrayList<>(Math.min(count, records.size()));
+			Iterator<OperationAuditRecord> iterator = records.descendingIterator();
+			while (iterator.hasNext() && newest.size() < count) {
+				newest.add(iterator.next());
+			}
+			return newest;
+		}
+
+		private synchronized List<OperationAuditRecord> oldestFirst() {
+			return new ArrayList<>(records);
+		}
+	}
+
+	/**
+	 * The rollups for an item, by resolution then bucket start. The rollups are
+	 * copied in and out so no one else sees them change
+	 */
+	private static class ItemRollups {
+		private final Map<RollupResolution, TreeMap<Timestamp, StockLevelRollup>> buckets = new EnumMap<>(
+				RollupResolution.class);
+
+		// returns the merged rollup, call holding the lock if this needs to stay the
+		// latest until it's logged
+		private synchronized StockLevelRollup merge(StockLevelRollup rollup) {
+			StockLevelRollupId rollupId = rollup.getRollupId();
+			TreeMap<Timestamp, StockLevelRollup> resolutionBuckets = buckets
+					.computeIfAbsent(rollupId.getResolution(), resolution -> new TreeMap<>());
+			StockLevelRollup existing = resolutionBuckets.get(rollupId.getBucketStart());
+			if (existing == null) {
+				existing = rollup.copy();
+				resolutionBuckets.put(rollupId.getBucketStart(), existing);
+			} else {
+				existing.merge(rollup);
+			}
+			return existing.copy();
+		}
+
+		private synchronized List<StockLevelRollup> between(RollupResolution resolution, Timestamp from,
+				Timestamp before) {
+			TreeMap<Timestamp, StockLevelRollup> resolutionBuckets = buckets.get(resolution);
+			if (resolutionBuckets == null || !from.before(before)) {
+				return new ArrayList<>();
+			}
+			return resolutionBuckets.subMap(from, true, before, false).values().stream().map(StockLevelRollup::copy)
+					.collect(Collectors.toList());
+		}
+
+		private synchronized int prune(RollupResolution resolution, Timestamp before) {
+			TreeMap<Timestamp, StockLevelRollup> resolutionBuckets = buckets.get(resolution);
+			if (resolutionBuckets == null) {
+				return 0;
+			}
+			Map<Timestamp, StockLevelRollup> older = resolutionBuckets.headMap(before, false);
+			int pruned = older.size();
+			older.clear();
+			return pruned;
+		}
+
+		private synchronized List<StockLevelRollup> all() {
+			return buckets.values().stream().flatMap(resolutionBuckets -> resolutionBuckets.values().stream())
+					.map(StockLevelRollup::copy).collect(Collectors.toList());
+		}
+	}
+}
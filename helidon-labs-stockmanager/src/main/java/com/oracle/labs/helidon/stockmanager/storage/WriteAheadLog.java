@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An append only log of records, kept in numbered segment files (wal-N.log) in
+ * a directory. Each record is written as it's length, a CRC32 of it and then
+ * the record itself, so a record that was only partly written when the process
+ * died can be spotted.
+ * 
+ * Appending just adds the record to a buffer and returns it's position in the
+ * log, a single writer thread writes out whatever has built up in the buffer
+ * and forces it to disk, then wakes up anyone waiting in awaitSynced. So lots
+ * of threads appending at the same time share a single fsync (group commit)
+ * rather than each doing their own.
+ * 
+ * roll starts a new segment, everything appended before the call is in the
+ * earlier segments, everything after it in the new one, so once those have
+ * been captured somewhere else (a snapshot) they can be deleted
+ */
+@Slf4j
+public class WriteAheadLog implements AutoCloseable {
+	private final static String SEGMENT_PREFIX = "wal-";
+	private final static String SEGMENT_SUFFIX = ".log";
+	// length and crc
+	private final static int RECORD_HEADER_BYTES = 8;
+
+	private final Path directory;
+	// guards everything below it, and is what the writer and the waiters wait on
+	private final Object lock = new Object();
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(64 * 1024);
+	// positions are the total bytes in the log since this was opened, across all
+	// the segments
+	private long appendedPosition;
+	private long syncedPosition;
+	// the position to start a new segment at, -1 if no roll has been asked for
+	private long rollPosition = -1;
+	private long segment;
+	private long segmentBytes;
+	private IOException failure;
+	private boolean closed;
+	private long syncs;
+	private long appends;
+	private final Thread writer;
+	// only used by the writer thread
+	private FileChannel channel;
+
+	/**
+	 * Opens the log for appending, the records go in a new segment numbered
+	 * segment, any earlier segments should have been read (and repaired) already
+	 */
+	public WriteAheadLog(Path directory, long segment) throws IOException {
+		this.directory = directory;
+		this.segment = segment;
+		this.channel = openSegment(segment);
+		writer = new Thread(this::writeLoop, "wal-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Adds the record to the log, it's not on disk until awaitSynced for the
+	 * returned position has returned
+	 * 
+	 * @return the position in the log just after the record
+	 * @throws IOException if the log has failed (or been closed), once that's
+	 *                     happened nothing else can be appended
+	 */
+	public long append(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		synchronized (lock) {
+			checkUsable();
+			writeInt(record.length);
+			writeInt((int) crc.getValue());
+			pending.write(record, 0, record.length);
+			appendedPosition += RECORD_HEADER_BYTES + record.length;
+			appends++;
+			lock.notifyAll();
+			return appendedPosition;
+		}
+	}
+
+	/**
+	 * Waits until everything up to position is on disk
+	 * 
+	 * @throws IOException if the log failed before getting that far
+	 */
+	public void awaitSynced(long position) throws IOException {
+		synchronized (lock) {
+			while (syncedPosition < position) {
+				if (failure != null) {
+					throw new IOException("The write ahead log has failed", failure);
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for the write ahead log", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a new segment
+	 * 
+	 * @return the number of the last of the older segments, they have everything
+	 *         appended before this was called and it's all on disk
+	 */
+	public long roll() throws IOException {
+		synchronized (lock) {
+			checkUsable();
+			// one roll at a time, another could be in progress from a different thread
+			while (rollPosition >= 0) {
+				waitForWriter();
+			}
+			long rollingFrom = segment;
+			rollPosition = appendedPosition;
+			lock.notifyAll();
+			while (segment == rollingFrom) {
+				waitForWriter();
+			}
+			return rollingFrom;
+		}
+	}
+
+	/**
+	 * @return true if the log can still be written to
+	 */
+	public boolean isHealthy() {
+		synchronized (lock) {
+			return failure == null && !closed;
+		}
+	}
+
+	/**
+	 * @return the bytes written to the current segment
+	 */
+	public long getSegmentBytes() {
+		synchronized (lock) {
+			return segmentBytes;
+		}
+	}
+
+	/**
+	 * @return the number of fsyncs done, each one covers all the records appended
+	 *         since the previous one
+	 */
+	public long getSyncs() {
+		synchronized (lock) {
+			return syncs;
+		}
+	}
+
+	/**
+	 * @return the number of records appended
+	 */
+	public long getAppends() {
+		synchronized (lock) {
+			return appends;
+		}
+	}
+
+	/**
+	 * Writes out anything that's been appended and stops the writer
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				byte[] batch;
+				long batchStart;
+				long roll;
+				synchronized (lock) {
+					while (pending.size() == 0 && rollPosition < 0 && !closed) {
+						lock.wait();
+					}
+					if (pending.size() == 0 && rollPosition < 0) {
+						// closed and there's nothing left to write
+						channel.close();
+						return;
+					}
+					batch = pending.toByteArray();
+					pending.reset();
+					batchStart = syncedPosition;
+					roll = rollPosition;
+				}
+				long written;
+				if (roll >= 0) {
+					// what was appended before the roll finishes off the current segment, the
+					// rest starts the new one
+					int split = (int) (roll - batchStart);
+					write(batch, 0, split);
+					channel.force(false);
+					channel.close();
+					FileChannel next = openSegment(segment + 1);
+					channel = next;
+					synchronized (lock) {
+						segment++;
+						segmentBytes = 0;
+						rollPosition = -1;
+						syncedPosition = roll;
+						syncs++;
+						lock.notifyAll();
+					}
+					written = write(batch, split, batch.length - split);
+				} else {
+					written = write(batch, 0, batch.length);
+				}
+				if (written > 0) {
+					channel.force(false);
+				}
+				synchronized (lock) {
+					syncedPosition = batchStart + batch.length;
+					segmentBytes += written;
+					if (written > 0) {
+						syncs++;
+					}
+					lock.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			log.error("Write ahead log failed, no more changes can be made", e);
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			synchronized (lock) {
+				failure = new IOException("Write ahead log writer interrupted", e);
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private long write(byte[] batch, int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(batch, offset, length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return length;
+	}
+
+	private FileChannel openSegment(long number) throws IOException {
+		FileChannel opened = FileChannel.open(segmentPath(directory, number), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		// make sure the new file itself survives a crash
+		syncDirectory(directory);
+		return opened;
+	}
+
+	private void writeInt(int value) {
+		pending.write(value >>> 24);
+		pending.write(value >>> 16);
+		pending.write(value >>> 8);
+		pending.write(value);
+	}
+
+	// call holding the lock
+	private void checkUsable() throws IOException {
+		if (failure != null) {
+			throw new IOException("The write ahead log has failed", failure);
+		}
+		if (closed) {
+			throw new IOException("The write ahead log has been closed");
+		}
+	}
+
+	// call holding the lock
+	private void waitForWriter() throws IOException {
+		if (failure != null) {
+			throw new IOException("The write ahead log has failed", failure);
+		}
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for the write ahead log", e);
+		}
+	}
+
+	public static Path segmentPath(Path directory, long number) {
+		return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * @return the numbers of the segments in the directory, oldest first
+	 */
+	public static List<Long> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.map(file -> file.getFileName().toString())
+					.filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+					.map(name -> Long.valueOf(
+							name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+					.sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Passes the records in a segment to records, in the order they were
+	 * appended.
+	 * 
+	 * A record at the end of the segment that's incomplete or fails it's CRC was
+	 * being written when the process stopped (and so was never acknowledged), if
+	 * lastSegment is true the segment is cut back to before it. Anywhere else that
+	 * means the log has been damaged, which is an IOException
+	 */
+	public static void replay(Path directory, long number, boolean lastSegment, Consumer<byte[]> records)
+			throws IOException {
+		Path file = segmentPath(directory, number);
+		long goodBytes = 0;
+		String problem = null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				InputStream input = Channels.newInputStream(channel);
+				DataInputStream data = new DataInputStream(new BufferedInputStream(input, 64 * 1024))) {
+			long fileBytes = channel.size();
+			while (true) {
+				int length;
+				try {
+					length = data.readInt();
+				} catch (EOFException e) {
+					// a clean end
+					break;
+				}
+				try {
+					int crc = data.readInt();
+					if (length < 0) {
+						problem = "a negative record length";
+						break;
+					}
+					// a length that's been torn (or damaged) can be anything, so it's checked
+					// against what's left before the buffer for it is allocated
+					if (length > fileBytes - goodBytes - RECORD_HEADER_BYTES) {
+						problem = "an incomplete record";
+						break;
+					}
+					byte[] record = new byte[length];
+					data.readFully(record);
+					CRC32 check = new CRC32();
+					check.update(record);
+					if ((int) check.getValue() != crc) {
+						problem = "a record that fails it's CRC";
+						break;
+					}
+					records.accept(record);
+					goodBytes += RECORD_HEADER_BYTES + length;
+				} catch (EOFException e) {
+					problem = "an incomplete record";
+					break;
+				}
+			}
+		}
+		if (problem != null) {
+			if (!lastSegment) {
+				throw new IOException("Write ahead log segment " + file + " has " + problem + " at byte " + goodBytes);
+			}
+			log.warn("Write ahead log segment " + file + " has " + problem + " at byte " + goodBytes
+					+ ", this was being written when the stock manager stopped and is being discarded");
+			try (FileChannel truncate = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				truncate.truncate(goodBytes);
+				truncate.force(true);
+			}
+		}
+	}
+
+	/**
+	 * fsyncs a directory so files created (or renamed) in it are still there after
+	 * a crash, not every platform allows this so failures are ignored
+	 */
+	public static void syncDirectory(Path directory) {
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			log.debug("Can't sync directory " + directory + ", " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.oracle.labs.helidon.stockmanager.database.OperationAuditRecord;
+import com.oracle.labs.helidon.stockmanager.database.StockId;
+import com.oracle.labs.helidon.stockmanager.database.StockLevel;
+
+public class WalStockStoreTest {
+	private final static String DEPARTMENT = "TestDept";
+	// big enough that the snapshotter never takes one on it's own, the tests say
+	// when
+	private final static int SNAPSHOT_INTERVAL_SECONDS = 3600;
+	private final static long SNAPSHOT_AFTER_BYTES = Long.MAX_VALUE;
+	private final static int AUDIT_RECORDS_KEPT = 100000;
+
+	private Path directory;
+
+	@BeforeEach
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("wal-store-test");
+	}
+
+	@AfterEach
+	public void deleteDirectory() throws IOException {
+		WriteAheadLogTest.deleteAll(directory);
+	}
+
+	@Test
+	public void replaysTheLogWhenThereIsNoSnapshot() throws IOException {
+		WalStockStore store = open();
+		assertTrue(store.create(new StockLevel(id("Pencil"), 100)));
+		assertTrue(store.create(new StockLevel(id("Pin"), 50)));
+		assertTrue(store.create(new StockLevel(id("Eraser"), 10)));
+		assertEquals(Status.OK.getStatusCode(), store.reserve(id("Pencil"), 30).getStatus());
+		store.release(id("Pin"), 5);
+		store.delete(id("Eraser"));
+		store.audit(audit("Pencil", 30));
+		assertEquals(0, store.getSnapshots());
+		crash(store);
+
+		store = open();
+		try {
+			assertEquals(70, store.find(id("Pencil")).getItemCount());
+			assertEquals(55, store.find(id("Pin")).getItemCount());
+			assertNull(store.find(id("Eraser")));
+			assertEquals(1, store.recentAuditRecords(DEPARTMENT, 10).size());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void recoversFromASnapshotAndTheSegmentsAfterIt() throws IOException {
+		WalStockStore store = open();
+		store.create(new StockLevel(id("Pencil"), 100));
+		store.create(new StockLevel(id("Pin"), 50));
+		for (int i = 0; i < 10; i++) {
+			store.reserve(id("Pencil"), 1);
+			store.audit(audit("Pencil", 1));
+		}
+		store.snapshot();
+		for (int i = 0; i < 5; i++) {
+			store.reserve(id("Pencil"), 1);
+			store.audit(audit("Pencil", 1));
+		}
+		store.setItemCount(id("Pin"), 20);
+		crash(store);
+
+		store = open();
+		try {
+			assertEquals(85, store.find(id("Pencil")).getItemCount());
+			assertEquals(20, store.find(id("Pin")).getItemCount());
+			List<OperationAuditRecord> records = store.recentAuditRecords(DEPARTMENT, 100);
+			assertEquals(15, records.size());
+			assertEquals(15, auditIds(records).size());
+			// and new records carry on from the recovered ids
+			store.audit(audit("Pin", 1));
+			assertEquals(16, auditIds(store.recentAuditRecords(DEPARTMENT, 100)).size());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void recoveryDoesNotDuplicateAuditRecordsInTheSnapshotAndTheLog() throws IOException {
+		WalStockStore store = open();
+		store.create(new StockLevel(id("Pencil"), 100));
+		for (int i = 0; i < 10; i++) {
+			store.audit(audit("Pencil", 1));
+		}
+		store.snapshot();
+		for (int i = 0; i < 10; i++) {
+			store.audit(audit("Pencil", 1));
+		}
+		// a snapshot carries on taking records after it's rolled the log, so the
+		// segment after it can have records that are in the snapshot as well. Here
+		// the second snapshot has all 20 and the segment after it is given a copy of
+		// the last 10 (the level change waits for them to be on disk as well)
+		store.setItemCount(id("Pencil"), 90);
+		byte[] lastTen = Files.readAllBytes(lastSegment());
+		store.snapshot();
+		crash(store);
+		Files.write(lastSegment(), lastTen);
+		crash(store);
+
+		store = open();
+		try {
+			List<OperationAuditRecord> records = store.recentAuditRecords(DEPARTMENT, 100);
+			assertEquals(20, records.size());
+			assertEquals(20, auditIds(records).size());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void truncatedLastRecordIsDiscarded() throws IOException {
+		WalStockStore store = open();
+		store.create(new StockLevel(id("Pencil"), 100));
+		store.reserve(id("Pencil"), 10);
+		crash(store);
+		Path lastSegment = lastSegment();
+		byte[] torn = { 0, 0, 0, 100, 1, 2, 3, 4, 'a', 'b' };
+		Files.write(lastSegment, torn, StandardOpenOption.APPEND);
+
+		store = open();
+		try {
+			assertEquals(90, store.find(id("Pencil")).getItemCount());
+			// the log is usable again
+			assertEquals(Status.OK.getStatusCode(), store.reserve(id("Pencil"), 10).getStatus());
+			assertTrue(store.isHealthy());
+		} finally {
+			store.close();
+		}
+		store = open();
+		try {
+			assertEquals(80, store.find(id("Pencil")).getItemCount());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void damagedRecordInAnEarlierSegmentStopsStartup() throws IOException {
+		WalStockStore store = open();
+		store.create(new StockLevel(id("Pencil"), 100));
+		store.reserve(id("Pencil"), 10);
+		store.getWriteAheadLog().roll();
+		store.reserve(id("Pencil"), 10);
+		crash(store);
+		List<Long> segments = WriteAheadLog.segments(directory);
+		assertEquals(2, segments.size());
+		WriteAheadLogTest.damage(WriteAheadLog.segmentPath(directory, segments.get(0)));
+		assertThrows(IOException.class, this::open);
+	}
+
+	@Test
+	public void leftoverTempSnapshotIsDeleted() throws IOException {
+		WalStockStore store = open();
+		store.create(new StockLevel(id("Pencil"), 100));
+		store.snapshot();
+		store.reserve(id("Pencil"), 10);
+		crash(store);
+		// a snapshot that was being written when the process stopped
+		Path temp = directory.resolve("snapshot-0000000000000005.snap.tmp");
+		Files.write(temp, new byte[] { 1, 2, 3 });
+
+		store = open();
+		try {
+			assertFalse(Files.exists(temp));
+			assertEquals(90, store.find(id("Pencil")).getItemCount());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void snapshotTakenWhileChangesCarryOn() throws Exception {
+		int threads = 4;
+		int changesPerThread = 500;
+		WalStockStore store = open();
+		for (int thread = 0; thread < threads; thread++) {
+			store.create(new StockLevel(id("Item" + thread), 0));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<?>> changes = new ArrayList<>();
+			for (int thread = 0; thread < threads; thread++) {
+				String itemName = "Item" + thread;
+				changes.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < changesPerThread; i++) {
+						store.release(id(itemName), 1);
+						store.audit(audit(itemName, 1));
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			int snapshots = 0;
+			while (changes.stream().anyMatch(change -> !change.isDone())) {
+				store.snapshot();
+				snapshots++;
+			}
+			for (Future<?> change : changes) {
+				change.get();
+			}
+			assertTrue(snapshots > 0);
+		} finally {
+			executor.shutdownNow();
+		}
+		crash(store);
+
+		WalStockStore recovered = open();
+		try {
+			for (int thread = 0; thread < threads; thread++) {
+				assertEquals(changesPerThread, recovered.find(id("Item" + thread)).getItemCount());
+			}
+			List<OperationAuditRecord> records = recovered.recentAuditRecords(DEPARTMENT, AUDIT_RECORDS_KEPT);
+			assertEquals(threads * changesPerThread, records.size());
+			assertEquals(threads * changesPerThread, auditIds(records).size());
+		} finally {
+			recovered.close();
+		}
+	}
+
+	private WalStockStore open() throws IOException {
+		return new WalStockStore(directory, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_AFTER_BYTES, AUDIT_RECORDS_KEPT);
+	}
+
+	// stops the store without the final snapshot close would take, so the next
+	// open has to replay the log as it would after the process was killed
+	private static void crash(WalStockStore store) {
+		store.getWriteAheadLog().close();
+		store.close();
+	}
+
+	private Path lastSegment() throws IOException {
+		List<Long> segments = WriteAheadLog.segments(directory);
+		return WriteAheadLog.segmentPath(directory, segments.get(segments.size() - 1));
+	}
+
+	private static Set<Long> auditIds(List<OperationAuditRecord> records) {
+		return records.stream().map(OperationAuditRecord::getOperationId).collect(Collectors.toSet());
+	}
+
+	private static StockId id(String itemName) {
+		return new StockId(DEPARTMENT, itemName);
+	}
+
+	private static OperationAuditRecord audit(String itemName, int itemCount) {
+		return OperationAuditRecord.update(true, null, "jack", DEPARTMENT, itemName, itemCount);
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.stockmanager.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class WriteAheadLogTest {
+	private Path directory;
+
+	@BeforeEach
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("wal-test");
+	}
+
+	@AfterEach
+	public void deleteDirectory() throws IOException {
+		deleteAll(directory);
+	}
+
+	@Test
+	public void replaysRecordsInTheOrderTheyWereAppended() throws IOException {
+		try (WriteAheadLog wal = new WriteAheadLog(directory, 0)) {
+			long position = 0;
+			for (int i = 0; i < 100; i++) {
+				position = wal.append(record(i));
+			}
+			wal.awaitSynced(position);
+		}
+		List<byte[]> replayed = replay(0, true);
+		assertEquals(100, replayed.size());
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(record(i), replayed.get(i));
+		}
+	}
+
+	@Test
+	public void rollStartsANewSegment() throws IOException {
+		try (WriteAheadLog wal = new WriteAheadLog(directory, 0)) {
+			wal.append(record(0));
+			assertEquals(0, wal.roll());
+			wal.awaitSynced(wal.append(record(1)));
+		}
+		assertEquals(List.of(0L, 1L), WriteAheadLog.segments(directory));
+		assertEquals(1, replay(0, false).size());
+		assertArrayEquals(record(1), replay(1, true).get(0));
+	}
+
+	@Test
+	public void truncatedLastRecordIsACleanEnd() throws IOException {
+		writeRecords(0, 3);
+		Path segment = WriteAheadLog.segmentPath(directory, 0);
+		long goodBytes = Files.size(segment);
+		// a record that was being written when the process stopped, the header says
+		// 100 bytes but only 3 got to the disk
+		byte[] torn = { 0, 0, 0, 100, 1, 2, 3, 4, 'a', 'b', 'c' };
+		Files.write(segment, torn, StandardOpenOption.APPEND);
+		List<byte[]> replayed = replay(0, true);
+		assertEquals(3, replayed.size());
+		// and it's been cut off so appending to the log again starts at a record
+		// boundary
+		assertEquals(goodBytes, Files.size(segment));
+	}
+
+	@Test
+	public void damagedRecordInAnEarlierSegmentIsRejected() throws IOException {
+		try (WriteAheadLog wal = new WriteAheadLog(directory, 0)) {
+			for (int i = 0; i < 3; i++) {
+				wal.append(record(i));
+			}
+			wal.roll();
+			wal.awaitSynced(wal.append(record(3)));
+		}
+		damage(WriteAheadLog.segmentPath(directory, 0));
+		assertThrows(IOException.class, () -> replay(0, false));
+		// the same damage at the end of the last segment is a record that was never
+		// acknowledged, so that's a clean end
+		damage(WriteAheadLog.segmentPath(directory, 1));
+		assertEquals(0, replay(1, true).size());
+	}
+
+	private void writeRecords(long segment, int count) throws IOException {
+		try (WriteAheadLog wal = new WriteAheadLog(directory, segment)) {
+			long position = 0;
+			for (int i = 0; i < count; i++) {
+				position = wal.append(record(i));
+			}
+			wal.awaitSynced(position);
+		}
+	}
+
+	private List<byte[]> replay(long segment, boolean lastSegment) throws IOException {
+		List<byte[]> replayed = new ArrayList<>();
+		WriteAheadLog.replay(directory, segment, lastSegment, replayed::add);
+		return replayed;
+	}
+
+	private static byte[] record(int number) {
+		return ("record " + number).getBytes(StandardCharsets.UTF_8);
+	}
+
+	// flips a bit in the last byte of the segment, which is in the last record's
+	// data so it fails the CRC
+	static void damage(Path segment) throws IOException {
+		byte[] bytes = Files.readAllBytes(segment);
+		bytes[bytes.length - 1] ^= 1;
+		Files.write(segment, bytes);
+	}
+
+	static void deleteAll(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+}
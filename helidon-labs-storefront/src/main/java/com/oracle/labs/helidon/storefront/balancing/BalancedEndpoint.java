@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.balancing;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+/**
+ * One of the stock managers the LoadBalancedStockManager spreads the calls
+ * over, with what the balancer knows about it - the calls outstanding, the peak
+ * EWMA of it's response times, how many calls in a row have failed and if it's
+ * been ejected or is in slow start.
+ * 
+ * The peak EWMA jumps straight up to a response time that's slower than it,
+ * and decays back down towards faster ones with a time constant of DECAY, so a
+ * stock manager that starts to slow down is avoided straight away but has to
+ * be consistently fast for a few seconds to get its traffic back. It decays
+ * while it's not being used too, otherwise one that was avoided would never be
+ * tried again.
+ * 
+ * Once it's back in use (at startup, or when it's ejection ends) it's weight
+ * goes up in a straight line from MIN_WEIGHT to 1 over the slow start time, so
+ * it isn't swamped before it's warmed up
+ */
+class BalancedEndpoint {
+	private final static double DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private final static double MIN_WEIGHT = 0.1;
+
+	final String name;
+	final StockManager stockManager;
+	private final long slowStartNanos;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile double peakEwmaNanos;
+	private volatile long lastSampleNanos = System.nanoTime();
+	private volatile long activeSinceNanos;
+	private volatile long ejectedUntilNanos;
+	private int consecutiveFailures;
+	private int ejections;
+	final Counter requests;
+	final Counter failures;
+	final Counter ejected;
+
+	BalancedEndpoint(String name, StockManager stockManager, long slowStartNanos, MetricRegistry metricRegistry) {
+		this.name = name;
+		this.stockManager = stockManager;
+		this.slowStartNanos = slowStartNanos;
+		// the ones we start with are all at full weight, there's nothing for them to
+		// be slow compared to
+		this.activeSinceNanos = System.nanoTime() - slowStartNanos;
+		Tag tag = new Tag("endpoint", name);
+		requests = metricRegistry.counter(metadata("stockmanager.balancing.requests",
+				"Calls sent to this stock manager", MetricType.COUNTER, MetricUnits.NONE), tag);
+		failures = metricRegistry.counter(metadata("stockmanager.balancing.failures",
+				"Calls to this stock manager that failed to connect, timed out or got a server error",
+				MetricType.COUNTER, MetricUnits.NONE), tag);
+		ejected = metricRegistry.counter(metadata("stockmanager.balancing.ejections",
+				"Times this stock manager has been ejected", MetricType.COUNTER, MetricUnits.NONE), tag);
+		metricRegistry.register(
+				metadata("stockmanager.balancing.outstanding", "Calls in flight to this stock manager",
+						MetricType.GAUGE, MetricUnits.NONE),
+				(Gauge<Integer>) outstanding::get, tag);
+		metricRegistry.register(
+				metadata("stockmanager.balancing.latency", "Peak EWMA of this stock managers response times",
+						MetricType.GAUGE, MetricUnits.MILLISECONDS),
+				(Gauge<Double>) () -> getPeakEwmaNanos(System.nanoTime()) / 1000000.0, tag);
+		metricRegistry.register(
+				metadata("stockmanager.balancing.weight",
+						"Share of the traffic this stock manager gets while in slow start (1 when it's finished)",
+						MetricType.GAUGE, MetricUnits.NONE),
+				(Gauge<Double>) () -> isEjected(System.nanoTime()) ? 0 : weight(System.nanoTime()), tag);
+	}
+
+	int getOutstanding() {
+		return outstanding.get();
+	}
+
+	double getPeakEwmaNanos(long now) {
+		return peakEwmaNanos * decay(now - lastSampleNanos);
+	}
+
+	void started() {
+		requests.inc();
+		outstanding.incrementAndGet();
+	}
+
+	void finished() {
+		outstanding.decrementAndGet();
+	}
+
+	synchronized void recordLatency(long rttNanos, long now) {
+		double decay = decay(now - lastSampleNanos);
+		double decayed = peakEwmaNanos * decay;
+		peakEwmaNanos = rttNanos > decayed ? rttNanos : decayed + rttNanos * (1 - decay);
+		lastSampleNanos = now;
+	}
+
+	private static double decay(long elapsedNanos) {
+		return Math.exp(-Math.max(0, elapsedNanos) / DECAY_NANOS);
+	}
+
+	/**
+	 * @return the number of calls in a row that have now failed
+	 */
+	synchronized int recordFailure() {
+		failures.inc();
+		return ++consecutiveFailures;
+	}
+
+	/**
+	 * A success clears the failures, and once it's been back for as long as an
+	 * ejection lasts the ejections are forgotten too
+	 */
+	synchronized void recordSuccess(long now, long ejectNanos) {
+		consecutiveFailures = 0;
+		if ((ejections > 0) && (now - activeSinceNanos > ejectNanos)) {
+			ejections = 0;
+		}
+	}
+
+	/**
+	 * Each time it's ejected in a row it's out for longer, up to maxMultiplier
+	 * times ejectNanos
+	 */
+	synchronized long eject(long now, long ejectNanos, int maxMultiplier) {
+		ejected.inc();
+		ejections++;
+		consecutiveFailures = 0;
+		long duration = ejectNanos * Math.min(ejections, maxMultiplier);
+		ejectedUntilNanos = now + duration;
+		return duration;
+	}
+
+	boolean isEjected(long now) {
+		long until = ejectedUntilNanos;
+		return (until != 0) && (now - until < 0);
+	}
+
+	boolean isEjectionOver(long now) {
+		long until = ejectedUntilNanos;
+		return (until != 0) && (now - until >= 0);
+	}
+
+	/**
+	 * Back in use, what we knew about it's latency is out of date, so it starts
+	 * off looking like the others (seedNanos) and builds up from there
+	 */
+	synchronized void reinstate(long now, double seedNanos) {
+		ejectedUntilNanos = 0;
+		activeSinceNanos = now;
+		peakEwmaNanos = seedNanos;
+		lastSampleNanos = now;
+	}
+
+	double weight(long now) {
+		if (slowStartNanos <= 0) {
+			return 1;
+		}
+		double warmed = (now - activeSinceNanos) / (double) slowStartNanos;
+		return Math.max(MIN_WEIGHT, Math.min(1, warmed));
+	}
+
+	private static Metadata metadata(String name, String description, MetricType type, String unit) {
+		return Metadata.builder().withName(name).withDescription(description).withType(type).withUnit(unit).build();
+	}
+}
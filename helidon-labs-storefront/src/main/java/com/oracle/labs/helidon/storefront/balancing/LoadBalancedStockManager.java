@@ -0,0 +1,286 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.balancing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spreads the calls over several stock managers (each with it's own client)
+ * rather than leaving it to whatever's in front of a single URL, which can't
+ * see how quickly each of them is answering.
+ * 
+ * Each call goes to the better of two stock managers picked at random (the
+ * power of two choices), that way a slow or busy one gets less traffic, but
+ * callers don't all pile on to the one that happens to look best at the
+ * moment. What's better depends on the policy
+ * 
+ * leastRequests - the one with the fewest calls outstanding
+ * 
+ * peakEwma - the one with the lowest peak EWMA response time multiplied by the
+ * calls outstanding (plus one), which takes into account how fast it is as
+ * well as how busy
+ * 
+ * Either way the cost is divided by the weight, which is less than one while a
+ * stock manager is in slow start.
+ * 
+ * Calls that fail to connect, time out or get a server error (5xx) count as
+ * failures (a 404 or 409 is the stock manager answering). After
+ * ejectAfterFailures failures in a row a stock manager is ejected and gets no
+ * calls for ejectSeconds (longer each time it's ejected in a row), then it's
+ * back in slow start. No more than maxEjectPercent of the stock managers are
+ * ejected at once, if they are all failing it's probably not them. If all of
+ * them are ejected anyway the calls go to all of them.
+ * 
+ * Each stock manager has it's own set of stockmanager.balancing.* metrics
+ * tagged with it's endpoint (host:port)
+ */
+@Slf4j
+public class LoadBalancedStockManager implements StockManager, AutoCloseable {
+	public final static String POLICY_LEAST_REQUESTS = "leastRequests";
+	public final static String POLICY_PEAK_EWMA = "peakEwma";
+	private final static int MAX_EJECTION_MULTIPLIER = 5;
+
+	private final List<BalancedEndpoint> endpoints = new ArrayList<>();
+	private final boolean peakEwma;
+	private final int ejectAfterFailures;
+	private final long ejectNanos;
+	private final int maxEjected;
+
+	public LoadBalancedStockManager(Map<String, StockManager> stockManagers, String policy, int ejectAfterFailures,
+			int ejectSeconds, int maxEjectPercent, int slowStartSeconds, MetricRegistry metricRegistry) {
+		switch (policy) {
+		case POLICY_LEAST_REQUESTS:
+			peakEwma = false;
+			break;
+		case POLICY_PEAK_EWMA:
+			peakEwma = true;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown app.stockmanager.balancing.policy " + policy
+					+ ", must be one of " + POLICY_LEAST_REQUESTS + " or " + POLICY_PEAK_EWMA);
+		}
+		this.ejectAfterFailures = ejectAfterFailures;
+		this.ejectNanos = TimeUnit.SECONDS.toNanos(ejectSeconds);
+		this.maxEjected = stockManagers.size() * maxEjectPercent / 100;
+		long slowStartNanos = TimeUnit.SECONDS.toNanos(slowStartSeconds);
+		stockManagers.forEach((name, stockManager) -> endpoints
+				.add(new BalancedEndpoint(name, stockManager, slowStartNanos, metricRegistry)));
+		log.info("Balancing the stock manager calls over " + stockManagers.keySet() + " by " + policy
+				+ ", ejecting after " + ejectAfterFailures + " failures for " + ejectSeconds
+				+ " seconds with a slow start of " + slowStartSeconds + " seconds");
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return balanced(stockManager -> stockManager.getAllStockLevels());
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return balanced(stockManager -> stockManager.getStockItem(itemName));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return balanced(stockManager -> stockManager.setStockItemLevel(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return balanced(stockManager -> stockManager.reserveStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return balanced(stockManager -> stockManager.releaseStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return balanced(stockManager -> stockManager.reserveStockItems(reservations));
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return balancedAsync(stockManager -> stockManager.getAllStockLevelsAsync());
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return balancedAsync(stockManager -> stockManager.reserveStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return balancedAsync(stockManager -> stockManager.releaseStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public void close() {
+		for (BalancedEndpoint endpoint : endpoints) {
+			if (endpoint.stockManager instanceof AutoCloseable) {
+				try {
+					((AutoCloseable) endpoint.stockManager).close();
+				} catch (Exception e) {
+					log.warn("Problem closing the stock manager client for " + endpoint.name, e);
+				}
+			}
+		}
+	}
+
+	private <T> T balanced(Function<StockManager, T> call) {
+		BalancedEndpoint endpoint = choose();
+		endpoint.started();
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = call.apply(endpoint.stockManager);
+		} catch (RuntimeException e) {
+			completed(endpoint, start, e);
+			throw e;
+		}
+		completed(endpoint, start, null);
+		return result;
+	}
+
+	private <T> CompletionStage<T> balancedAsync(Function<StockManager, CompletionStage<T>> call) {
+		BalancedEndpoint endpoint = choose();
+		endpoint.started();
+		long start = System.nanoTime();
+		CompletionStage<T> stage;
+		try {
+			stage = call.apply(endpoint.stockManager);
+		} catch (RuntimeException e) {
+			stage = CompletableFuture.failedFuture(e);
+		}
+		return stage.whenComplete((result, failure) -> completed(endpoint, start,
+				failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+						: failure));
+	}
+
+	private BalancedEndpoint choose() {
+		long now = System.nanoTime();
+		List<BalancedEndpoint> available = new ArrayList<>(endpoints.size());
+		for (BalancedEndpoint endpoint : endpoints) {
+			if (endpoint.isEjectionOver(now)) {
+				reinstate(endpoint, now);
+			}
+			if (!endpoint.isEjected(now)) {
+				available.add(endpoint);
+			}
+		}
+		if (available.isEmpty()) {
+			available = endpoints;
+		}
+		if (available.size() == 1) {
+			return available.get(0);
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(available.size());
+		int second = random.nextInt(available.size() - 1);
+		if (second >= first) {
+			second++;
+		}
+		BalancedEndpoint a = available.get(first);
+		BalancedEndpoint b = available.get(second);
+		return cost(a, now) <= cost(b, now) ? a : b;
+	}
+
+	private double cost(BalancedEndpoint endpoint, long now) {
+		double load = endpoint.getOutstanding() + 1;
+		if (peakEwma) {
+			// the +1 is so before there are any response times the outstanding calls
+			// still count
+			load *= endpoint.getPeakEwmaNanos(now) + 1;
+		}
+		return load / endpoint.weight(now);
+	}
+
+	private void completed(BalancedEndpoint endpoint, long start, Throwable failure) {
+		endpoint.finished();
+		long now = System.nanoTime();
+		if (isFailure(failure)) {
+			// a failure counts as at least as slow as the last response so a stock
+			// manager that fails fast doesn't end up looking like the best one
+			endpoint.recordLatency(Math.max(now - start, 2 * (long) endpoint.getPeakEwmaNanos(now)), now);
+			if (endpoint.recordFailure() >= ejectAfterFailures) {
+				eject(endpoint, now);
+			}
+		} else {
+			endpoint.recordLatency(now - start, now);
+			if (failure == null || failure instanceof WebApplicationException) {
+				endpoint.recordSuccess(now, ejectNanos);
+			}
+		}
+	}
+
+	private static boolean isFailure(Throwable failure) {
+		if (failure instanceof ProcessingException) {
+			return true;
+		}
+		return (failure instanceof WebApplicationException)
+				&& (((WebApplicationException) failure).getResponse().getStatus() >= 500);
+	}
+
+	private synchronized void eject(BalancedEndpoint endpoint, long now) {
+		if (endpoint.isEjected(now)) {
+			return;
+		}
+		long ejected = endpoints.stream().filter(other -> other.isEjected(now)).count();
+		if (ejected >= maxEjected) {
+			log.warn("Stock manager " + endpoint.name + " keeps failing, but " + ejected
+					+ " are already ejected so it's staying in");
+			return;
+		}
+		long duration = endpoint.eject(now, ejectNanos, MAX_EJECTION_MULTIPLIER);
+		log.warn("Stock manager " + endpoint.name + " has failed " + ejectAfterFailures
+				+ " times in a row, ejecting it for " + TimeUnit.NANOSECONDS.toSeconds(duration) + " seconds");
+	}
+
+	/**
+	 * It starts off with the average latency of the ones that have been in use
+	 */
+	private synchronized void reinstate(BalancedEndpoint endpoint, long now) {
+		if (!endpoint.isEjectionOver(now)) {
+			return;
+		}
+		double seedNanos = endpoints.stream().filter(other -> other != endpoint && !other.isEjected(now))
+				.mapToDouble(other -> other.getPeakEwmaNanos(now)).average().orElse(0);
+		endpoint.reinstate(now, seedNanos);
+		log.info("Stock manager " + endpoint.name + " is back in use, starting slowly");
+	}
+}
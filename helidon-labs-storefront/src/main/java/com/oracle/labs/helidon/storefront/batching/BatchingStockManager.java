@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.batching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+import com.oracle.labs.helidon.storefront.restclients.StockManagerResponseException;
+
+import io.helidon.common.context.Context;
+import io.helidon.common.context.Contexts;
+import io.helidon.security.SecurityContext;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Groups the individual reserveStockItem calls into batches sent to the stock
+ * manager with reserveStockItems, so at busy times there's one request (and
+ * database transaction) for many reservations. Each caller still waits for and
+ * gets the result of it's own reservation (or the exception it would have got
+ * if it had made the call itself).
+ * 
+ * A batch is whatever reservations are waiting when a dispatcher is free, up to
+ * maxBatchSize of them. If reservations are arriving faster than one every
+ * maxWait the dispatcher also waits (for no more than maxWait) for enough of
+ * them to fill the batch at the current arrival rate, when they are arriving
+ * slower than that they are sent straight away so light traffic isn't delayed.
+ * The arrival rate is a moving average of the time between reservations.
+ * 
+ * Up to concurrency batches can be in flight at once. The stock manager checks
+ * the credentials of each request, so a batch only holds the reservations of
+ * one user and is sent with their credentials. If the reservations waiting
+ * when a dispatcher is free are for several users it sends a batch for each of
+ * them, in the order their first reservations arrived.
+ * 
+ * The number of batches and reservations sent, and the current wait, are in
+ * the application metrics as stockmanager.batching.*
+ */
+@Slf4j
+public class BatchingStockManager implements StockManager, AutoCloseable {
+	// how much each new gap between arrivals contributes to the average
+	private final static double GAP_WEIGHT = 0.1;
+
+	private final StockManager stockManager;
+	private final int maxBatchSize;
+	private final long maxWaitNanos;
+	private final BlockingQueue<PendingReservation> queue = new LinkedBlockingQueue<>();
+	private final ExecutorService dispatchers;
+	private final AtomicLong lastArrival = new AtomicLong(System.nanoTime());
+	// starts off as light traffic, this is updated without locking so an update
+	// can occasionally be lost, that doesn't matter for an average
+	private volatile double meanGapNanos;
+	private volatile boolean closed = false;
+	private final Counter batches;
+	private final Counter reservations;
+
+	public BatchingStockManager(StockManager stockManager, int maxBatchSize, long maxWaitMillis, int concurrency,
+			MetricRegistry metricRegistry) {
+		this.stockManager = stockManager;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		this.meanGapNanos = maxWaitNanos * 2.0;
+		batches = metricRegistry.counter(counterMetadata("stockmanager.batching.batches",
+				"Batches of reservations sent to the stock manager"));
+		reservations = metricRegistry.counter(counterMetadata("stockmanager.batching.reservations",
+				"Reservations sent to the stock manager in batches"));
+		metricRegistry.register(Metadata.builder().withName("stockmanager.batching.wait")
+				.withDescription("How long a batch currently waits for more reservations").withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.MICROSECONDS).build(),
+				(Gauge<Long>) () -> TimeUnit.NANOSECONDS.toMicros(batchWaitNanos()));
+		dispatchers = Executors.newFixedThreadPool(concurrency, runnable -> {
+			Thread thread = new Thread(runnable, "stockmanager-reservation-batcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for (int i = 0; i < concurrency; i++) {
+			dispatchers.execute(this::dispatch);
+		}
+		log.info("Batching up to " + maxBatchSize + " reservations, waiting up to " + maxWaitMillis
+				+ "ms to fill a batch, with " + concurrency + " batches in flight");
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return stockManager.getAllStockLevels();
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return stockManager.getStockItem(itemName);
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return stockManager.setStockItemLevel(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		if (closed) {
+			return stockManager.reserveStockItem(itemName, itemCount);
+		}
+		try {
+			return enqueue(itemName, itemCount).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItem(itemName, itemCount);
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return stockManager.reserveStockItems(reservations);
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return stockManager.getAllStockLevelsAsync();
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItemAsync(itemName, itemCount);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		if (closed) {
+			return stockManager.reserveStockItemAsync(itemName, itemCount);
+		}
+		// the batch is sent synchronously by the dispatcher, but the caller doesn't
+		// have to wait for it
+		return enqueue(itemName, itemCount);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		dispatchers.shutdownNow();
+		List<PendingReservation> abandoned = new ArrayList<>();
+		queue.drainTo(abandoned);
+		fail(abandoned, new ProcessingException("Shutting down, the reservation was not made"));
+	}
+
+	private CompletableFuture<ItemDetails> enqueue(String itemName, Integer itemCount) {
+		recordArrival();
+		PendingReservation pending = new PendingReservation(new Reservation(itemName, itemCount),
+				Contexts.context().orElse(null));
+		queue.add(pending);
+		return pending.result;
+	}
+
+	private void recordArrival() {
+		long now = System.nanoTime();
+		long gap = now - lastArrival.getAndSet(now);
+		meanGapNanos = (meanGapNanos * (1 - GAP_WEIGHT)) + (gap * GAP_WEIGHT);
+	}
+
+	/**
+	 * If the next reservation is expected within maxWait it's worth waiting for
+	 * more, long enough to fill the batch at the current rate, but no more than
+	 * maxWait
+	 */
+	private long batchWaitNanos() {
+		double gap = meanGapNanos;
+		if (gap >= maxWaitNanos) {
+			return 0;
+		}
+		return (long) Math.min(maxWaitNanos, gap * (maxBatchSize - 1));
+	}
+
+	private void dispatch() {
+		List<PendingReservation> batch = new ArrayList<>(maxBatchSize);
+		while (!closed) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, maxBatchSize - batch.size());
+				long deadline = System.nanoTime() + batchWaitNanos();
+				while (batch.size() < maxBatchSize) {
+					PendingReservation next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+					queue.drainTo(batch, maxBatchSize - batch.size());
+				}
+				for (List<PendingReservation> userBatch : byUser(batch)) {
+					send(userBatch);
+				}
+			} catch (InterruptedException e) {
+				fail(batch, new ProcessingException("Shutting down, the reservation was not made"));
+				return;
+			} catch (RuntimeException e) {
+				log.warn("Unexpected problem sending a batch of reservations", e);
+				fail(batch, e);
+			}
+			batch.clear();
+		}
+	}
+
+	private void send(List<PendingReservation> batch) {
+		List<Reservation> batchReservations = batch.stream().map(pending -> pending.reservation)
+				.collect(Collectors.toList());
+		batches.inc();
+		reservations.inc(batch.size());
+		List<ReservationResult> results;
+		try {
+			// they are all for the same user
+			Context context = batch.get(0).context;
+			results = context == null ? stockManager.reserveStockItems(batchReservations)
+					: Contexts.runInContext(context, () -> stockManager.reserveStockItems(batchReservations));
+		} catch (RuntimeException e) {
+			fail(batch, e);
+			return;
+		}
+		if (results.size() != batch.size()) {
+			fail(batch, new ProcessingException("Sent " + batch.size() + " reservations to the stock manager but got "
+					+ results.size() + " results"));
+			return;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			ReservationResult result = results.get(i);
+			if (result.getStatus() == Status.OK.getStatusCode()) {
+				batch.get(i).result.complete(new ItemDetails(result.getItemName(), result.getItemCount()));
+			} else {
+				// what the rest client would have thrown for the reservation on it's own,
+				// without a stack trace as in a sell out most of them are 409s
+				batch.get(i).result.completeExceptionally(
+						new StockManagerResponseException(Response.status(result.getStatus()).build()));
+			}
+		}
+	}
+
+	/**
+	 * Splits the reservations up by the user making them, keeping them in the
+	 * order they arrived
+	 */
+	private static Collection<List<PendingReservation>> byUser(List<PendingReservation> batch) {
+		Map<String, List<PendingReservation>> users = new LinkedHashMap<>();
+		for (PendingReservation pending : batch) {
+			users.computeIfAbsent(pending.user, user -> new ArrayList<>()).add(pending);
+		}
+		return users.values();
+	}
+
+	private static void fail(List<PendingReservation> batch, RuntimeException e) {
+		batch.forEach(pending -> pending.result.completeExceptionally(e));
+	}
+
+	private static Metadata counterMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.COUNTER)
+				.withUnit(MetricUnits.NONE).build();
+	}
+
+	private static class PendingReservation {
+		final Reservation reservation;
+		final Context context;
+		// who's making the reservation, empty if there's no one logged in
+		final String user;
+		final CompletableFuture<ItemDetails> result = new CompletableFuture<>();
+
+		PendingReservation(Reservation reservation, Context context) {
+			this.reservation = reservation;
+			this.context = context;
+			this.user = context == null ? ""
+					: context.get(SecurityContext.class).filter(SecurityContext::isAuthenticated)
+							.map(SecurityContext::userName).orElse("");
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.cache;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import io.helidon.common.context.Contexts;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A per item cache in front of the StockManager so most reads don't need to go
+ * to the stock manager service.
+ * 
+ * An item (or the listing of all items) less than ttl old is returned as is.
+ * Between ttl and maxStale old it's still returned, but a refresh is started in
+ * the background so the next read gets a fresh value (stale while revalidate),
+ * only one refresh at a time is done for each item. Older than maxStale, or not
+ * cached, the read goes to the stock manager.
+ * 
+ * The responses to setStockItemLevel, reserveStockItem(s) and releaseStockItem
+ * are the new level, so they are written through to the cache. Where a value
+ * arrives from more than one call at once the one from the call that started
+ * last wins. The listing just holds the item names, the levels come from the
+ * per item entries so a write shows up in it straight away.
+ * 
+ * This is for reads only, the cached levels may be up to ttl behind (or
+ * maxStale if the stock manager can't be reached) so anything that changes the
+ * stock level has to be checked by the stock manager itself (e.g. it's reserve
+ * operation won't take more than there are)
+ * 
+ * The background refreshes run in the Helidon context of the request that
+ * found the stale value, so the users credentials are propagated as usual
+ */
+@Slf4j
+public class CachingStockManager implements StockManager, AutoCloseable {
+	private final StockManager stockManager;
+	private final long ttlNanos;
+	private final long maxStaleNanos;
+	private final Map<String, CachedItem> items = new ConcurrentHashMap<>();
+	private volatile CachedListing listing;
+	private final ExecutorService refresher = Contexts.wrap(Executors.newFixedThreadPool(2, runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-cache-refresher");
+		thread.setDaemon(true);
+		return thread;
+	}));
+	private final Counter hits;
+	private final Counter staleHits;
+	private final Counter misses;
+	private final Counter refreshes;
+	private final Counter refreshFailures;
+
+	public CachingStockManager(StockManager stockManager, long ttlMillis, long maxStaleMillis,
+			MetricRegistry metricRegistry) {
+		this.stockManager = stockManager;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(ttlMillis, maxStaleMillis));
+		hits = metricRegistry.counter(counterMetadata("stockmanager.cache.hits", "Reads served from the cache"));
+		staleHits = metricRegistry.counter(counterMetadata("stockmanager.cache.staleHits",
+				"Reads served from the cache while the entry was refreshed in the background"));
+		misses = metricRegistry
+				.counter(counterMetadata("stockmanager.cache.misses", "Reads that had to call the stock manager"));
+		refreshes = metricRegistry.counter(
+				counterMetadata("stockmanager.cache.refreshes", "Background refreshes of stale entries"));
+		refreshFailures = metricRegistry.counter(counterMetadata("stockmanager.cache.refreshFailures",
+				"Background refreshes that failed, the stale entry was kept"));
+		metricRegistry.register(Metadata.builder().withName("stockmanager.cache.size")
+				.withDescription("Number of items in the cache").withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.NONE).build(), (Gauge<Integer>) items::size);
+		log.info("Caching stock levels for " + ttlMillis + "ms, refreshing in the background for up to "
+				+ maxStaleMillis + "ms");
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		if (!useCachedListing()) {
+			loadListing();
+		}
+		return listedItems();
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		if (useCachedListing()) {
+			return CompletableFuture.completedFuture(listedItems());
+		}
+		long start = System.nanoTime();
+		return stockManager.getAllStockLevelsAsync().thenApply(allItems -> {
+			storeListing(allItems, start);
+			return listedItems();
+		});
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		CachedItem cached = items.get(itemName);
+		long age = cached == null ? Long.MAX_VALUE : System.nanoTime() - cached.loadedAt;
+		if (age < ttlNanos) {
+			hits.inc();
+			return copy(cached.item);
+		}
+		if (age < maxStaleNanos) {
+			staleHits.inc();
+			if (cached.refreshing.compareAndSet(false, true)) {
+				refreshInBackground(() -> load(itemName, () -> stockManager.getStockItem(itemName)),
+						() -> cached.refreshing.set(false));
+			}
+			return copy(cached.item);
+		}
+		misses.inc();
+		return copy(load(itemName, () -> stockManager.getStockItem(itemName)));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return copy(load(itemName, () -> stockManager.setStockItemLevel(itemName, itemCount)));
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return copy(load(itemName, () -> stockManager.reserveStockItem(itemName, itemCount)));
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return copy(load(itemName, () -> stockManager.releaseStockItem(itemName, itemCount)));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return loadAsync(itemName, () -> stockManager.reserveStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return loadAsync(itemName, () -> stockManager.releaseStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		long start = System.nanoTime();
+		List<ReservationResult> results = stockManager.reserveStockItems(reservations);
+		for (ReservationResult result : results) {
+			if (result.getStatus() == Status.NOT_FOUND.getStatusCode()) {
+				items.remove(result.getItemName());
+			} else {
+				// a conflict still tells us the current level
+				store(new ItemDetails(result.getItemName(), result.getItemCount()), start);
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+	/**
+	 * Make the call and put the resulting item in the cache, if the item doesn't
+	 * exist any more it's removed
+	 */
+	private ItemDetails load(String itemName, Supplier<ItemDetails> call) {
+		long start = System.nanoTime();
+		ItemDetails item;
+		try {
+			item = call.get();
+		} catch (WebApplicationException e) {
+			forgetIfNotFound(itemName, e);
+			throw e;
+		}
+		stored(itemName, item, start);
+		return item;
+	}
+
+	private CompletionStage<ItemDetails> loadAsync(String itemName, Supplier<CompletionStage<ItemDetails>> call) {
+		long start = System.nanoTime();
+		return call.get().whenComplete((item, failure) -> {
+			if (failure == null) {
+				stored(itemName, item, start);
+			} else {
+				forgetIfNotFound(itemName,
+						failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+								: failure);
+			}
+		}).thenApply(CachingStockManager::copy);
+	}
+
+	private void stored(String itemName, ItemDetails item, long start) {
+		if (item == null) {
+			items.remove(itemName);
+		} else {
+			store(item, start);
+		}
+	}
+
+	private void forgetIfNotFound(String itemName, Throwable failure) {
+		if ((failure instanceof WebApplicationException) && (((WebApplicationException) failure).getResponse()
+				.getStatus() == Status.NOT_FOUND.getStatusCode())) {
+			items.remove(itemName);
+		}
+	}
+
+	/**
+	 * Counts the read, and if the listing is stale starts refreshing it. Returns
+	 * false if there isn't a usable listing and it has to be read now
+	 */
+	private boolean useCachedListing() {
+		CachedListing cached = listing;
+		long age = cached == null ? Long.MAX_VALUE : System.nanoTime() - cached.loadedAt;
+		if (age < ttlNanos) {
+			hits.inc();
+			return true;
+		}
+		if (age < maxStaleNanos) {
+			staleHits.inc();
+			if (cached.refreshing.compareAndSet(false, true)) {
+				refreshInBackground(this::loadListing, () -> cached.refreshing.set(false));
+			}
+			return true;
+		}
+		misses.inc();
+		return false;
+	}
+
+	private Collection<ItemDetails> listedItems() {
+		return listing.itemNames.stream().map(items::get).filter(Objects::nonNull).map(item -> copy(item.item))
+				.collect(Collectors.toList());
+	}
+
+	private void loadListing() {
+		long start = System.nanoTime();
+		storeListing(stockManager.getAllStockLevels(), start);
+	}
+
+	private void storeListing(Collection<ItemDetails> allItems, long start) {
+		allItems.forEach(item -> store(item, start));
+		List<String> itemNames = allItems.stream().map(ItemDetails::getItemName).collect(Collectors.toList());
+		listing = new CachedListing(itemNames, start);
+	}
+
+	private void store(ItemDetails item, long loadedAt) {
+		items.compute(item.getItemName(), (name, existing) -> ((existing != null) && (existing.loadedAt > loadedAt))
+				? existing
+				: new CachedItem(copy(item), loadedAt));
+	}
+
+	private void refreshInBackground(Runnable refresh, Runnable onFailure) {
+		refreshes.inc();
+		try {
+			refresher.execute(() -> {
+				try {
+					refresh.run();
+				} catch (RuntimeException e) {
+					refreshFailures.inc();
+					log.debug("Background refresh from the stock manager failed, keeping the stale value", e);
+					onFailure.run();
+				}
+			});
+		} catch (RuntimeException e) {
+			// shutting down
+			onFailure.run();
+		}
+	}
+
+	// the cached items must not be changed by the callers, so they get their own
+	// copy
+	private static ItemDetails copy(ItemDetails item) {
+		return item == null ? null : new ItemDetails(item.getItemName(), item.getItemCount());
+	}
+
+	private static Metadata counterMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.COUNTER)
+				.withUnit(MetricUnits.NONE).build();
+	}
+
+	private static class CachedItem {
+		final ItemDetails item;
+		final long loadedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		CachedItem(ItemDetails item, long loadedAt) {
+			this.item = item;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private static class CachedListing {
+		final List<String> itemNames;
+		final long loadedAt;
+		final AtomicBoolean refreshing = new AtomicBoolean();
+
+		CachedListing(List<String> itemNames, long loadedAt) {
+			this.itemNames = itemNames;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.cache;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+/**
+ * Single flight reads from the StockManager, if a read of an item (or of all
+ * the items) is already in progress when another one for the same thing comes
+ * in the second caller waits for the result of the first call rather than
+ * making it's own. Each caller gets it's own copy of the result, or the same
+ * exception if the call fails.
+ * 
+ * This only combines calls that overlap, once a call has finished the next one
+ * goes to the stock manager (the CachingStockManager is what holds on to the
+ * results), and the changes (setting the level and reserving) are never
+ * combined.
+ * 
+ * The stock manager results only depend on the department, not the user, so it
+ * doesn't matter who's call is shared. The number of calls and the number saved
+ * by sharing are in the application metrics as stockmanager.coalescing.calls
+ * and stockmanager.coalescing.saved tagged with the method
+ */
+public class CoalescingStockManager implements StockManager {
+	private final static String ALL_ITEMS = "";
+
+	private final StockManager stockManager;
+	private final Map<String, CompletableFuture<ItemDetails>> itemCalls = new ConcurrentHashMap<>();
+	private final Map<String, CompletableFuture<Collection<ItemDetails>>> listingCalls = new ConcurrentHashMap<>();
+	private final Counter itemCallsMade;
+	private final Counter itemCallsSaved;
+	private final Counter listingCallsMade;
+	private final Counter listingCallsSaved;
+
+	public CoalescingStockManager(StockManager stockManager, MetricRegistry metricRegistry) {
+		this.stockManager = stockManager;
+		Metadata calls = counterMetadata("stockmanager.coalescing.calls", "Reads made to the stock manager");
+		Metadata saved = counterMetadata("stockmanager.coalescing.saved",
+				"Reads that used the result of one already in progress rather than calling the stock manager");
+		Tag itemTag = new Tag("method", "getStockItem");
+		Tag listingTag = new Tag("method", "getAllStockLevels");
+		itemCallsMade = metricRegistry.counter(calls, itemTag);
+		itemCallsSaved = metricRegistry.counter(saved, itemTag);
+		listingCallsMade = metricRegistry.counter(calls, listingTag);
+		listingCallsSaved = metricRegistry.counter(saved, listingTag);
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return singleFlight(listingCalls, ALL_ITEMS, () -> stockManager.getAllStockLevels(), listingCallsMade,
+				listingCallsSaved, CoalescingStockManager::copy);
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return singleFlight(itemCalls, itemName, () -> stockManager.getStockItem(itemName), itemCallsMade,
+				itemCallsSaved, CoalescingStockManager::copy);
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return stockManager.setStockItemLevel(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return stockManager.reserveStockItem(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItem(itemName, itemCount);
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return stockManager.reserveStockItems(reservations);
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return singleFlightAsync(listingCalls, ALL_ITEMS, () -> stockManager.getAllStockLevelsAsync(),
+				listingCallsMade, listingCallsSaved, CoalescingStockManager::copy);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItemAsync(itemName, itemCount);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return stockManager.reserveStockItemAsync(itemName, itemCount);
+	}
+
+	private static <T> T singleFlight(Map<String, CompletableFuture<T>> inFlight, String key, Supplier<T> call,
+			Counter made, Counter saved, Function<T, T> copy) {
+		CompletableFuture<T> ours = new CompletableFuture<>();
+		CompletableFuture<T> existing = inFlight.putIfAbsent(key, ours);
+		if (existing != null) {
+			saved.inc();
+			return copy.apply(await(existing));
+		}
+		made.inc();
+		try {
+			T result = call.get();
+			ours.complete(result);
+			return result;
+		} catch (RuntimeException e) {
+			ours.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, ours);
+		}
+	}
+
+	/**
+	 * The same as singleFlight, but nobody waits, the synchronous and async calls
+	 * share the same in flight map so they can use each others results
+	 */
+	private static <T> CompletionStage<T> singleFlightAsync(Map<String, CompletableFuture<T>> inFlight, String key,
+			Supplier<CompletionStage<T>> call, Counter made, Counter saved, Function<T, T> copy) {
+		CompletableFuture<T> ours = new CompletableFuture<>();
+		CompletableFuture<T> existing = inFlight.putIfAbsent(key, ours);
+		if (existing != null) {
+			saved.inc();
+			return existing.thenApply(copy);
+		}
+		made.inc();
+		CompletionStage<T> stage;
+		try {
+			stage = call.get();
+		} catch (RuntimeException e) {
+			stage = CompletableFuture.failedFuture(e);
+		}
+		stage.whenComplete((result, failure) -> {
+			inFlight.remove(key, ours);
+			if (failure == null) {
+				ours.complete(result);
+			} else {
+				ours.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null
+						? failure.getCause()
+						: failure);
+			}
+		});
+		return ours.thenApply(Function.identity());
+	}
+
+	/**
+	 * The call that's being shared is made with the stock manager timeouts, so
+	 * there's no need for a separate one here
+	 */
+	private static <T> T await(CompletableFuture<T> call) {
+		try {
+			return call.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static ItemDetails copy(ItemDetails item) {
+		return item == null ? null : new ItemDetails(item.getItemName(), item.getItemCount());
+	}
+
+	private static Collection<ItemDetails> copy(Collection<ItemDetails> items) {
+		return items.stream().map(CoalescingStockManager::copy).collect(Collectors.toList());
+	}
+
+	private static Metadata counterMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.COUNTER)
+				.withUnit(MetricUnits.NONE).build();
+	}
+}
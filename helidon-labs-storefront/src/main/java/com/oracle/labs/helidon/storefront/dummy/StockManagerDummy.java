@@ -16,20 +16,20 @@
 package com.oracle.labs.helidon.storefront.dummy;
 
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Map;
-import java.util.stream.Collectors;
 
 import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.memory.InMemoryStockManager;
 import com.oracle.labs.helidon.storefront.restclients.StockManager;
 
-public class StockManagerDummy implements StockManager {
-	private final static StockManagerDummy singleton = new StockManagerDummy();
+/**
+ * A few items of test data, held in an InMemoryStockManager so it's safe to use
+ * from lots of threads at once. There's only one, so changes to the stock are
+ * seen by everything using it
+ */
+public class StockManagerDummy {
 	// Setup the initial data
-
-	private Map<String, ItemDetails> stockMap = Arrays
-			.asList(new ItemDetails("Pencil", 12), new ItemDetails("Pen", 2), new ItemDetails("Brush", 27)).stream()
-			.collect(Collectors.toMap(item -> item.getItemName(), item -> item));
+	private final static StockManager singleton = new InMemoryStockManager(
+			Arrays.asList(new ItemDetails("Pencil", 12), new ItemDetails("Pen", 2), new ItemDetails("Brush", 27)));
 
 	private StockManagerDummy() {
 	}
@@ -37,25 +37,4 @@ public class StockManagerDummy implements StockManager {
 	public static StockManager getStockManager() {
 		return singleton;
 	}
-
-	@Override
-	public Collection<ItemDetails> getAllStockLevels() {
-		return stockMap.values();
-	}
-
-	@Override
-	public ItemDetails getStockItem(String itemName) {
-		return stockMap.get(itemName);
-	}
-
-	@Override
-	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
-		ItemDetails item = getStockItem(itemName);
-		if (item == null) {
-			return null;
-		}
-		item.setItemCount(itemCount);
-		return item;
-	}
-
 }
@@ -15,15 +15,23 @@
  */
 package com.oracle.labs.helidon.storefront.exceptions;
 
+/**
+ * The storefront's business outcomes (unknown item, not enough items, a change
+ * below the minimum), not bugs. When an item sells out most reservations end up
+ * here, so by default these don't fill in a stack trace, the most expensive
+ * part of creating them. Run with -Dapp.exceptions.stackTraces=true to get the
+ * traces back when debugging
+ */
 public class StorefrontException extends Exception {
 
 	/**
 	 * 
 	 */
 	private static final long serialVersionUID = -7887970832976155719L;
+	private static final boolean WRITABLE_STACK_TRACE = Boolean.getBoolean("app.exceptions.stackTraces");
 
 	public StorefrontException() {
-		super();
+		super(null, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StorefrontException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
@@ -31,14 +39,14 @@ public class StorefrontException extends Exception {
 	}
 
 	public StorefrontException(String message, Throwable cause) {
-		super(message, cause);
+		super(message, cause, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StorefrontException(String message) {
-		super(message);
+		super(message, null, true, WRITABLE_STACK_TRACE);
 	}
 
 	public StorefrontException(Throwable cause) {
-		super(cause);
+		super(cause == null ? null : cause.toString(), cause, true, WRITABLE_STACK_TRACE);
 	}
 }
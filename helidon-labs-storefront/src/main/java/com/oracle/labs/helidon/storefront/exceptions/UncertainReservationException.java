@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.exceptions;
+
+/**
+ * The stock manager didn't give a definite answer to a reservation (the call
+ * failed or timed out part way through) so it may or may not have been made
+ */
+public class UncertainReservationException extends StorefrontException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4261370955810364121L;
+
+	public UncertainReservationException() {
+		super();
+	}
+
+	public UncertainReservationException(String message, Throwable cause, boolean enableSuppression,
+			boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+
+	public UncertainReservationException(String message, Throwable cause) {
+		super(message, cause);
+	}
+
+	public UncertainReservationException(String message) {
+		super(message);
+	}
+
+	public UncertainReservationException(Throwable cause) {
+		super(cause);
+	}
+}
@@ -15,19 +15,16 @@
  */
 package com.oracle.labs.helidon.storefront.health;
 
-import java.net.URISyntaxException;
-
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import javax.json.JsonObject;
 
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
+import org.eclipse.microprofile.health.HealthCheckResponseBuilder;
 import org.eclipse.microprofile.health.Readiness;
-import org.eclipse.microprofile.rest.client.inject.RestClient;
 
-import com.oracle.labs.helidon.storefront.restclients.StockManagerStatus;
+import com.oracle.labs.helidon.storefront.health.StockManagerHealthTracker.Assessment;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -36,53 +33,45 @@ import lombok.extern.slf4j.Slf4j;
  * actually ready to process transactions and are fully configured, liveliness
  * is more of a Hello World situation
  * 
+ * We used to call the stock manager status on every probe, that added load to
+ * the stock manager and made the probe as slow as it was. Now the
+ * StockManagerHealthTracker works out if the stock manager is usable from the
+ * calls we're making anyway, so this just reports what it last decided
+ * 
  * @author tg13456
  *
  */
 @ApplicationScoped
+@Readiness
 @Slf4j
 public class ReadinessChecker implements HealthCheck {
 
 	private String storeName, statusURL;
 
-	@Inject
-	@RestClient
-	private StockManagerStatus stockManagerStatus;
+	private StockManagerHealthTracker healthTracker;
 
-	/**
-	 * Save the resource away so we can access it later, strictly as the fields we
-	 * want are static wed don't need to do this, but this way demos the use of
-	 * the @Inject annotation
-	 * 
-	 * @param stockResource
-	 * @throws URISyntaxException
-	 */
 	@Inject
 	public ReadinessChecker(@ConfigProperty(name = "app.storename") String storeName,
-			@ConfigProperty(name = "com.oracle.labs.helidon.storefront.restclients.StockManagerStatus/mp-rest/url") String statusURL)
-			throws URISyntaxException {
+			@ConfigProperty(name = "com.oracle.labs.helidon.storefront.restclients.StockManagerStatus/mp-rest/url") String statusURL,
+			StockManagerHealthTracker healthTracker) {
 		log.info("Readiness started with store " + storeName + ", status url " + statusURL);
 		this.storeName = storeName;
 		this.statusURL = statusURL;
-		log.info("Built the StockManagerStatus");
+		this.healthTracker = healthTracker;
 	}
 
 	@Override
-	// would like to use a fallback here, but they don't seem to work with
-	// health checks
 	public HealthCheckResponse call() {
-		// try to make a call to the back end service, if it fails the fall back shoud
-		// be triggered
-		log.info("Requesting stock manager status");
-		JsonObject alive;
-		try {
-			alive = stockManagerStatus.isAlive();
-		} catch (Exception e) {
-			log.error("Error getting status " + e.getMessage());
-			return HealthCheckResponse.named("storefront-ready").down().withData("storename", storeName)
-					.withData("exception", e.getMessage()).withData("statusURL", statusURL).build();
+		Assessment assessment = healthTracker.getAssessment();
+		HealthCheckResponseBuilder response = HealthCheckResponse.named("storefront-ready")
+				.state(assessment.isReady()).withData("storename", storeName)
+				.withData("calls", assessment.getCalls())
+				.withData("successRate", String.format("%.2f", assessment.getSuccessRate()))
+				.withData("meanLatencyMillis", assessment.getMeanLatencyMillis())
+				.withData("assessmentAgeMillis", System.currentTimeMillis() - assessment.getAssessedAt());
+		if (!assessment.isReady()) {
+			response.withData("problem", String.valueOf(assessment.getProblem())).withData("statusURL", statusURL);
 		}
-		log.info("Got stock manager status of " + alive);
-		return HealthCheckResponse.named("storefront-ready").up().withData("storename", storeName).build();
+		return response.build();
 	}
 }
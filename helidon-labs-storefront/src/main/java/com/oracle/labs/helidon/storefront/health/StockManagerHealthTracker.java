@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.health;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.rest.client.inject.RestClient;
+
+import com.oracle.labs.helidon.storefront.restclients.StockManagerStatus;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Works out if the stock manager is usable by watching the calls we make to it
+ * anyway rather than calling it specially for every health probe. The outcomes
+ * are counted in buckets of app.readiness.bucketSeconds, and every bucket the
+ * last app.readiness.windowBuckets of them are assessed, the result is held so
+ * the readiness probe just reads it.
+ * 
+ * If there's been less than app.readiness.minCalls calls in the window there
+ * isn't enough traffic to go on, so we ping the stock manager status endpoint
+ * (at most once a bucket) and use that instead.
+ * 
+ * An error response (4xx, e.g. an unknown item) is the stock manager working
+ * properly, only failures to get a response and 5xx errors count against it
+ */
+@ApplicationScoped
+@Slf4j
+public class StockManagerHealthTracker {
+	private final StockManagerStatus stockManagerStatus;
+	private final int bucketSeconds;
+	private final Bucket buckets[];
+	private final long minCalls;
+	private final double minSuccessRate;
+	private final long maxMeanLatencyMillis;
+	private final ScheduledExecutorService assessor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-health-tracker");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// only changed by the assessor thread
+	private int currentBucket = 0;
+	private volatile Bucket current;
+	private volatile Assessment assessment = new Assessment(false, "No calls to the stock manager yet", 0, 0, 0,
+			System.currentTimeMillis());
+
+	@Inject
+	public StockManagerHealthTracker(@RestClient StockManagerStatus stockManagerStatus,
+			@ConfigProperty(name = "app.readiness.bucketSeconds", defaultValue = "5") int bucketSeconds,
+			@ConfigProperty(name = "app.readiness.windowBuckets", defaultValue = "6") int windowBuckets,
+			@ConfigProperty(name = "app.readiness.minCalls", defaultValue = "5") long minCalls,
+			@ConfigProperty(name = "app.readiness.minSuccessRate", defaultValue = "0.5") double minSuccessRate,
+			@ConfigProperty(name = "app.readiness.maxMeanLatencyMillis", defaultValue = "2000") long maxMeanLatencyMillis) {
+		this.stockManagerStatus = stockManagerStatus;
+		this.bucketSeconds = bucketSeconds;
+		this.minCalls = minCalls;
+		this.minSuccessRate = minSuccessRate;
+		this.maxMeanLatencyMillis = maxMeanLatencyMillis;
+		this.buckets = new Bucket[windowBuckets];
+		for (int i = 0; i < windowBuckets; i++) {
+			buckets[i] = new Bucket();
+		}
+		current = buckets[0];
+	}
+
+	/**
+	 * Start assessing when the application starts, the first assessment will
+	 * ping the stock manager as there won't have been any traffic
+	 */
+	public void start(@Observes @Initialized(ApplicationScoped.class) Object init) {
+		assessor.scheduleWithFixedDelay(this::assess, 0, bucketSeconds, TimeUnit.SECONDS);
+		log.info("Assessing stock manager health every " + bucketSeconds + " seconds over the last "
+				+ (bucketSeconds * buckets.length) + " seconds");
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		assessor.shutdownNow();
+	}
+
+	public void recordSuccess(long nanos) {
+		Bucket bucket = current;
+		bucket.successes.increment();
+		bucket.totalNanos.add(nanos);
+	}
+
+	public void recordFailure(long nanos, Throwable failure) {
+		if (!isStockManagerFailure(failure)) {
+			// it answered, just not with what we wanted
+			recordSuccess(nanos);
+			return;
+		}
+		Bucket bucket = current;
+		bucket.failures.increment();
+		bucket.totalNanos.add(nanos);
+	}
+
+	/**
+	 * The latest assessment, this doesn't do any work
+	 */
+	public Assessment getAssessment() {
+		return assessment;
+	}
+
+	private void assess() {
+		try {
+			long successes = 0;
+			long failures = 0;
+			long totalNanos = 0;
+			for (Bucket bucket : buckets) {
+				successes += bucket.successes.sum();
+				failures += bucket.failures.sum();
+				totalNanos += bucket.totalNanos.sum();
+			}
+			long calls = successes + failures;
+			if (calls < minCalls) {
+				ping();
+			} else {
+				double successRate = ((double) successes) / calls;
+				long meanLatencyMillis = TimeUnit.NANOSECONDS.toMillis(totalNanos / calls);
+				String problem = null;
+				if (successRate < minSuccessRate) {
+					problem = "Only " + Math.round(successRate * 100) + "% of stock manager calls succeeded";
+				} else if (meanLatencyMillis > maxMeanLatencyMillis) {
+					problem = "Stock manager calls are taking " + meanLatencyMillis + "ms on average";
+				}
+				update(new Assessment(problem == null, problem, calls, successRate, meanLatencyMillis,
+						System.currentTimeMillis()));
+			}
+			// move on to the next bucket, clearing out what it had from last time round
+			currentBucket = (currentBucket + 1) % buckets.length;
+			Bucket next = buckets[currentBucket];
+			next.reset();
+			current = next;
+		} catch (RuntimeException e) {
+			// don't let anything kill the assessor thread
+			log.warn("Problem assessing stock manager health", e);
+		}
+	}
+
+	/**
+	 * Not enough real traffic to judge by, so make a call of our own. This is
+	 * recorded like any other call so it contributes to the next assessment as well
+	 */
+	private void ping() {
+		long start = System.nanoTime();
+		try {
+			stockManagerStatus.isAlive();
+			long nanos = System.nanoTime() - start;
+			recordSuccess(nanos);
+			update(new Assessment(true, null, 0, 1.0, TimeUnit.NANOSECONDS.toMillis(nanos),
+					System.currentTimeMillis()));
+		} catch (Exception e) {
+			long nanos = System.nanoTime() - start;
+			recordFailure(nanos, e);
+			update(new Assessment(false, "Stock manager status check failed, " + e.getMessage(), 0, 0.0,
+					TimeUnit.NANOSECONDS.toMillis(nanos), System.currentTimeMillis()));
+		}
+	}
+
+	private void update(Assessment newAssessment) {
+		if (newAssessment.isReady() != assessment.isReady()) {
+			log.info("Stock manager is now " + (newAssessment.isReady() ? "usable" : "not usable")
+					+ (newAssessment.getProblem() == null ? "" : ", " + newAssessment.getProblem()));
+		}
+		assessment = newAssessment;
+	}
+
+	private static boolean isStockManagerFailure(Throwable failure) {
+		if (failure instanceof WebApplicationException) {
+			return ((WebApplicationException) failure).getResponse().getStatus() >= 500;
+		}
+		return true;
+	}
+
+	private static class Bucket {
+		private final LongAdder successes = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+
+		private void reset() {
+			successes.reset();
+			failures.reset();
+			totalNanos.reset();
+		}
+	}
+
+	/**
+	 * What we currently think of the stock manager, calls is the number of real
+	 * calls it's based on, if that's zero it's the result of a ping
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static class Assessment {
+		private final boolean ready;
+		private final String problem;
+		private final long calls;
+		private final double successRate;
+		private final long meanLatencyMillis;
+		private final long assessedAt;
+	}
+}
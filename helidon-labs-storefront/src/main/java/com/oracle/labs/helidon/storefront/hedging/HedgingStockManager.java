@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.hedging;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.metrics.RollingLatencyHistogram;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import io.helidon.common.context.Context;
+import io.helidon.common.context.Contexts;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hedges the reads (getStockItem and getAllStockLevels, which are idempotent)
+ * to the stock manager. If a read hasn't answered within the hedge delay a
+ * second identical call is made, and whichever of them answers first is used,
+ * so an occasional slow response (a GC pause, or a slow replica) doesn't hold
+ * up the caller. A read only fails if all of the calls made for it fail.
+ * 
+ * The delay is the given percentile of the latency of recent reads (over the
+ * last WINDOW_INTERVALS seconds), but at least minDelay, so with the 95th
+ * percentile about one read in 20 is hedged. Until there are MIN_SAMPLES reads
+ * in the window nothing is hedged as there's nothing to base the delay on.
+ * It's worked out once a second as the window moves on, not on every read.
+ * 
+ * To stop the hedges adding too much load (which could make things slower, and
+ * so lead to more hedges) they come out of a budget, each read adds
+ * budgetPercent / 100 of a hedge to it, up to MAX_BUDGET hedges. When there's
+ * not a whole hedge in the budget the read just waits for the first call.
+ * 
+ * The hedges are made with the credentials of the caller. For each method the
+ * reads, hedges and the hedges that answered first (wins) are in the
+ * application metrics as stockmanager.hedging.*, along with the hedge rate
+ * (hedges / reads), win rate (wins / hedges) and the current delay
+ */
+@Slf4j
+public class HedgingStockManager implements StockManager, AutoCloseable {
+	private final static int WINDOW_INTERVALS = 10;
+	private final static int MIN_SAMPLES = 20;
+	private final static double MAX_BUDGET = 10;
+	private final static long NO_DELAY = -1;
+
+	private final StockManager stockManager;
+	private final double percentile;
+	private final long minDelayNanos;
+	private final double budgetPerRead;
+	private double budget = MAX_BUDGET;
+	private final HedgedMethod itemReads;
+	private final HedgedMethod listingReads;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-hedging-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// getStockItem is synchronous, so the calls are made on these so the caller
+	// can stop waiting for the first one
+	private final ExecutorService callers = Contexts.wrap(Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-hedging-caller");
+		thread.setDaemon(true);
+		return thread;
+	}));
+
+	public HedgingStockManager(StockManager stockManager, double percentile, long minDelayMillis,
+			double budgetPercent, MetricRegistry metricRegistry) {
+		this.stockManager = stockManager;
+		this.percentile = percentile;
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+		this.budgetPerRead = budgetPercent / 100.0;
+		itemReads = new HedgedMethod("getStockItem", metricRegistry);
+		listingReads = new HedgedMethod("getAllStockLevels", metricRegistry);
+		scheduler.scheduleAtFixedRate(() -> {
+			itemReads.roll();
+			listingReads.roll();
+		}, 1, 1, TimeUnit.SECONDS);
+		log.info("Hedging stock manager reads after the " + percentile + " percentile latency (at least "
+				+ minDelayMillis + "ms), limited to " + budgetPercent + "% more reads");
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return await(hedged(listingReads, () -> stockManager.getAllStockLevelsAsync()));
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return await(hedged(itemReads,
+				() -> CompletableFuture.supplyAsync(() -> stockManager.getStockItem(itemName), callers)));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return stockManager.setStockItemLevel(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return stockManager.reserveStockItem(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItem(itemName, itemCount);
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return stockManager.reserveStockItems(reservations);
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return hedged(listingReads, () -> stockManager.getAllStockLevelsAsync());
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return stockManager.reserveStockItemAsync(itemName, itemCount);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return stockManager.releaseStockItemAsync(itemName, itemCount);
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		callers.shutdownNow();
+	}
+
+	private <T> CompletableFuture<T> hedged(HedgedMethod method, Supplier<CompletionStage<T>> call) {
+		method.reads.inc();
+		earnBudget();
+		long start = System.nanoTime();
+		CompletableFuture<T> primary = start(call);
+		primary.whenComplete((result, failure) -> method.latency.recordNanos(System.nanoTime() - start));
+		long delay = method.delayNanos;
+		if (delay < 0) {
+			return primary;
+		}
+		CompletableFuture<T> result = new CompletableFuture<>();
+		AtomicInteger outstanding = new AtomicInteger(1);
+		Context context = Contexts.context().orElse(null);
+		ScheduledFuture<?> hedgeTimer = scheduler.schedule(() -> {
+			if (result.isDone() || !spendBudget()) {
+				return;
+			}
+			method.hedges.inc();
+			outstanding.incrementAndGet();
+			CompletableFuture<T> hedge = context == null ? start(call) : Contexts.runInContext(context, () -> start(call));
+			hedge.whenComplete((hedgeResult, failure) -> {
+				if ((failure == null) && result.complete(hedgeResult)) {
+					method.wins.inc();
+				}
+				completed(result, outstanding, failure);
+			});
+		}, delay, TimeUnit.NANOSECONDS);
+		primary.whenComplete((primaryResult, failure) -> {
+			if (failure == null) {
+				hedgeTimer.cancel(false);
+				result.complete(primaryResult);
+			}
+			completed(result, outstanding, failure);
+		});
+		return result;
+	}
+
+	/**
+	 * When the last of the calls has finished, if none of them worked the result
+	 * is the last failure
+	 */
+	private static <T> void completed(CompletableFuture<T> result, AtomicInteger outstanding, Throwable failure) {
+		if ((outstanding.decrementAndGet() == 0) && (failure != null)) {
+			result.completeExceptionally(unwrap(failure));
+		}
+	}
+
+	private static <T> CompletableFuture<T> start(Supplier<CompletionStage<T>> call) {
+		try {
+			return call.get().toCompletableFuture();
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> call) {
+		try {
+			return call.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static Throwable unwrap(Throwable failure) {
+		return (failure instanceof CompletionException) && (failure.getCause() != null) ? failure.getCause()
+				: failure;
+	}
+
+	private synchronized void earnBudget() {
+		budget = Math.min(MAX_BUDGET, budget + budgetPerRead);
+	}
+
+	private synchronized boolean spendBudget() {
+		if (budget < 1) {
+			return false;
+		}
+		budget--;
+		return true;
+	}
+
+	private static Metadata metadata(String name, String description, MetricType type, String unit) {
+		return Metadata.builder().withName(name).withDescription(description).withType(type).withUnit(unit).build();
+	}
+
+	private class HedgedMethod {
+		final RollingLatencyHistogram latency = new RollingLatencyHistogram(WINDOW_INTERVALS);
+		final Counter reads;
+		final Counter hedges;
+		final Counter wins;
+		// worked out from the latency each time the window moves on so the reads just
+		// pick it up, NO_DELAY until there are enough samples to go on
+		volatile long delayNanos = NO_DELAY;
+
+		HedgedMethod(String name, MetricRegistry metricRegistry) {
+			Tag tag = new Tag("method", name);
+			reads = metricRegistry.counter(metadata("stockmanager.hedging.reads", "Reads that could be hedged",
+					MetricType.COUNTER, MetricUnits.NONE), tag);
+			hedges = metricRegistry.counter(metadata("stockmanager.hedging.hedges",
+					"Extra calls made as the first one was slow", MetricType.COUNTER, MetricUnits.NONE), tag);
+			wins = metricRegistry.counter(metadata("stockmanager.hedging.wins",
+					"Hedges that answered before the call they hedged", MetricType.COUNTER, MetricUnits.NONE), tag);
+			metricRegistry.register(
+					metadata("stockmanager.hedging.hedgeRate", "Proportion of reads that were hedged",
+							MetricType.GAUGE, MetricUnits.NONE),
+					(Gauge<Double>) () -> ratio(hedges.getCount(), reads.getCount()), tag);
+			metricRegistry.register(
+					metadata("stockmanager.hedging.winRate", "Proportion of hedges that answered first",
+							MetricType.GAUGE, MetricUnits.NONE),
+					(Gauge<Double>) () -> ratio(wins.getCount(), hedges.getCount()), tag);
+			metricRegistry.register(
+					metadata("stockmanager.hedging.delay", "How long a read waits before it's hedged",
+							MetricType.GAUGE, MetricUnits.MILLISECONDS),
+					(Gauge<Double>) () -> Math.max(0, delayNanos) / 1000000.0, tag);
+		}
+
+		void roll() {
+			latency.roll();
+			if (latency.getCount() < MIN_SAMPLES) {
+				delayNanos = NO_DELAY;
+				return;
+			}
+			long percentileNanos = (long) (latency.getPercentileMillis(percentile) * 1000000);
+			delayNanos = Math.max(minDelayNanos, percentileNanos);
+		}
+
+		private double ratio(long count, long of) {
+			return of == 0 ? 0 : count / (double) of;
+		}
+	}
+}
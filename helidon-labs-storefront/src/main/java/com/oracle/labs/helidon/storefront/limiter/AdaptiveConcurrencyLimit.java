@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.limiter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Works out how many calls to the stock manager can be in flight at once from
+ * the latency of the calls that have been made, rather than it being a fixed
+ * number. This is the gradient approach used for TCP congestion control.
+ * 
+ * The calls are looked at in windows of at least WINDOW_SAMPLES calls lasting
+ * at least one round trip, so the limit is changed once per round trip
+ * however many calls there are. The lowest average response time of a window
+ * is the baseline, what the stock manager does when it's not queueing. While a
+ * window is no more than TOLERANCE times the baseline the limit grows by about
+ * it's square root, above that the stock manager is queueing the calls so the
+ * limit is reduced in proportion (by up to half at a time). A window where a
+ * call couldn't connect or timed out cuts the limit back by BACKOFF_RATIO. The
+ * limit only grows while at least half of it is being used, otherwise a quiet
+ * period would leave it far above what's been shown to work.
+ * 
+ * The baseline creeps up a little each window, so if the stock manager gets
+ * slower for good (say the database has grown) the limit settles at what it
+ * can do at the new latency rather than staying at the minimum.
+ */
+public class AdaptiveConcurrencyLimit {
+	private final static int WINDOW_SAMPLES = 10;
+	private final static long MIN_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private final static long MAX_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private final static double TOLERANCE = 1.5;
+	private final static double BASELINE_DRIFT = 1.01;
+	// how far the limit moves toward the calculated one each window
+	private final static double SMOOTHING = 0.5;
+	private final static double BACKOFF_RATIO = 0.9;
+	// the most the limit can be cut by the latency in one go
+	private final static double MIN_GRADIENT = 0.5;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final LongSupplier nanoTime;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private volatile double limit;
+	// the rest is guarded by this
+	private double baselineRttNanos = 0;
+	private double lastRttNanos = 0;
+	private long windowStart;
+	private int windowSamples = 0;
+	private int windowResponses = 0;
+	private long windowRttNanos = 0;
+	private int windowMaxInFlight = 0;
+	private boolean windowDropped = false;
+
+	public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+		this(initialLimit, minLimit, maxLimit, System::nanoTime);
+	}
+
+	// the windows are timed with nanoTime, the tests give it their own clock
+	AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, LongSupplier nanoTime) {
+		this.nanoTime = nanoTime;
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+	}
+
+	/**
+	 * Take a slot for a call, returns false if the limit has been reached in which
+	 * case the call shouldn't be made. If it returns true one of the on methods
+	 * must be called when the call finishes
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= getLimit()) {
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Take a slot for a call whatever the limit is, for calls that mustn't be
+	 * turned away (they are still counted, so they hold back the other calls
+	 * until they finish). One of the on methods must be called when the call
+	 * finishes
+	 */
+	public void acquire() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * The call got a response (including an error response from the stock manager
+	 * like a 404) after rttNanos
+	 */
+	public void onSuccess(long rttNanos) {
+		sample(inFlight.getAndDecrement(), rttNanos, false);
+	}
+
+	/**
+	 * The call failed in a way that suggests the stock manager is overloaded (it
+	 * timed out, or the connection failed)
+	 */
+	public void onDropped() {
+		sample(inFlight.getAndDecrement(), 0, true);
+	}
+
+	/**
+	 * The call failed for a reason that says nothing about the stock manager's
+	 * capacity
+	 */
+	public void onIgnored() {
+		inFlight.decrementAndGet();
+	}
+
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	private synchronized void sample(int used, long rttNanos, boolean dropped) {
+		long now = nanoTime.getAsLong();
+		if (windowSamples == 0) {
+			windowStart = now;
+		}
+		windowSamples++;
+		windowMaxInFlight = Math.max(windowMaxInFlight, used);
+		if (dropped) {
+			windowDropped = true;
+		} else {
+			windowResponses++;
+			windowRttNanos += rttNanos;
+		}
+		long windowNanos = Math.min(MAX_WINDOW_NANOS, Math.max(MIN_WINDOW_NANOS, (long) lastRttNanos));
+		if ((windowSamples < WINDOW_SAMPLES) || (now - windowStart < windowNanos)) {
+			return;
+		}
+		updateLimit();
+		windowSamples = 0;
+		windowResponses = 0;
+		windowRttNanos = 0;
+		windowMaxInFlight = 0;
+		windowDropped = false;
+	}
+
+	private void updateLimit() {
+		double currentLimit = limit;
+		if (windowDropped) {
+			setLimit(currentLimit * BACKOFF_RATIO);
+			return;
+		}
+		lastRttNanos = windowRttNanos / (double) windowResponses;
+		baselineRttNanos = baselineRttNanos == 0 ? lastRttNanos
+				: Math.min(lastRttNanos, baselineRttNanos * BASELINE_DRIFT);
+		double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * baselineRttNanos / lastRttNanos));
+		if ((gradient >= 1.0) && (windowMaxInFlight < currentLimit / 2)) {
+			// not using the limit there is, so no evidence more would work
+			return;
+		}
+		double newLimit = (currentLimit * gradient) + Math.sqrt(currentLimit);
+		setLimit((currentLimit * (1 - SMOOTHING)) + (newLimit * SMOOTHING));
+	}
+
+	private void setLimit(double newLimit) {
+		limit = Math.min(maxLimit, Math.max(minLimit, newLimit));
+	}
+}
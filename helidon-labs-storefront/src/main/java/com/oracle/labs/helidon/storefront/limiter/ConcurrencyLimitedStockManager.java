@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.limiter;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+
+import org.eclipse.microprofile.faulttolerance.exceptions.BulkheadException;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Limits the calls in flight to the stock manager to what the
+ * AdaptiveConcurrencyLimit has worked out it can handle, a call over the limit
+ * fails straight away with a BulkheadException (which the fallback handler
+ * turns into a 503) rather than queueing up behind the others until it times
+ * out.
+ * 
+ * Responses from the stock manager (including errors like 404 and 409) are
+ * used for the latency, server errors (5xx) and calls that couldn't connect or
+ * timed out reduce the limit.
+ * 
+ * Releases are never rejected, they give back stock that's been reserved and
+ * turning them away would leave it reserved for good, so they always get a slot
+ * (and count against the limit for the other calls while they run).
+ * 
+ * The current limit, the calls in flight and the number rejected are in the
+ * application metrics as stockmanager.limit.*
+ */
+@Slf4j
+public class ConcurrencyLimitedStockManager implements StockManager {
+	private final StockManager stockManager;
+	private final AdaptiveConcurrencyLimit limit;
+	private final Counter rejected;
+
+	public ConcurrencyLimitedStockManager(StockManager stockManager, AdaptiveConcurrencyLimit limit,
+			MetricRegistry metricRegistry) {
+		this.stockManager = stockManager;
+		this.limit = limit;
+		rejected = metricRegistry.counter(Metadata.builder().withName("stockmanager.limit.rejected")
+				.withDescription("Calls to the stock manager rejected as the concurrency limit had been reached")
+				.withType(MetricType.COUNTER).withUnit(MetricUnits.NONE).build());
+		metricRegistry.register(gaugeMetadata("stockmanager.limit.current",
+				"The number of calls currently allowed in flight to the stock manager"),
+				(Gauge<Integer>) limit::getLimit);
+		metricRegistry.register(
+				gaugeMetadata("stockmanager.limit.inFlight", "The number of calls in flight to the stock manager"),
+				(Gauge<Integer>) limit::getInFlight);
+		log.info("Limiting the calls in flight to the stock manager, starting at " + limit.getLimit());
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return limited(() -> stockManager.getAllStockLevels());
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return limited(() -> stockManager.getStockItem(itemName));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return limited(() -> stockManager.setStockItemLevel(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return limited(() -> stockManager.reserveStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		limit.acquire();
+		return measured(() -> stockManager.releaseStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return limited(() -> stockManager.reserveStockItems(reservations));
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return limitedAsync(() -> stockManager.getAllStockLevelsAsync());
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return limitedAsync(() -> stockManager.reserveStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		limit.acquire();
+		return measuredAsync(() -> stockManager.releaseStockItemAsync(itemName, itemCount));
+	}
+
+	private <T> T limited(Supplier<T> call) {
+		acquire();
+		return measured(call);
+	}
+
+	/**
+	 * Make the call that's been given a slot, recording the outcome
+	 */
+	private <T> T measured(Supplier<T> call) {
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = call.get();
+		} catch (RuntimeException e) {
+			completed(start, e);
+			throw e;
+		}
+		completed(start, null);
+		return result;
+	}
+
+	private <T> CompletionStage<T> limitedAsync(Supplier<CompletionStage<T>> call) {
+		try {
+			acquire();
+		} catch (BulkheadException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return measuredAsync(call);
+	}
+
+	private <T> CompletionStage<T> measuredAsync(Supplier<CompletionStage<T>> call) {
+		long start = System.nanoTime();
+		CompletionStage<T> stage;
+		try {
+			stage = call.get();
+		} catch (RuntimeException e) {
+			completed(start, e);
+			throw e;
+		}
+		return stage.whenComplete((result, failure) -> completed(start,
+				failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+						: failure));
+	}
+
+	private void acquire() {
+		if (!limit.tryAcquire()) {
+			rejected.inc();
+			throw new BulkheadException("The stock manager already has " + limit.getInFlight()
+					+ " calls in flight, the current limit is " + limit.getLimit());
+		}
+	}
+
+	private void completed(long start, Throwable failure) {
+		if (failure == null) {
+			limit.onSuccess(System.nanoTime() - start);
+		} else if (failure instanceof ProcessingException) {
+			limit.onDropped();
+		} else if (failure instanceof WebApplicationException) {
+			if (((WebApplicationException) failure).getResponse().getStatus() >= 500) {
+				limit.onDropped();
+			} else {
+				// the stock manager answered, just not with an item
+				limit.onSuccess(System.nanoTime() - start);
+			}
+		} else {
+			limit.onIgnored();
+		}
+	}
+
+	private static Metadata gaugeMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.NONE).build();
+	}
+}
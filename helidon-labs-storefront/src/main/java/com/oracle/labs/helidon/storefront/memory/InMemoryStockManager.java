@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.memory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.json.bind.JsonbException;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+/**
+ * A StockManager that holds the stock in memory, so the storefront can run on
+ * it's own (for benchmarks and demos) with no stock manager service behind it.
+ * 
+ * Each item's level is an AtomicInteger in a concurrent map, so there are no
+ * locks. A reservation reads the level and swaps in the reduced level only if
+ * it's still the one it read (retrying if not), so every reservation happens
+ * at a single point in time and two of them can never both take the last of
+ * the stock. Like the stock manager a reservation is refused (with a 409) if it
+ * would take all or more than there is, and an unknown item comes back as null.
+ * The ItemDetails returned are copies, changing them doesn't change the stock.
+ * 
+ * The items are fixed when it's created, from a list or from a file that's a
+ * JSON array of items (the same as the stock manager returns for all the stock
+ * levels)
+ */
+public class InMemoryStockManager implements StockManager {
+	public final static String BINDING = "memory";
+	private final static Type ITEM_DETAILS_LIST = new ArrayList<ItemDetails>() {
+		private static final long serialVersionUID = 1L;
+	}.getClass().getGenericSuperclass();
+	private final static Jsonb JSONB = JsonbBuilder.create();
+	// the same limit as the stock manager
+	private final static int MAX_BATCH_RESERVATIONS = 1000;
+
+	private final ConcurrentMap<String, AtomicInteger> stock = new ConcurrentHashMap<>();
+
+	public InMemoryStockManager(Collection<ItemDetails> items) {
+		items.forEach(item -> stock.put(item.getItemName(), new AtomicInteger(item.getItemCount())));
+	}
+
+	/**
+	 * Reads the items from a JSON array of items, e.g. [{"itemName":"Pencil",
+	 * "itemCount":100}]
+	 */
+	public static InMemoryStockManager fromFile(Path seedFile) throws IOException {
+		try (Reader reader = Files.newBufferedReader(seedFile, StandardCharsets.UTF_8)) {
+			return new InMemoryStockManager(JSONB.fromJson(reader, ITEM_DETAILS_LIST));
+		} catch (JsonbException e) {
+			throw new IOException("Can't read the items from " + seedFile, e);
+		}
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return stock.entrySet().stream().map(entry -> new ItemDetails(entry.getKey(), entry.getValue().get()))
+				.collect(Collectors.toList());
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		AtomicInteger level = stock.get(itemName);
+		return level == null ? null : new ItemDetails(itemName, level.get());
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		AtomicInteger level = stock.get(itemName);
+		if (level == null) {
+			return null;
+		}
+		level.set(itemCount);
+		return new ItemDetails(itemName, itemCount);
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		checkItemCount(itemCount);
+		ReservationResult result = reserve(itemName, itemCount);
+		if (result.getStatus() == Status.NOT_FOUND.getStatusCode()) {
+			return null;
+		}
+		if (result.getStatus() == Status.CONFLICT.getStatusCode()) {
+			throw new NotEnoughStockException();
+		}
+		return new ItemDetails(itemName, result.getItemCount());
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		checkItemCount(itemCount);
+		AtomicInteger level = stock.get(itemName);
+		if (level == null) {
+			return null;
+		}
+		return new ItemDetails(itemName, level.addAndGet(itemCount));
+	}
+
+	/**
+	 * Each reservation is made on it's own, in order, the same as the stock
+	 * manager does, and like the stock manager the whole batch is rejected if it's
+	 * missing, too big, or any of it isn't for a positive number of a named item
+	 */
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		if ((reservations == null) || (reservations.size() > MAX_BATCH_RESERVATIONS)) {
+			throw new BadRequestException("A batch needs between 0 and " + MAX_BATCH_RESERVATIONS + " reservations");
+		}
+		for (Reservation reservation : reservations) {
+			if ((reservation == null) || (reservation.getItemName() == null)) {
+				throw new BadRequestException("Every reservation in the batch needs an item name");
+			}
+			checkItemCount(reservation.getItemCount());
+		}
+		return reservations.stream().map(reservation -> reserve(reservation.getItemName(), reservation.getItemCount()))
+				.collect(Collectors.toList());
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return completed(this::getAllStockLevels);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return completed(() -> reserveStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return completed(() -> releaseStockItem(itemName, itemCount));
+	}
+
+	/**
+	 * Takes itemCount of the item if there will still be some left, the level
+	 * only changes if no one else has changed it since we read it, if they have we
+	 * try again with the new level.
+	 * 
+	 * Nothing is ever removed from stock (there's no delete), so the level we got
+	 * is still the item's level when the swap succeeds. If items could be deleted
+	 * this would have to check the item is still in stock after the swap (and put
+	 * the items back and return NOT_FOUND if it isn't), or it could report a
+	 * reservation against an item that's gone
+	 */
+	private ReservationResult reserve(String itemName, int itemCount) {
+		AtomicInteger level = stock.get(itemName);
+		if (level == null) {
+			return new ReservationResult(itemName, 0, Status.NOT_FOUND.getStatusCode());
+		}
+		while (true) {
+			int current = level.get();
+			if (current <= itemCount) {
+				return new ReservationResult(itemName, current, Status.CONFLICT.getStatusCode());
+			}
+			if (level.compareAndSet(current, current - itemCount)) {
+				return new ReservationResult(itemName, current - itemCount, Status.OK.getStatusCode());
+			}
+		}
+	}
+
+	// the 400 the stock manager responds with
+	private static void checkItemCount(Integer itemCount) {
+		if ((itemCount == null) || (itemCount <= 0)) {
+			throw new BadRequestException("The number of items must be positive, got " + itemCount);
+		}
+	}
+
+	// there's nothing to wait for, so these are already complete
+	private static <T> CompletionStage<T> completed(Supplier<T> call) {
+		try {
+			return CompletableFuture.completedFuture(call.get());
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * The 409 the rest client would see, once an item sells out most
+	 * reservations get this so it doesn't capture a stack trace
+	 */
+	private static class NotEnoughStockException extends WebApplicationException {
+		private static final long serialVersionUID = 2716440925836307391L;
+
+		private NotEnoughStockException() {
+			super(Status.CONFLICT);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+}
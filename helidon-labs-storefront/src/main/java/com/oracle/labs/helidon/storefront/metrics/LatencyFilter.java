@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.metrics;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Times every JAX-RS resource method call, from just before authentication to
+ * the response being ready to write, so it includes the security processing
+ * and any fallback handling
+ */
+@Provider
+@ApplicationScoped
+@Priority(Priorities.AUTHENTICATION - 1)
+public class LatencyFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	private final static String START_PROPERTY = LatencyFilter.class.getName() + ".start";
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	@Inject
+	private LatencyRecorder latencyRecorder;
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) {
+		requestContext.setProperty(START_PROPERTY, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+		Object start = requestContext.getProperty(START_PROPERTY);
+		if ((start == null) || (resourceInfo.getResourceMethod() == null)) {
+			// didn't match a resource method, so nothing to record against
+			return;
+		}
+		latencyRecorder.record(LatencyRecorder.TYPE_ENDPOINT, resourceInfo.getResourceClass().getSimpleName() + "."
+				+ resourceInfo.getResourceMethod().getName(), System.nanoTime() - (Long) start);
+	}
+}
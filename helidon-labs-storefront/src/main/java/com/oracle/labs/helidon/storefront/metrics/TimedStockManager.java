@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.metrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.health.StockManagerHealthTracker;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+/**
+ * Wraps a StockManager so the time each call to the stock manager service takes
+ * (including any failures) is recorded in the LatencyRecorder as
+ * StockManager.<method name>, the outcome also goes to the
+ * StockManagerHealthTracker which uses it to decide if we're ready
+ */
+public class TimedStockManager implements StockManager {
+	private final StockManager stockManager;
+	private final LatencyRecorder latencyRecorder;
+	private final StockManagerHealthTracker healthTracker;
+
+	public TimedStockManager(StockManager stockManager, LatencyRecorder latencyRecorder,
+			StockManagerHealthTracker healthTracker) {
+		this.stockManager = stockManager;
+		this.latencyRecorder = latencyRecorder;
+		this.healthTracker = healthTracker;
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return timed("StockManager.getAllStockLevels", () -> stockManager.getAllStockLevels());
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return timed("StockManager.getStockItem", () -> stockManager.getStockItem(itemName));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return timed("StockManager.setStockItemLevel", () -> stockManager.setStockItemLevel(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return timed("StockManager.reserveStockItem", () -> stockManager.reserveStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return timed("StockManager.releaseStockItem", () -> stockManager.releaseStockItem(itemName, itemCount));
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return timed("StockManager.reserveStockItems", () -> stockManager.reserveStockItems(reservations));
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return timedAsync("StockManager.getAllStockLevels", () -> stockManager.getAllStockLevelsAsync());
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return timedAsync("StockManager.reserveStockItem", () -> stockManager.reserveStockItemAsync(itemName, itemCount));
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return timedAsync("StockManager.releaseStockItem", () -> stockManager.releaseStockItemAsync(itemName, itemCount));
+	}
+
+	/**
+	 * The async calls are recorded under the same names as the synchronous ones,
+	 * it's the same call to the stock manager, timed until the stage completes
+	 */
+	private <T> CompletionStage<T> timedAsync(String name, Supplier<CompletionStage<T>> call) {
+		long start = System.nanoTime();
+		CompletionStage<T> stage;
+		try {
+			stage = call.get();
+		} catch (RuntimeException e) {
+			stage = CompletableFuture.failedFuture(e);
+		}
+		return stage.whenComplete((result, failure) -> {
+			long nanos = System.nanoTime() - start;
+			latencyRecorder.record(LatencyRecorder.TYPE_CLIENT, name, nanos);
+			if (failure == null) {
+				healthTracker.recordSuccess(nanos);
+			} else {
+				healthTracker.recordFailure(nanos,
+						failure instanceof CompletionException && failure.getCause() != null ? failure.getCause()
+								: failure);
+			}
+		});
+	}
+
+	private <T> T timed(String name, Supplier<T> call) {
+		long start = System.nanoTime();
+		T result;
+		try {
+			result = call.get();
+		} catch (RuntimeException e) {
+			long nanos = System.nanoTime() - start;
+			latencyRecorder.record(LatencyRecorder.TYPE_CLIENT, name, nanos);
+			healthTracker.recordFailure(nanos, e);
+			throw e;
+		}
+		long nanos = System.nanoTime() - start;
+		latencyRecorder.record(LatencyRecorder.TYPE_CLIENT, name, nanos);
+		healthTracker.recordSuccess(nanos);
+		return result;
+	}
+}
@@ -17,8 +17,21 @@
 package com.oracle.labs.helidon.storefront.resources;
 
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
@@ -28,13 +41,17 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.faulttolerance.Asynchronous;
 import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.faulttolerance.Timeout;
+import org.eclipse.microprofile.faulttolerance.exceptions.BulkheadException;
 import org.eclipse.microprofile.metrics.annotation.Counted;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Timed;
@@ -49,9 +66,9 @@ import org.eclipse.microprofile.rest.client.inject.RestClient;
 import com.oracle.labs.helidon.storefront.data.ItemDetails;
 import com.oracle.labs.helidon.storefront.data.ItemRequest;
 import com.oracle.labs.helidon.storefront.data.MinimumChange;
-import com.oracle.labs.helidon.storefront.dummy.StockManagerDummy;
 import com.oracle.labs.helidon.storefront.exceptions.MinimumChangeException;
 import com.oracle.labs.helidon.storefront.exceptions.NotEnoughItemsException;
+import com.oracle.labs.helidon.storefront.exceptions.UncertainReservationException;
 import com.oracle.labs.helidon.storefront.exceptions.UnknownItemException;
 import com.oracle.labs.helidon.storefront.resources.fallback.StorefrontFallbackHandler;
 import com.oracle.labs.helidon.storefront.restclients.StockManager;
@@ -69,32 +86,62 @@ import lombok.extern.slf4j.Slf4j;
 // Authenticated here means for any REST call to this class we have to have a user, the user authentication is
 // automatically propagated to the stock management service when we call it
 // if we don't return from the method in 15 seconds return a timeout message
+// The stock manager calls are made asynchronously, the methods return a CompletionStage which JAX-RS treats as a
+// suspended response, so no thread is held while the stock manager responds. They are also @Asynchronous so the
+// timeout and fallback apply to the stage completing, not just the method returning it
+@Path("/store")
+@RequestScoped
+@Counted
+@Authenticated
+@Timeout(value = 15, unit = ChronoUnit.SECONDS)
 //Have Lombok create a logger and no args constructor for us
 @Slf4j
 @NoArgsConstructor
 public class StorefrontResource {
 
 	private static final JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
+	// a bit less than the class level timeout, so a cart that's taking too long
+	// fails (and releases what it's reserved) before the fault tolerance gives up on
+	// it
+	private static final long CART_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(14);
 
 	private MinimumChange minimumChange = new MinimumChange();
 
-	private StockManager stockManager = StockManagerDummy.getStockManager();
+	private StockManager stockManager;
 
-	
-	public Collection<ItemDetails> listAllStock() {
+	private int cartMaxLinesInFlight = 4;
+
+	// the stock manager is whichever binding app.stockmanager.binding selects, with
+	// the calls to it timed and the reads cached (see StockManagerProducer)
+	@Inject
+	public StorefrontResource(StockManager stockManager,
+			@ConfigProperty(name = "app.cart.maxLinesInFlight", defaultValue = "4") int cartMaxLinesInFlight) {
+		this.stockManager = stockManager;
+		this.cartMaxLinesInFlight = Math.max(1, cartMaxLinesInFlight);
+	}
+
+	@GET
+	@Path("/stocklevel")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Timed(name = "listAllStockTimer")
+	@Asynchronous
+	@Fallback(fallbackMethod = "failedListStockItem")
+	@Operation(summary = "List stock items", description = "Returns a list of all of the stock items currently held in the database (the list may be empty if there are no items)")
+	@APIResponse(description = "A set of ItemDetails representing the current data in the database", responseCode = "200", content = @Content(schema = @Schema(implementation = ItemDetails.class, type = SchemaType.ARRAY, example = "[{\"itemCount\": 10, \"itemName\": \"Pencil\"},"
+			+ "{\"itemCount\": 50, \"itemName\": \"Eraserl\"}," + "{\"itemCount\": 4600, \"itemName\": \"Pin\"},"
+			+ "{\"itemCount\": 100, \"itemName\": \"Book\"}]")))
+	public CompletionStage<Collection<ItemDetails>> listAllStock() {
 		// log the request
 		log.info("Requesting listing of all stock");
 		// get the list from the stock management service
-		try {
-			Collection<ItemDetails> items = stockManager.getAllStockLevels();
-			// log the response
-			log.info("Found " + items.size() + " items");
-			// return the items
-			return items;
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw e;
-		}
+		return stockManager.getAllStockLevelsAsync().whenComplete((items, failure) -> {
+			if (failure == null) {
+				// log the response
+				log.info("Found " + items.size() + " items");
+			} else {
+				log.warn("Listing the stock levels failed", failure);
+			}
+		});
 	}
 
 	/**
@@ -106,9 +153,20 @@ public class StorefrontResource {
 	 *                    ItemRequest object for us
 	 * @return
 	 */
-
-	public ItemDetails reserveStockItem(ItemRequest itemRequest)
-			throws MinimumChangeException, UnknownItemException, NotEnoughItemsException {
+	@POST
+	@Path("/reserveStock")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Metered(name = "reserveStockMeter", absolute = true)
+	@Asynchronous
+	@Fallback(StorefrontFallbackHandler.class)
+	@Operation(summary = "Reserves a number of stock items", description = "reserves a number of stock items in the database. The number of stock items being reserved must be greater than the defined minimum change")
+	@APIResponse(description = "The updated stock details for the item", responseCode = "200", content = @Content(schema = @Schema(implementation = ItemDetails.class, example = "{\"itemCount\": 10, \"itemName\": \"Pencil\"}")))
+	@APIResponse(description = "The requested item does not exist", responseCode = "404")
+	@APIResponse(description = "The requested change does not meet the minimum level required for the change (i.e. is <= the minimumChange value)", responseCode = "406")
+	@APIResponse(description = "There are not enough of the requested item to fulfil your request", responseCode = "409")
+	public CompletionStage<ItemDetails> reserveStockItem(
+			@RequestBody(description = "The details of the item being requested", required = true, content = @Content(schema = @Schema(implementation = ItemRequest.class, example = "{\"requestedItem\", \"Pin\", \"requestedCount\",5}"))) ItemRequest itemRequest) {
 		log.info("Requesting the reservation of " + itemRequest.getRequestedCount() + " items of "
 				+ itemRequest.getRequestedItem());
 		// make sure the change is within the minimum change allowed
@@ -120,40 +178,52 @@ public class StorefrontResource {
 					+ itemRequest.getRequestedItem() + " fails because it's less than the minimum delta of "
 					+ minimumChange.getMinimumChange();
 			log.error(problemDetails);
-			throw new MinimumChangeException(problemDetails);
+			return CompletableFuture.failedFuture(new MinimumChangeException(problemDetails));
 		}
-		// OK validated the basic data, let's make sure we have enough remaining stock
-		// to reserve
-		ItemDetails itemDetails = stockManager.getStockItem(itemRequest.getRequestedItem());
-		if (itemDetails == null) {
+		// OK validated the basic data, ask the stock manager to reserve the items, it
+		// checks there are enough in stock as part of making the change, so we don't
+		// need to read the current level (which may be cached) first
+		log.info("The reservation of " + itemRequest.getRequestedCount() + " items of " + itemRequest.getRequestedItem()
+				+ " is being sent to the database");
+		return stockManager.reserveStockItemAsync(itemRequest.getRequestedItem(), itemRequest.getRequestedCount())
+				.handle((updatedItemDetails, failure) -> reserved(itemRequest, updatedItemDetails, failure));
+	}
+
+	/**
+	 * Works out the result of the reservation once the stock manager has responded,
+	 * the problems are thrown as the same exceptions as before, wrapped in a
+	 * CompletionException as this is completing the stage
+	 */
+	private ItemDetails reserved(ItemRequest itemRequest, ItemDetails updatedItemDetails, Throwable failure) {
+		if (failure instanceof CompletionException && failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		if (failure instanceof WebApplicationException) {
+			WebApplicationException e = (WebApplicationException) failure;
+			if (e.getResponse().getStatus() == Response.Status.CONFLICT.getStatusCode()) {
+				// not enough items, log the failed request and throw the log message as an
+				// error
+				String problemDetails = "The reservation of " + itemRequest.getRequestedCount() + " items of "
+						+ itemRequest.getRequestedItem() + " fails because there are not enough items available";
+				log.error(problemDetails);
+				throw new CompletionException(new NotEnoughItemsException(problemDetails));
+			}
+			if (e.getResponse().getStatus() != Response.Status.NOT_FOUND.getStatusCode()) {
+				throw e;
+			}
+			updatedItemDetails = null;
+		} else if (failure != null) {
+			throw new CompletionException(failure);
+		}
+		if (updatedItemDetails == null) {
 			// can't find the stock item, log the failed request and throw the log message
 			// as
 			// an error
 			String problemDetails = "The reservation of " + itemRequest.getRequestedCount() + " items of "
 					+ itemRequest.getRequestedItem() + " fails because the item is not known";
 			log.error(problemDetails);
-			throw new UnknownItemException(problemDetails);
-		}
-		log.info("stock item " + itemDetails.getItemName() + " exists and currently there are "
-				+ itemDetails.getItemCount() + " items in stock");
-		// do we have enough items to reserve ?
-		if (itemDetails.getItemCount() <= itemRequest.getRequestedCount()) {
-			// not enough items, log the failed request and throw the log message as an
-			// error
-			String problemDetails = "The reservation of " + itemRequest.getRequestedCount() + " items of "
-					+ itemRequest.getRequestedItem() + " fails because there are only " + itemDetails.getItemCount()
-					+ " items available";
-			log.error(problemDetails);
-			throw new NotEnoughItemsException(problemDetails);
+			throw new CompletionException(new UnknownItemException(problemDetails));
 		}
-		// Right, passed all checks
-		// work out the new level
-		int newItemCount = itemDetails.getItemCount() - itemRequest.getRequestedCount();
-		// log the request
-		log.info("The reservation of " + itemRequest.getRequestedCount() + " items of " + itemRequest.getRequestedItem()
-				+ " is being sent to the database");
-		// update the DB and get the result back (the updated info)
-		ItemDetails updatedItemDetails = stockManager.setStockItemLevel(itemRequest.getRequestedItem(), newItemCount);
 		// log the result
 		log.info("The reservation of " + itemRequest.getRequestedCount() + " items of " + itemRequest.getRequestedItem()
 				+ " suceeded, the stock manager reports " + updatedItemDetails.getItemCount() + " remain");
@@ -161,11 +231,286 @@ public class StorefrontResource {
 		return updatedItemDetails;
 	}
 
+	/**
+	 * reserve all of the items in a cart, for example curl -X POST -u
+	 * user:password -d '[{"requestedItem":"Pencil", "requestedCount":5},
+	 * {"requestedItem":"Pin", "requestedCount":10}]'
+	 * 
+	 * Every line has to meet the minimum change before anything is reserved. The
+	 * lines are then sent to the stock manager in parallel, up to
+	 * app.cart.maxLinesInFlight at a time, so the time taken is closer to that of
+	 * the slowest one than the total of them. The cart is admitted as a whole, if
+	 * the concurrency limit turns a line away while others of the cart are in
+	 * flight it waits for them rather than failing, only a cart that can't get any
+	 * line in fails with a 503. If any line can't be
+	 * reserved the ones that were are released again (with the response being the
+	 * status of the first line in the cart that failed), so a cart is either all
+	 * reserved or none of it is.
+	 * 
+	 * The releases hang off each line's own completion, not the response, so a
+	 * line that's reserved after the cart has failed or timed out is still given
+	 * back. A line where the call to the stock manager failed part way through
+	 * may or may not have been reserved, that can't be released blindly (it may
+	 * add stock that was never taken) so it's logged as needing checking and the
+	 * cart fails as uncertain rather than with the first line's status
+	 * 
+	 * @return the updated stock details for each line, in the same order
+	 */
+	@POST
+	@Path("/reserveCart")
+	@Produces(MediaType.APPLICATION_JSON)
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Metered(name = "reserveCartMeter", absolute = true)
+	@Asynchronous
+	@Fallback(StorefrontFallbackHandler.class)
+	@Operation(summary = "Reserves all of the items in a cart", description = "reserves the stock for every line in the cart, or if that's not possible for any of them none of the cart. Each line must be greater than the defined minimum change")
+	@APIResponse(description = "The updated stock details for each item, in the same order as the cart", responseCode = "200", content = @Content(schema = @Schema(implementation = ItemDetails.class, type = SchemaType.ARRAY, example = "[{\"itemCount\": 10, \"itemName\": \"Pencil\"},"
+			+ "{\"itemCount\": 4590, \"itemName\": \"Pin\"}]")))
+	@APIResponse(description = "One of the requested items does not exist", responseCode = "404")
+	@APIResponse(description = "One of the requested changes does not meet the minimum level required for the change (i.e. is <= the minimumChange value)", responseCode = "406")
+	@APIResponse(description = "There are not enough of one of the requested items to fulfil your request", responseCode = "409")
+	@APIResponse(description = "The stock manager didn't answer for one of the items, the cart has not been reserved but that item may need checking", responseCode = "504")
+	public CompletionStage<List<ItemDetails>> reserveCart(
+			@RequestBody(description = "The items being requested", required = true, content = @Content(schema = @Schema(implementation = ItemRequest.class, type = SchemaType.ARRAY, example = "[{\"requestedItem\", \"Pin\", \"requestedCount\",5}]"))) List<ItemRequest> cart) {
+		log.info("Requesting the reservation of a cart of " + cart.size() + " items");
+		List<String> problems = cart.stream().filter(line -> line.getRequestedCount() < minimumChange.getMinimumChange())
+				.map(line -> line.getRequestedCount() + " items of " + line.getRequestedItem())
+				.collect(Collectors.toList());
+		if (!problems.isEmpty()) {
+			String problemDetails = "The reservation of the cart fails because " + String.join(", ", problems)
+					+ " is less than the minimum delta of " + minimumChange.getMinimumChange();
+			log.error(problemDetails);
+			return CompletableFuture.failedFuture(new MinimumChangeException(problemDetails));
+		}
+		// send the reservations, each outcome holds the reserved item or the
+		// exception reserveStockItem would have failed with. The cart sees each
+		// outcome as it arrives so it can release what's been reserved as soon as it
+		// knows the cart has failed
+		CartReservation reservation = new CartReservation(cart);
+		CompletableFuture<List<ItemDetails>> result = reservation.start().thenCompose(outcomes -> {
+			Throwable failure = cartFailure(outcomes);
+			if (failure == null) {
+				log.info("The reservation of a cart of " + cart.size() + " items suceeded");
+				return CompletableFuture.completedFuture(
+						outcomes.stream().map(outcome -> outcome.updatedItemDetails).collect(Collectors.toList()));
+			}
+			// all of the releases have been started by now, wait for them so a retry of the
+			// cart sees the stock back
+			return reservation.releases().thenApply(released -> {
+				throw new CompletionException(failure);
+			});
+		});
+		// give up just before the class level timeout so the cart knows it's failed,
+		// if that (or anything else) completes it without the items then whatever is
+		// reserved from now on is released
+		result.orTimeout(CART_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((items, failure) -> {
+			if (failure != null) {
+				reservation.abandon();
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * The first line in the cart that failed, unless one of them isn't known to
+	 * have failed in which case that's what the cart reports
+	 */
+	private Throwable cartFailure(List<CartLine> outcomes) {
+		Throwable failure = null;
+		for (CartLine outcome : outcomes) {
+			if (outcome.isUncertain()) {
+				return new UncertainReservationException("The reservation of the cart fails because the stock manager "
+						+ "didn't give an answer for " + outcome.itemRequest.getRequestedCount() + " items of "
+						+ outcome.itemRequest.getRequestedItem(), outcome.failure);
+			}
+			if ((failure == null) && (outcome.failure != null)) {
+				failure = outcome.failure;
+			}
+		}
+		return failure;
+	}
+
+	private CartLine cartLine(ItemRequest itemRequest, ItemDetails updatedItemDetails, Throwable failure) {
+		try {
+			return new CartLine(itemRequest, reserved(itemRequest, updatedItemDetails, failure), null);
+		} catch (CompletionException e) {
+			return new CartLine(itemRequest, null, e.getCause());
+		} catch (RuntimeException e) {
+			return new CartLine(itemRequest, null, e);
+		}
+	}
+
+	/**
+	 * Sends the lines of a cart to the stock manager and tracks which are reserved
+	 * so they can be given back if the cart fails, however late they turn up
+	 */
+	private class CartReservation {
+		private final List<ItemRequest> cart;
+		private final CartLine[] outcomes;
+		private final CompletableFuture<List<CartLine>> completed = new CompletableFuture<>();
+		// set once the cart can't succeed, after that no more lines are sent and every
+		// line is released as soon as it's reserved
+		private final AtomicBoolean abandoned = new AtomicBoolean();
+		// the reserved lines that haven't been released, whoever takes a line out of
+		// here is the one that releases it, so none are released twice
+		private final Queue<CartLine> reserved = new ConcurrentLinkedQueue<>();
+		private final Queue<CompletableFuture<?>> releases = new ConcurrentLinkedQueue<>();
+		// the rest is guarded by this
+		private int maxInFlight;
+		private int inFlight = 0;
+		private int nextLine = 0;
+		private int outstanding;
+		// lines the concurrency limit turned away, sent again when a slot comes free
+		private final Queue<Integer> turnedAway = new ArrayDeque<>();
+
+		private CartReservation(List<ItemRequest> cart) {
+			this.cart = cart;
+			outcomes = new CartLine[cart.size()];
+			outstanding = cart.size();
+			maxInFlight = cartMaxLinesInFlight;
+		}
+
+		private CompletableFuture<List<CartLine>> start() {
+			if (cart.isEmpty()) {
+				completed.complete(Collections.emptyList());
+			}
+			sendMore();
+			return completed;
+		}
+
+		private void sendMore() {
+			while (true) {
+				int line;
+				synchronized (this) {
+					line = nextToSend();
+					if (line < 0) {
+						return;
+					}
+					inFlight++;
+				}
+				ItemRequest itemRequest = cart.get(line);
+				stockManager.reserveStockItemAsync(itemRequest.getRequestedItem(), itemRequest.getRequestedCount())
+						.whenComplete((updatedItemDetails, failure) -> sent(line, updatedItemDetails, failure));
+			}
+		}
+
+		private synchronized int nextToSend() {
+			if (abandoned.get() || (inFlight >= maxInFlight)) {
+				return -1;
+			}
+			if (!turnedAway.isEmpty()) {
+				return turnedAway.poll();
+			}
+			return nextLine < cart.size() ? nextLine++ : -1;
+		}
+
+		private void sent(int line, ItemDetails updatedItemDetails, Throwable failure) {
+			boolean retry;
+			synchronized (this) {
+				inFlight--;
+				// the cart already has calls in flight so it's been let in, this line waits for
+				// one of them to finish, and the cart doesn't try to have more in flight than
+				// it has now
+				retry = isTurnedAway(failure) && (inFlight > 0) && !abandoned.get();
+				if (retry) {
+					turnedAway.add(line);
+					maxInFlight = inFlight;
+				}
+			}
+			if (!retry) {
+				lineCompleted(line, cartLine(cart.get(line), updatedItemDetails, failure));
+			}
+			sendMore();
+		}
+
+		private void lineCompleted(int line, CartLine outcome) {
+			if (outcome.failure == null) {
+				reserved.add(outcome);
+				if (abandoned.get()) {
+					releaseReserved();
+				}
+			} else {
+				if (outcome.isUncertain()) {
+					log.error("The reservation of " + outcome.itemRequest.getRequestedCount() + " items of "
+							+ outcome.itemRequest.getRequestedItem()
+							+ " for a cart may or may not have been made, it's not been released so the stock level needs checking",
+							outcome.failure);
+				}
+				abandon();
+			}
+			outcome(line, outcome);
+		}
+
+		/**
+		 * The cart has failed, the lines that haven't been sent won't be and the ones
+		 * that have been reserved are released
+		 */
+		private void abandon() {
+			abandoned.set(true);
+			List<Integer> unsent = new ArrayList<>();
+			synchronized (this) {
+				unsent.addAll(turnedAway);
+				turnedAway.clear();
+				while (nextLine < cart.size()) {
+					unsent.add(nextLine++);
+				}
+			}
+			for (int line : unsent) {
+				outcome(line, new CartLine(cart.get(line), null, null));
+			}
+			releaseReserved();
+		}
+
+		private void outcome(int line, CartLine outcome) {
+			synchronized (this) {
+				outcomes[line] = outcome;
+				if (--outstanding > 0) {
+					return;
+				}
+			}
+			completed.complete(Arrays.asList(outcomes));
+		}
+
+		private void releaseReserved() {
+			CartLine outcome;
+			while ((outcome = reserved.poll()) != null) {
+				releases.add(release(outcome));
+			}
+		}
+
+		private CompletableFuture<Void> releases() {
+			return CompletableFuture.allOf(releases.toArray(new CompletableFuture<?>[0]));
+		}
+	}
+
+	private static boolean isTurnedAway(Throwable failure) {
+		if ((failure instanceof CompletionException) && (failure.getCause() != null)) {
+			failure = failure.getCause();
+		}
+		return failure instanceof BulkheadException;
+	}
+
+	/**
+	 * Give back a line of a cart that was reserved, a release that fails is logged
+	 * but doesn't stop the others
+	 */
+	private CompletableFuture<?> release(CartLine outcome) {
+		return stockManager
+				.releaseStockItemAsync(outcome.itemRequest.getRequestedItem(), outcome.itemRequest.getRequestedCount())
+				.whenComplete((releasedItemDetails, failure) -> {
+					if (failure != null) {
+						log.error("Unable to release the reservation of " + outcome.itemRequest.getRequestedCount()
+								+ " items of " + outcome.itemRequest.getRequestedItem() + " from a failed cart",
+								failure);
+					}
+				}).exceptionally(failure -> null).toCompletableFuture();
+	}
+
 	/*
 	 * This is a simple handler, it doesn't get handed the fault details, but we can
 	 * use it to return a default object, or in this case throw an error
 	 */
-	public Collection<ItemDetails> failedListStockItem() {
+	public CompletionStage<Collection<ItemDetails>> failedListStockItem() {
 		log.info("The listing of items failed for some reason");
 		throw new WebApplicationException(
 				Response.status(424, "Failed Dependency")
@@ -173,4 +518,26 @@ public class StorefrontResource {
 								.add("errormessage", "Unable to connect to the stock manager service").build())
 						.build());
 	}
-}
\ No newline at end of file
+
+	private static class CartLine {
+		final ItemRequest itemRequest;
+		final ItemDetails updatedItemDetails;
+		final Throwable failure;
+
+		CartLine(ItemRequest itemRequest, ItemDetails updatedItemDetails, Throwable failure) {
+			this.itemRequest = itemRequest;
+			this.updatedItemDetails = updatedItemDetails;
+			this.failure = failure;
+		}
+
+		/**
+		 * The call failed without the stock manager saying what happened (e.g. the
+		 * connection was lost or it timed out), the reservation may still have been
+		 * made
+		 */
+		boolean isUncertain() {
+			return (failure instanceof ProcessingException) || (failure instanceof TimeoutException)
+					|| (failure instanceof org.eclipse.microprofile.faulttolerance.exceptions.TimeoutException);
+		}
+	}
+}
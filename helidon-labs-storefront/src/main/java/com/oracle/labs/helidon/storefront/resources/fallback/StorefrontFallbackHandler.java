@@ -15,12 +15,16 @@
  */
 package com.oracle.labs.helidon.storefront.resources.fallback;
 
+import java.lang.reflect.Method;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import javax.enterprise.context.Dependent;
@@ -35,17 +39,20 @@ import javax.ws.rs.core.Response.Status;
 
 import org.eclipse.microprofile.faulttolerance.ExecutionContext;
 import org.eclipse.microprofile.faulttolerance.FallbackHandler;
+import org.eclipse.microprofile.faulttolerance.exceptions.BulkheadException;
 
-import com.oracle.labs.helidon.storefront.data.ItemDetails;
 import com.oracle.labs.helidon.storefront.exceptions.MinimumChangeException;
 import com.oracle.labs.helidon.storefront.exceptions.NotEnoughItemsException;
+import com.oracle.labs.helidon.storefront.exceptions.UncertainReservationException;
 import com.oracle.labs.helidon.storefront.exceptions.UnknownItemException;
 
 import lombok.extern.slf4j.Slf4j;
 
+// the handler has to return the same type as the methods, the reservations are asynchronous so that's a
+// CompletionStage (of an item or a cart of them), as it always throws it's never actually returned
 @Dependent
 @Slf4j
-public class StorefrontFallbackHandler implements FallbackHandler<ItemDetails> {
+public class StorefrontFallbackHandler implements FallbackHandler<CompletionStage<?>> {
 	// List the specific exceptions here, if there isn;t a match it will default to
 	// 500 INTERNAL_SERVER_ERROR
 	private final static List<ExceptionMap> exceptionToCode = Arrays.asList(
@@ -54,9 +61,20 @@ public class StorefrontFallbackHandler implements FallbackHandler<ItemDetails> {
 			new ExceptionMap(MinimumChangeException.class.getName(), Status.NOT_ACCEPTABLE.getStatusCode()),
 			new ExceptionMap(UnknownItemException.class.getName(), Status.NOT_FOUND.getStatusCode()),
 			new ExceptionMap(NotEnoughItemsException.class.getName(), Status.CONFLICT.getStatusCode()),
+			// the stock manager didn't answer (or not in time) so we don't know what happened
+			new ExceptionMap(UncertainReservationException.class.getName(), Status.GATEWAY_TIMEOUT.getStatusCode()),
+			new ExceptionMap(TimeoutException.class.getName(), Status.GATEWAY_TIMEOUT.getStatusCode()),
+			// too many calls already in flight to the stock manager, try again later
+			new ExceptionMap(BulkheadException.class.getName(), Status.SERVICE_UNAVAILABLE.getStatusCode()),
 			new ExceptionMap(WebApplicationException.class.getName(), 424));
 	private final static Map<String, Integer> exceptionsToCode = exceptionToCode.stream()
 			.collect(Collectors.toMap(info -> info.getCause(), info -> info.getStatus()));
+	// when an item sells out most reservations end up here, so the things that are
+	// the same every time are only worked out once, the factory (finding the JSON
+	// provider is slow) and for each method the start of the body, which says what
+	// was called
+	private final static JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
+	private final static Map<Method, JsonObject> bodyTemplates = new ConcurrentHashMap<>();
 
 	/*
 	 * This really attempts to show a whole bunch of possibilities for handling a
@@ -64,18 +82,18 @@ public class StorefrontFallbackHandler implements FallbackHandler<ItemDetails> {
 	 * these, but this may give you some ideas
 	 */
 	@Override
-	public ItemDetails handle(ExecutionContext context) {
+	public CompletionStage<?> handle(ExecutionContext context) {
 		// for now we just extract the details out, but in reality we'd look at the
 		// exception to see what's happened and do different processing based on that
-		JsonBuilderFactory JSON = Json.createBuilderFactory(Collections.emptyMap());
-		// get the expected param types for the method
-		String paramTypes = Arrays.stream(context.getMethod().getParameters()).map(param -> param.getType().getName())
-				.collect(Collectors.joining(","));
-		// build the basic info to let us know what class / method and it's param types
-		// were called
-		JsonObjectBuilder partial = JSON.createObjectBuilder().add("Problem processing request in ",
-				context.getMethod().getDeclaringClass().getName() + "." + context.getMethod().getName() + "("
-						+ paramTypes + ")");
+		// start with the basic info to let us know what class / method and it's param
+		// types were called
+		JsonObjectBuilder partial = JSON.createObjectBuilder(bodyTemplates.computeIfAbsent(context.getMethod(),
+				method -> JSON.createObjectBuilder().add("Problem processing request in ",
+						method.getDeclaringClass().getName() + "." + method.getName() + "("
+								+ Arrays.stream(method.getParameterTypes()).map(type -> type.getName())
+										.collect(Collectors.joining(","))
+								+ ")")
+						.build()));
 		// get the args as a array of strings
 		List<String> paramsList = Arrays.stream(context.getParameters()).map(obj -> obj.toString())
 				.collect(Collectors.toList());
@@ -95,8 +113,11 @@ public class StorefrontFallbackHandler implements FallbackHandler<ItemDetails> {
 			}
 			if (embeddedCause != null) {
 				causeName = embeddedCause.getClass().getName();
-				log.info("Cause name is " + causeName);
-				if (causeName.equals(WebApplicationException.class.getName())) {
+				log.debug("Cause name is " + causeName);
+				if (embeddedCause instanceof WebApplicationException) {
+					// the clients throw their own (cheaper) subclass, it's still an error response
+					// from the stock manager
+					causeName = WebApplicationException.class.getName();
 					partial.add("Exception", causeName);
 					WebApplicationException wae = (WebApplicationException) embeddedCause;
 					partial.add("Embeded details", wae.getResponse().toString());
@@ -123,8 +144,26 @@ public class StorefrontFallbackHandler implements FallbackHandler<ItemDetails> {
 		Response resp = Response.status(respStatus).entity(errorDetails).build();
 		// package it all up and throw it, the runtime will convert it into the proper
 		// response structure with the redault we provided
-		throw new WebApplicationException("Problem processing request", cause, resp);
+		throw new ResponseException(cause, resp);
 
 	}
 
+	/**
+	 * What the handler throws to send the response, the runtime only wants the
+	 * response from it and the interesting stack trace (if there is one) is the
+	 * cause's, so it doesn't capture one of its own
+	 */
+	private static class ResponseException extends WebApplicationException {
+		private static final long serialVersionUID = -6215793049124376617L;
+
+		private ResponseException(Throwable cause, Response response) {
+			super("Problem processing request", cause, response);
+		}
+
+		@Override
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
 }
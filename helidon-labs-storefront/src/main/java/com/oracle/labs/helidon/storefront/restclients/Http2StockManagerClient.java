@@ -0,0 +1,603 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.json.bind.Jsonb;
+import javax.json.bind.JsonbBuilder;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+
+import io.helidon.common.context.Contexts;
+import io.helidon.security.OutboundSecurityResponse;
+import io.helidon.security.SecurityContext;
+import io.helidon.security.SecurityEnvironment;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.concurrent.Future;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A StockManager that talks to the stock manager service over a single HTTP/2
+ * (cleartext) connection, using the Netty HTTP/2 client that comes with the
+ * Helidon web server. All the calls are multiplexed over the one connection,
+ * so rather than a pool size maxPerHost limits how many calls can be in flight
+ * to the stock manager at once, a call that can't get a slot within the
+ * response timeout fails.
+ * 
+ * The connection starts straight off with HTTP/2 (prior knowledge) rather than
+ * being upgraded from HTTP/1.1. Helidon 2's HTTP/2 (which is experimental, and
+ * has to be switched on in the stock manager with
+ * server.experimental.http2.enable) loses the method, headers and body of the
+ * request a connection is upgraded on, with prior knowledge there's no upgrade
+ * so every call arrives as it was sent. If the stock manager closes the
+ * connection (when it's idle, or it's restarted) the next call just opens a
+ * new one, and one that's said it's going away (GOAWAY) isn't given any more
+ * calls. A call that couldn't be written to the connection (as it's just
+ * closed, or is going away) hasn't been seen by the stock manager, so it's
+ * tried once more on a new connection, nothing else is retried.
+ * 
+ * Netty doesn't have the Jersey filters, so the outbound security is done here
+ * in the same way the Helidon Jersey client filter does it, and any response
+ * that's not a success is thrown as a WebApplicationException (and connection
+ * failures and timeouts as a ProcessingException) like the rest client does,
+ * so the fallback handling sees the same thing whichever binding is used. The
+ * stock levels are asked for in the compact binary form first (see
+ * ItemDetailsBinary), and read in whichever form they come back.
+ * 
+ * The application metrics have the requests (stockmanager.client.requests,
+ * with version HTTP_2) along with the calls in flight and those rejected,
+ * tagged binding="http2" and with the endpoint (host:port)
+ */
+@Slf4j
+public class Http2StockManagerClient implements StockManager, AutoCloseable {
+	public final static String BINDING = "http2";
+	private final static Type ITEM_DETAILS_LIST = new ArrayList<ItemDetails>() {
+		private static final long serialVersionUID = 1L;
+	}.getClass().getGenericSuperclass();
+	private final static Type RESERVATION_RESULT_LIST = new ArrayList<ReservationResult>() {
+		private static final long serialVersionUID = 1L;
+	}.getClass().getGenericSuperclass();
+	private final static Jsonb JSONB = JsonbBuilder.create();
+	// the same as the rest client asks for (see StockManager)
+	private final static String ACCEPT = ItemDetailsBinary.MEDIA_TYPE + ", " + StockManager.JSON_IF_NOT_BINARY;
+	// the biggest response body that will be read, the full stock list is the
+	// largest
+	private final static int MAX_RESPONSE_BYTES = 16 * 1024 * 1024;
+
+	private final String baseUrl;
+	private final String host;
+	private final int port;
+	private final String authority;
+	private final long responseTimeoutMillis;
+	private final Semaphore permits;
+	// only for waiting for a permit, the calls themselves don't need a thread
+	private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-http2-client");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final EventLoopGroup eventLoop = new NioEventLoopGroup(1, runnable -> {
+		Thread thread = new Thread(runnable, "stockmanager-http2-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Bootstrap bootstrap;
+	// the connection, or the attempt to make it, null if there isn't one
+	private final AtomicReference<CompletableFuture<Channel>> connection = new AtomicReference<>();
+	private final Counter requests;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Counter rejected;
+
+	public Http2StockManagerClient(URL baseUrl, long connectTimeoutMillis, long responseTimeoutMillis, int maxPerHost,
+			MetricRegistry metricRegistry) {
+		this.baseUrl = baseUrl.toString();
+		this.host = baseUrl.getHost();
+		this.port = baseUrl.getPort() < 0 ? baseUrl.getDefaultPort() : baseUrl.getPort();
+		this.authority = baseUrl.getAuthority();
+		this.responseTimeoutMillis = responseTimeoutMillis;
+		this.permits = new Semaphore(maxPerHost);
+		this.bootstrap = new Bootstrap().group(eventLoop).channel(NioSocketChannel.class)
+				.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeoutMillis)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel channel) {
+						// the stock manager doesn't start any streams of it's own, so there's nothing
+						// for the multiplexer to do with them
+						channel.pipeline().addLast(Http2FrameCodecBuilder.forClient().build(),
+								new Http2MultiplexHandler(new SimpleChannelInboundHandler<Object>() {
+									@Override
+									protected void channelRead0(ChannelHandlerContext context, Object message) {
+									}
+								}));
+					}
+				});
+		Tag tags[] = { new Tag("binding", BINDING), new Tag("endpoint", authority) };
+		requests = metricRegistry.counter(Metadata.builder().withName("stockmanager.client.requests")
+				.withDescription("Number of requests made to the stock manager").withType(MetricType.COUNTER)
+				.withUnit(MetricUnits.NONE).build(), new Tag("binding", BINDING), new Tag("endpoint", authority),
+				new Tag("version", "HTTP_2"));
+		rejected = metricRegistry.counter(Metadata.builder().withName("stockmanager.client.rejected")
+				.withDescription("Calls that couldn't start as too many were already in flight to the stock manager")
+				.withType(MetricType.COUNTER).withUnit(MetricUnits.NONE).build(), tags);
+		metricRegistry.register(
+				Metadata.builder().withName("stockmanager.client.inFlight")
+						.withDescription("Calls currently in flight to the stock manager").withType(MetricType.GAUGE)
+						.withUnit(MetricUnits.NONE).build(),
+				(Gauge<Integer>) inFlight::get, tags);
+		log.info("Stock manager HTTP/2 client at " + baseUrl + " allows up to " + maxPerHost + " calls in flight");
+	}
+
+	@Override
+	public Collection<ItemDetails> getAllStockLevels() {
+		return itemDetailsList(send("GET", ""));
+	}
+
+	@Override
+	public ItemDetails getStockItem(String itemName) {
+		return itemDetails(send("GET", "/" + encode(itemName)));
+	}
+
+	@Override
+	public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+		return itemDetails(send("POST", "/" + encode(itemName) + "/" + itemCount));
+	}
+
+	@Override
+	public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+		return itemDetails(send("POST", "/" + encode(itemName) + "/reserve/" + itemCount));
+	}
+
+	@Override
+	public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+		return itemDetails(send("POST", "/" + encode(itemName) + "/release/" + itemCount));
+	}
+
+	@Override
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+		return JSONB.fromJson(send("POST", "/reserve", JSONB.toJson(reservations)).text(), RESERVATION_RESULT_LIST);
+	}
+
+	@Override
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+		return sendAsync("GET", "", null).thenApply(this::itemDetailsList);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+		return sendAsync("POST", "/" + encode(itemName) + "/reserve/" + itemCount, null)
+				.thenApply(this::itemDetails);
+	}
+
+	@Override
+	public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+		return sendAsync("POST", "/" + encode(itemName) + "/release/" + itemCount, null)
+				.thenApply(this::itemDetails);
+	}
+
+	@Override
+	public void close() {
+		CompletableFuture<Channel> current = connection.getAndSet(null);
+		if ((current != null) && current.isDone() && !current.isCompletedExceptionally()) {
+			current.join().close();
+		}
+		eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+		executor.shutdownNow();
+	}
+
+	private Reply send(String method, String path) {
+		return send(method, path, null);
+	}
+
+	private Reply send(String method, String path, String json) {
+		Call call = buildCall(method, path, json);
+		acquirePermit(call.uri);
+		inFlight.incrementAndGet();
+		try {
+			return checked(exchange(call, true).join());
+		} catch (CompletionException e) {
+			throw failure(e);
+		} finally {
+			inFlight.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	/**
+	 * The request (including the security headers) is built by the caller as it
+	 * has the Helidon context, if there's no free slot the wait for one is done by
+	 * a client thread, then the response is handled by Netty when it arrives
+	 */
+	private CompletionStage<Reply> sendAsync(String method, String path, String json) {
+		Call call;
+		try {
+			call = buildCall(method, path, json);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<Void> acquired = permits.tryAcquire() ? CompletableFuture.completedFuture(null)
+				: CompletableFuture.runAsync(() -> acquirePermit(call.uri), executor);
+		return acquired.thenCompose(permit -> {
+			inFlight.incrementAndGet();
+			return exchange(call, true).handle((reply, failure) -> {
+				inFlight.decrementAndGet();
+				permits.release();
+				if (failure != null) {
+					throw failure(failure);
+				}
+				return checked(reply);
+			});
+		});
+	}
+
+	private Call buildCall(String method, String path, String json) {
+		URI uri = URI.create(baseUrl + path);
+		Call call = new Call(method, uri, json == null ? null : json.getBytes(StandardCharsets.UTF_8));
+		addSecurityHeaders(call);
+		return call;
+	}
+
+	/**
+	 * Sends the call on a stream of the connection, opening the connection if
+	 * there isn't one. If the call can't be written it never got to the stock
+	 * manager, so if retry is set it's tried again on a new connection
+	 */
+	private CompletableFuture<Reply> exchange(Call call, boolean retry) {
+		return connection().thenCompose(channel -> {
+			CompletableFuture<Reply> reply = new CompletableFuture<>();
+			new Http2StreamChannelBootstrap(channel).handler(new ChannelInitializer<Http2StreamChannel>() {
+				@Override
+				protected void initChannel(Http2StreamChannel stream) {
+					stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false),
+							new HttpObjectAggregator(MAX_RESPONSE_BYTES), new ReplyHandler(reply));
+				}
+			}).open().addListener((Future<Http2StreamChannel> opened) -> {
+				if (!opened.isSuccess()) {
+					notSent(channel, reply, opened.cause());
+					return;
+				}
+				Http2StreamChannel stream = opened.getNow();
+				ScheduledFuture<?> timeout = stream.eventLoop().schedule(() -> {
+					if (reply.completeExceptionally(new TimeoutException("No response from the stock manager to "
+							+ call.method + " " + call.uri + " within " + responseTimeoutMillis + "ms"))) {
+						stream.close();
+					}
+				}, responseTimeoutMillis, TimeUnit.MILLISECONDS);
+				reply.whenComplete((done, failure) -> timeout.cancel(false));
+				// the stock manager only acts on a request once it's all arrived, so if
+				// writing it failed it's not been acted on
+				stream.writeAndFlush(call.request(authority)).addListener(written -> {
+					if (!written.isSuccess()) {
+						notSent(channel, reply, written.cause());
+						stream.close();
+					}
+				});
+			});
+			return reply;
+		}).handle((reply, failure) -> {
+			if (failure == null) {
+				return CompletableFuture.completedFuture(reply);
+			}
+			Throwable cause = unwrap(failure);
+			if (retry && (cause instanceof NotSentException)) {
+				return exchange(call, false);
+			}
+			return CompletableFuture.<Reply>failedFuture(cause);
+		}).thenCompose(reply -> reply);
+	}
+
+	/**
+	 * Completes with the connection, the first caller to find there isn't an open
+	 * one makes it and the others wait for that. If it can't be made the callers
+	 * waiting for it fail, the next one tries again
+	 */
+	private CompletableFuture<Channel> connection() {
+		while (true) {
+			CompletableFuture<Channel> current = connection.get();
+			if ((current != null) && !(current.isDone()
+					&& (current.isCompletedExceptionally() || !current.join().isActive()))) {
+				return current;
+			}
+			CompletableFuture<Channel> connecting = new CompletableFuture<>();
+			if (!connection.compareAndSet(current, connecting)) {
+				continue;
+			}
+			bootstrap.connect(host, port).addListener((ChannelFuture connected) -> {
+				if (!connected.isSuccess()) {
+					connection.compareAndSet(connecting, null);
+					connecting.completeExceptionally(connected.cause());
+					return;
+				}
+				Channel channel = connected.channel();
+				// the next call will make a new one
+				channel.closeFuture().addListener(closed -> {
+					log.info("Connection to the stock manager at " + baseUrl + " closed");
+					connection.compareAndSet(connecting, null);
+				});
+				log.info("Connected to the stock manager at " + baseUrl + " using HTTP/2");
+				// this runs before the channel is made active, which is when the HTTP/2
+				// preface is written, the calls have to wait until that's gone
+				channel.eventLoop().execute(() -> connecting.complete(channel));
+			});
+			return connecting;
+		}
+	}
+
+	/**
+	 * The call couldn't be sent, if that's because the connection is going away
+	 * (it's closed or the stock manager has sent a GOAWAY) it's not given any more
+	 * calls, the ones already on it carry on
+	 */
+	private void notSent(Channel channel, CompletableFuture<Reply> reply, Throwable cause) {
+		Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+		if (!channel.isActive() || (codec == null) || codec.connection().goAwayReceived()) {
+			CompletableFuture<Channel> current = connection.get();
+			if ((current != null) && current.isDone() && !current.isCompletedExceptionally()
+					&& (current.join() == channel)) {
+				connection.compareAndSet(current, null);
+			}
+		}
+		reply.completeExceptionally(new NotSentException(cause));
+	}
+
+	private Reply checked(Reply reply) {
+		requests.inc();
+		if (reply.status >= 300) {
+			throw new StockManagerResponseException(Response.status(reply.status).entity(reply.text())
+					.type(reply.contentType == null ? MediaType.TEXT_PLAIN : reply.contentType).build());
+		}
+		return reply;
+	}
+
+	// responses that aren't a success are already thrown as they should be, the
+	// rest are a problem getting an answer
+	private static RuntimeException failure(Throwable failure) {
+		Throwable cause = unwrap(failure);
+		if (cause instanceof NotSentException) {
+			cause = cause.getCause();
+		}
+		return cause instanceof RuntimeException ? (RuntimeException) cause : new ProcessingException(cause);
+	}
+
+	private static Throwable unwrap(Throwable failure) {
+		return (failure instanceof CompletionException) && (failure.getCause() != null) ? failure.getCause()
+				: failure;
+	}
+
+	private ItemDetails itemDetails(Reply reply) {
+		if (reply.body.length == 0) {
+			return null;
+		}
+		if (reply.isBinary()) {
+			try {
+				return ItemDetailsBinary.readItem(reply.body);
+			} catch (IOException e) {
+				throw new ProcessingException(e);
+			}
+		}
+		return JSONB.fromJson(reply.text(), ItemDetails.class);
+	}
+
+	private Collection<ItemDetails> itemDetailsList(Reply reply) {
+		if (reply.isBinary()) {
+			try {
+				return ItemDetailsBinary.readItems(reply.body);
+			} catch (IOException e) {
+				throw new ProcessingException(e);
+			}
+		}
+		return JSONB.fromJson(reply.text(), ITEM_DETAILS_LIST);
+	}
+
+	private void acquirePermit(URI uri) {
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(responseTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ProcessingException(e);
+		}
+		if (!acquired) {
+			rejected.inc();
+			throw new ProcessingException("Too many calls in flight to the stock manager, can't call " + uri);
+		}
+	}
+
+	/**
+	 * If there's a Helidon security context for this request ask the outbound
+	 * security providers for the headers to add (for basic auth that's the users
+	 * credentials), this is what the Helidon Jersey client filter does for the
+	 * rest client
+	 */
+	private void addSecurityHeaders(Call call) {
+		Optional<SecurityContext> securityContext = Contexts.context()
+				.flatMap(context -> context.get(SecurityContext.class));
+		if (securityContext.isEmpty()) {
+			return;
+		}
+		SecurityContext context = securityContext.get();
+		SecurityEnvironment outboundEnv = context.env().derive().method(call.method).path(call.uri.getPath())
+				.targetUri(call.uri).headers(Map.of()).build();
+		OutboundSecurityResponse response = context.outboundClientBuilder().outboundEnvironment(outboundEnv)
+				.outboundEndpointConfig(context.endpointConfig().derive().build()).buildAndGet();
+		if (!response.status().isSuccess()) {
+			throw new ProcessingException("Outbound security failed calling " + call.uri + " : "
+					+ response.description().orElse(response.status().toString()));
+		}
+		call.headers.putAll(response.requestHeaders());
+	}
+
+	private static String encode(String pathSegment) {
+		return URLEncoder.encode(pathSegment, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+
+	/**
+	 * A request to send, built on the caller's thread
+	 */
+	private static class Call {
+		private final String method;
+		private final URI uri;
+		// null if there's no body
+		private final byte[] json;
+		private final Map<String, List<String>> headers = new HashMap<>();
+
+		private Call(String method, URI uri, byte[] json) {
+			this.method = method;
+			this.uri = uri;
+			this.json = json;
+		}
+
+		// the HTTP/1.1 form, which the stream codec turns into the HTTP/2 frames
+		private FullHttpRequest request(String authority) {
+			String path = uri.getRawPath() + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+			FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.valueOf(method),
+					path, json == null ? Unpooled.EMPTY_BUFFER : Unpooled.wrappedBuffer(json));
+			request.headers().set(HttpHeaderNames.HOST, authority).set(HttpHeaderNames.ACCEPT, ACCEPT)
+					.set(HttpHeaderNames.CONTENT_LENGTH, json == null ? 0 : json.length);
+			if (json != null) {
+				request.headers().set(HttpHeaderNames.CONTENT_TYPE, MediaType.APPLICATION_JSON);
+			}
+			headers.forEach((name, values) -> request.headers().add(name, values));
+			return request;
+		}
+	}
+
+	/**
+	 * The parts of a response that are used
+	 */
+	private static class Reply {
+		private final int status;
+		// null if there wasn't one
+		private final String contentType;
+		private final byte[] body;
+
+		private Reply(FullHttpResponse response) {
+			this.status = response.status().code();
+			this.contentType = response.headers().get(HttpHeaders.CONTENT_TYPE);
+			this.body = ByteBufUtil.getBytes(response.content());
+		}
+
+		private boolean isBinary() {
+			return (contentType != null) && contentType.startsWith(ItemDetailsBinary.MEDIA_TYPE);
+		}
+
+		private String text() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Completes the call with the response on it's stream
+	 */
+	private static class ReplyHandler extends SimpleChannelInboundHandler<FullHttpResponse> {
+		private final CompletableFuture<Reply> reply;
+
+		private ReplyHandler(CompletableFuture<Reply> reply) {
+			this.reply = reply;
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext context, FullHttpResponse response) {
+			reply.complete(new Reply(response));
+			context.close();
+		}
+
+		@Override
+		public void exceptionCaught(ChannelHandlerContext context, Throwable cause) {
+			reply.completeExceptionally(cause);
+			context.close();
+		}
+
+		@Override
+		public void channelInactive(ChannelHandlerContext context) throws Exception {
+			// does nothing if the response has already arrived
+			reply.completeExceptionally(new IOException("The stock manager closed the stream without responding"));
+			super.channelInactive(context);
+		}
+	}
+
+	/**
+	 * A call couldn't be written to the connection, so the stock manager hasn't
+	 * seen it
+	 */
+	private static class NotSentException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private NotSentException(Throwable cause) {
+			super("Couldn't send the call to the stock manager", cause);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+
+/**
+ * A compact binary form of ItemDetails for the storefront and stock manager to
+ * use between themselves (the application/x-stocklevel media type), it's a lot
+ * cheaper to write and parse than JSON through JSON-B reflection, especially for
+ * a big department.
+ * 
+ * An item is the length of it's name in bytes (a varint) then the UTF-8 bytes of
+ * the name, then the item count (a zig-zag varint, so a small count is a byte
+ * or two whatever it's sign). A collection is the number of items (a varint)
+ * followed by the items. That's all there is, the content length says where it
+ * ends.
+ * 
+ * The stock manager has the same class, if this changes so must that
+ */
+public class ItemDetailsBinary {
+	public final static String MEDIA_TYPE = "application/x-stocklevel";
+
+	private ItemDetailsBinary() {
+	}
+
+	public static byte[] write(ItemDetails item) {
+		Writer writer = new Writer(item.getItemName().length() + 6);
+		writer.writeItem(item);
+		return writer.toByteArray();
+	}
+
+	public static byte[] write(Collection<ItemDetails> items) {
+		Writer writer = new Writer(items.size() * 24 + 5);
+		writer.writeVarint(items.size());
+		for (ItemDetails item : items) {
+			writer.writeItem(item);
+		}
+		return writer.toByteArray();
+	}
+
+	public static ItemDetails readItem(byte[] bytes) throws IOException {
+		Reader reader = new Reader(bytes);
+		ItemDetails item = reader.readItem();
+		reader.checkFinished();
+		return item;
+	}
+
+	public static List<ItemDetails> readItems(byte[] bytes) throws IOException {
+		Reader reader = new Reader(bytes);
+		int count = reader.readVarint();
+		// each item is at least two bytes, so don't trust a count that says otherwise
+		if ((count < 0) || (count > bytes.length / 2)) {
+			throw new IOException("Binary stock levels claim " + count + " items in only " + bytes.length + " bytes");
+		}
+		List<ItemDetails> items = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			items.add(reader.readItem());
+		}
+		reader.checkFinished();
+		return items;
+	}
+
+	private static class Writer {
+		private byte[] buffer;
+		private int position;
+
+		Writer(int sizeHint) {
+			buffer = new byte[sizeHint];
+		}
+
+		void writeItem(ItemDetails item) {
+			byte[] name = item.getItemName().getBytes(StandardCharsets.UTF_8);
+			writeVarint(name.length);
+			ensureCapacity(name.length);
+			System.arraycopy(name, 0, buffer, position, name.length);
+			position += name.length;
+			int count = item.getItemCount();
+			writeVarint((count << 1) ^ (count >> 31));
+		}
+
+		void writeVarint(int value) {
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0) {
+				buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[position++] = (byte) value;
+		}
+
+		byte[] toByteArray() {
+			return position == buffer.length ? buffer : Arrays.copyOf(buffer, position);
+		}
+
+		private void ensureCapacity(int needed) {
+			if (position + needed > buffer.length) {
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + needed));
+			}
+		}
+	}
+
+	private static class Reader {
+		private final byte[] buffer;
+		private int position;
+
+		Reader(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		ItemDetails readItem() throws IOException {
+			int length = readVarint();
+			if ((length < 0) || (length > buffer.length - position)) {
+				throw new IOException("Binary stock level has a name of " + length + " bytes with only "
+						+ (buffer.length - position) + " left");
+			}
+			String name = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			int count = readVarint();
+			return new ItemDetails(name, (count >>> 1) ^ -(count & 1));
+		}
+
+		int readVarint() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (position >= buffer.length) {
+					throw new IOException("Binary stock level ended part way through a number");
+				}
+				byte b = buffer[position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Binary stock level has a number that's too long");
+		}
+
+		void checkFinished() throws IOException {
+			if (position != buffer.length) {
+				throw new IOException("Binary stock level has " + (buffer.length - position) + " bytes left over");
+			}
+		}
+	}
+}
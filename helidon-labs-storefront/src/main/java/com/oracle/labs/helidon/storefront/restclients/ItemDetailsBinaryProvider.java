@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+
+/**
+ * Reads and writes ItemDetails (and collections of them) as
+ * application/x-stocklevel (see ItemDetailsBinary). It's registered with the
+ * stock manager rest client, which asks for that in preference to JSON (see
+ * StockManager), it's not used by the storefront's own endpoints
+ */
+@Produces(ItemDetailsBinary.MEDIA_TYPE)
+@Consumes(ItemDetailsBinary.MEDIA_TYPE)
+public class ItemDetailsBinaryProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return (type == ItemDetails.class)
+				|| (type.isAssignableFrom(ArrayList.class) && isItemDetailsCollection(genericType));
+	}
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException {
+		byte[] bytes = entityStream.readAllBytes();
+		return ItemDetails.class.equals(type) ? ItemDetailsBinary.readItem(bytes) : ItemDetailsBinary.readItems(bytes);
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return (type == ItemDetails.class)
+				|| (Collection.class.isAssignableFrom(type) && isItemDetailsCollection(genericType));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void writeTo(Object entity, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException {
+		entityStream.write(entity instanceof ItemDetails ? ItemDetailsBinary.write((ItemDetails) entity)
+				: ItemDetailsBinary.write((Collection<ItemDetails>) entity));
+	}
+
+	private static boolean isItemDetailsCollection(Type genericType) {
+		if (!(genericType instanceof ParameterizedType)) {
+			return false;
+		}
+		Type[] arguments = ((ParameterizedType) genericType).getActualTypeArguments();
+		return (arguments.length == 1) && (arguments[0] == ItemDetails.class);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.microprofile.metrics.Counter;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.Metadata;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.MetricType;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.Tag;
+import org.eclipse.microprofile.rest.client.RestClientBuilder;
+import org.eclipse.microprofile.rest.client.ext.ResponseExceptionMapper;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+import org.glassfish.jersey.apache.connector.ApacheConnectorProvider;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Builds the StockManager rest client on the Apache HTTP client connector
+ * rather than Jersey's default HttpURLConnection one. That gives us a pool of
+ * persistent connections to the stock manager that we can size (maxPerHost
+ * connections to the stock manager, maxTotal overall) and see into.
+ * 
+ * Connections are kept alive for as long as the stock manager says (the
+ * Keep-Alive header) but never more than keepAliveSeconds so we don't hang on
+ * to connections a load balancer has quietly dropped, and a connection that's
+ * been idle for more than a couple of seconds is checked before it's reused.
+ * 
+ * The pool is published in the application metrics as
+ * stockmanager.client.pool.* (leased, available, pending and max) along with
+ * the number of requests and the number of connections opened to service them,
+ * the reuse ratio is the proportion of requests that didn't need a new
+ * connection. Everything is tagged binding="restclient" and with the endpoint
+ * (host:port) so each stock manager being balanced over has it's own pool
+ * 
+ * Error responses are read before they are turned into a
+ * WebApplicationException, otherwise the connection would stay leased until
+ * the exception was garbage collected, and a run of 404's could empty the pool
+ * 
+ * The stock levels are read in the compact binary form if the stock manager
+ * sends them like that (see ItemDetailsBinaryProvider)
+ * 
+ * Being a normal MicroProfile rest client the filters (security propagation,
+ * tracing) are applied just as they are for an injected @RestClient
+ */
+@Slf4j
+public class PooledStockManagerClient {
+	public final static String BINDING = "restclient";
+	private final static int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+	private PooledStockManagerClient() {
+	}
+
+	public static StockManager build(URL baseUrl, long connectTimeoutMillis, long responseTimeoutMillis,
+			int maxPerHost, int maxTotal, int keepAliveSeconds, MetricRegistry metricRegistry) {
+		Tag tags[] = { new Tag("binding", BINDING), new Tag("endpoint", baseUrl.getAuthority()) };
+		Counter connectionsOpened = metricRegistry.counter(counterMetadata("stockmanager.client.connections.opened",
+				"Number of connections opened to the stock manager"), tags);
+		Counter requests = metricRegistry.counter(
+				counterMetadata("stockmanager.client.requests", "Number of requests made to the stock manager"), tags);
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(RegistryBuilder
+				.<ConnectionSocketFactory>create()
+				.register("http", new CountingSocketFactory(PlainConnectionSocketFactory.getSocketFactory(),
+						connectionsOpened))
+				.register("https",
+						new CountingSocketFactory(SSLConnectionSocketFactory.getSocketFactory(), connectionsOpened))
+				.build());
+		connectionManager.setDefaultMaxPerRoute(maxPerHost);
+		connectionManager.setMaxTotal(maxTotal);
+		connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+		registerPoolGauges(metricRegistry, connectionManager, connectionsOpened, requests, tags);
+		log.info("Stock manager rest client at " + baseUrl + " has a pool of " + maxPerHost
+				+ " connections kept alive for up to " + keepAliveSeconds + " seconds");
+		return RestClientBuilder.newBuilder().baseUrl(baseUrl)
+				.connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+				.readTimeout(responseTimeoutMillis, TimeUnit.MILLISECONDS).register(new ApacheConnectorProvider())
+				.property(ApacheClientProperties.CONNECTION_MANAGER, connectionManager)
+				.property(ApacheClientProperties.KEEPALIVE_STRATEGY, keepAliveStrategy(keepAliveSeconds))
+				// the request bodies are small, so send them with a content length rather than
+				// the connectors default of chunking them
+				.property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.BUFFERED)
+				.register(new RequestCounter(requests)).register(new ReadingExceptionMapper())
+				.register(new ItemDetailsBinaryProvider()).build(StockManager.class);
+	}
+
+	/**
+	 * Use the servers keep alive time if it gives one, capped at keepAliveSeconds
+	 */
+	private static ConnectionKeepAliveStrategy keepAliveStrategy(int keepAliveSeconds) {
+		long maxMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+		return (response, context) -> {
+			long serverMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+			return serverMillis <= 0 ? maxMillis : Math.min(serverMillis, maxMillis);
+		};
+	}
+
+	private static void registerPoolGauges(MetricRegistry metricRegistry,
+			PoolingHttpClientConnectionManager connectionManager, Counter connectionsOpened, Counter requests,
+			Tag tags[]) {
+		metricRegistry.register(gaugeMetadata("stockmanager.client.pool.leased", "Connections currently in use"),
+				(Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased(), tags);
+		metricRegistry.register(
+				gaugeMetadata("stockmanager.client.pool.available", "Idle connections available for reuse"),
+				(Gauge<Integer>) () -> connectionManager.getTotalStats().getAvailable(), tags);
+		metricRegistry.register(
+				gaugeMetadata("stockmanager.client.pool.pending", "Requests waiting for a connection from the pool"),
+				(Gauge<Integer>) () -> connectionManager.getTotalStats().getPending(), tags);
+		metricRegistry.register(gaugeMetadata("stockmanager.client.pool.max", "Maximum size of the pool"),
+				(Gauge<Integer>) () -> connectionManager.getTotalStats().getMax(), tags);
+		metricRegistry.register(
+				gaugeMetadata("stockmanager.client.connections.reuseRatio",
+						"Proportion of requests that reused an existing connection"),
+				(Gauge<Double>) () -> reuseRatio(requests.getCount(), connectionsOpened.getCount()), tags);
+	}
+
+	private static double reuseRatio(long requests, long connectionsOpened) {
+		if (requests == 0) {
+			return 0;
+		}
+		return Math.max(0, requests - connectionsOpened) / (double) requests;
+	}
+
+	private static Metadata gaugeMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.GAUGE)
+				.withUnit(MetricUnits.NONE).build();
+	}
+
+	private static Metadata counterMetadata(String name, String description) {
+		return Metadata.builder().withName(name).withDescription(description).withType(MetricType.COUNTER)
+				.withUnit(MetricUnits.NONE).build();
+	}
+
+	/**
+	 * Counts every connection the pool opens, anything that's served from the pool
+	 * without coming through here reused a connection
+	 */
+	private static class CountingSocketFactory implements ConnectionSocketFactory {
+		private final ConnectionSocketFactory delegate;
+		private final Counter connectionsOpened;
+
+		CountingSocketFactory(ConnectionSocketFactory delegate, Counter connectionsOpened) {
+			this.delegate = delegate;
+			this.connectionsOpened = connectionsOpened;
+		}
+
+		@Override
+		public Socket createSocket(HttpContext context) throws IOException {
+			return delegate.createSocket(context);
+		}
+
+		@Override
+		public Socket connectSocket(int connectTimeout, Socket sock, HttpHost host, InetSocketAddress remoteAddress,
+				InetSocketAddress localAddress, HttpContext context) throws IOException {
+			Socket socket = delegate.connectSocket(connectTimeout, sock, host, remoteAddress, localAddress, context);
+			connectionsOpened.inc();
+			return socket;
+		}
+	}
+
+	private static class RequestCounter implements ClientRequestFilter {
+		private final Counter requests;
+
+		RequestCounter(Counter requests) {
+			this.requests = requests;
+		}
+
+		@Override
+		public void filter(ClientRequestContext requestContext) {
+			requests.inc();
+		}
+	}
+
+	private static class ReadingExceptionMapper implements ResponseExceptionMapper<WebApplicationException> {
+		@Override
+		public boolean handles(int status, MultivaluedMap<String, Object> headers) {
+			return status >= 400;
+		}
+
+		@Override
+		public WebApplicationException toThrowable(Response response) {
+			// reading the entity consumes it and returns the connection to the pool
+			String body = response.hasEntity() ? response.readEntity(String.class) : "";
+			return new StockManagerResponseException(
+					Response.status(response.getStatus()).entity(body).type(response.getMediaType()).build());
+		}
+	}
+}
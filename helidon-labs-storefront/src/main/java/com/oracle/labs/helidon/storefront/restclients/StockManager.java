@@ -16,8 +16,11 @@
 package com.oracle.labs.helidon.storefront.restclients;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -28,22 +31,72 @@ import javax.ws.rs.core.MediaType;
 import org.eclipse.microprofile.rest.client.inject.RegisterRestClient;
 
 import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
 
 // Specify a config key here, this makes it easier in the configuration as we can just use that rather than having 
 // to define things using a fully qualified class name
 public interface StockManager {
+	// the stock levels are asked for in the compact binary form (see
+	// ItemDetailsBinary) as they are much cheaper to read than JSON, but JSON is
+	// still fine from a stock manager that doesn't have it
+	public final static String JSON_IF_NOT_BINARY = MediaType.APPLICATION_JSON + ";q=0.5";
+
 	@GET
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
 	public Collection<ItemDetails> getAllStockLevels();
 
 	@GET
 	@Path("/{itemName}")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
 	public ItemDetails getStockItem(@PathParam("itemName") String itemName);
 
 	@POST
 	@Path("/{itemName}/{itemCount}")
-	@Produces(MediaType.APPLICATION_JSON)
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
 	public ItemDetails setStockItemLevel(@PathParam("itemName") String itemName,
 			@PathParam("itemCount") Integer itemCount);
+
+	// the stock manager only does this if there are more than itemCount in stock,
+	// responding with 409 (Conflict) if there aren't, and 404 if the item is unknown
+	@POST
+	@Path("/{itemName}/reserve/{itemCount}")
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
+	public ItemDetails reserveStockItem(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount);
+
+	// gives back itemCount of the item, to undo a reservation that's no longer
+	// wanted, 404 if the item is unknown
+	@POST
+	@Path("/{itemName}/release/{itemCount}")
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
+	public ItemDetails releaseStockItem(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount);
+
+	// several reservations in one call, each one has it's own result (in the same
+	// order) with the status it would have got if it was made on it's own
+	@POST
+	@Path("/reserve")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<ReservationResult> reserveStockItems(List<Reservation> reservations);
+
+	// the same calls as getAllStockLevels, reserveStockItem and releaseStockItem, but the caller
+	// doesn't wait for the response, the stage completes when it arrives (or
+	// completes exceptionally with whatever the synchronous call would have thrown)
+	@GET
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
+	public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync();
+
+	@POST
+	@Path("/{itemName}/reserve/{itemCount}")
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
+	public CompletionStage<ItemDetails> reserveStockItemAsync(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount);
+
+	@POST
+	@Path("/{itemName}/release/{itemCount}")
+	@Produces({ ItemDetailsBinary.MEDIA_TYPE, JSON_IF_NOT_BINARY })
+	public CompletionStage<ItemDetails> releaseStockItemAsync(@PathParam("itemName") String itemName,
+			@PathParam("itemCount") Integer itemCount);
 }
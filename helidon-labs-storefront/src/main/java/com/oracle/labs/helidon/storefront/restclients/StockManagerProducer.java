@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Produces;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.eclipse.microprofile.metrics.annotation.RegistryType;
+
+import com.oracle.labs.helidon.storefront.balancing.LoadBalancedStockManager;
+import com.oracle.labs.helidon.storefront.batching.BatchingStockManager;
+import com.oracle.labs.helidon.storefront.cache.CachingStockManager;
+import com.oracle.labs.helidon.storefront.cache.CoalescingStockManager;
+import com.oracle.labs.helidon.storefront.dummy.StockManagerDummy;
+import com.oracle.labs.helidon.storefront.health.StockManagerHealthTracker;
+import com.oracle.labs.helidon.storefront.hedging.HedgingStockManager;
+import com.oracle.labs.helidon.storefront.limiter.AdaptiveConcurrencyLimit;
+import com.oracle.labs.helidon.storefront.limiter.ConcurrencyLimitedStockManager;
+import com.oracle.labs.helidon.storefront.memory.InMemoryStockManager;
+import com.oracle.labs.helidon.storefront.metrics.LatencyRecorder;
+import com.oracle.labs.helidon.storefront.metrics.TimedStockManager;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Provides the StockManager the storefront uses, the client that talks to the
+ * stock manager is picked at startup by app.stockmanager.binding
+ * 
+ * dummy - the in memory StockManagerDummy, handy for testing the storefront on
+ * it's own
+ * 
+ * memory - an InMemoryStockManager with the items from the JSON file
+ * app.stockmanager.memory.seedFile, so the storefront can run on it's own at
+ * full speed with as many items as needed (for benchmarks and demos)
+ * 
+ * restclient - the MicroProfile rest client with a pool of persistent
+ * connections (see PooledStockManagerClient), this is the default
+ * 
+ * http2 - every call multiplexed over one HTTP/2 (cleartext) connection, the
+ * stock manager needs to have HTTP/2 switched on (see Http2StockManagerClient)
+ * 
+ * All of the clients use the StockManager/mp-rest/* settings for the URL and timeouts
+ * so they are the same as if we'd injected the rest client directly. If
+ * app.stockmanager.urls lists more than one stock manager there's a client for
+ * each of them and a LoadBalancedStockManager spreads the calls over them
+ * 
+ * The calls the client makes are timed (and their outcomes go to the health
+ * tracker). If app.stockmanager.limit.enabled is true the number of those calls
+ * in flight at once is limited to what the stock manager has shown it can
+ * handle (see AdaptiveConcurrencyLimit), calls over the limit are rejected
+ * before they are made. If app.stockmanager.hedging.enabled is true reads that
+ * are slow to answer are hedged with a second call (see HedgingStockManager).
+ * In front of that if app.stockmanager.batching.enabled is true reservations
+ * are sent in batches by a BatchingStockManager, if
+ * app.stockmanager.coalescing.enabled is true overlapping reads of the same
+ * thing share a single call, and if app.stockmanager.cache.enabled is true
+ * reads are served from a CachingStockManager, so only the calls that actually
+ * go to the stock manager are counted
+ */
+@ApplicationScoped
+@Slf4j
+public class StockManagerProducer {
+	public final static String BINDING_DUMMY = "dummy";
+
+	private final String binding;
+	private final URL url;
+	private final Optional<String> urls;
+	private final Optional<String> memorySeedFile;
+	private final String balancingPolicy;
+	private final int balancingEjectAfterFailures;
+	private final int balancingEjectSeconds;
+	private final int balancingMaxEjectPercent;
+	private final int balancingSlowStartSeconds;
+	private final long connectTimeoutMillis;
+	private final long responseTimeoutMillis;
+	private final int maxPerHost;
+	private final int maxTotal;
+	private final int keepAliveSeconds;
+	private final boolean limitEnabled;
+	private final int limitInitial;
+	private final int limitMin;
+	private final int limitMax;
+	private final boolean hedgingEnabled;
+	private final double hedgingPercentile;
+	private final long hedgingMinDelayMillis;
+	private final double hedgingBudgetPercent;
+	private final boolean batchingEnabled;
+	private final int batchingMaxBatchSize;
+	private final long batchingMaxWaitMillis;
+	private final int batchingConcurrency;
+	private final boolean coalescingEnabled;
+	private final boolean cacheEnabled;
+	private final long cacheTtlMillis;
+	private final long cacheMaxStaleMillis;
+	private final MetricRegistry metricRegistry;
+	private final LatencyRecorder latencyRecorder;
+	private final StockManagerHealthTracker healthTracker;
+	private StockManager client;
+	private HedgingStockManager hedger;
+	private BatchingStockManager batcher;
+
+	@Inject
+	public StockManagerProducer(
+			@ConfigProperty(name = "app.stockmanager.binding", defaultValue = PooledStockManagerClient.BINDING) String binding,
+			@ConfigProperty(name = "StockManager/mp-rest/url") URL url,
+			@ConfigProperty(name = "app.stockmanager.urls") Optional<String> urls,
+			@ConfigProperty(name = "app.stockmanager.memory.seedFile") Optional<String> memorySeedFile,
+			@ConfigProperty(name = "app.stockmanager.balancing.policy", defaultValue = LoadBalancedStockManager.POLICY_LEAST_REQUESTS) String balancingPolicy,
+			@ConfigProperty(name = "app.stockmanager.balancing.ejectAfterFailures", defaultValue = "5") int balancingEjectAfterFailures,
+			@ConfigProperty(name = "app.stockmanager.balancing.ejectSeconds", defaultValue = "30") int balancingEjectSeconds,
+			@ConfigProperty(name = "app.stockmanager.balancing.maxEjectPercent", defaultValue = "50") int balancingMaxEjectPercent,
+			@ConfigProperty(name = "app.stockmanager.balancing.slowStartSeconds", defaultValue = "30") int balancingSlowStartSeconds,
+			@ConfigProperty(name = "StockManager/mp-rest/connectTimeout", defaultValue = "5000") long connectTimeoutMillis,
+			@ConfigProperty(name = "StockManager/mp-rest/responseTimeout", defaultValue = "5000") long responseTimeoutMillis,
+			@ConfigProperty(name = "app.stockmanager.pool.maxPerHost", defaultValue = "20") int maxPerHost,
+			@ConfigProperty(name = "app.stockmanager.pool.maxTotal", defaultValue = "50") int maxTotal,
+			@ConfigProperty(name = "app.stockmanager.pool.keepAliveSeconds", defaultValue = "30") int keepAliveSeconds,
+			@ConfigProperty(name = "app.stockmanager.limit.enabled", defaultValue = "true") boolean limitEnabled,
+			@ConfigProperty(name = "app.stockmanager.limit.initial", defaultValue = "20") int limitInitial,
+			@ConfigProperty(name = "app.stockmanager.limit.min", defaultValue = "2") int limitMin,
+			@ConfigProperty(name = "app.stockmanager.limit.max", defaultValue = "200") int limitMax,
+			@ConfigProperty(name = "app.stockmanager.hedging.enabled", defaultValue = "false") boolean hedgingEnabled,
+			@ConfigProperty(name = "app.stockmanager.hedging.percentile", defaultValue = "95") double hedgingPercentile,
+			@ConfigProperty(name = "app.stockmanager.hedging.minDelayMillis", defaultValue = "10") long hedgingMinDelayMillis,
+			@ConfigProperty(name = "app.stockmanager.hedging.budgetPercent", defaultValue = "10") double hedgingBudgetPercent,
+			@ConfigProperty(name = "app.stockmanager.batching.enabled", defaultValue = "false") boolean batchingEnabled,
+			@ConfigProperty(name = "app.stockmanager.batching.maxBatchSize", defaultValue = "50") int batchingMaxBatchSize,
+			@ConfigProperty(name = "app.stockmanager.batching.maxWaitMillis", defaultValue = "5") long batchingMaxWaitMillis,
+			@ConfigProperty(name = "app.stockmanager.batching.concurrency", defaultValue = "2") int batchingConcurrency,
+			@ConfigProperty(name = "app.stockmanager.coalescing.enabled", defaultValue = "true") boolean coalescingEnabled,
+			@ConfigProperty(name = "app.stockmanager.cache.enabled", defaultValue = "true") boolean cacheEnabled,
+			@ConfigProperty(name = "app.stockmanager.cache.ttlMillis", defaultValue = "2000") long cacheTtlMillis,
+			@ConfigProperty(name = "app.stockmanager.cache.maxStaleMillis", defaultValue = "30000") long cacheMaxStaleMillis,
+			@RegistryType(type = MetricRegistry.Type.APPLICATION) MetricRegistry metricRegistry,
+			LatencyRecorder latencyRecorder, StockManagerHealthTracker healthTracker) {
+		this.binding = binding;
+		this.url = url;
+		this.urls = urls;
+		this.memorySeedFile = memorySeedFile;
+		this.balancingPolicy = balancingPolicy;
+		this.balancingEjectAfterFailures = balancingEjectAfterFailures;
+		this.balancingEjectSeconds = balancingEjectSeconds;
+		this.balancingMaxEjectPercent = balancingMaxEjectPercent;
+		this.balancingSlowStartSeconds = balancingSlowStartSeconds;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.responseTimeoutMillis = responseTimeoutMillis;
+		this.maxPerHost = maxPerHost;
+		this.maxTotal = maxTotal;
+		this.keepAliveSeconds = keepAliveSeconds;
+		this.limitEnabled = limitEnabled;
+		this.limitInitial = limitInitial;
+		this.limitMin = limitMin;
+		this.limitMax = limitMax;
+		this.hedgingEnabled = hedgingEnabled;
+		this.hedgingPercentile = hedgingPercentile;
+		this.hedgingMinDelayMillis = hedgingMinDelayMillis;
+		this.hedgingBudgetPercent = hedgingBudgetPercent;
+		this.batchingEnabled = batchingEnabled;
+		this.batchingMaxBatchSize = batchingMaxBatchSize;
+		this.batchingMaxWaitMillis = batchingMaxWaitMillis;
+		this.batchingConcurrency = batchingConcurrency;
+		this.coalescingEnabled = coalescingEnabled;
+		this.cacheEnabled = cacheEnabled;
+		this.cacheTtlMillis = cacheTtlMillis;
+		this.cacheMaxStaleMillis = cacheMaxStaleMillis;
+		this.metricRegistry = metricRegistry;
+		this.latencyRecorder = latencyRecorder;
+		this.healthTracker = healthTracker;
+	}
+
+	@Produces
+	@ApplicationScoped
+	public StockManager stockManager() {
+		client = client();
+		StockManager stockManager = new TimedStockManager(client, latencyRecorder, healthTracker);
+		if (limitEnabled) {
+			stockManager = new ConcurrencyLimitedStockManager(stockManager,
+					new AdaptiveConcurrencyLimit(limitInitial, limitMin, limitMax), metricRegistry);
+		}
+		if (hedgingEnabled) {
+			hedger = new HedgingStockManager(stockManager, hedgingPercentile, hedgingMinDelayMillis,
+					hedgingBudgetPercent, metricRegistry);
+			stockManager = hedger;
+		}
+		if (batchingEnabled) {
+			batcher = new BatchingStockManager(stockManager, batchingMaxBatchSize, batchingMaxWaitMillis,
+					batchingConcurrency, metricRegistry);
+			stockManager = batcher;
+		}
+		if (coalescingEnabled) {
+			stockManager = new CoalescingStockManager(stockManager, metricRegistry);
+		}
+		if (cacheEnabled) {
+			stockManager = new CachingStockManager(stockManager, cacheTtlMillis, cacheMaxStaleMillis, metricRegistry);
+		}
+		return stockManager;
+	}
+
+	private StockManager client() {
+		log.info("Using the " + binding + " stock manager binding");
+		if (binding.equals(BINDING_DUMMY)) {
+			return StockManagerDummy.getStockManager();
+		}
+		if (binding.equals(InMemoryStockManager.BINDING)) {
+			return inMemoryStockManager();
+		}
+		Map<String, StockManager> clients = new LinkedHashMap<>();
+		for (URL endpointUrl : endpointUrls()) {
+			if (!clients.containsKey(endpointUrl.getAuthority())) {
+				clients.put(endpointUrl.getAuthority(), client(endpointUrl));
+			}
+		}
+		if (clients.size() == 1) {
+			return clients.values().iterator().next();
+		}
+		return new LoadBalancedStockManager(clients, balancingPolicy, balancingEjectAfterFailures,
+				balancingEjectSeconds, balancingMaxEjectPercent, balancingSlowStartSeconds, metricRegistry);
+	}
+
+	private StockManager inMemoryStockManager() {
+		if (memorySeedFile.isEmpty() || memorySeedFile.get().isBlank()) {
+			throw new IllegalArgumentException(
+					"The " + InMemoryStockManager.BINDING + " binding needs app.stockmanager.memory.seedFile");
+		}
+		try {
+			InMemoryStockManager stockManager = InMemoryStockManager.fromFile(Path.of(memorySeedFile.get()));
+			log.info("Read " + stockManager.getAllStockLevels().size() + " items from " + memorySeedFile.get());
+			return stockManager;
+		} catch (IOException e) {
+			throw new IllegalArgumentException(
+					"Can't read the app.stockmanager.memory.seedFile " + memorySeedFile.get(), e);
+		}
+	}
+
+	/**
+	 * app.stockmanager.urls is a comma separated list of stock manager URLs, if
+	 * it's not set there's just the StockManager/mp-rest/url one
+	 */
+	private URL[] endpointUrls() {
+		if (urls.isEmpty() || urls.get().isBlank()) {
+			return new URL[] { url };
+		}
+		String[] names = urls.get().split(",");
+		URL[] endpointUrls = new URL[names.length];
+		for (int i = 0; i < names.length; i++) {
+			try {
+				endpointUrls[i] = new URL(names[i].trim());
+			} catch (MalformedURLException e) {
+				throw new IllegalArgumentException("app.stockmanager.urls has an invalid URL " + names[i], e);
+			}
+		}
+		return endpointUrls;
+	}
+
+	private StockManager client(URL baseUrl) {
+		switch (binding) {
+		case PooledStockManagerClient.BINDING:
+			return PooledStockManagerClient.build(baseUrl, connectTimeoutMillis, responseTimeoutMillis, maxPerHost,
+					maxTotal, keepAliveSeconds, metricRegistry);
+		case Http2StockManagerClient.BINDING:
+			return new Http2StockManagerClient(baseUrl, connectTimeoutMillis, responseTimeoutMillis, maxPerHost,
+					metricRegistry);
+		default:
+			throw new IllegalArgumentException("Unknown app.stockmanager.binding " + binding + ", must be one of "
+					+ BINDING_DUMMY + ", " + InMemoryStockManager.BINDING + ", " + PooledStockManagerClient.BINDING
+					+ " or " + Http2StockManagerClient.BINDING);
+		}
+	}
+
+	/**
+	 * The cache and clients hold connections and threads, so let them go on
+	 * shutdown
+	 */
+	public void close(@Disposes StockManager stockManager) {
+		closeQuietly(stockManager);
+		closeQuietly(batcher);
+		closeQuietly(hedger);
+		closeQuietly(client);
+	}
+
+	private void closeQuietly(Object closeable) {
+		if (closeable instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) closeable).close();
+			} catch (Exception e) {
+				log.warn("Problem closing the stock manager client", e);
+			}
+		}
+	}
+}
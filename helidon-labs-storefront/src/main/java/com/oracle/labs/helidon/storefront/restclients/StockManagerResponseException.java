@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.restclients;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+/**
+ * An error response from the stock manager, thrown by the clients (and for the
+ * individual reservations in a batch) the way the rest client would. Once an
+ * item sells out most reservations get a 409, and where the client noticed the
+ * response isn't interesting, so it doesn't capture a stack trace
+ */
+public class StockManagerResponseException extends WebApplicationException {
+	private static final long serialVersionUID = -4471828355613604207L;
+
+	public StockManagerResponseException(Response response) {
+		super("Stock manager responded with status " + response.getStatus(), response);
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.limiter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveConcurrencyLimitTest {
+	private final static long BASELINE_RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// long enough to close any window
+	private final static long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final AtomicLong clock = new AtomicLong();
+
+	@Test
+	public void growsWhileTheLatencyStaysAtTheBaseline() {
+		AdaptiveConcurrencyLimit limit = limit(20, 1, 1000);
+		int previous = limit.getLimit();
+		for (int i = 0; i < 5; i++) {
+			window(limit, limit.getLimit(), BASELINE_RTT_NANOS);
+			assertTrue(limit.getLimit() > previous, "The limit didn't grow from " + previous);
+			previous = limit.getLimit();
+		}
+	}
+
+	@Test
+	public void shrinksWhenTheLatencyRises() {
+		AdaptiveConcurrencyLimit limit = limit(100, 1, 1000);
+		window(limit, 100, BASELINE_RTT_NANOS);
+		int previous = limit.getLimit();
+		// four times the baseline means the stock manager is queueing
+		for (int i = 0; i < 5; i++) {
+			window(limit, previous, BASELINE_RTT_NANOS * 4);
+			assertTrue(limit.getLimit() < previous, "The limit didn't shrink from " + previous);
+			// by at most half in one go
+			assertTrue(limit.getLimit() >= previous / 2, "The limit fell from " + previous + " to " + limit.getLimit());
+			previous = limit.getLimit();
+		}
+		// and grows again once the latency is back
+		window(limit, previous, BASELINE_RTT_NANOS);
+		assertTrue(limit.getLimit() > previous);
+	}
+
+	@Test
+	public void latencyWithinTheToleranceStillGrows() {
+		AdaptiveConcurrencyLimit limit = limit(20, 1, 1000);
+		window(limit, 20, BASELINE_RTT_NANOS);
+		int previous = limit.getLimit();
+		window(limit, previous, BASELINE_RTT_NANOS * 14 / 10);
+		assertTrue(limit.getLimit() > previous);
+	}
+
+	@Test
+	public void doesNotGrowWhenLittleOfItIsUsed() {
+		AdaptiveConcurrencyLimit limit = limit(100, 1, 1000);
+		for (int i = 0; i < 5; i++) {
+			window(limit, 10, BASELINE_RTT_NANOS);
+		}
+		assertEquals(100, limit.getLimit());
+	}
+
+	@Test
+	public void droppedCallBacksOff() {
+		AdaptiveConcurrencyLimit limit = limit(100, 1, 1000);
+		for (int i = 0; i < 10; i++) {
+			limit.acquire();
+		}
+		for (int i = 0; i < 9; i++) {
+			limit.onSuccess(BASELINE_RTT_NANOS);
+		}
+		clock.addAndGet(WINDOW_NANOS);
+		limit.onDropped();
+		assertEquals(90, limit.getLimit());
+		assertEquals(0, limit.getInFlight());
+	}
+
+	@Test
+	public void changesOnlyOnceAWindowIsOver() {
+		AdaptiveConcurrencyLimit limit = limit(20, 1, 1000);
+		for (int i = 0; i < 20; i++) {
+			limit.acquire();
+		}
+		// plenty of samples, but all in the same instant
+		for (int i = 0; i < 19; i++) {
+			limit.onSuccess(BASELINE_RTT_NANOS);
+		}
+		assertEquals(20, limit.getLimit());
+		clock.addAndGet(BASELINE_RTT_NANOS);
+		limit.onSuccess(BASELINE_RTT_NANOS);
+		assertTrue(limit.getLimit() > 20);
+	}
+
+	@Test
+	public void staysBetweenTheMinimumAndMaximum() {
+		AdaptiveConcurrencyLimit limit = limit(10, 5, 40);
+		for (int i = 0; i < 50; i++) {
+			window(limit, 40, BASELINE_RTT_NANOS);
+		}
+		assertEquals(40, limit.getLimit());
+		for (int i = 0; i < 50; i++) {
+			window(limit, 40, BASELINE_RTT_NANOS * 10);
+		}
+		assertEquals(5, limit.getLimit());
+		assertEquals(5, limit(1, 5, 40).getLimit());
+		assertEquals(40, limit(100, 5, 40).getLimit());
+	}
+
+	@Test
+	public void acquireIsNeverRejected() {
+		AdaptiveConcurrencyLimit limit = limit(10, 1, 10);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limit.tryAcquire());
+		}
+		assertFalse(limit.tryAcquire());
+		for (int i = 0; i < 5; i++) {
+			limit.acquire();
+		}
+		assertEquals(15, limit.getInFlight());
+		// the extra calls hold back the others until they finish
+		for (int i = 0; i < 5; i++) {
+			assertFalse(limit.tryAcquire());
+			limit.onIgnored();
+		}
+		assertFalse(limit.tryAcquire());
+		limit.onIgnored();
+		assertTrue(limit.tryAcquire());
+	}
+
+	private AdaptiveConcurrencyLimit limit(int initialLimit, int minLimit, int maxLimit) {
+		return new AdaptiveConcurrencyLimit(initialLimit, minLimit, maxLimit, clock::get);
+	}
+
+	/**
+	 * A window of calls that were all in flight together and all took rttNanos
+	 */
+	private void window(AdaptiveConcurrencyLimit limit, int calls, long rttNanos) {
+		for (int i = 0; i < calls; i++) {
+			limit.acquire();
+		}
+		for (int i = 0; i < calls; i++) {
+			if (i == calls - 1) {
+				clock.addAndGet(WINDOW_NANOS);
+			}
+			limit.onSuccess(rttNanos);
+		}
+		assertEquals(0, limit.getInFlight());
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.limiter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import org.eclipse.microprofile.faulttolerance.exceptions.BulkheadException;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+import io.helidon.metrics.RegistryFactory;
+
+public class ConcurrencyLimitedStockManagerTest {
+	private final StubStockManager stub = new StubStockManager();
+	private final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 2);
+	private final ConcurrencyLimitedStockManager stockManager = new ConcurrencyLimitedStockManager(stub, limit,
+			RegistryFactory.create().getRegistry(MetricRegistry.Type.APPLICATION));
+
+	@Test
+	public void releasesAreNeverRejected() throws Exception {
+		stockManager.reserveStockItemAsync("Pencil", 5);
+		stockManager.reserveStockItemAsync("Pin", 5);
+		// the limit's been reached, so another reservation is turned away
+		CompletableFuture<ItemDetails> rejected = stockManager.reserveStockItemAsync("Eraser", 5)
+				.toCompletableFuture();
+		ExecutionException failure = assertThrows(ExecutionException.class, () -> rejected.get());
+		assertTrue(failure.getCause() instanceof BulkheadException);
+		assertEquals(2, stub.calls.size());
+		// but a release still goes to the stock manager, and counts while it's in
+		// flight
+		stockManager.releaseStockItemAsync("Pencil", 5);
+		stockManager.releaseStockItem("Pin", 5);
+		assertEquals(List.of("reserve Pencil", "reserve Pin", "release Pencil", "release Pin"), stub.calls);
+		assertEquals(3, limit.getInFlight());
+		stub.pending.forEach(call -> call.complete(new ItemDetails("Pencil", 10)));
+		assertEquals(0, limit.getInFlight());
+	}
+
+	/**
+	 * The async calls wait until the test completes them, the sync ones return
+	 * straight away
+	 */
+	private static class StubStockManager implements StockManager {
+		private final List<String> calls = new ArrayList<>();
+		private final List<CompletableFuture<ItemDetails>> pending = new ArrayList<>();
+
+		@Override
+		public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+			return called("reserve " + itemName);
+		}
+
+		@Override
+		public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+			return called("release " + itemName);
+		}
+
+		@Override
+		public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+			calls.add("release " + itemName);
+			return new ItemDetails(itemName, itemCount);
+		}
+
+		private CompletableFuture<ItemDetails> called(String call) {
+			calls.add(call);
+			CompletableFuture<ItemDetails> result = new CompletableFuture<>();
+			pending.add(result);
+			return result;
+		}
+
+		@Override
+		public Collection<ItemDetails> getAllStockLevels() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails getStockItem(String itemName) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
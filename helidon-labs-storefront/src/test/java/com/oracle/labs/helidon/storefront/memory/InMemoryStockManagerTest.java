@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.memory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.junit.jupiter.api.Test;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+
+public class InMemoryStockManagerTest {
+	private final static int SEED_LEVEL = 1000;
+	private final static int THREADS = 8;
+	private final static int RESERVATIONS_PER_THREAD = 2000;
+
+	@Test
+	public void seedsTheItemsItIsGiven() {
+		InMemoryStockManager stockManager = new InMemoryStockManager(
+				List.of(new ItemDetails("Pencil", 100), new ItemDetails("Pin", 5)));
+		assertEquals(Map.of("Pencil", 100, "Pin", 5), levels(stockManager));
+		assertEquals(100, stockManager.getStockItem("Pencil").getItemCount());
+		assertNull(stockManager.getStockItem("Eraser"));
+		assertNull(stockManager.reserveStockItem("Eraser", 1));
+	}
+
+	@Test
+	public void seedsTheItemsInAFile() throws IOException {
+		Path seedFile = Files.createTempFile("stock", ".json");
+		try {
+			Files.write(seedFile, "[{\"itemName\":\"Pencil\",\"itemCount\":100},{\"itemName\":\"Pin\",\"itemCount\":5}]"
+					.getBytes(StandardCharsets.UTF_8));
+			assertEquals(Map.of("Pencil", 100, "Pin", 5), levels(InMemoryStockManager.fromFile(seedFile)));
+			Files.write(seedFile, "not json".getBytes(StandardCharsets.UTF_8));
+			assertThrows(IOException.class, () -> InMemoryStockManager.fromFile(seedFile));
+		} finally {
+			Files.delete(seedFile);
+		}
+	}
+
+	@Test
+	public void reservationsNeverTakeTheLastOfTheStock() {
+		InMemoryStockManager stockManager = new InMemoryStockManager(List.of(new ItemDetails("Pencil", 5)));
+		assertEquals(1, stockManager.reserveStockItem("Pencil", 4).getItemCount());
+		WebApplicationException refused = assertThrows(WebApplicationException.class,
+				() -> stockManager.reserveStockItem("Pencil", 1));
+		assertEquals(Status.CONFLICT.getStatusCode(), refused.getResponse().getStatus());
+		assertEquals(1, stockManager.getStockItem("Pencil").getItemCount());
+	}
+
+	@Test
+	public void concurrentReservationsNeverOversell() throws Exception {
+		InMemoryStockManager stockManager = new InMemoryStockManager(List.of(new ItemDetails("Pencil", SEED_LEVEL)));
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<Integer>> threads = new ArrayList<>();
+			for (int thread = 0; thread < THREADS; thread++) {
+				// mix up the sizes so the threads are racing for different amounts, half
+				// through the batch call
+				int itemCount = 1 + thread % 3;
+				boolean batched = thread % 2 == 0;
+				threads.add(executor.submit(() -> {
+					start.await();
+					int reserved = 0;
+					for (int i = 0; i < RESERVATIONS_PER_THREAD; i++) {
+						if (batched) {
+							ReservationResult result = stockManager
+									.reserveStockItems(List.of(new Reservation("Pencil", itemCount))).get(0);
+							if (result.getStatus() == Status.OK.getStatusCode()) {
+								reserved += itemCount;
+							}
+						} else {
+							try {
+								stockManager.reserveStockItem("Pencil", itemCount);
+								reserved += itemCount;
+							} catch (WebApplicationException e) {
+								assertEquals(Status.CONFLICT.getStatusCode(), e.getResponse().getStatus());
+							}
+						}
+					}
+					return reserved;
+				}));
+			}
+			start.countDown();
+			int reserved = 0;
+			for (Future<Integer> thread : threads) {
+				reserved += thread.get();
+			}
+			int level = stockManager.getStockItem("Pencil").getItemCount();
+			// there's always at least one left, and every one that's gone was reserved
+			// by someone
+			assertTrue(level > 0, "Oversold, the level is " + level);
+			assertEquals(SEED_LEVEL - reserved, level);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Map<String, Integer> levels(InMemoryStockManager stockManager) {
+		return stockManager.getAllStockLevels().stream()
+				.collect(Collectors.toMap(ItemDetails::getItemName, ItemDetails::getItemCount));
+	}
+}
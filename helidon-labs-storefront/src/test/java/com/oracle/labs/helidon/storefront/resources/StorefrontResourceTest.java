@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2019, 2020 Oracle and/or its affiliates.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.oracle.labs.helidon.storefront.resources;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response.Status;
+
+import org.eclipse.microprofile.faulttolerance.ExecutionContext;
+import org.junit.jupiter.api.Test;
+
+import com.oracle.labs.helidon.storefront.data.ItemDetails;
+import com.oracle.labs.helidon.storefront.data.ItemRequest;
+import com.oracle.labs.helidon.storefront.data.Reservation;
+import com.oracle.labs.helidon.storefront.data.ReservationResult;
+import com.oracle.labs.helidon.storefront.resources.fallback.StorefrontFallbackHandler;
+import com.oracle.labs.helidon.storefront.restclients.StockManager;
+
+public class StorefrontResourceTest {
+	private final static int MAX_LINES_IN_FLIGHT = 4;
+	private final static int ITEMS_LEFT = 50;
+
+	private final StubStockManager stockManager = new StubStockManager();
+	private final StorefrontResource storefront = new StorefrontResource(stockManager, MAX_LINES_IN_FLIGHT);
+
+	@Test
+	public void cartWithEveryLineReservedSucceeds() throws Exception {
+		CompletableFuture<List<ItemDetails>> result = reserveCart("Pencil", "Pin", "Eraser");
+		stockManager.reserved("Eraser");
+		stockManager.reserved("Pencil");
+		assertFalse(result.isDone());
+		stockManager.reserved("Pin");
+		List<ItemDetails> reserved = result.get(1, TimeUnit.SECONDS);
+		// in the order of the cart, not the order they were reserved in
+		assertEquals(List.of(new ItemDetails("Pencil", ITEMS_LEFT), new ItemDetails("Pin", ITEMS_LEFT),
+				new ItemDetails("Eraser", ITEMS_LEFT)), reserved);
+		assertTrue(stockManager.released.isEmpty());
+	}
+
+	@Test
+	public void lineWithoutEnoughStockReleasesTheOthers() throws Exception {
+		CompletableFuture<List<ItemDetails>> result = reserveCart("Pencil", "Pin", "Eraser");
+		stockManager.reserved("Pencil");
+		stockManager.reserved("Eraser");
+		assertTrue(stockManager.released.isEmpty());
+		stockManager.failed("Pin", new WebApplicationException(Status.CONFLICT));
+		assertEquals(Status.CONFLICT.getStatusCode(), status(result));
+		assertEquals(Map.of("Pencil", 5, "Eraser", 5), stockManager.released);
+	}
+
+	@Test
+	public void lineReservedAfterTheCartFailedIsReleased() throws Exception {
+		CompletableFuture<List<ItemDetails>> result = reserveCart("Pencil", "Pin");
+		stockManager.failed("Pin", new WebApplicationException(Status.CONFLICT));
+		stockManager.reserved("Pencil");
+		assertEquals(Status.CONFLICT.getStatusCode(), status(result));
+		assertEquals(Map.of("Pencil", 5), stockManager.released);
+	}
+
+	@Test
+	public void lineThatTimesOutIsNotReleased() throws Exception {
+		CompletableFuture<List<ItemDetails>> result = reserveCart("Pencil", "Pin", "Eraser");
+		stockManager.reserved("Pencil");
+		stockManager.reserved("Eraser");
+		// the stock manager may have made the reservation, releasing it could add
+		// stock that was never taken
+		stockManager.failed("Pin", new ProcessingException("Timed out", new TimeoutException()));
+		assertEquals(Status.GATEWAY_TIMEOUT.getStatusCode(), status(result));
+		assertEquals(Map.of("Pencil", 5, "Eraser", 5), stockManager.released);
+	}
+
+	@Test
+	public void uncertainLineOutranksAnEarlierFailure() throws Exception {
+		CompletableFuture<List<ItemDetails>> result = reserveCart("Pencil", "Pin");
+		stockManager.failed("Pencil", new WebApplicationException(Status.CONFLICT));
+		stockManager.failed("Pin", new ProcessingException("Timed out", new TimeoutException()));
+		assertEquals(Status.GATEWAY_TIMEOUT.getStatusCode(), status(result));
+		assertTrue(stockManager.released.isEmpty());
+	}
+
+	private CompletableFuture<List<ItemDetails>> reserveCart(String... itemNames) {
+		List<ItemRequest> cart = new ArrayList<>();
+		for (String itemName : itemNames) {
+			cart.add(new ItemRequest(itemName, 5));
+		}
+		return storefront.reserveCart(cart).toCompletableFuture();
+	}
+
+	/**
+	 * The status the client gets for the failed cart, the fault tolerance hands
+	 * the fallback handler the failure the cart completed with
+	 */
+	private static int status(CompletableFuture<List<ItemDetails>> result) throws Exception {
+		Throwable failure = result.handle((items, thrown) -> thrown).get(1, TimeUnit.SECONDS);
+		Method reserveCart = StorefrontResource.class.getMethod("reserveCart", List.class);
+		ExecutionContext context = new ExecutionContext() {
+			@Override
+			public Method getMethod() {
+				return reserveCart;
+			}
+
+			@Override
+			public Object[] getParameters() {
+				return new Object[] { Collections.emptyList() };
+			}
+
+			@Override
+			public Throwable getFailure() {
+				return failure;
+			}
+		};
+		WebApplicationException response = assertThrows(WebApplicationException.class,
+				() -> new StorefrontFallbackHandler().handle(context));
+		return response.getResponse().getStatus();
+	}
+
+	/**
+	 * Each reservation waits until the test says how it turned out, releases
+	 * succeed straight away and are recorded
+	 */
+	private static class StubStockManager implements StockManager {
+		private final Map<String, CompletableFuture<ItemDetails>> reservations = new ConcurrentHashMap<>();
+		private final Map<String, Integer> released = new ConcurrentHashMap<>();
+
+		void reserved(String itemName) {
+			reservations.get(itemName).complete(new ItemDetails(itemName, ITEMS_LEFT));
+		}
+
+		void failed(String itemName, Throwable failure) {
+			reservations.get(itemName).completeExceptionally(failure);
+		}
+
+		@Override
+		public CompletionStage<ItemDetails> reserveStockItemAsync(String itemName, Integer itemCount) {
+			return reservations.computeIfAbsent(itemName, name -> new CompletableFuture<>());
+		}
+
+		@Override
+		public CompletionStage<ItemDetails> releaseStockItemAsync(String itemName, Integer itemCount) {
+			released.merge(itemName, itemCount, Integer::sum);
+			return CompletableFuture.completedFuture(new ItemDetails(itemName, ITEMS_LEFT + itemCount));
+		}
+
+		@Override
+		public Collection<ItemDetails> getAllStockLevels() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails getStockItem(String itemName) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails setStockItemLevel(String itemName, Integer itemCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails reserveStockItem(String itemName, Integer itemCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public ItemDetails releaseStockItem(String itemName, Integer itemCount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public List<ReservationResult> reserveStockItems(List<Reservation> reservations) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public CompletionStage<Collection<ItemDetails>> getAllStockLevelsAsync() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}